@@ -0,0 +1,85 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.couchdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import org.signaut.common.http.HttpContent;
+
+/**
+ * An attachment to upload together with its document, see
+ * {@link CouchDbClient#putDocument(String, Object, java.util.List)}. Its length must be known up front.
+ */
+public class AttachmentContent {
+    private final String name;
+    private final String contentType;
+    private final HttpContent content;
+
+    public AttachmentContent(String name, String contentType, HttpContent content) {
+        if (content.getLength() < 0) {
+            throw new IllegalArgumentException("The length of attachment " + name + " must be known");
+        }
+        this.name = name;
+        this.contentType = contentType;
+        this.content = content;
+    }
+
+    public static AttachmentContent of(String name, String contentType, Path file) throws IOException {
+        return new AttachmentContent(name, contentType, HttpContent.of(file));
+    }
+
+    /**
+     * @param content read once and closed when sent
+     */
+    public static AttachmentContent of(String name, String contentType, InputStream content, long length) {
+        return new AttachmentContent(name, contentType, HttpContent.of(content, length));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public HttpContent getContent() {
+        return content;
+    }
+
+    public long getLength() {
+        return content.getLength();
+    }
+
+    @Override
+    public String toString() {
+        return "AttachmentContent [name=" + name + ", contentType=" + contentType + ", length=" + getLength() + "]";
+    }
+}
@@ -0,0 +1,592 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.couchdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.signaut.common.http.HttpFuture;
+import org.signaut.common.http.HttpRequest;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads attachments into a partial file next to the target, which is renamed into place once complete so
+ * nobody sees a partial file.
+ * <p>
+ * A download that breaks off keeps its partial file and the attachment's <code>ETag</code>. The next attempt, in
+ * the same call or a later one, asks for the rest with <code>Range</code> and <code>If-Range</code>, so a changed
+ * attachment is sent in full instead. Attachments of at least <code>parallelThreshold</code> bytes may be fetched as
+ * several ranges at once into a preallocated file; the first range is read from the response that told the length,
+ * the others are streamed into the file by threads of their own.
+ */
+public class AttachmentDownloader {
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Told about the progress of each download
+     */
+    public interface Listener {
+        /**
+         * Called at most once per progress interval while downloading, from the threads doing the transfer, and
+         * once when the download is complete
+         */
+        void progress(Download download);
+    }
+
+    /**
+     * Progress of a single download
+     */
+    public static class Download {
+        private final String documentId;
+        private final String name;
+        private final long started = System.nanoTime();
+        private final AtomicLong transferred = new AtomicLong();
+        private volatile long length = -1;
+        private volatile long resumedFrom = 0;
+        private volatile int ranges = 1;
+        private volatile int attempts = 0;
+        private volatile long finished = 0;
+        private volatile long lastReported = started;
+
+        Download(String documentId, String name) {
+            this.documentId = documentId;
+            this.name = name;
+        }
+
+        public String getDocumentId() {
+            return documentId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return size of the attachment, -1 until known
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return bytes received so far, not counting those of earlier, broken off downloads
+         */
+        public long getTransferred() {
+            return transferred.get();
+        }
+
+        /**
+         * @return bytes kept from an earlier attempt
+         */
+        public long getResumedFrom() {
+            return resumedFrom;
+        }
+
+        /**
+         * @return ranges fetched in parallel, 1 if fetched as a single stream
+         */
+        public int getRanges() {
+            return ranges;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public boolean isComplete() {
+            return finished != 0;
+        }
+
+        /**
+         * @return milliseconds since the download started, or until it completed
+         */
+        public long getElapsed() {
+            return TimeUnit.NANOSECONDS.toMillis((finished == 0 ? System.nanoTime() : finished) - started);
+        }
+
+        /**
+         * @return bytes per second received so far
+         */
+        public long getThroughput() {
+            final long elapsed = (finished == 0 ? System.nanoTime() : finished) - started;
+            return elapsed <= 0 ? 0 : transferred.get() * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s/%s: %d of %d bytes in %d ms (%d KB/s, %d ranges, resumed from %d, %d attempts)",
+                                 documentId, name, resumedFrom + transferred.get(), length, getElapsed(),
+                                 getThroughput() / 1024, ranges, resumedFrom, attempts);
+        }
+    }
+
+    private final CouchDbClientImpl client;
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private volatile int maxAttempts = 3;
+    private volatile int parallelism = 1;
+    private volatile long parallelThreshold = 8 * 1024 * 1024;
+    private volatile long progressInterval = 1000;
+    private volatile Listener listener;
+
+    AttachmentDownloader(CouchDbClientImpl client) {
+        this.client = client;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param maxAttempts tries per call, and per range, each continuing where the last one broke off
+     */
+    public AttachmentDownloader setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism ranges to fetch a large attachment in. 1 fetches every attachment as a single stream.
+     */
+    public AttachmentDownloader setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public long getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * @param parallelThreshold bytes an attachment must have to be fetched in parallel ranges
+     */
+    public AttachmentDownloader setParallelThreshold(long parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+        return this;
+    }
+
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * @param progressInterval milliseconds between progress reports of a download
+     */
+    public AttachmentDownloader setProgressInterval(long progressInterval) {
+        this.progressInterval = progressInterval;
+        return this;
+    }
+
+    public Listener getListener() {
+        return listener;
+    }
+
+    public AttachmentDownloader setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * @return the path of the downloaded file, or <code>null</code> if the attachment was not found or could not be
+     *         downloaded
+     */
+    public String download(String documentId, String name, File directory) {
+        if ( ! directory.exists()) {
+            directory.mkdirs();
+        }
+        final File file = new File(directory, name);
+        final File partial = new File(directory, "." + name + ".part");
+        final File validator = new File(directory, "." + name + ".etag");
+        final Download download = new Download(documentId, name);
+        final String uri = documentId + "/" + name;
+        while (download.attempts < maxAttempts) {
+            download.attempts++;
+            final String etag = resumableETag(partial, validator);
+            final long offset = etag == null ? 0 : partial.length();
+            final HttpRequest request = client.attachmentRequest(uri, CouchDbOperations.ATTACHMENT);
+            if (offset > 0) {
+                request.setHeader("Range", "bytes=" + offset + "-").setHeader("If-Range", etag);
+            }
+            try {
+                if ( ! client.send(request, new FirstResponseHandler(download, partial, validator, uri, offset))) {
+                    delete(partial);
+                    delete(validator);
+                    return null;
+                }
+                moveIntoPlace(partial, file);
+                delete(validator);
+                download.finished = System.nanoTime();
+                log.info("Downloaded {}", download);
+                report(download, true);
+                return file.getAbsolutePath();
+            } catch (RuntimeException e) {
+                log.warn(String.format("While downloading %s, attempt %d of %d", download, download.attempts,
+                                       maxAttempts), e);
+            } catch (IOException e) {
+                log.warn(String.format("While downloading %s, attempt %d of %d", download, download.attempts,
+                                       maxAttempts), e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the <code>ETag</code> of the attachment the partial file holds the start of, <code>null</code> if there
+     *         is nothing to resume
+     */
+    private String resumableETag(File partial, File validator) {
+        if ( ! partial.isFile() || partial.length() == 0 || ! validator.isFile()) {
+            return null;
+        }
+        try {
+            final String etag = new String(Files.readAllBytes(validator.toPath()), UTF8).trim();
+            return etag.isEmpty() ? null : etag;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void report(Download download, boolean always) {
+        final Listener current = listener;
+        if (current == null) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (always || now - download.lastReported >= TimeUnit.MILLISECONDS.toNanos(progressInterval)) {
+            download.lastReported = now;
+            current.progress(download);
+        }
+    }
+
+    /**
+     * Handles the response to the first request of an attempt, which tells whether to resume, start over or fetch
+     * ranges in parallel
+     * 
+     * @return <code>false</code> if there is no such attachment
+     */
+    private final class FirstResponseHandler implements HttpResponseHandler<Boolean> {
+        private final Download download;
+        private final File partial;
+        private final File validator;
+        private final String uri;
+        private final long offset;
+
+        FirstResponseHandler(Download download, File partial, File validator, String uri, long offset) {
+            this.download = download;
+            this.partial = partial;
+            this.validator = validator;
+            this.uri = uri;
+            this.offset = offset;
+        }
+
+        @Override
+        public Boolean handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            if (responseCode == 416) {
+                //What was kept is not a prefix of the attachment any more
+                delete(validator);
+                throw new IllegalStateException("Range not satisfiable, starting over: " + uri);
+            }
+            if (responseCode >= 400 || responseCode < 0) {
+                return false;
+            }
+            try {
+                final RandomAccessFile out = new RandomAccessFile(partial, "rw");
+                try {
+                    if (responseCode == 206) {
+                        final long[] range = contentRange(connection);
+                        if (range == null || range[0] != offset) {
+                            delete(validator);
+                            throw new IOException("Unexpected Content-Range: "
+                                                  + connection.getHeaderField("Content-Range"));
+                        }
+                        download.length = range[2];
+                        download.resumedFrom = offset;
+                        log.info("Resuming {} from byte {}", uri, offset);
+                        single(input, out, offset);
+                    } else {
+                        download.length = contentLength(connection);
+                        out.setLength(0);
+                        final String etag = connection.getHeaderField("ETag");
+                        if (etag == null) {
+                            delete(validator);
+                        } else {
+                            Files.write(validator.toPath(), etag.getBytes(UTF8));
+                        }
+                        if (parallelism > 1 && download.length >= parallelThreshold && etag != null
+                                && "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"))) {
+                            parallel(input, out, etag);
+                        } else {
+                            if (download.length > 0) {
+                                out.setLength(download.length);
+                            }
+                            single(input, out, 0);
+                        }
+                    }
+                    out.getChannel().force(false);
+                } finally {
+                    out.close();
+                }
+                return true;
+            } catch (IOException e) {
+                throw new IllegalStateException(String.format("While downloading %s", uri), e);
+            }
+        }
+
+        private void single(InputStream input, RandomAccessFile out, long start) throws IOException {
+            final AtomicLong position = new AtomicLong(start);
+            try {
+                transfer(input, out.getChannel(), position, Long.MAX_VALUE, download);
+            } finally {
+                //Only what was written is kept for resuming
+                if (out.length() != position.get()) {
+                    out.setLength(position.get());
+                }
+            }
+            if (download.length >= 0 && position.get() != download.length) {
+                throw new IOException(String.format("Expected %d bytes, got %d", download.length, position.get()));
+            }
+        }
+
+        /**
+         * Read the first range from this response while the others are fetched with requests of their own. If the
+         * first range breaks off, the attempt fails and the next one starts over.
+         */
+        private void parallel(InputStream input, RandomAccessFile out, String etag) throws IOException {
+            //A broken off parallel download leaves holes, so it cannot be resumed
+            delete(validator);
+            out.setLength(download.length);
+            final FileChannel channel = out.getChannel();
+            final long size = (download.length + parallelism - 1) / parallelism;
+            download.ranges = parallelism;
+            final List<HttpFuture<Void>> others = new ArrayList<HttpFuture<Void>>();
+            final ExecutorService fetchers = Executors.newFixedThreadPool(parallelism - 1, new ThreadFactory() {
+                private final AtomicInteger threads = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "CouchDB-range-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            final AtomicLong position = new AtomicLong();
+            IOException failure = null;
+            RuntimeException otherFailure = null;
+            try {
+                for (long start = size; start < download.length; start += size) {
+                    final HttpFuture<Void> done = new HttpFuture<Void>();
+                    fetchers.execute(new Segment(uri, etag, channel, start, Math.min(download.length, start + size),
+                                                 download, done));
+                    others.add(done);
+                }
+                try {
+                    transfer(input, channel, position, size, download);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                //The file is closed after this, so the other ranges must be done with it first
+                for (HttpFuture<Void> other: others) {
+                    try {
+                        other.join();
+                    } catch (RuntimeException e) {
+                        otherFailure = e;
+                    }
+                }
+            } finally {
+                fetchers.shutdown();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (position.get() != size) {
+                throw new IOException(String.format("Expected %d bytes, got %d", size, position.get()));
+            }
+            if (otherFailure != null) {
+                throw otherFailure;
+            }
+        }
+    }
+
+    /**
+     * A range fetched on its own, retried from where it broke off. The body is streamed straight into the file at the
+     * range's offset, so a range is never held in memory whatever its size.
+     */
+    private final class Segment implements HttpResponseHandler<Void>, Runnable {
+        private final String uri;
+        private final String etag;
+        private final FileChannel channel;
+        private final long end;
+        private final Download download;
+        private final HttpFuture<Void> done;
+        private final AtomicLong position;
+        private volatile boolean ignored = false;
+
+        Segment(String uri, String etag, FileChannel channel, long start, long end, Download download,
+                HttpFuture<Void> done) {
+            this.uri = uri;
+            this.etag = etag;
+            this.channel = channel;
+            this.position = new AtomicLong(start);
+            this.end = end;
+            this.download = download;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            int attempts = 0;
+            while (true) {
+                attempts++;
+                final HttpRequest request = client.attachmentRequest(uri, CouchDbOperations.ATTACHMENT_RANGE)
+                        .setHeader("Range", "bytes=" + position.get() + "-" + (end - 1)).setHeader("If-Range", etag);
+                try {
+                    client.send(request, this);
+                    done.completed(null);
+                    return;
+                } catch (RuntimeException e) {
+                    if (attempts >= maxAttempts || ignored) {
+                        done.failed(e);
+                        return;
+                    }
+                    log.info("Retrying bytes {}-{} of {}: {}", position.get(), end - 1, uri, e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public Void handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            final long[] range = contentRange(connection);
+            if (responseCode != 206 || range == null || range[0] != position.get()) {
+                //The attachment changed or the server ignores ranges; retrying would not help
+                ignored = true;
+                throw new IllegalStateException(String.format("Expected bytes %d-%d of %s, got %d %s", position.get(),
+                                                              end - 1, uri, responseCode,
+                                                              connection.getHeaderField("Content-Range")));
+            }
+            final long start = position.get();
+            try {
+                transfer(input, channel, position, end, download);
+            } catch (IOException e) {
+                //Bytes transferred so far are kept, the retry continues after them
+                throw new IllegalStateException(String.format("While downloading bytes %d-%d of %s", start,
+                                                              end - 1, uri), e);
+            }
+            if (position.get() != end) {
+                throw new IllegalStateException(String.format("Expected bytes %d-%d of %s, got up to %d", start,
+                                                              end - 1, uri, position.get()));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Move the body into the file with {@link FileChannel#transferFrom}
+     * 
+     * @param position where to write, advanced past each block written so it tells how far a broken off transfer got
+     * @param end position to stop at, if the body does not end before
+     */
+    private void transfer(InputStream input, FileChannel channel, AtomicLong position, long end, Download download)
+            throws IOException {
+        final ReadableByteChannel source = Channels.newChannel(input);
+        long transferred;
+        while (position.get() < end
+               && (transferred = channel.transferFrom(source, position.get(),
+                                                      Math.min(TRANSFER_SIZE, end - position.get()))) > 0) {
+            position.addAndGet(transferred);
+            download.transferred.addAndGet(transferred);
+            report(download, false);
+        }
+    }
+
+    /**
+     * @return start, end and total length of a <code>Content-Range: bytes start-end/total</code> header
+     */
+    static long[] contentRange(HttpURLConnection connection) {
+        final String header = connection.getHeaderField("Content-Range");
+        if (header == null || ! header.trim().startsWith("bytes ")) {
+            return null;
+        }
+        try {
+            final String range = header.trim().substring(6).trim();
+            final int dash = range.indexOf('-');
+            final int slash = range.indexOf('/');
+            return new long[] { Long.parseLong(range.substring(0, dash).trim()),
+                               Long.parseLong(range.substring(dash + 1, slash).trim()),
+                               Long.parseLong(range.substring(slash + 1).trim()) };
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    static long contentLength(HttpURLConnection connection) {
+        final String length = connection.getHeaderField("Content-Length");
+        try {
+            return length == null ? -1 : Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void moveIntoPlace(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void delete(File file) {
+        if (file.exists() && ! file.delete()) {
+            log.warn(String.format("Could not delete %s", file));
+        }
+    }
+}
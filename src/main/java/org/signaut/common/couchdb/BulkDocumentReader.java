@@ -0,0 +1,261 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.couchdb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.signaut.common.http.HttpFuture;
+import org.signaut.common.http.LatencyHistogram;
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Collects the ids of documents read by concurrent callers and fetches them with one
+ * <code>_all_docs?include_docs=true</code> request. A batch is sent when it holds <code>maxBatchSize</code>
+ * distinct ids, on the thread adding the last one, or <code>maxDelay</code> milliseconds after its first id was
+ * added. Callers asking for the same id share the result.
+ */
+public class BulkDocumentReader {
+    private final CouchDbClientImpl client;
+    private final int maxBatchSize;
+    private final long maxDelay;
+    private final ScheduledExecutorService scheduler;
+    private Map<String, List<Pending<?>>> batch = new LinkedHashMap<String, List<Pending<?>>>();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong keys = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+
+    private static final class Pending<T> {
+        final Class<T> type;
+        final HttpFuture<T> future;
+        final long added = System.nanoTime();
+
+        Pending(Class<T> type, HttpFuture<T> future) {
+            this.type = type;
+            this.future = future;
+        }
+    }
+
+    /**
+     * @param maxBatchSize distinct ids per request
+     * @param maxDelay milliseconds the first read of a batch may wait for others to join it
+     */
+    public BulkDocumentReader(CouchDbClientImpl client, int maxBatchSize, long maxDelay) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        this.client = client;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = maxDelay;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "couchdb-bulk-reader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * @return <code>_all_docs</code> requests sent
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * @return distinct ids fetched by those requests
+     */
+    public long getKeys() {
+        return keys.get();
+    }
+
+    /**
+     * @return reads answered, including the ones sharing an id with another read
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    public double getMeanBatchSize() {
+        final long n = batches.get();
+        return n == 0 ? 0 : (double) keys.get() / n;
+    }
+
+    public long getLargestBatch() {
+        return largestBatch.get();
+    }
+
+    /**
+     * @return time from a read being added to its batch being sent
+     */
+    public LatencyHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * @param callback notified on the thread sending the batch. May be <code>null</code>
+     * @return the document, or <code>null</code> if it does not exist or has been deleted
+     */
+    public <T> Future<T> read(String id, Class<T> type, HttpCallback<T> callback) {
+        final HttpFuture<T> future = new HttpFuture<T>(callback);
+        final Map<String, List<Pending<?>>> full;
+        synchronized (this) {
+            List<Pending<?>> waiting = batch.get(id);
+            if (waiting == null) {
+                waiting = new ArrayList<Pending<?>>(1);
+                batch.put(id, waiting);
+            }
+            waiting.add(new Pending<T>(type, future));
+            if (batch.size() == 1 && waiting.size() == 1 && maxBatchSize > 1) {
+                final Map<String, List<Pending<?>>> first = batch;
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(first);
+                    }
+                }, maxDelay, TimeUnit.MILLISECONDS);
+            }
+            full = batch.size() >= maxBatchSize ? take() : null;
+        }
+        if (full != null) {
+            send(full);
+        }
+        return future;
+    }
+
+    /**
+     * Read a document and wait for it
+     */
+    public <T> T read(String id, Class<T> type) {
+        return ((HttpFuture<T>) read(id, type, null)).join();
+    }
+
+    private void flush(Map<String, List<Pending<?>>> scheduled) {
+        final Map<String, List<Pending<?>>> pending;
+        synchronized (this) {
+            if (batch != scheduled || batch.isEmpty()) {
+                return;
+            }
+            pending = take();
+        }
+        send(pending);
+    }
+
+    private Map<String, List<Pending<?>>> take() {
+        final Map<String, List<Pending<?>>> taken = batch;
+        batch = new LinkedHashMap<String, List<Pending<?>>>();
+        return taken;
+    }
+
+    private void send(Map<String, List<Pending<?>>> pending) {
+        final long now = System.nanoTime();
+        for (List<Pending<?>> waiting: pending.values()) {
+            for (Pending<?> p: waiting) {
+                waitTime.record(now - p.added, TimeUnit.NANOSECONDS);
+            }
+        }
+        final Map<String, JsonNode> documents;
+        try {
+            documents = client.fetchDocuments(pending.keySet());
+        } catch (RuntimeException e) {
+            for (List<Pending<?>> waiting: pending.values()) {
+                for (Pending<?> p: waiting) {
+                    p.future.failed(e);
+                }
+            }
+            return;
+        }
+        batches.incrementAndGet();
+        keys.addAndGet(pending.size());
+        long largest;
+        while (pending.size() > (largest = largestBatch.get()) && !largestBatch.compareAndSet(largest, pending.size())) {
+            //Retry
+        }
+        for (Entry<String, List<Pending<?>>> entry: pending.entrySet()) {
+            final JsonNode document = documents.get(entry.getKey());
+            for (Pending<?> p: entry.getValue()) {
+                reads.incrementAndGet();
+                complete(p, document);
+            }
+        }
+    }
+
+    private <T> void complete(Pending<T> pending, JsonNode document) {
+        final T value;
+        try {
+            value = document == null ? null : client.convert(document, pending.type);
+        } catch (RuntimeException e) {
+            pending.future.failed(e);
+            return;
+        }
+        pending.future.completed(value);
+    }
+
+    /**
+     * Send what is waiting now and stop the timer. No documents may be read afterwards.
+     */
+    public void shutdown() {
+        final Map<String, List<Pending<?>>> pending;
+        synchronized (this) {
+            pending = take();
+        }
+        if ( ! pending.isEmpty()) {
+            send(pending);
+        }
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "BulkDocumentReader [maxBatchSize=" + maxBatchSize + ", maxDelay=" + maxDelay + ", batches="
+               + batches + ", keys=" + keys + ", reads=" + reads + "]";
+    }
+}
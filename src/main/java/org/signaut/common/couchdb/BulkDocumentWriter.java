@@ -0,0 +1,208 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.couchdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.signaut.common.http.HttpFuture;
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
+
+/**
+ * Collects documents written by concurrent callers and stores them with one <code>_bulk_docs</code> request. A batch
+ * is sent when it holds <code>maxBatchSize</code> documents, on the thread adding the last one, or
+ * <code>maxDelay</code> milliseconds after its first document was added. Every caller gets the status of its own
+ * document.
+ */
+public class BulkDocumentWriter {
+    private final CouchDbClient client;
+    private final int maxBatchSize;
+    private final long maxDelay;
+    private final ScheduledExecutorService scheduler;
+    private List<Pending> batch = new ArrayList<Pending>();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong documents = new AtomicLong();
+
+    private static final class Pending {
+        final Object document;
+        final HttpFuture<DocumentStatus> future;
+
+        Pending(Object document, HttpFuture<DocumentStatus> future) {
+            this.document = document;
+            this.future = future;
+        }
+    }
+
+    /**
+     * @param maxBatchSize documents per request
+     * @param maxDelay milliseconds the first document of a batch may wait for others to join it
+     */
+    public BulkDocumentWriter(CouchDbClient client, int maxBatchSize, long maxDelay) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        this.client = client;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = maxDelay;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "couchdb-bulk-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * @return <code>_bulk_docs</code> requests sent
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * @return documents written through those requests
+     */
+    public long getDocuments() {
+        return documents.get();
+    }
+
+    /**
+     * Queue a document. Documents to be updated must carry their <code>_id</code> and <code>_rev</code>.
+     * 
+     * @param callback notified on the thread sending the batch. May be <code>null</code>
+     */
+    public Future<DocumentStatus> write(Object document, HttpCallback<DocumentStatus> callback) {
+        final HttpFuture<DocumentStatus> future = new HttpFuture<DocumentStatus>(callback);
+        final List<Pending> full;
+        synchronized (this) {
+            batch.add(new Pending(document, future));
+            if (batch.size() == 1 && maxBatchSize > 1) {
+                final List<Pending> first = batch;
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(first);
+                    }
+                }, maxDelay, TimeUnit.MILLISECONDS);
+            }
+            full = batch.size() >= maxBatchSize ? take() : null;
+        }
+        if (full != null) {
+            send(full);
+        }
+        return future;
+    }
+
+    /**
+     * Write a document and wait for its status
+     */
+    public DocumentStatus write(Object document) {
+        return ((HttpFuture<DocumentStatus>) write(document, null)).join();
+    }
+
+    /**
+     * Send the batch unless it has already been sent
+     */
+    private void flush(List<Pending> scheduled) {
+        final List<Pending> pending;
+        synchronized (this) {
+            if (batch != scheduled || batch.isEmpty()) {
+                return;
+            }
+            pending = take();
+        }
+        send(pending);
+    }
+
+    private List<Pending> take() {
+        final List<Pending> taken = batch;
+        batch = new ArrayList<Pending>();
+        return taken;
+    }
+
+    private void send(List<Pending> pending) {
+        final List<Object> docs = new ArrayList<Object>(pending.size());
+        for (Pending p: pending) {
+            docs.add(p.document);
+        }
+        final List<DocumentStatus> statuses;
+        try {
+            statuses = client.bulkDocuments(docs);
+            if (statuses == null || statuses.size() != pending.size()) {
+                throw new CouchDbException(String.format("Got %s statuses for %d documents",
+                                                         statuses == null ? null : statuses.size(), pending.size()));
+            }
+        } catch (RuntimeException e) {
+            for (Pending p: pending) {
+                p.future.failed(e);
+            }
+            return;
+        }
+        batches.incrementAndGet();
+        documents.addAndGet(pending.size());
+        for (int i = 0; i < pending.size(); i++) {
+            pending.get(i).future.completed(statuses.get(i));
+        }
+    }
+
+    /**
+     * Send what is waiting now and stop the timer. No documents may be written afterwards.
+     */
+    public void shutdown() {
+        final List<Pending> pending;
+        synchronized (this) {
+            pending = take();
+        }
+        if ( ! pending.isEmpty()) {
+            send(pending);
+        }
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "BulkDocumentWriter [maxBatchSize=" + maxBatchSize + ", maxDelay=" + maxDelay + ", batches=" + batches
+               + ", documents=" + documents + "]";
+    }
+}
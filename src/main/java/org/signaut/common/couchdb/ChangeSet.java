@@ -27,8 +27,11 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 package org.signaut.common.couchdb;
 
+import java.util.List;
+
 import com.fasterxml.jackson.annotation.JsonAnySetter;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
 
 
 public class ChangeSet {
@@ -38,6 +41,26 @@ public class ChangeSet {
     @JsonProperty("id")
     private String id;
     private boolean deleted;
+    private List<Change> changes;
+    @JsonProperty("doc")
+    private JsonNode document;
+    @JsonProperty("last_seq")
+    private Object lastSequence;
+
+    /**
+     * A leaf revision of the changed document
+     */
+    public static class Change {
+        private String rev;
+
+        public String getRev() {
+            return rev;
+        }
+
+        public void setRev(String rev) {
+            this.rev = rev;
+        }
+    }
 
     public Object getSequence() {
         return sequence;
@@ -63,6 +86,43 @@ public class ChangeSet {
         this.deleted = deleted;
     }
 
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    public void setChanges(List<Change> changes) {
+        this.changes = changes;
+    }
+
+    /**
+     * @return the document, if the feed was read with <code>include_docs</code>
+     */
+    public JsonNode getDocument() {
+        return document;
+    }
+
+    public void setDocument(JsonNode document) {
+        this.document = document;
+    }
+
+    /**
+     * @return the sequence a feed ended with, set on the last line of a continuous feed instead of a change
+     */
+    public Object getLastSequence() {
+        return lastSequence;
+    }
+
+    public void setLastSequence(Object lastSequence) {
+        this.lastSequence = lastSequence;
+    }
+
+    /**
+     * @return the winning revision of the changed document, or <code>null</code> if the feed did not list it
+     */
+    public String getRevision() {
+        return changes == null || changes.isEmpty() ? null : changes.get(0).getRev();
+    }
+
     @Override
     public String toString() {
         return "ChangeSet [sequence=" + sequence + ", id=" + id + ", deleted=" + deleted + "]";
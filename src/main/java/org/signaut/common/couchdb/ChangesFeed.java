@@ -0,0 +1,430 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.couchdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.signaut.common.couchdb.CouchDbClient.DocumentException;
+import org.signaut.common.http.HttpRequest;
+import org.signaut.common.http.HttpTimeoutException;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A <code>_changes</code> feed read by a thread of its own into a bounded buffer. Consumers {@link #take take}
+ * batches of changes from the buffer. When it is full the reader stops reading, and CouchDB is held back by the
+ * connection's flow control, so a slow consumer neither loses changes nor runs out of memory.
+ * <p>
+ * Connections that fail, end or stall, i.e. go quiet for several heartbeats, are replaced and the feed resumes
+ * after the last change read. Consumers record how far they got with {@link #checkpoint(Object)}, which is what to
+ * resume a new feed from.
+ */
+public class ChangesFeed {
+    private final CouchDbClientImpl client;
+    private final JsonCodec codec;
+    private final ChangesQuery query;
+    private final BlockingQueue<ChangeSet> buffer;
+    private final Thread reader;
+    private volatile Object sequence;
+    private volatile Object checkpoint;
+    private volatile boolean closed = false;
+    private volatile boolean done = false;
+    //The request being read, aborted on close
+    private volatile HttpRequest current;
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong heartbeats = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    ChangesFeed(CouchDbClientImpl client, JsonCodec codec, ChangesQuery query, int bufferSize) {
+        this.client = client;
+        this.codec = codec;
+        this.query = query;
+        this.buffer = new ArrayBlockingQueue<ChangeSet>(bufferSize);
+        this.sequence = query.getSince();
+        this.checkpoint = query.getSince();
+        this.reader = new Thread(new Reader(), "CouchDB-changes-" + query.getFilter());
+        reader.setDaemon(true);
+    }
+
+    ChangesFeed start() {
+        reader.start();
+        return this;
+    }
+
+    /**
+     * Wait for changes and take up to <code>maxBatch</code> of them
+     * 
+     * @return the changes in feed order, an empty list if none came in time, or <code>null</code> once the feed is
+     *         closed or a normal feed has been taken in full
+     */
+    public List<ChangeSet> take(int maxBatch, long timeout, TimeUnit unit) throws InterruptedException {
+        ChangeSet first = buffer.poll();
+        if (first == null) {
+            if (done) {
+                //The reader may have added its last changes before finishing
+                first = buffer.poll();
+                if (first == null) {
+                    return null;
+                }
+            } else {
+                first = buffer.poll(timeout, unit);
+                if (first == null) {
+                    return done && buffer.isEmpty() ? null : new ArrayList<ChangeSet>(0);
+                }
+            }
+        }
+        final List<ChangeSet> batch = new ArrayList<ChangeSet>(Math.min(maxBatch, buffer.size() + 1));
+        batch.add(first);
+        buffer.drainTo(batch, maxBatch - 1);
+        return batch;
+    }
+
+    /**
+     * Record that the changes up to and including this sequence have been dealt with
+     */
+    public void checkpoint(Object sequence) {
+        checkpoint = sequence;
+    }
+
+    /**
+     * @return the sequence last {@link #checkpoint(Object) checkpointed}, or the one the feed started from
+     */
+    public Object getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return sequence of the last change read from CouchDB, which may still be in the buffer
+     */
+    public Object getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @param changeSet a change read with <code>include_docs</code>
+     * @return its document, <code>null</code> if it has none or only the tombstone of a deleted one, in which case
+     *         the current revision has to be read on its own
+     */
+    public <T> T getDocument(ChangeSet changeSet, Class<T> type) {
+        final JsonNode document = changeSet.getDocument();
+        if (document == null || ! document.isObject() || document.path("_deleted").asBoolean()) {
+            return null;
+        }
+        return client.convert(document, type);
+    }
+
+    /**
+     * Stop reading. Changes already buffered can still be taken. The connection being read is closed, as a continuous
+     * feed would otherwise keep it, and the reader, forever.
+     */
+    public void close() {
+        closed = true;
+        reader.interrupt();
+        final HttpRequest request = current;
+        if (request != null) {
+            request.abort();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return whether the reader has stopped, after {@link #close()} or at the end of a normal feed
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    public ChangesQuery getQuery() {
+        return query;
+    }
+
+    /**
+     * @return changes waiting to be taken
+     */
+    public int getBuffered() {
+        return buffer.size();
+    }
+
+    /**
+     * @return changes read from CouchDB
+     */
+    public long getChanges() {
+        return changes.get();
+    }
+
+    public long getHeartbeats() {
+        return heartbeats.get();
+    }
+
+    /**
+     * @return requests sent, i.e. one more than the number of reconnects
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return connections replaced for missing their heartbeats
+     */
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    /**
+     * @return requests that failed
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    private final class Reader implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while ( ! closed) {
+                    final long started = System.currentTimeMillis();
+                    boolean complete = false;
+                    try {
+                        requests.incrementAndGet();
+                        log.debug("Reading changes since {}", sequence);
+                        final HttpRequest request = client.changesRequest(query.toUri(sequence,
+                                                                                      codec.getObjectMapper()),
+                                                                          query.stallTimeout());
+                        current = request;
+                        if (closed) {
+                            //Closed before the request could be seen, so it is not sent
+                            break;
+                        }
+                        complete = client.send(request, new ChangesHandler());
+                    } catch (HttpTimeoutException e) {
+                        stalls.incrementAndGet();
+                        log.info("Changes feed stalled: {}", e.getMessage());
+                    } catch (RuntimeException e) {
+                        if (closed) {
+                            break;
+                        }
+                        errors.incrementAndGet();
+                        log.error("While listening for changes", e);
+                    }
+                    if (complete && query.getFeed() == ChangesQuery.Feed.NORMAL) {
+                        break;
+                    }
+                    //Back off if CouchDB is not available at the moment
+                    if ( ! (complete && query.getFeed() == ChangesQuery.Feed.LONGPOLL)
+                            && System.currentTimeMillis() - started < query.getRetryDelay()) {
+                        Thread.sleep(query.getRetryDelay());
+                    }
+                }
+            } catch (InterruptedException e) {
+                //Closed
+            } finally {
+                current = null;
+                done = true;
+            }
+        }
+    }
+
+    private void deliver(ChangeSet changeSet) throws InterruptedException {
+        if (changeSet.getSequence() == null) {
+            throw new IllegalStateException(String.format("Bad change: %s", changeSet));
+        }
+        //Blocks while the buffer is full
+        buffer.put(changeSet);
+        changes.incrementAndGet();
+        sequence = changeSet.getSequence();
+    }
+
+    /**
+     * Splits a stream into lines of bytes, handing out each line as a range of a buffer that grows to fit the longest
+     */
+    static final class LineReader {
+        private final InputStream input;
+        private byte[] buffer = new byte[8192];
+        private int start = 0;
+        private int length = 0;
+        private int filled = 0;
+        private int next = 0;
+
+        LineReader(InputStream input) {
+            this.input = input;
+        }
+
+        /**
+         * @return <code>false</code> at the end of the stream
+         */
+        boolean next() throws IOException {
+            int scan = next;
+            while (true) {
+                for (; scan < filled; scan++) {
+                    if (buffer[scan] == '\n') {
+                        start = next;
+                        length = scan - next;
+                        next = scan + 1;
+                        return true;
+                    }
+                }
+                if (next > 0) {
+                    //Move the partial line to the front before reading more
+                    System.arraycopy(buffer, next, buffer, 0, filled - next);
+                    filled -= next;
+                    scan -= next;
+                    next = 0;
+                }
+                if (filled == buffer.length) {
+                    final byte[] larger = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, larger, 0, filled);
+                    buffer = larger;
+                }
+                final int read = input.read(buffer, filled, buffer.length - filled);
+                if (read < 0) {
+                    if (filled == 0) {
+                        return false;
+                    }
+                    start = 0;
+                    length = filled;
+                    next = filled;
+                    return true;
+                }
+                filled += read;
+            }
+        }
+
+        boolean isBlank() {
+            for (int i = start; i < start + length; i++) {
+                if (buffer[i] != ' ' && buffer[i] != '\r' && buffer[i] != '\t') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        <T> T read(JsonCodec codec, Class<T> type) throws IOException {
+            return codec.read(buffer, start, length, type);
+        }
+    }
+
+    /**
+     * @return whether the response was read to its end, as opposed to being cut short by a stall or by closing
+     */
+    private final class ChangesHandler implements HttpResponseHandler<Boolean> {
+        @Override
+        public Boolean handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            try {
+                if (responseCode >= 400 || responseCode < 0) {
+                    throw new DocumentException(String.format("ResponseCode: %d. Error: %s", responseCode,
+                                                              codec.read(input, DocumentStatus.class)));
+                }
+                if (query.getFeed() == ChangesQuery.Feed.CONTINUOUS) {
+                    return readLines(input);
+                }
+                return readResults(input);
+            } catch (SocketTimeoutException e) {
+                stalls.incrementAndGet();
+                log.info("No heartbeat from the changes feed in {} ms, reconnecting", query.stallTimeout());
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (IOException e) {
+                throw new IllegalStateException("While reading changes", e);
+            }
+        }
+
+        /**
+         * A change per line, empty lines for heartbeats and a <code>last_seq</code> line at the end. Each line is
+         * parsed from the bytes read, without decoding it into a String first.
+         */
+        private boolean readLines(InputStream input) throws IOException, InterruptedException {
+            final LineReader lines = new LineReader(input);
+            while ( ! closed && lines.next()) {
+                if (lines.isBlank()) {
+                    heartbeats.incrementAndGet();
+                    continue;
+                }
+                final ChangeSet change = lines.read(codec, ChangeSet.class);
+                if (change.getSequence() == null && change.getLastSequence() != null) {
+                    sequence = change.getLastSequence();
+                    return true;
+                }
+                deliver(change);
+            }
+            return ! closed;
+        }
+
+        /**
+         * A <code>results</code> array and <code>last_seq</code>, parsed a change at a time
+         */
+        private boolean readResults(InputStream input) throws IOException, InterruptedException {
+            final JsonParser parser = codec.getObjectMapper().getFactory().createParser(input);
+            try {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Expected a JSON object, got " + parser.getCurrentToken());
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = parser.getCurrentName();
+                    final JsonToken value = parser.nextToken();
+                    if ("results".equals(field) && value == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            deliver(codec.reader(ChangeSet.class).<ChangeSet>readValue(parser));
+                            if (closed) {
+                                return false;
+                            }
+                        }
+                    } else if ("last_seq".equals(field)) {
+                        sequence = parser.readValueAs(Object.class);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                return true;
+            } finally {
+                parser.close();
+            }
+        }
+    }
+}
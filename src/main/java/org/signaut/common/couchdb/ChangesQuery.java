@@ -0,0 +1,201 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.couchdb;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Options of a <code>_changes</code> feed opened with {@link CouchDbClient#changes(ChangesQuery, int)}
+ */
+public class ChangesQuery {
+    public enum Feed {
+        /** One response with the changes so far, then the feed ends */
+        NORMAL,
+        /** One response per batch of changes, each waiting for the next change */
+        LONGPOLL,
+        /** One change per line for as long as the connection lasts */
+        CONTINUOUS
+    }
+
+    private Feed feed = Feed.CONTINUOUS;
+    private Object since;
+    private int limit = -1;
+    private String filter;
+    private boolean includeDocs = false;
+    private int heartbeat = 10000;
+    private int missedHeartbeats = 3;
+    private long retryDelay = 5000;
+
+    public Feed getFeed() {
+        return feed;
+    }
+
+    public ChangesQuery setFeed(Feed feed) {
+        this.feed = feed;
+        return this;
+    }
+
+    public Object getSince() {
+        return since;
+    }
+
+    /**
+     * @param since sequence to start after, <code>null</code> for the beginning. BigCouch sequences are arrays.
+     */
+    public ChangesQuery setSince(Object since) {
+        this.since = since;
+        return this;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param limit changes per request, -1 for no limit. Continuous and longpoll feeds reconnect after each request.
+     */
+    public ChangesQuery setLimit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * @param filter e.g. <code>webapps/all</code>
+     */
+    public ChangesQuery setFilter(String filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    public boolean isIncludeDocs() {
+        return includeDocs;
+    }
+
+    /**
+     * @param includeDocs have each change carry its document, see {@link ChangeSet#getDocument()}
+     */
+    public ChangesQuery setIncludeDocs(boolean includeDocs) {
+        this.includeDocs = includeDocs;
+        return this;
+    }
+
+    public int getHeartbeat() {
+        return heartbeat;
+    }
+
+    /**
+     * @param heartbeat milliseconds between the newlines CouchDB sends while there are no changes
+     */
+    public ChangesQuery setHeartbeat(int heartbeat) {
+        this.heartbeat = heartbeat;
+        return this;
+    }
+
+    public int getMissedHeartbeats() {
+        return missedHeartbeats;
+    }
+
+    /**
+     * @param missedHeartbeats heartbeats in a row that may go missing before the connection is considered stalled
+     *            and replaced
+     */
+    public ChangesQuery setMissedHeartbeats(int missedHeartbeats) {
+        this.missedHeartbeats = missedHeartbeats;
+        return this;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * @param retryDelay milliseconds to wait before reconnecting when a request failed or ended early
+     */
+    public ChangesQuery setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+        return this;
+    }
+
+    /**
+     * @return milliseconds a read may block before the feed is considered stalled
+     */
+    int stallTimeout() {
+        return (int) Math.min(Integer.MAX_VALUE, (long) heartbeat * missedHeartbeats);
+    }
+
+    String toUri(Object since, ObjectMapper objectMapper) {
+        final StringBuilder uri = new StringBuilder("_changes?feed=").append(feed.name().toLowerCase())
+                .append("&heartbeat=").append(heartbeat);
+        if (limit >= 0) {
+            uri.append("&limit=").append(limit);
+        }
+        if (filter != null) {
+            uri.append("&filter=").append(encode(filter));
+        }
+        if (includeDocs) {
+            uri.append("&include_docs=true");
+        }
+        if (since != null) {
+            uri.append("&since=").append(encode(encodeSequence(since, objectMapper)));
+        }
+        return uri.toString();
+    }
+
+    static String encodeSequence(Object sequence, ObjectMapper objectMapper) {
+        if (sequence instanceof String || sequence instanceof Number) {
+            return sequence.toString();
+        }
+        try {
+            return objectMapper.writeValueAsString(sequence);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("While encoding sequence " + sequence, e);
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ChangesQuery [feed=" + feed + ", since=" + since + ", filter=" + filter + ", includeDocs="
+               + includeDocs + "]";
+    }
+}
@@ -28,8 +28,13 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package org.signaut.common.couchdb;
 
 import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
 import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
 
 public interface CouchDbClient {
@@ -45,22 +50,97 @@ public interface CouchDbClient {
         }
     }
 
+    /**
+     * Receives the rows of a view as they are parsed
+     */
+    public interface ViewRowHandler<T> {
+        /**
+         * @return <code>false</code> to stop reading rows
+         */
+        boolean handleRow(ViewRow<T> row);
+    }
+
     <T> T get(String uri, HttpResponseHandler<T> handler);
 
+    /**
+     * @param operation one of the {@link CouchDbOperations}, selecting timeouts and similar policies for the call
+     */
+    <T> T get(String uri, HttpResponseHandler<T> handler, String operation);
+
     <T> T getDocument(String documentId, Class<T> type);
+
+    /**
+     * Fetch many documents with one <code>_all_docs?include_docs=true</code> request
+     * 
+     * @return the documents in the order of the ids, <code>null</code> for the ones missing or deleted
+     */
+    <T> List<T> getDocuments(List<String> documentIds, Class<T> type);
     
+    /**
+     * Iterate over the rows of a view or <code>_all_docs</code>, a page at a time
+     * 
+     * @param documentType of the documents included with {@link ViewQuery#setIncludeDocs(boolean)}, may be
+     *            <code>null</code> if there are none
+     */
+    <T> ViewIterator<T> queryView(ViewQuery query, Class<T> documentType);
+
+    /**
+     * Hand the rows of a view or <code>_all_docs</code> to the handler while they are read from a single response.
+     * The query's page size does not apply.
+     * 
+     * @return rows handled
+     */
+    <T> long streamView(ViewQuery query, Class<T> documentType, ViewRowHandler<T> handler);
+
+    /**
+     * Open a changes feed, read into a buffer by a thread of its own until it is closed
+     * 
+     * @param bufferSize changes read ahead of the consumer at most
+     */
+    ChangesFeed changes(ChangesQuery query, int bufferSize);
+
     DocumentStatus putDocument(String id, Object document);
     
     DocumentStatus postDocument(Object document);
 
     String downloadAttachment(String documentId, String name, File directory);
 
+    /**
+     * Upload an attachment, streamed with chunked transfer encoding
+     * 
+     * @param revision current revision of the document, <code>null</code> to create it
+     * @param content read to its end and closed
+     */
+    DocumentStatus putAttachment(String documentId, String revision, String name, String contentType,
+                                 InputStream content);
+
+    /**
+     * Upload an attachment, streamed from the file with a <code>Content-Length</code>
+     * 
+     * @param revision current revision of the document, <code>null</code> to create it
+     */
+    DocumentStatus putAttachment(String documentId, String revision, String name, String contentType, Path file);
+
+    /**
+     * Write a document together with new attachments in one <code>multipart/related</code> request. The attachments
+     * are streamed after the document, which must carry its <code>_rev</code> if it exists.
+     */
+    DocumentStatus putDocument(String id, Object document, List<AttachmentContent> attachments);
+
     DocumentStatus putDocument(String id, String document);
 
     DocumentStatus postDocument(String document);
 
     DocumentStatus deleteDocument(String id);
 
+    /**
+     * Create, update or delete many documents with one <code>_bulk_docs</code> request. Documents to be updated or
+     * deleted must carry their <code>_id</code> and <code>_rev</code>.
+     * 
+     * @return the status of each document, in the order given
+     */
+    List<DocumentStatus> bulkDocuments(List<?> documents);
+
     DocumentStatus createDatabase();
 
     DocumentStatus compactDatabase();
@@ -74,4 +154,20 @@ public interface CouchDbClient {
     CouchDbUser updateUser(CouchDbUser user);
 
     boolean deleteUser(CouchDbUser user);
+
+    /*
+     * Asynchronous variants. Callbacks run on a transport thread and may be null.
+     */
+
+    <T> Future<T> getAsync(String uri, HttpResponseHandler<T> handler, HttpCallback<T> callback);
+
+    <T> Future<T> getDocumentAsync(String documentId, Class<T> type, HttpCallback<T> callback);
+
+    Future<DocumentStatus> putDocumentAsync(String id, Object document, HttpCallback<DocumentStatus> callback);
+
+    Future<DocumentStatus> postDocumentAsync(Object document, HttpCallback<DocumentStatus> callback);
+
+    Future<DocumentStatus> deleteDocumentAsync(String id, HttpCallback<DocumentStatus> callback);
+
+    Future<List<DocumentStatus>> bulkDocumentsAsync(List<?> documents, HttpCallback<List<DocumentStatus>> callback);
 }
\ No newline at end of file
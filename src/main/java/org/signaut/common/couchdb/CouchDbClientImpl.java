@@ -29,36 +29,129 @@ package org.signaut.common.couchdb;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.Future;
+
+import org.signaut.common.http.CircuitBreakerFilter;
+import org.signaut.common.http.CompressionFilter;
+import org.signaut.common.http.HttpConnectionPool;
+import org.signaut.common.http.HttpContent;
+import org.signaut.common.http.HttpFuture;
+import org.signaut.common.http.HttpRequest;
+import org.signaut.common.http.HttpTransport;
+import org.signaut.common.http.LoadBalancingFilter;
+import org.signaut.common.http.PooledHttpTransport;
+import org.signaut.common.http.RetryFilter;
 import org.signaut.common.http.SimpleHttpClient;
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
 import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
 import org.signaut.common.http.SimpleHttpClientImpl;
+import org.signaut.common.http.SingleFlight;
+import org.signaut.common.http.TimeoutFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.Base64Variants;
 import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public class CouchDbClientImpl implements CouchDbClient {
 
-    private final SimpleHttpClient httpClient = new SimpleHttpClientImpl();
+    private final SimpleHttpClient httpClient;
     private final String databaseUrl;
     private final Map<String, String> headers = new HashMap<String, String>();
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final JsonCodec codec;
+    private final ObjectMapper objectMapper;
+    private volatile BulkDocumentWriter bulkWriter;
+    private volatile BulkDocumentReader bulkReader;
+    private volatile SingleFlight<String, Object> documentFlights;
+    private volatile DocumentCache documentCache;
+    private final AttachmentDownloader attachmentDownloader = new AttachmentDownloader(this);
     private final Logger log = LoggerFactory.getLogger(getClass());
     
     public CouchDbClientImpl(String databaseUrl, String username, String password) {
+        this(databaseUrl, username, password,
+             defaultHttpClient(new PooledHttpTransport(HttpConnectionPool.getDefault()),
+                               CouchDbOperations.defaultTimeouts()));
+    }
+
+    /**
+     * Client for a cluster without a load balancer in front of it
+     * 
+     * @param nodeUrls base URLs of the nodes, e.g. <code>http://couch1:5984</code>
+     * @param database name of the database
+     */
+    public CouchDbClientImpl(List<String> nodeUrls, String database, String username, String password) {
+        this(nodeUrls.get(0) + "/" + database, username, password,
+             defaultHttpClient(new PooledHttpTransport(HttpConnectionPool.getDefault()),
+                               CouchDbOperations.defaultTimeouts(), nodeUrls));
+    }
+
+    /**
+     * @return a client with the filters CouchDB calls usually want: per-operation timeouts and bulkheads, retries of
+     *         idempotent calls, a circuit breaker per server and compression
+     */
+    public static SimpleHttpClientImpl defaultHttpClient(HttpTransport transport, TimeoutFilter timeouts) {
+        return defaultHttpClient(transport, timeouts, null);
+    }
+
+    /**
+     * @param nodeUrls if there is more than one, requests to any of them are balanced over all of them
+     */
+    public static SimpleHttpClientImpl defaultHttpClient(HttpTransport transport, TimeoutFilter timeouts,
+                                                         List<String> nodeUrls) {
+        final SimpleHttpClientImpl httpClient = new SimpleHttpClientImpl(transport)
+                .addFilter(timeouts)
+                .addFilter(CouchDbOperations.defaultBulkheads())
+                .addFilter(new RetryFilter());
+        if (nodeUrls != null && nodeUrls.size() > 1) {
+            httpClient.addFilter(loadBalancer(nodeUrls));
+        }
+        return httpClient.addFilter(new CircuitBreakerFilter())
+                .addFilter(new CompressionFilter());
+    }
+
+    /**
+     * @return a balancer keeping each changes feed on one node until that node fails
+     */
+    public static LoadBalancingFilter loadBalancer(List<String> nodeUrls) {
+        return new LoadBalancingFilter(nodeUrls).setStickyOperations(CouchDbOperations.CHANGES);
+    }
+
+    /**
+     * @param httpClient client to send requests through. Pass the same client to several components to let them
+     *            share connections.
+     */
+    public CouchDbClientImpl(String databaseUrl, String username, String password, SimpleHttpClient httpClient) {
+        this(databaseUrl, username, password, httpClient, JsonCodec.getDefault());
+    }
+
+    /**
+     * @param codec parses and writes the documents, shared with the other components by default
+     */
+    public CouchDbClientImpl(String databaseUrl, String username, String password, SimpleHttpClient httpClient,
+                             JsonCodec codec) {
         super();
+        this.httpClient = httpClient;
+        this.codec = codec;
+        this.objectMapper = codec.getObjectMapper();
         if (databaseUrl.endsWith("/")) {
             this.databaseUrl = databaseUrl;
         } else {
@@ -68,8 +161,8 @@ public class CouchDbClientImpl implements CouchDbClient {
             final String authString = username + ":" + password;
             final String base64EncodedAuth = Base64Variants.getDefaultVariant().encode(authString.getBytes());
             headers.put("Authorization", "Basic " + base64EncodedAuth);
-            headers.put("content-type", "application/json");
         }
+        headers.put("content-type", "application/json");
     }
 
     @Override
@@ -78,30 +171,347 @@ public class CouchDbClientImpl implements CouchDbClient {
     }
 
     @Override
-    public <T> T getDocument(String documentId, Class<T> type) {
-        return get(documentId, new DocumentHandler<T>(type));
+    public <T> T get(String uri, HttpResponseHandler<T> handler, String operation) {
+        return httpClient.send(request("GET", uri, operation), handler);
     }
 
     @Override
-    public String downloadAttachment(String documentId, String name, File directory) {
-        if ( ! directory.exists()) {
-            directory.mkdirs();
+    public <T> T getDocument(final String documentId, final Class<T> type) {
+        final SingleFlight<String, Object> flights = documentFlights;
+        if (flights == null) {
+            return fetchDocument(documentId, type);
+        }
+        return type.cast(flights.execute(flightKey(documentId, type), new SingleFlight.Call<Object>() {
+            @Override
+            public Object call() {
+                return fetchDocument(documentId, type);
+            }
+        }));
+    }
+
+    private <T> T fetchDocument(String documentId, Class<T> type) {
+        final DocumentCache cache = documentCache;
+        if (cache != null && batchable(documentId)) {
+            final DocumentCache.Entry cached = cache.get(documentId, type);
+            return httpClient.send(documentRequest(documentId, cached),
+                                   new CachingDocumentHandler<T>(cache, documentId, type, cached));
+        }
+        final BulkDocumentReader reader = bulkReader;
+        if (reader != null && batchable(documentId)) {
+            return reader.read(documentId, type);
+        }
+        return get(documentId, new DocumentHandler<T>(type), CouchDbOperations.DOCUMENT);
+    }
+
+    /**
+     * Keep the documents read by {@link #getDocument(String, Class)}, {@link #getUser(String)} and
+     * {@link #getDocumentAsync(String, Class, HttpCallback)} and revalidate them with <code>If-None-Match</code>.
+     * Cached documents are read one by one rather than through the {@link #setReadBatching(int, long) read batching}.
+     * 
+     * @param documentCache <code>null</code> turns caching off
+     */
+    public CouchDbClientImpl setDocumentCache(DocumentCache documentCache) {
+        this.documentCache = documentCache;
+        return this;
+    }
+
+    public DocumentCache getDocumentCache() {
+        return documentCache;
+    }
+
+    /**
+     * Drop a document about to be written from the cache
+     */
+    private void invalidate(String uri) {
+        final DocumentCache cache = documentCache;
+        if (cache != null) {
+            final int query = uri.indexOf('?');
+            cache.invalidate(query < 0 ? uri : uri.substring(0, query));
         }
-        return get(documentId+"/"+name, new FileHandler(new File(directory, name)));
+    }
+
+    private HttpRequest documentRequest(String documentId, DocumentCache.Entry cached) {
+        final HttpRequest request = request("GET", documentId, CouchDbOperations.DOCUMENT);
+        return cached == null ? request : request.setHeader("If-None-Match", cached.etag());
+    }
+
+    /**
+     * Let concurrent reads of the same document, by {@link #getDocument(String, Class)}, {@link #getUser(String)}
+     * and {@link #getDocumentAsync(String, Class, HttpCallback)}, share one request and its parsed result. Callers
+     * then must not modify the documents they get.
+     */
+    public CouchDbClientImpl setCoalescing(boolean coalescing) {
+        documentFlights = coalescing ? new SingleFlight<String, Object>() : null;
+        return this;
+    }
+
+    /**
+     * @return reads that got the result of a read already in flight
+     */
+    public long getAbsorbedReads() {
+        final SingleFlight<String, Object> flights = documentFlights;
+        return flights == null ? 0 : flights.getAbsorbed();
+    }
+
+    private static String flightKey(String documentId, Class<?> type) {
+        return type.getName() + " " + documentId;
+    }
+
+    @Override
+    public <T> List<T> getDocuments(List<String> documentIds, Class<T> type) {
+        final Map<String, JsonNode> documents = fetchDocuments(documentIds);
+        final List<T> result = new ArrayList<T>(documentIds.size());
+        for (String id: documentIds) {
+            final JsonNode document = documents.get(id);
+            result.add(document == null ? null : convert(document, type));
+        }
+        return result;
+    }
+
+    /**
+     * Read documents given to {@link #getDocument(String, Class)}, and so {@link #getUser(String)}, and
+     * {@link #getDocumentAsync(String, Class, HttpCallback)} through a {@link BulkDocumentReader}. Concurrent reads
+     * are then fetched together.
+     * 
+     * @param maxBatchSize distinct ids per <code>_all_docs</code> request. 0 turns batching off.
+     * @param maxDelay milliseconds a read may wait for others to join it
+     */
+    public CouchDbClientImpl setReadBatching(int maxBatchSize, long maxDelay) {
+        if (bulkReader != null) {
+            bulkReader.shutdown();
+        }
+        bulkReader = maxBatchSize > 0 ? new BulkDocumentReader(this, maxBatchSize, maxDelay) : null;
+        return this;
+    }
+
+    /**
+     * @return the reader batching single document reads, or <code>null</code> if they are sent one by one
+     */
+    public BulkDocumentReader getBulkReader() {
+        return bulkReader;
+    }
+
+    /**
+     * Ids with a query string, e.g. <code>?rev=</code>, are sent on their own
+     */
+    private static boolean batchable(String documentId) {
+        return ! documentId.isEmpty() && documentId.indexOf('?') < 0;
+    }
+
+    /**
+     * @return the documents found, by id. Missing and deleted documents are left out.
+     */
+    Map<String, JsonNode> fetchDocuments(Collection<String> documentIds) {
+        final HttpRequest request = request("POST", "_all_docs?include_docs=true", CouchDbOperations.DOCUMENT)
+                .setHeader("Content-Type", "application/json")
+                .setContent(jsonContent(Collections.singletonMap("keys", documentIds)))
+                .setIdempotent(true);
+        return httpClient.send(request, new AllDocumentsHandler());
+    }
+
+    <T> T convert(JsonNode document, Class<T> type) {
+        try {
+            return objectMapper.treeToValue(document, type);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(String.format("While parsing a %s", type), e);
+        }
+    }
+
+    @Override
+    public <T> ViewIterator<T> queryView(ViewQuery query, Class<T> documentType) {
+        return new ViewIterator<T>(this, query, documentType);
+    }
+
+    @Override
+    public <T> long streamView(ViewQuery query, Class<T> documentType, ViewRowHandler<T> handler) {
+        return sendViewQuery(query, documentType, handler).getRows();
+    }
+
+    /**
+     * Queries by keys are posted, the rest are sent as GET
+     */
+    <T> ViewRowParser<T> sendViewQuery(ViewQuery query, Class<T> documentType, ViewRowHandler<T> handler) {
+        final String uri = query.toUri(objectMapper);
+        final HttpRequest request;
+        if (query.getKeys() == null) {
+            request = request("GET", uri, CouchDbOperations.VIEW);
+        } else {
+            request = request("POST", uri, CouchDbOperations.VIEW).setHeader("Content-Type", "application/json")
+                    .setContent(jsonContent(Collections.singletonMap("keys", query.getKeys())))
+                    .setIdempotent(true);
+        }
+        final ViewRowParser<T> parser = new ViewRowParser<T>(codec, documentType, handler);
+        httpClient.send(request, parser);
+        return parser;
+    }
+
+    @Override
+    public ChangesFeed changes(ChangesQuery query, int bufferSize) {
+        return new ChangesFeed(this, codec, query, bufferSize).start();
+    }
+
+    /**
+     * @param readTimeout milliseconds without even a heartbeat after which the feed is considered stalled
+     */
+    HttpRequest changesRequest(String uri, int readTimeout) {
+        return request("GET", uri, CouchDbOperations.CHANGES).setReadTimeout(readTimeout);
+    }
+
+    @Override
+    public String downloadAttachment(String documentId, String name, File directory) {
+        return attachmentDownloader.download(documentId, name, directory);
+    }
+
+    /**
+     * @return the downloader behind {@link #downloadAttachment(String, String, File)}, for setting up resuming,
+     *         parallel ranges and progress reports
+     */
+    public AttachmentDownloader getAttachmentDownloader() {
+        return attachmentDownloader;
+    }
+
+    /**
+     * Attachments are asked for unencoded, so byte ranges are ranges of the attachment itself
+     */
+    HttpRequest attachmentRequest(String uri, String operation) {
+        return request("GET", uri, operation).setHeader("Accept-Encoding", "identity");
+    }
+
+    <T> T send(HttpRequest request, HttpResponseHandler<T> handler) {
+        return httpClient.send(request, handler);
+    }
+
+    <T> Future<T> sendAsync(HttpRequest request, HttpResponseHandler<T> handler, HttpCallback<T> callback) {
+        return httpClient.sendAsync(request, handler, callback);
     }
     
+    /**
+     * Write documents given to {@link #putDocument(String, Object)} and {@link #postDocument(Object)}, and their
+     * asynchronous variants, through a {@link BulkDocumentWriter}. Concurrent writes are then sent together.
+     * 
+     * @param maxBatchSize documents per <code>_bulk_docs</code> request. 0 turns batching off.
+     * @param maxDelay milliseconds a write may wait for others to join it
+     */
+    public CouchDbClientImpl setBatching(int maxBatchSize, long maxDelay) {
+        if (bulkWriter != null) {
+            bulkWriter.shutdown();
+        }
+        bulkWriter = maxBatchSize > 0 ? new BulkDocumentWriter(this, maxBatchSize, maxDelay) : null;
+        return this;
+    }
+
+    /**
+     * @return the writer batching single document writes, or <code>null</code> if they are sent one by one
+     */
+    public BulkDocumentWriter getBulkWriter() {
+        return bulkWriter;
+    }
+
     @Override
     public DocumentStatus putDocument(String id, Object document) {
-        return putDocument(id, encode(document));
+        invalidate(id);
+        final BulkDocumentWriter writer = bulkWriter;
+        final ObjectNode node = writer == null ? null : withId(id, document);
+        if (node != null) {
+            return writer.write(node);
+        }
+        return httpClient.put(databaseUrl+id, new DocumentStatusHandler(), jsonContent(document), headers);
     }
 
     @Override
     public DocumentStatus postDocument(Object document) {
-        return postDocument(encode(document));
+        final BulkDocumentWriter writer = bulkWriter;
+        if (writer != null && document != null) {
+            return writer.write(document);
+        }
+        return httpClient.post(databaseUrl, new DocumentStatusHandler(), jsonContent(document), headers);
+    }
+
+    @Override
+    public List<DocumentStatus> bulkDocuments(List<?> documents) {
+        return httpClient.send(bulkRequest(documents), new BulkStatusHandler());
+    }
+
+    @Override
+    public Future<List<DocumentStatus>> bulkDocumentsAsync(List<?> documents,
+                                                           HttpCallback<List<DocumentStatus>> callback) {
+        return httpClient.sendAsync(bulkRequest(documents), new BulkStatusHandler(), callback);
+    }
+
+    private HttpRequest bulkRequest(List<?> documents) {
+        return request("POST", "_bulk_docs", null).setHeader("Content-Type", "application/json")
+                .setContent(jsonContent(Collections.singletonMap("docs", documents)));
+    }
+
+    /**
+     * @return the document as a JSON tree carrying the id, for writing it through <code>_bulk_docs</code>, or
+     *         <code>null</code> if it has to be sent on its own
+     */
+    private ObjectNode withId(String id, Object document) {
+        if (document == null || ! batchable(id)) {
+            return null;
+        }
+        final JsonNode tree = objectMapper.valueToTree(document);
+        if ( ! tree.isObject()) {
+            //Let CouchDB tell what is wrong with it
+            return null;
+        }
+        final ObjectNode node = (ObjectNode) tree;
+        node.put("_id", id);
+        return node;
+    }
+
+    @Override
+    public DocumentStatus putAttachment(String documentId, String revision, String name, String contentType,
+                                        InputStream content) {
+        return putAttachment(documentId, revision, name, contentType, HttpContent.of(content, -1));
+    }
+
+    @Override
+    public DocumentStatus putAttachment(String documentId, String revision, String name, String contentType,
+                                        Path file) {
+        try {
+            return putAttachment(documentId, revision, name, contentType, HttpContent.of(file));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + file, e);
+        }
+    }
+
+    private DocumentStatus putAttachment(String documentId, String revision, String name, String contentType,
+                                         HttpContent content) {
+        invalidate(documentId);
+        final String uri = documentId + "/" + name + (revision == null ? "" : "?rev=" + revision);
+        final HttpRequest request = request("PUT", uri, CouchDbOperations.ATTACHMENT)
+                .setHeader("Content-Type", contentType).setContent(content);
+        return httpClient.send(request, new DocumentStatusHandler());
+    }
+
+    @Override
+    public DocumentStatus putDocument(String id, Object document, List<AttachmentContent> attachments) {
+        invalidate(id);
+        final ObjectNode node = objectMapper.valueToTree(document);
+        final JsonNode existing = node.get("_attachments");
+        final ObjectNode stubs = existing instanceof ObjectNode ? (ObjectNode) existing : node.putObject("_attachments");
+        for (AttachmentContent attachment: attachments) {
+            stubs.putObject(attachment.getName())
+                    .put("follows", true)
+                    .put("content_type", attachment.getContentType())
+                    .put("length", attachment.getLength());
+        }
+        final MultipartRelatedContent content;
+        try {
+            content = new MultipartRelatedContent(codec.writeAsBytes(node), attachments);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("While serializing " + id, e);
+        }
+        final HttpRequest request = request("PUT", id, CouchDbOperations.ATTACHMENT)
+                .setHeader("Content-Type", content.getContentType()).setContent(content);
+        return httpClient.send(request, new DocumentStatusHandler());
     }
 
     @Override
     public DocumentStatus putDocument(String id, String document) {
+        invalidate(id);
         return httpClient.put(databaseUrl+id, new DocumentStatusHandler(), document, headers);
     }
 
@@ -112,54 +522,102 @@ public class CouchDbClientImpl implements CouchDbClient {
 
     @Override
     public DocumentStatus deleteDocument(String id) {
+        invalidate(id);
         return httpClient.delete(databaseUrl+id, new DocumentStatusHandler(), headers);
     }
 
     @Override
-    public DocumentStatus createDatabase() {
-        return putDocument("", null);
+    public <T> Future<T> getAsync(String uri, HttpResponseHandler<T> handler, HttpCallback<T> callback) {
+        return httpClient.getAsync(databaseUrl+uri, handler, headers, callback);
     }
 
     @Override
-    public DocumentStatus compactDatabase() {
-        return httpClient.post(databaseUrl+"/_compact", new DocumentStatusHandler(), null, headers);
-    }
-    
-    private final class FileHandler implements HttpResponseHandler<String> {
-        private final File file;
-        
-        public FileHandler(File file) {
-            super();
-            this.file = file;
+    public <T> Future<T> getDocumentAsync(final String documentId, final Class<T> type, HttpCallback<T> callback) {
+        final SingleFlight<String, Object> flights = documentFlights;
+        if (flights == null) {
+            return fetchDocumentAsync(documentId, type, callback);
         }
-
-        @Override
-        public String handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
-            if (responseCode >= 400) {
-                return null;
+        final HttpFuture<T> future = new HttpFuture<T>(callback);
+        flights.executeAsync(flightKey(documentId, type), new SingleFlight.AsyncCall<Object>() {
+            @Override
+            public void call(final HttpCallback<Object> done) {
+                fetchDocumentAsync(documentId, type, new HttpCallback<T>() {
+                    @Override
+                    public void completed(T result) {
+                        done.completed(result);
+                    }
+
+                    @Override
+                    public void failed(Throwable failure) {
+                        done.failed(failure);
+                    }
+                });
             }
-            OutputStream out = null;
-            try {
-                out = new FileOutputStream(file);
-                byte buffer[] = new byte[4092];
-                int read;
-                while ((read = input.read(buffer)) > 0) {
-                    out.write(buffer, 0, read);
-                }
-                return file.getAbsolutePath();
-            } catch (FileNotFoundException e) {
-                log.warn(String.format("File not found: %s",file));
-            } catch (IOException e) {
-                log.warn(String.format("While downloading: %s ", file), e);
-            } finally {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    log.warn(String.format("While downloading: %s ", file), e);
-                }
+        }, new HttpCallback<Object>() {
+            @Override
+            public void completed(Object result) {
+                future.completed(type.cast(result));
             }
-            return null;
+
+            @Override
+            public void failed(Throwable failure) {
+                future.failed(failure);
+            }
+        });
+        return future;
+    }
+
+    private <T> Future<T> fetchDocumentAsync(String documentId, Class<T> type, HttpCallback<T> callback) {
+        final DocumentCache cache = documentCache;
+        if (cache != null && batchable(documentId)) {
+            final DocumentCache.Entry cached = cache.get(documentId, type);
+            return httpClient.sendAsync(documentRequest(documentId, cached),
+                                        new CachingDocumentHandler<T>(cache, documentId, type, cached), callback);
+        }
+        final BulkDocumentReader reader = bulkReader;
+        if (reader != null && batchable(documentId)) {
+            return reader.read(documentId, type, callback);
         }
+        return httpClient.sendAsync(request("GET", documentId, CouchDbOperations.DOCUMENT),
+                                    new DocumentHandler<T>(type), callback);
+    }
+
+    @Override
+    public Future<DocumentStatus> putDocumentAsync(String id, Object document, HttpCallback<DocumentStatus> callback) {
+        invalidate(id);
+        final BulkDocumentWriter writer = bulkWriter;
+        final ObjectNode node = writer == null ? null : withId(id, document);
+        if (node != null) {
+            return writer.write(node, callback);
+        }
+        return httpClient.putAsync(databaseUrl+id, new DocumentStatusHandler(), jsonContent(document), headers,
+                                   callback);
+    }
+
+    @Override
+    public Future<DocumentStatus> postDocumentAsync(Object document, HttpCallback<DocumentStatus> callback) {
+        final BulkDocumentWriter writer = bulkWriter;
+        if (writer != null && document != null) {
+            return writer.write(document, callback);
+        }
+        return httpClient.postAsync(databaseUrl, new DocumentStatusHandler(), jsonContent(document), headers,
+                                    callback);
+    }
+
+    @Override
+    public Future<DocumentStatus> deleteDocumentAsync(String id, HttpCallback<DocumentStatus> callback) {
+        invalidate(id);
+        return httpClient.deleteAsync(databaseUrl+id, new DocumentStatusHandler(), headers, callback);
+    }
+
+    @Override
+    public DocumentStatus createDatabase() {
+        return putDocument("", null);
+    }
+
+    @Override
+    public DocumentStatus compactDatabase() {
+        return httpClient.post(databaseUrl+"/_compact", new DocumentStatusHandler(), (String) null, headers);
     }
     
     private final class DocumentHandler<T> implements HttpResponseHandler<T> {
@@ -173,7 +631,7 @@ public class CouchDbClientImpl implements CouchDbClient {
         public T handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
             try {
                 if (documentExist(responseCode, input)) {
-                    return objectMapper.readValue(input, type);
+                    return codec.read(input, type);
                 } else {
                     return null;
                 }
@@ -186,24 +644,137 @@ public class CouchDbClientImpl implements CouchDbClient {
         }
     }
     
+    /**
+     * Hands out the cached document on a <code>304</code>, otherwise parses and caches the new revision
+     */
+    private final class CachingDocumentHandler<T> implements HttpResponseHandler<T> {
+        private final DocumentCache cache;
+        private final String documentId;
+        private final Class<T> type;
+        private final DocumentCache.Entry cached;
+
+        CachingDocumentHandler(DocumentCache cache, String documentId, Class<T> type, DocumentCache.Entry cached) {
+            this.cache = cache;
+            this.documentId = documentId;
+            this.type = type;
+            this.cached = cached;
+        }
+
+        @Override
+        public T handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            if (responseCode == 304 && cached != null) {
+                cache.hit();
+                return type.cast(cached.document);
+            }
+            cache.miss();
+            final T document = new DocumentHandler<T>(type).handleInput(responseCode, input, connection);
+            cache.put(documentId, revision(connection.getHeaderField("ETag")), type, document);
+            return document;
+        }
+    }
+
+    /**
+     * @return the revision in an <code>ETag</code>, e.g. <code>"2-7051cbe5c8faecd085a3fa619e6e6337"</code>
+     */
+    private static String revision(String etag) {
+        if (etag == null) {
+            return null;
+        }
+        String revision = etag.trim();
+        if (revision.startsWith("W/")) {
+            revision = revision.substring(2);
+        }
+        if (revision.length() >= 2 && revision.startsWith("\"") && revision.endsWith("\"")) {
+            revision = revision.substring(1, revision.length() - 1);
+        }
+        return revision.isEmpty() ? null : revision;
+    }
+
     private final class DocumentStatusHandler implements HttpResponseHandler<DocumentStatus> {
         @Override
         public DocumentStatus handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
             try {
-                return objectMapper.readValue(input, DocumentStatus.class);
+                return codec.read(input, DocumentStatus.class);
             } catch (Exception e) {
                 throw new IllegalArgumentException(String.format("While parsing document status"), e);
             }
         }
     }
 
+    /**
+     * Statuses of a <code>_bulk_docs</code> request. CouchDB 1.x leaves out <code>ok</code> for the documents
+     * written, so it is set from the absence of an error.
+     */
+    private final class BulkStatusHandler implements HttpResponseHandler<List<DocumentStatus>> {
+        private final TypeReference<List<DocumentStatus>> statusListType = new TypeReference<List<DocumentStatus>>() {};
 
-    private String encode(Object document) {
+        @Override
+        public List<DocumentStatus> handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            try {
+                if (responseCode >= 400 || responseCode < 0) {
+                    throw new DocumentException(String.format("ResponseCode: %d. Error: %s", responseCode,
+                                                              codec.read(input, DocumentStatus.class)));
+                }
+                final List<DocumentStatus> statuses = codec.read(input, statusListType);
+                for (DocumentStatus status: statuses) {
+                    status.setOk(status.getError() == null);
+                }
+                return statuses;
+            } catch (DocumentException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalArgumentException("While parsing bulk document statuses", e);
+            }
+        }
+    }
+
+    private final class AllDocumentsHandler implements HttpResponseHandler<Map<String, JsonNode>> {
+        @Override
+        public Map<String, JsonNode> handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            try {
+                if (responseCode >= 400 || responseCode < 0) {
+                    throw new DocumentException(String.format("ResponseCode: %d. Error: %s", responseCode,
+                                                              codec.read(input, DocumentStatus.class)));
+                }
+                final Map<String, JsonNode> documents = new HashMap<String, JsonNode>();
+                final JsonNode rows = objectMapper.readTree(input).path("rows");
+                for (JsonNode row: rows) {
+                    final JsonNode document = row.get("doc");
+                    if (row.has("id") && document != null && document.isObject()) {
+                        documents.put(row.get("id").asText(), document);
+                    }
+                }
+                return documents;
+            } catch (DocumentException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalArgumentException("While parsing documents", e);
+            }
+        }
+    }
+
+    private HttpRequest request(String method, String uri, String operation) {
+        final String url = databaseUrl+uri;
         try {
-            return document==null?null:objectMapper.writeValueAsString(document);
-        } catch (Exception e) {
-            throw new IllegalArgumentException(String.format("While encoding a %s", document), e);
+            return new HttpRequest(method, new URL(url)).setHeaders(headers).setOperation(operation);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Bad URL: " + url, e);
+        }
+    }
+
+    /**
+     * Serialize the document straight into the request body instead of building an intermediate String
+     */
+    private HttpContent jsonContent(final Object document) {
+        if (document == null) {
+            return null;
         }
+        return HttpContent.of(new HttpContent.Writer() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                codec.write(out, document);
+            }
+        });
     }
 
     private boolean documentExist(int responseCode, InputStream input) throws JsonParseException, JsonMappingException, IOException {
@@ -212,7 +783,7 @@ public class CouchDbClientImpl implements CouchDbClient {
                 return false;
             }
             throw new DocumentException(String.format("ResponseCode: %d. Error: %s", responseCode,
-                                                      objectMapper.readValue(input, DocumentStatus.class)));
+                                                      codec.read(input, DocumentStatus.class)));
         }
         return true;
     }
@@ -223,7 +794,7 @@ public class CouchDbClientImpl implements CouchDbClient {
         public Map<String, Object> handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
             try {
                 if (documentExist(responseCode, input)){
-                    return objectMapper.readValue(input, mapType);
+                    return codec.read(input, mapType);
                 } else {
                     return null;
                 }
@@ -241,7 +812,7 @@ public class CouchDbClientImpl implements CouchDbClient {
         public Document handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
             try {
                 if (documentExist(responseCode, input)) {
-                    return objectMapper.readValue(input, Document.class);
+                    return codec.read(input, Document.class);
                 } else {
                     return null;
                 }
@@ -0,0 +1,88 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.couchdb;
+
+import org.signaut.common.http.BulkheadFilter;
+import org.signaut.common.http.HttpConnectionPool;
+import org.signaut.common.http.HttpRequest;
+import org.signaut.common.http.TimeoutFilter;
+import org.signaut.common.http.TimeoutFilter.Timeouts;
+
+/**
+ * Names of the kinds of CouchDB calls, as set with {@link HttpRequest#setOperation(String)}. Filters use them to
+ * apply per-operation policies.
+ */
+public final class CouchDbOperations {
+    /** <code>_session</code> lookups done while a request waits to be authenticated */
+    public static final String SESSION = "session";
+    /** Document reads */
+    public static final String DOCUMENT = "document";
+    /** Attachment downloads */
+    public static final String ATTACHMENT = "attachment";
+    /**
+     * Extra byte ranges of an attachment downloaded in parallel. They are left out of the attachment bulkhead: the
+     * download they belong to already holds a place there and waits for them.
+     */
+    public static final String ATTACHMENT_RANGE = "attachment-range";
+    /** View and <code>_all_docs</code> queries */
+    public static final String VIEW = "view";
+    /** The <code>_changes</code> feed */
+    public static final String CHANGES = "changes";
+
+    private CouchDbOperations() {
+    }
+
+    /**
+     * @return timeouts suitable for CouchDB on a local network. Session lookups hold up user requests, so they get
+     *         the tightest deadline; attachments only have a read timeout since their size is unknown, views get a
+     *         longer one for the index to be brought up to date, and the changes feed is left to its heartbeat.
+     */
+    public static TimeoutFilter defaultTimeouts() {
+        return new TimeoutFilter()
+                .setDefaults(new Timeouts(60000, 5000, 30000))
+                .setTimeouts(SESSION, new Timeouts(5000, 2000, 3000))
+                .setTimeouts(DOCUMENT, new Timeouts(30000, 5000, 15000))
+                .setTimeouts(ATTACHMENT, new Timeouts(0, 5000, 30000))
+                .setTimeouts(ATTACHMENT_RANGE, new Timeouts(0, 5000, 30000))
+                .setTimeouts(VIEW, new Timeouts(0, 5000, 60000))
+                .setTimeouts(CHANGES, new Timeouts(0, 5000, 0));
+    }
+
+    /**
+     * @return bulkheads sharing out the 20 connections per server of a default {@link HttpConnectionPool}: 6 for
+     *         session lookups, 8 for documents, 4 for attachments and 2 for changes feeds. Downloading many WARs at
+     *         once then cannot hold up logins.
+     */
+    public static BulkheadFilter defaultBulkheads() {
+        return new BulkheadFilter()
+                .setBulkhead(SESSION, 6, 200, 1000)
+                .setBulkhead(DOCUMENT, 8, 100, 0)
+                .setBulkhead(ATTACHMENT, 4, 100, 0)
+                .setBulkhead(CHANGES, 2, 0, 0);
+    }
+}
@@ -89,11 +89,15 @@ public class Document {
         return this;
     }
 
-    static class Attachment {
+    public static class Attachment {
         @JsonProperty("content_type")
         private String contentType;
         private long length;
         private boolean stub;
+        @JsonInclude(Include.NON_NULL)
+        private String digest;
+        @JsonInclude(Include.NON_DEFAULT)
+        private int revpos;
 
         public String getContentType() {
             return contentType;
@@ -119,6 +123,28 @@ public class Document {
             this.stub = stub;
         }
 
+        /**
+         * @return checksum of the content as given by CouchDB, e.g. <code>md5-&lt;base64&gt;</code>
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        public void setDigest(String digest) {
+            this.digest = digest;
+        }
+
+        /**
+         * @return revision number of the document in which the attachment last changed
+         */
+        public int getRevpos() {
+            return revpos;
+        }
+
+        public void setRevpos(int revpos) {
+            this.revpos = revpos;
+        }
+
         @JsonAnySetter
         public void setOptional(String key, Object value) {
             // Ignore
@@ -0,0 +1,172 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.couchdb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parsed documents by id, with the revision they were read at. The least recently used documents are evicted once
+ * the cache is full. {@link CouchDbClientImpl} revalidates a cached document with <code>If-None-Match</code>, so an
+ * unchanged document costs a <code>304</code> without a body to parse. Documents are shared between callers, who
+ * must not modify them.
+ */
+public class DocumentCache {
+    private final int maxEntries;
+    private final Map<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    static final class Entry {
+        final String revision;
+        final Class<?> type;
+        final Object document;
+
+        Entry(String revision, Class<?> type, Object document) {
+            this.revision = revision;
+            this.type = type;
+            this.document = document;
+        }
+
+        /**
+         * @return the revision as CouchDB sends it in the <code>ETag</code> header
+         */
+        String etag() {
+            return '"' + revision + '"';
+        }
+    }
+
+    /**
+     * @param maxEntries documents kept
+     */
+    public DocumentCache(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return the entry for the document if it was read as the given type
+     */
+    synchronized Entry get(String id, Class<?> type) {
+        final Entry entry = entries.get(id);
+        return entry != null && entry.type == type ? entry : null;
+    }
+
+    synchronized void put(String id, String revision, Class<?> type, Object document) {
+        if (revision == null || document == null) {
+            entries.remove(id);
+        } else {
+            entries.put(id, new Entry(revision, type, document));
+        }
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Forget a document, e.g. because the changes feed reported a new revision of it
+     */
+    public synchronized void invalidate(String id) {
+        if (entries.remove(id) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forget a document unless it is cached at the given revision
+     */
+    public synchronized void invalidate(String id, String revision) {
+        final Entry entry = entries.get(id);
+        if (entry != null && (revision == null || !revision.equals(entry.revision))) {
+            entries.remove(id);
+            invalidations.incrementAndGet();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return reads answered from the cache after a <code>304</code>
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return reads that had to fetch the document
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DocumentCache [maxEntries=" + maxEntries + ", size=" + size() + ", hits=" + hits + ", misses="
+               + misses + ", evictions=" + evictions + ", invalidations=" + invalidations + "]";
+    }
+}
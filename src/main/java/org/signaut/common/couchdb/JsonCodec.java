@@ -0,0 +1,165 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.couchdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * One Jackson setup shared by the CouchDB client, the changes feed, the authenticator and the deployer. Readers and
+ * writers are built once per type, with their root (de)serializers resolved, and parse straight from bytes; nothing
+ * goes through a <code>String</code> or <code>Reader</code>.
+ * <p>
+ * Modules registered with {@link #registerModule(Module)}, e.g. Afterburner's bytecode-generated (de)serializers,
+ * apply to every component using the codec. Register them at startup: readers and writers are rebuilt afterwards.
+ */
+public class JsonCodec {
+    private static final JsonCodec DEFAULT = new JsonCodec();
+    private final ObjectMapper objectMapper;
+    private final ConcurrentMap<Type, ObjectReader> readers = new ConcurrentHashMap<Type, ObjectReader>();
+    private final ConcurrentMap<Type, ObjectWriter> writers = new ConcurrentHashMap<Type, ObjectWriter>();
+
+    /**
+     * A codec lenient enough for hand written documents: comments and unquoted field names are accepted
+     */
+    public JsonCodec() {
+        this(new ObjectMapper(new JsonFactory().enable(JsonParser.Feature.ALLOW_COMMENTS)
+                .enable(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES)));
+    }
+
+    public JsonCodec(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+        //Bodies are written straight into the connection, which is not ours to close
+        objectMapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    }
+
+    /**
+     * @return the codec components use unless given another
+     */
+    public static JsonCodec getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return the mapper behind the codec, for tree models and one-off conversions
+     */
+    public ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    public JsonCodec registerModule(Module module) {
+        synchronized (objectMapper) {
+            objectMapper.registerModule(module);
+            readers.clear();
+            writers.clear();
+        }
+        return this;
+    }
+
+    /**
+     * Build the readers and writers of the types up front, so the first request does not pay for it
+     */
+    public JsonCodec prepare(Class<?>... types) {
+        for (Class<?> type: types) {
+            reader(type);
+            writer(type);
+        }
+        return this;
+    }
+
+    public ObjectReader reader(Class<?> type) {
+        ObjectReader reader = readers.get(type);
+        if (reader == null) {
+            reader = objectMapper.reader(type);
+            readers.put(type, reader);
+        }
+        return reader;
+    }
+
+    public ObjectReader reader(TypeReference<?> type) {
+        ObjectReader reader = readers.get(type.getType());
+        if (reader == null) {
+            reader = objectMapper.reader(type);
+            readers.put(type.getType(), reader);
+        }
+        return reader;
+    }
+
+    public ObjectWriter writer(Class<?> type) {
+        ObjectWriter writer = writers.get(type);
+        if (writer == null) {
+            writer = objectMapper.writerWithType(type);
+            writers.put(type, writer);
+        }
+        return writer;
+    }
+
+    public <T> T read(InputStream input, Class<T> type) throws IOException {
+        return reader(type).readValue(input);
+    }
+
+    public <T> T read(InputStream input, TypeReference<T> type) throws IOException {
+        return reader(type).readValue(input);
+    }
+
+    public <T> T read(byte[] json, int offset, int length, Class<T> type) throws IOException {
+        return reader(type).readValue(json, offset, length);
+    }
+
+    public <T> T read(byte[] json, Class<T> type) throws IOException {
+        return reader(type).readValue(json);
+    }
+
+    /**
+     * Serialize the value into the stream, leaving the stream open
+     */
+    public void write(OutputStream out, Object value) throws IOException {
+        if (value == null) {
+            objectMapper.writeValue(out, null);
+        } else {
+            writer(value.getClass()).writeValue(out, value);
+        }
+    }
+
+    public byte[] writeAsBytes(Object value) throws IOException {
+        return value == null ? objectMapper.writeValueAsBytes(null) : writer(value.getClass()).writeValueAsBytes(value);
+    }
+}
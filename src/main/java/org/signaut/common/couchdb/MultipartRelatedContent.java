@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.couchdb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.UUID;
+
+import org.signaut.common.http.HttpContent;
+
+/**
+ * A <code>multipart/related</code> body of a document followed by its attachments, as CouchDB takes it on
+ * <code>PUT /db/doc</code>. The attachments are streamed in the order of the document's <code>_attachments</code>
+ * stubs, which carry <code>"follows": true</code> and their lengths.
+ */
+final class MultipartRelatedContent extends HttpContent {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final String boundary = "couchdb-" + UUID.randomUUID().toString().replace("-", "");
+    private final byte[] document;
+    private final List<AttachmentContent> attachments;
+
+    /**
+     * @param document the JSON document with the stubs of the attachments
+     */
+    MultipartRelatedContent(byte[] document, List<AttachmentContent> attachments) {
+        this.document = document;
+        this.attachments = attachments;
+    }
+
+    String getContentType() {
+        return "multipart/related;boundary=\"" + boundary + "\"";
+    }
+
+    @Override
+    public long getLength() {
+        long length = documentHead().length + document.length;
+        for (AttachmentContent attachment: attachments) {
+            length += attachmentHead(attachment).length + attachment.getLength();
+        }
+        return length + tail().length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(documentHead());
+        out.write(document);
+        for (AttachmentContent attachment: attachments) {
+            out.write(attachmentHead(attachment));
+            attachment.getContent().writeTo(out);
+        }
+        out.write(tail());
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        for (AttachmentContent attachment: attachments) {
+            if ( ! attachment.getContent().isRepeatable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] documentHead() {
+        return ("--" + boundary + "\r\nContent-Type: application/json\r\n\r\n").getBytes(UTF8);
+    }
+
+    private byte[] attachmentHead(AttachmentContent attachment) {
+        return ("\r\n--" + boundary + "\r\nContent-Type: " + attachment.getContentType() + "\r\n\r\n").getBytes(UTF8);
+    }
+
+    private byte[] tail() {
+        return ("\r\n--" + boundary + "--").getBytes(UTF8);
+    }
+}
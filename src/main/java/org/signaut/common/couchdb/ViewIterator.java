@@ -0,0 +1,141 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.couchdb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.signaut.common.couchdb.CouchDbClient.ViewRowHandler;
+
+/**
+ * Iterates over the rows of a {@link ViewQuery}, fetching <code>pageSize</code> of them at a time. Each page asks
+ * for one row more than it hands out; that row's key and document id start the next page. Queries by keys are
+ * paged by splitting the keys instead.
+ * <p>
+ * No connection is held between pages, so an iterator may be abandoned without being closed. Rows written while
+ * iterating may or may not show up.
+ */
+public class ViewIterator<T> implements Iterator<ViewRow<T>> {
+    private final CouchDbClientImpl client;
+    private final ViewQuery query;
+    private final Class<T> type;
+    private final List<ViewRow<T>> page;
+    private int position = 0;
+    private ViewQuery next;
+    private int keysDone = 0;
+    private long remaining;
+    private long totalRows = -1;
+    private int pages = 0;
+
+    ViewIterator(CouchDbClientImpl client, ViewQuery query, Class<T> type) {
+        this.client = client;
+        this.query = query;
+        this.type = type;
+        this.page = new ArrayList<ViewRow<T>>(query.getPageSize() + 1);
+        this.remaining = query.getLimit() < 0 ? Long.MAX_VALUE : query.getLimit();
+        this.next = query.copy();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (position >= page.size()) {
+            if (next == null || remaining <= 0) {
+                return false;
+            }
+            fetch();
+        }
+        return true;
+    }
+
+    @Override
+    public ViewRow<T> next() {
+        if ( ! hasNext()) {
+            throw new NoSuchElementException();
+        }
+        remaining--;
+        return page.get(position++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("View rows are read only");
+    }
+
+    private void fetch() {
+        page.clear();
+        position = 0;
+        final int pageSize = (int) Math.min(query.getPageSize(), remaining);
+        final ViewQuery current = next;
+        if (query.getKeys() != null) {
+            final List<?> keys = query.getKeys();
+            final int end = Math.min(keys.size(), keysDone + pageSize);
+            current.setKeys(keys.subList(keysDone, end)).setLimit(pageSize);
+            keysDone = end;
+            next = end < keys.size() ? query.copy().setSkip(0) : null;
+            collect(current);
+            return;
+        }
+        current.setLimit(pageSize + 1);
+        collect(current);
+        if (page.size() > pageSize) {
+            final ViewRow<T> first = page.remove(pageSize);
+            next = query.copy().setSkip(0).setStartKey(first.getKey()).setStartKeyDocId(first.getId());
+        } else {
+            next = null;
+        }
+    }
+
+    private void collect(ViewQuery current) {
+        final ViewRowParser<T> parser = client.sendViewQuery(current, type, new ViewRowHandler<T>() {
+            @Override
+            public boolean handleRow(ViewRow<T> row) {
+                page.add(row);
+                return true;
+            }
+        });
+        if (pages++ == 0) {
+            totalRows = parser.getTotalRows();
+        }
+    }
+
+    /**
+     * @return <code>total_rows</code> of the first page, -1 before it is fetched or for reduced views
+     */
+    public long getTotalRows() {
+        return totalRows;
+    }
+
+    /**
+     * @return requests sent so far
+     */
+    public int getPages() {
+        return pages;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.couchdb;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Options of a view or <code>_all_docs</code> query. Keys are JSON values: strings, numbers, lists or maps.
+ * <p>
+ * {@link CouchDbClient#queryView(ViewQuery, Class)} fetches the rows <code>pageSize</code> at a time, continuing
+ * each page from the last row's key and document id (<code>startkey</code> and <code>startkey_docid</code>).
+ */
+public class ViewQuery {
+    private final String path;
+    private Object key;
+    private List<?> keys;
+    private Object startKey;
+    private String startKeyDocId;
+    private Object endKey;
+    private String endKeyDocId;
+    private int limit = -1;
+    private int skip = 0;
+    private boolean descending = false;
+    private boolean includeDocs = false;
+    private boolean inclusiveEnd = true;
+    private Boolean reduce;
+    private boolean group = false;
+    private int groupLevel = -1;
+    private String stale;
+    private int pageSize = 1000;
+
+    /**
+     * @param path relative to the database, e.g. <code>_all_docs</code> or
+     *            <code>_design/webapps/_view/all</code>
+     */
+    public ViewQuery(String path) {
+        this.path = path;
+    }
+
+    public static ViewQuery allDocs() {
+        return new ViewQuery("_all_docs");
+    }
+
+    public static ViewQuery view(String designDocument, String view) {
+        return new ViewQuery("_design/" + designDocument + "/_view/" + view);
+    }
+
+    ViewQuery copy() {
+        final ViewQuery copy = new ViewQuery(path);
+        copy.key = key;
+        copy.keys = keys;
+        copy.startKey = startKey;
+        copy.startKeyDocId = startKeyDocId;
+        copy.endKey = endKey;
+        copy.endKeyDocId = endKeyDocId;
+        copy.limit = limit;
+        copy.skip = skip;
+        copy.descending = descending;
+        copy.includeDocs = includeDocs;
+        copy.inclusiveEnd = inclusiveEnd;
+        copy.reduce = reduce;
+        copy.group = group;
+        copy.groupLevel = groupLevel;
+        copy.stale = stale;
+        copy.pageSize = pageSize;
+        return copy;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+
+    public ViewQuery setKey(Object key) {
+        this.key = key;
+        return this;
+    }
+
+    public List<?> getKeys() {
+        return keys;
+    }
+
+    /**
+     * @param keys rows to fetch. They are posted in the request body, <code>pageSize</code> at a time.
+     */
+    public ViewQuery setKeys(List<?> keys) {
+        this.keys = keys;
+        return this;
+    }
+
+    public Object getStartKey() {
+        return startKey;
+    }
+
+    public ViewQuery setStartKey(Object startKey) {
+        this.startKey = startKey;
+        return this;
+    }
+
+    public String getStartKeyDocId() {
+        return startKeyDocId;
+    }
+
+    public ViewQuery setStartKeyDocId(String startKeyDocId) {
+        this.startKeyDocId = startKeyDocId;
+        return this;
+    }
+
+    public Object getEndKey() {
+        return endKey;
+    }
+
+    public ViewQuery setEndKey(Object endKey) {
+        this.endKey = endKey;
+        return this;
+    }
+
+    public String getEndKeyDocId() {
+        return endKeyDocId;
+    }
+
+    public ViewQuery setEndKeyDocId(String endKeyDocId) {
+        this.endKeyDocId = endKeyDocId;
+        return this;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param limit rows in total, -1 for all of them
+     */
+    public ViewQuery setLimit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public int getSkip() {
+        return skip;
+    }
+
+    public ViewQuery setSkip(int skip) {
+        this.skip = skip;
+        return this;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public ViewQuery setDescending(boolean descending) {
+        this.descending = descending;
+        return this;
+    }
+
+    public boolean isIncludeDocs() {
+        return includeDocs;
+    }
+
+    public ViewQuery setIncludeDocs(boolean includeDocs) {
+        this.includeDocs = includeDocs;
+        return this;
+    }
+
+    public boolean isInclusiveEnd() {
+        return inclusiveEnd;
+    }
+
+    public ViewQuery setInclusiveEnd(boolean inclusiveEnd) {
+        this.inclusiveEnd = inclusiveEnd;
+        return this;
+    }
+
+    public Boolean getReduce() {
+        return reduce;
+    }
+
+    /**
+     * @param reduce <code>null</code> leaves it to the view
+     */
+    public ViewQuery setReduce(Boolean reduce) {
+        this.reduce = reduce;
+        return this;
+    }
+
+    public boolean isGroup() {
+        return group;
+    }
+
+    public ViewQuery setGroup(boolean group) {
+        this.group = group;
+        return this;
+    }
+
+    public int getGroupLevel() {
+        return groupLevel;
+    }
+
+    public ViewQuery setGroupLevel(int groupLevel) {
+        this.groupLevel = groupLevel;
+        return this;
+    }
+
+    public String getStale() {
+        return stale;
+    }
+
+    /**
+     * @param stale <code>ok</code> to read the index as it is, <code>update_after</code> to also have it updated
+     *            afterwards, <code>null</code> to wait for it to be brought up to date
+     */
+    public ViewQuery setStale(String stale) {
+        this.stale = stale;
+        return this;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @param pageSize rows fetched per request, and so held in memory, by the iterator
+     */
+    public ViewQuery setPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @return the path with the options as query string. The keys are left for the request body.
+     */
+    String toUri(ObjectMapper objectMapper) {
+        final List<String> parameters = new ArrayList<String>();
+        json(parameters, "key", key, objectMapper);
+        json(parameters, "startkey", startKey, objectMapper);
+        text(parameters, "startkey_docid", startKeyDocId);
+        json(parameters, "endkey", endKey, objectMapper);
+        text(parameters, "endkey_docid", endKeyDocId);
+        if (limit >= 0) {
+            parameters.add("limit=" + limit);
+        }
+        if (skip > 0) {
+            parameters.add("skip=" + skip);
+        }
+        if (descending) {
+            parameters.add("descending=true");
+        }
+        if (includeDocs) {
+            parameters.add("include_docs=true");
+        }
+        if ( ! inclusiveEnd) {
+            parameters.add("inclusive_end=false");
+        }
+        if (reduce != null) {
+            parameters.add("reduce=" + reduce);
+        }
+        if (group) {
+            parameters.add("group=true");
+        }
+        if (groupLevel >= 0) {
+            parameters.add("group_level=" + groupLevel);
+        }
+        text(parameters, "stale", stale);
+        final StringBuilder uri = new StringBuilder(path);
+        for (int i = 0; i < parameters.size(); i++) {
+            uri.append(i == 0 ? '?' : '&').append(parameters.get(i));
+        }
+        return uri.toString();
+    }
+
+    private static void json(List<String> parameters, String name, Object value, ObjectMapper objectMapper) {
+        if (value != null) {
+            try {
+                text(parameters, name, objectMapper.writeValueAsString(value));
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException(String.format("Bad %s: %s", name, value), e);
+            }
+        }
+    }
+
+    private static void text(List<String> parameters, String name, String value) {
+        if (value != null) {
+            try {
+                parameters.add(name + "=" + URLEncoder.encode(value, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ViewQuery [path=" + path + ", limit=" + limit + ", includeDocs=" + includeDocs + ", pageSize="
+               + pageSize + "]";
+    }
+}
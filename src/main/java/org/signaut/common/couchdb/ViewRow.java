@@ -0,0 +1,84 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.couchdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A row of a view or <code>_all_docs</code> result
+ */
+public class ViewRow<T> {
+    private final String id;
+    private final JsonNode key;
+    private final JsonNode value;
+    private final T document;
+    private final String error;
+
+    ViewRow(String id, JsonNode key, JsonNode value, T document, String error) {
+        this.id = id;
+        this.key = key;
+        this.value = value;
+        this.document = document;
+        this.error = error;
+    }
+
+    /**
+     * @return id of the document emitting the row, <code>null</code> for reduced rows
+     */
+    public String getId() {
+        return id;
+    }
+
+    public JsonNode getKey() {
+        return key;
+    }
+
+    public JsonNode getValue() {
+        return value;
+    }
+
+    /**
+     * @return the document if the query included documents and it still exists
+     */
+    public T getDocument() {
+        return document;
+    }
+
+    /**
+     * @return e.g. <code>not_found</code> for a requested key without a document
+     */
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "ViewRow [id=" + id + ", key=" + key + ", value=" + value + (error == null ? "" : ", error=" + error)
+               + "]";
+    }
+}
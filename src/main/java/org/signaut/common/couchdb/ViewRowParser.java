@@ -0,0 +1,164 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.couchdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+import org.signaut.common.couchdb.CouchDbClient.DocumentException;
+import org.signaut.common.couchdb.CouchDbClient.ViewRowHandler;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Parses a view response row by row with a {@link JsonParser}, handing each row over before reading the next. Only
+ * the row at hand is held in memory, however long the response.
+ */
+final class ViewRowParser<T> implements HttpResponseHandler<Long> {
+    private final JsonCodec codec;
+    private final Class<T> type;
+    private final ViewRowHandler<T> handler;
+    private long totalRows = -1;
+    private long offset = -1;
+    private long rows = 0;
+    private boolean stopped = false;
+
+    /**
+     * @param type of the included documents, <code>null</code> to skip them
+     */
+    ViewRowParser(JsonCodec codec, Class<T> type, ViewRowHandler<T> handler) {
+        this.codec = codec;
+        this.type = type;
+        this.handler = handler;
+    }
+
+    /**
+     * @return rows handed to the handler
+     */
+    @Override
+    public Long handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+        try {
+            if (responseCode >= 400 || responseCode < 0) {
+                throw new DocumentException(String.format("ResponseCode: %d. Error: %s", responseCode,
+                                                          codec.read(input, DocumentStatus.class)));
+            }
+            final JsonParser parser = codec.getObjectMapper().getFactory().createParser(input);
+            try {
+                return parse(parser);
+            } finally {
+                parser.close();
+            }
+        } catch (DocumentException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalArgumentException("While parsing view rows", e);
+        }
+    }
+
+    private long parse(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Expected a JSON object, got " + parser.getCurrentToken());
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            if ("rows".equals(field) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    rows++;
+                    if ( ! handler.handleRow(row(parser))) {
+                        //The rest is left unread; the transport does not reuse the connection
+                        stopped = true;
+                        return rows;
+                    }
+                }
+            } else if ("total_rows".equals(field)) {
+                totalRows = parser.getLongValue();
+            } else if ("offset".equals(field)) {
+                offset = parser.getLongValue();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return rows;
+    }
+
+    private ViewRow<T> row(JsonParser parser) throws IOException {
+        String id = null;
+        JsonNode key = null;
+        JsonNode value = null;
+        T document = null;
+        String error = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            if ("id".equals(field)) {
+                id = parser.getText();
+            } else if ("key".equals(field)) {
+                key = parser.readValueAsTree();
+            } else if ("value".equals(field)) {
+                value = parser.readValueAsTree();
+            } else if ("doc".equals(field) && type != null && token != JsonToken.VALUE_NULL) {
+                document = codec.reader(type).readValue(parser);
+            } else if ("error".equals(field)) {
+                error = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new ViewRow<T>(id, key, value, document, error);
+    }
+
+    /**
+     * @return rows handed to the handler
+     */
+    long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return <code>total_rows</code> of the response, -1 if it had none
+     */
+    long getTotalRows() {
+        return totalRows;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return whether the handler stopped before the last row
+     */
+    boolean isStopped() {
+        return stopped;
+    }
+}
@@ -0,0 +1,367 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+
+/**
+ * Limits the number of concurrent requests per operation (see {@link HttpRequest#setOperation(String)}), so one
+ * kind of traffic cannot use up the connections another kind needs. Each operation gets its own bulkhead: up to
+ * <code>limit</code> requests run at a time, up to <code>maxQueued</code> more wait in line for at most
+ * <code>maxWait</code> milliseconds (and never beyond the request's deadline). Requests that do not fit fail with a
+ * {@link BulkheadFullException} without being sent. Operations without a bulkhead are not limited.
+ * <p>
+ * Place it after the {@link TimeoutFilter} and before the {@link RetryFilter}, so the wait counts against the
+ * deadline and retries do not have to queue again.
+ */
+public class BulkheadFilter extends HttpFilter {
+    private final ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+
+    public static final class Bulkhead {
+        private final String operation;
+        private final int limit;
+        private final int maxQueued;
+        private final long maxWait;
+        private final Deque<Waiter> queue = new ArrayDeque<Waiter>();
+        private int active = 0;
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong queued = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong timedOut = new AtomicLong();
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+
+        /**
+         * @param limit requests running at the same time
+         * @param maxQueued requests waiting for one of them to finish
+         * @param maxWait milliseconds a request may wait. 0 leaves it to the request's deadline.
+         */
+        public Bulkhead(String operation, int limit, int maxQueued, long maxWait) {
+            if (limit < 1) {
+                throw new IllegalArgumentException("limit must be positive: " + limit);
+            }
+            this.operation = operation;
+            this.limit = limit;
+            this.maxQueued = maxQueued;
+            this.maxWait = maxWait;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        public int getMaxQueued() {
+            return maxQueued;
+        }
+
+        public long getMaxWait() {
+            return maxWait;
+        }
+
+        public synchronized int getActive() {
+            return active;
+        }
+
+        public synchronized int getQueueLength() {
+            return queue.size();
+        }
+
+        /**
+         * @return requests let through, whether at once or after waiting
+         */
+        public long getAdmitted() {
+            return admitted.get();
+        }
+
+        /**
+         * @return requests that had to wait
+         */
+        public long getQueued() {
+            return queued.get();
+        }
+
+        /**
+         * @return requests turned away, including the ones that waited too long
+         */
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        public long getTimedOut() {
+            return timedOut.get();
+        }
+
+        /**
+         * @return time spent waiting by the requests that were queued
+         */
+        public LatencyHistogram getQueueWait() {
+            return queueWait;
+        }
+
+        /**
+         * @return <code>true</code> if the request may go ahead now, <code>false</code> if the waiter was queued
+         */
+        private synchronized boolean enter(Waiter waiter) {
+            if (active < limit && queue.isEmpty()) {
+                active++;
+                admitted.incrementAndGet();
+                return true;
+            }
+            if (queue.size() >= maxQueued) {
+                rejected.incrementAndGet();
+                throw new BulkheadFullException(operation, String.format("%d running and %d waiting", active,
+                                                                         queue.size()));
+            }
+            queue.addLast(waiter);
+            queued.incrementAndGet();
+            return false;
+        }
+
+        /**
+         * @return <code>true</code> if the waiter was still queued and has now been given up on
+         */
+        private boolean abandon(Waiter waiter) {
+            synchronized (this) {
+                if ( ! queue.remove(waiter)) {
+                    return false;
+                }
+            }
+            rejected.incrementAndGet();
+            timedOut.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * Hand the slot to the next waiter, if any
+         */
+        private void leave() {
+            final Waiter next;
+            synchronized (this) {
+                next = queue.pollFirst();
+                if (next == null) {
+                    active--;
+                    return;
+                }
+            }
+            admitted.incrementAndGet();
+            queueWait.record(System.nanoTime() - next.enqueued, TimeUnit.NANOSECONDS);
+            next.run();
+        }
+
+        private long waitLimit(HttpRequest request) {
+            final long remaining = request.getTimeout() > 0 ? Math.max(0, request.getRemainingTime()) : Long.MAX_VALUE;
+            return maxWait > 0 ? Math.min(maxWait, remaining) : remaining;
+        }
+
+        @Override
+        public String toString() {
+            return "Bulkhead [operation=" + operation + ", limit=" + limit + ", maxQueued=" + maxQueued
+                   + ", active=" + getActive() + ", queueLength=" + getQueueLength() + ", admitted=" + admitted
+                   + ", rejected=" + rejected + "]";
+        }
+    }
+
+    /**
+     * Queued request, run once it has been handed a slot
+     */
+    private abstract static class Waiter implements Runnable {
+        final long enqueued = System.nanoTime();
+    }
+
+    private static final class BlockedCaller extends Waiter {
+        private final CountDownLatch admitted = new CountDownLatch(1);
+
+        @Override
+        public void run() {
+            admitted.countDown();
+        }
+    }
+
+    private static final class QueuedRequest<T> extends Waiter {
+        private final HttpRequest request;
+        private final HttpResponseHandler<T> handler;
+        private final HttpCallback<T> callback;
+        private final AsyncHttpTransport next;
+        private volatile ScheduledFuture<?> giveUp;
+
+        QueuedRequest(HttpRequest request, HttpResponseHandler<T> handler, HttpCallback<T> callback,
+                      AsyncHttpTransport next) {
+            this.request = request;
+            this.handler = handler;
+            this.callback = callback;
+            this.next = next;
+        }
+
+        @Override
+        public void run() {
+            Deadlines.cancel(giveUp);
+            send(request, handler, callback, next);
+        }
+    }
+
+    /**
+     * @see Bulkhead#Bulkhead(String, int, int, long)
+     */
+    public BulkheadFilter setBulkhead(String operation, int limit, int maxQueued, long maxWait) {
+        bulkheads.put(operation, new Bulkhead(operation, limit, maxQueued, maxWait));
+        return this;
+    }
+
+    /**
+     * @return the bulkhead of the operation, or <code>null</code> if it is not limited
+     */
+    public Bulkhead getBulkhead(String operation) {
+        return operation == null ? null : bulkheads.get(operation);
+    }
+
+    public long getRejected() {
+        long rejected = 0;
+        for (Bulkhead bulkhead: bulkheads.values()) {
+            rejected += bulkhead.getRejected();
+        }
+        return rejected;
+    }
+
+    @Override
+    public <T> T filter(HttpRequest request, HttpResponseHandler<T> handler, HttpTransport next) {
+        final Bulkhead bulkhead = getBulkhead(request.getOperation());
+        if (bulkhead == null) {
+            return next.send(request, handler);
+        }
+        final BlockedCaller caller = new BlockedCaller();
+        if ( ! bulkhead.enter(caller)) {
+            await(bulkhead, caller, request);
+        }
+        try {
+            return next.send(request, handler);
+        } finally {
+            bulkhead.leave();
+        }
+    }
+
+    private void await(Bulkhead bulkhead, BlockedCaller caller, HttpRequest request) {
+        boolean admitted;
+        try {
+            admitted = caller.admitted.await(bulkhead.waitLimit(request), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            admitted = false;
+        }
+        if ( ! admitted && bulkhead.abandon(caller)) {
+            throw rejection(bulkhead, request);
+        }
+    }
+
+    private static RuntimeException rejection(Bulkhead bulkhead, HttpRequest request) {
+        if (request.isExpired()) {
+            return Deadlines.timeout(request, new BulkheadFullException(bulkhead.operation, "deadline passed"));
+        }
+        return new BulkheadFullException(bulkhead.operation, "waited too long");
+    }
+
+    @Override
+    public <T> Future<T> filterAsync(final HttpRequest request, final HttpResponseHandler<T> handler,
+                                     final HttpCallback<T> callback, final AsyncHttpTransport next) {
+        final Bulkhead bulkhead = getBulkhead(request.getOperation());
+        if (bulkhead == null) {
+            return next.sendAsync(request, handler, callback);
+        }
+        final HttpFuture<T> future = new HttpFuture<T>(callback);
+        final AtomicBoolean left = new AtomicBoolean();
+        final HttpCallback<T> leaving = new HttpCallback<T>() {
+            @Override
+            public void completed(T result) {
+                if (left.compareAndSet(false, true)) {
+                    bulkhead.leave();
+                }
+                future.completed(result);
+            }
+
+            @Override
+            public void failed(Throwable failure) {
+                if (left.compareAndSet(false, true)) {
+                    bulkhead.leave();
+                }
+                future.failed(failure);
+            }
+        };
+        final QueuedRequest<T> waiter = new QueuedRequest<T>(request, handler, leaving, next);
+        final boolean admitted;
+        try {
+            admitted = bulkhead.enter(waiter);
+        } catch (BulkheadFullException e) {
+            future.failed(e);
+            return future;
+        }
+        if (admitted) {
+            send(request, handler, leaving, next);
+        } else {
+            final long waitLimit = bulkhead.waitLimit(request);
+            if (waitLimit < Long.MAX_VALUE) {
+                waiter.giveUp = Deadlines.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (bulkhead.abandon(waiter)) {
+                            future.failed(rejection(bulkhead, request));
+                        }
+                    }
+                }, waitLimit);
+            }
+        }
+        return future;
+    }
+
+    private static <T> void send(HttpRequest request, HttpResponseHandler<T> handler, HttpCallback<T> callback,
+                                 AsyncHttpTransport next) {
+        try {
+            next.sendAsync(request, handler, callback);
+        } catch (RuntimeException e) {
+            callback.failed(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BulkheadFilter " + bulkheads.values();
+    }
+}
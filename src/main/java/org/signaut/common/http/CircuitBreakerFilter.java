@@ -0,0 +1,356 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops sending requests to a server that keeps failing, so callers fail fast instead of piling up on it.
+ * <p>
+ * Each server (scheme, host and port) has its own breaker counting outcomes over a rolling window. Requests that get
+ * no response or a 5xx response count as failures. Once the window holds at least {@link #setMinimumRequests(int)}
+ * outcomes and the failure rate reaches {@link #setFailureRateThreshold(int)} percent the breaker opens, and requests
+ * fail with a {@link CircuitOpenException} for {@link #setOpenTime(long)} milliseconds. After that a single probe is
+ * let through (half open): if it succeeds the breaker closes, otherwise it opens again.
+ * <p>
+ * An outcome is counted as soon as the response status arrives, so a streaming response whose body never ends still
+ * settles its probe.
+ */
+public class CircuitBreakerFilter extends HttpFilter {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<String, Breaker>();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+    private long windowLength = 10000;
+    private int windowBuckets = 10;
+    private int minimumRequests = 20;
+    private int failureRateThreshold = 50;
+    private long openTime = 5000;
+
+    public long getWindowLength() {
+        return windowLength;
+    }
+
+    /**
+     * @param windowLength milliseconds of outcomes the failure rate is calculated over
+     */
+    public CircuitBreakerFilter setWindowLength(long windowLength) {
+        this.windowLength = windowLength;
+        breakers.clear();
+        return this;
+    }
+
+    public int getMinimumRequests() {
+        return minimumRequests;
+    }
+
+    /**
+     * @param minimumRequests outcomes needed in the window before the breaker may open
+     */
+    public CircuitBreakerFilter setMinimumRequests(int minimumRequests) {
+        this.minimumRequests = minimumRequests;
+        return this;
+    }
+
+    public int getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * @param failureRateThreshold percentage of failures at which the breaker opens
+     */
+    public CircuitBreakerFilter setFailureRateThreshold(int failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+        return this;
+    }
+
+    public long getOpenTime() {
+        return openTime;
+    }
+
+    /**
+     * @param openTime milliseconds to reject requests before probing the server again
+     */
+    public CircuitBreakerFilter setOpenTime(long openTime) {
+        this.openTime = openTime;
+        return this;
+    }
+
+    /**
+     * @return requests rejected while a breaker was open
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return number of times a breaker has opened
+     */
+    public long getOpened() {
+        return opened.get();
+    }
+
+    /**
+     * @return state of the breaker for the server at the url
+     */
+    public State getState(String url) {
+        final Breaker breaker = breakers.get(route(url));
+        return breaker == null ? State.CLOSED : breaker.state();
+    }
+
+    @Override
+    public <T> T filter(HttpRequest request, HttpResponseHandler<T> handler, HttpTransport next) {
+        final Breaker breaker = breaker(request);
+        final boolean probe = breaker.acquire();
+        final OutcomeHandler<T> outcome = new OutcomeHandler<T>(handler, breaker, probe);
+        try {
+            return next.send(request, outcome);
+        } finally {
+            outcome.record();
+        }
+    }
+
+    @Override
+    public <T> Future<T> filterAsync(HttpRequest request, HttpResponseHandler<T> handler,
+                                     final HttpCallback<T> callback, AsyncHttpTransport next) {
+        final Breaker breaker = breaker(request);
+        final boolean probe;
+        try {
+            probe = breaker.acquire();
+        } catch (CircuitOpenException e) {
+            final HttpFuture<T> future = new HttpFuture<T>(callback);
+            future.failed(e);
+            return future;
+        }
+        final OutcomeHandler<T> outcome = new OutcomeHandler<T>(handler, breaker, probe);
+        return next.sendAsync(request, outcome, new HttpCallback<T>() {
+            @Override
+            public void completed(T result) {
+                outcome.record();
+                if (callback != null) {
+                    callback.completed(result);
+                }
+            }
+
+            @Override
+            public void failed(Throwable failure) {
+                outcome.record();
+                if (callback != null) {
+                    callback.failed(failure);
+                }
+            }
+        });
+    }
+
+    private Breaker breaker(HttpRequest request) {
+        final String route = HttpConnectionPool.route(request.getUrl());
+        Breaker breaker = breakers.get(route);
+        if (breaker == null) {
+            final Breaker created = new Breaker(route);
+            breaker = breakers.putIfAbsent(route, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    private static String route(String url) {
+        try {
+            return HttpConnectionPool.route(new URL(url));
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Bad URL: " + url, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreakerFilter [breakers=" + breakers.values() + ", rejected=" + rejected + "]";
+    }
+
+    /**
+     * Records whether the server answered, and how, as soon as the response status arrives. Waiting for the handler to
+     * finish would leave the breaker without an outcome for as long as a streaming body, such as a continuous changes
+     * feed, keeps going.
+     */
+    private static final class OutcomeHandler<T> implements HttpResponseHandler<T> {
+        private final HttpResponseHandler<T> handler;
+        private final Breaker breaker;
+        private final boolean probe;
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        OutcomeHandler(HttpResponseHandler<T> handler, Breaker breaker, boolean probe) {
+            this.handler = handler;
+            this.breaker = breaker;
+            this.probe = probe;
+        }
+
+        /**
+         * Records a failure unless the server answered. A handler failing on a good response is not the server's
+         * fault.
+         */
+        void record() {
+            record(-1);
+        }
+
+        private void record(int responseCode) {
+            if (recorded.compareAndSet(false, true)) {
+                breaker.record(responseCode > 0 && responseCode < 500, probe);
+            }
+        }
+
+        @Override
+        public T handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            record(responseCode);
+            return handler.handleInput(responseCode, input, connection);
+        }
+    }
+
+    private final class Breaker {
+        private final String route;
+        private final long bucketLength = Math.max(1, windowLength / windowBuckets);
+        private final long[] bucketStarts = new long[windowBuckets];
+        private final int[] successes = new int[windowBuckets];
+        private final int[] failures = new int[windowBuckets];
+        private State state = State.CLOSED;
+        private long openedAt;
+        private boolean probing = false;
+
+        Breaker(String route) {
+            this.route = route;
+        }
+
+        synchronized State state() {
+            return state;
+        }
+
+        /**
+         * @return <code>true</code> if the request is the probe of a half open breaker
+         * @throws CircuitOpenException if the request may not be sent
+         */
+        synchronized boolean acquire() {
+            if (state == State.OPEN) {
+                final long waited = System.currentTimeMillis() - openedAt;
+                if (waited < openTime) {
+                    rejected.incrementAndGet();
+                    throw new CircuitOpenException(route, openTime - waited);
+                }
+                state = State.HALF_OPEN;
+                probing = false;
+            }
+            if (state == State.HALF_OPEN) {
+                if (probing) {
+                    rejected.incrementAndGet();
+                    throw new CircuitOpenException(route, 0);
+                }
+                probing = true;
+                log.info("Probing {}", route);
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void record(boolean success, boolean probe) {
+            if (probe) {
+                probing = false;
+                if (success) {
+                    log.info("Circuit to {} closed", route);
+                    state = State.CLOSED;
+                    reset();
+                } else {
+                    open();
+                }
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            final long start = now - now % bucketLength;
+            final int bucket = (int) ((now / bucketLength) % bucketStarts.length);
+            if (bucketStarts[bucket] != start) {
+                bucketStarts[bucket] = start;
+                successes[bucket] = 0;
+                failures[bucket] = 0;
+            }
+            if (success) {
+                successes[bucket]++;
+            } else {
+                failures[bucket]++;
+            }
+            if (state == State.CLOSED && ! success) {
+                int total = 0;
+                int failed = 0;
+                for (int i = 0; i < bucketStarts.length; i++) {
+                    if (now - bucketStarts[i] < windowLength) {
+                        total += successes[i] + failures[i];
+                        failed += failures[i];
+                    }
+                }
+                if (total >= minimumRequests && failed * 100 >= failureRateThreshold * total) {
+                    open();
+                }
+            }
+        }
+
+        private void open() {
+            log.warn("Circuit to {} opened", route);
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            opened.incrementAndGet();
+            reset();
+        }
+
+        private void reset() {
+            for (int i = 0; i < bucketStarts.length; i++) {
+                bucketStarts[i] = 0;
+                successes[i] = 0;
+                failures[i] = 0;
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return route + "=" + state;
+        }
+    }
+}
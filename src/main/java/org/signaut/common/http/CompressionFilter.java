@@ -0,0 +1,319 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+
+/**
+ * Negotiates gzip/deflate compressed responses and, optionally, gzips request bodies.
+ * <p>
+ * Every request gets an <code>Accept-Encoding: gzip, deflate</code> header unless it already has one, and compressed
+ * responses are decoded before they reach the handler, which sees neither <code>Content-Encoding</code> nor
+ * <code>Content-Length</code>. Request bodies are only compressed when {@link #setCompressingRequests(boolean)} is on,
+ * the body is JSON (<code>Content-Type: application/json</code>) and it is at least {@link #setMinimumSize(int)} bytes
+ * (bodies of unknown length are always compressed), since small bodies gain nothing but CPU time. Attachments and
+ * multipart bodies are sent as they are: they are mostly compressed already, and gzipping a large upload costs a lot
+ * of CPU for little. Make sure the server accepts gzip encoded request bodies before turning that on.
+ */
+public class CompressionFilter extends HttpFilter {
+    public static final int DEFAULT_MINIMUM_SIZE = 1024;
+
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String CONTENT_TYPE = "Content-Type";
+
+    private boolean compressingRequests = false;
+    private int minimumSize = DEFAULT_MINIMUM_SIZE;
+
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong requestBytesSent = new AtomicLong();
+    private final AtomicLong responseBytesReceived = new AtomicLong();
+    private final AtomicLong responseBytesDecoded = new AtomicLong();
+    private final AtomicLong compressedRequests = new AtomicLong();
+    private final AtomicLong compressedResponses = new AtomicLong();
+
+    @Override
+    public <T> T filter(HttpRequest request, HttpResponseHandler<T> handler, HttpTransport next) {
+        return next.send(prepare(request), new DecodingHandler<T>(handler));
+    }
+
+    @Override
+    public <T> Future<T> filterAsync(HttpRequest request, HttpResponseHandler<T> handler, HttpCallback<T> callback,
+                                     AsyncHttpTransport next) {
+        return next.sendAsync(prepare(request), new DecodingHandler<T>(handler), callback);
+    }
+
+    private HttpRequest prepare(HttpRequest request) {
+        if (request.getHeader(ACCEPT_ENCODING) == null) {
+            request.setHeader(ACCEPT_ENCODING, "gzip, deflate");
+        }
+        final HttpContent content = request.getContent();
+        if (compressingRequests && content != null && request.getHeader(CONTENT_ENCODING) == null
+            && isJson(request.getHeader(CONTENT_TYPE))) {
+            final long length = content.getLength();
+            if (length < 0 || length >= minimumSize) {
+                request.setContent(new GzipContent(content));
+                request.setHeader(CONTENT_ENCODING, "gzip");
+                compressedRequests.incrementAndGet();
+            }
+        }
+        return request;
+    }
+
+    private static boolean isJson(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        final int parameters = contentType.indexOf(';');
+        return (parameters < 0 ? contentType : contentType.substring(0, parameters)).trim()
+                .equalsIgnoreCase("application/json");
+    }
+
+    public boolean isCompressingRequests() {
+        return compressingRequests;
+    }
+
+    public CompressionFilter setCompressingRequests(boolean compressingRequests) {
+        this.compressingRequests = compressingRequests;
+        return this;
+    }
+
+    public int getMinimumSize() {
+        return minimumSize;
+    }
+
+    /**
+     * @param minimumSize request bodies smaller than this are sent uncompressed
+     */
+    public CompressionFilter setMinimumSize(int minimumSize) {
+        this.minimumSize = minimumSize;
+        return this;
+    }
+
+    /**
+     * @return uncompressed size of the request bodies that were compressed
+     */
+    public long getRequestBytes() {
+        return requestBytes.get();
+    }
+
+    /**
+     * @return compressed size of the request bodies that were compressed
+     */
+    public long getRequestBytesSent() {
+        return requestBytesSent.get();
+    }
+
+    /**
+     * @return compressed bytes read from compressed responses
+     */
+    public long getResponseBytesReceived() {
+        return responseBytesReceived.get();
+    }
+
+    /**
+     * @return bytes the handlers read after decoding compressed responses
+     */
+    public long getResponseBytesDecoded() {
+        return responseBytesDecoded.get();
+    }
+
+    public long getCompressedRequests() {
+        return compressedRequests.get();
+    }
+
+    public long getCompressedResponses() {
+        return compressedResponses.get();
+    }
+
+    /**
+     * @return bytes kept off the wire in both directions
+     */
+    public long getBytesSaved() {
+        return requestBytes.get() - requestBytesSent.get() + responseBytesDecoded.get() - responseBytesReceived.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionFilter [compressingRequests=" + compressingRequests + ", minimumSize=" + minimumSize
+               + ", bytesSaved=" + getBytesSaved() + "]";
+    }
+
+    private class GzipContent extends HttpContent {
+        private final HttpContent content;
+
+        GzipContent(HttpContent content) {
+            this.content = content;
+        }
+
+        @Override
+        public long getLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return content.isRepeatable();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            final CountingOutputStream sent = new CountingOutputStream(out);
+            final GZIPOutputStream gzip = new GZIPOutputStream(sent, 8192);
+            final CountingOutputStream plain = new CountingOutputStream(gzip);
+            content.writeTo(plain);
+            gzip.finish();
+            sent.flush();
+            requestBytes.addAndGet(plain.getCount());
+            requestBytesSent.addAndGet(sent.getCount());
+        }
+    }
+
+    private class DecodingHandler<T> implements HttpResponseHandler<T> {
+        private final HttpResponseHandler<T> handler;
+
+        DecodingHandler(HttpResponseHandler<T> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public T handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            final String encoding = connection.getHeaderField(CONTENT_ENCODING);
+            final boolean deflate = "deflate".equalsIgnoreCase(encoding);
+            if (input == null || !(deflate || "gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding))) {
+                return handler.handleInput(responseCode, input, connection);
+            }
+            compressedResponses.incrementAndGet();
+            final CountingInputStream received = new CountingInputStream(input);
+            final CountingInputStream decoded = new CountingInputStream(new DecodingInputStream(received, deflate));
+            try {
+                return handler.handleInput(responseCode, decoded, decodedView(responseCode, connection, decoded));
+            } finally {
+                responseBytesReceived.addAndGet(received.getCount());
+                responseBytesDecoded.addAndGet(decoded.getCount());
+            }
+        }
+    }
+
+    /**
+     * @return the connection's headers minus the ones describing the encoded body
+     */
+    private static HttpURLConnection decodedView(int responseCode, HttpURLConnection connection, InputStream body) {
+        String message;
+        try {
+            message = connection.getResponseMessage();
+        } catch (IOException e) {
+            message = null;
+        }
+        final HttpResponseConnection view = new HttpResponseConnection(connection.getURL(),
+                                                                       connection.getRequestMethod(), responseCode,
+                                                                       message, body);
+        for (int i = 0;; i++) {
+            final String name = connection.getHeaderFieldKey(i);
+            final String value = connection.getHeaderField(i);
+            if (name == null && value == null) {
+                break;
+            }
+            if (name != null && !CONTENT_ENCODING.equalsIgnoreCase(name) && !"Content-Length".equalsIgnoreCase(name)) {
+                view.addHeader(name, value);
+            }
+        }
+        return view;
+    }
+
+    /**
+     * Sets up the decoder on first read, so empty bodies (HEAD, 204, 304) do not trip over a missing header
+     */
+    private static class DecodingInputStream extends InputStream {
+        private final InputStream encoded;
+        private final boolean deflate;
+        private InputStream decoded;
+
+        DecodingInputStream(InputStream encoded, boolean deflate) {
+            this.encoded = encoded;
+            this.deflate = deflate;
+        }
+
+        private InputStream decoded() throws IOException {
+            if (decoded == null) {
+                final PushbackInputStream in = new PushbackInputStream(encoded, 1);
+                final int first = in.read();
+                if (first < 0) {
+                    decoded = in;
+                } else {
+                    in.unread(first);
+                    if (!deflate) {
+                        decoded = new GZIPInputStream(in, 8192);
+                    } else {
+                        //"deflate" ought to mean zlib, but some servers send a raw deflate stream
+                        final boolean zlib = (first & 0x0f) == 8;
+                        decoded = new InflaterInputStream(in, new Inflater(!zlib), 8192);
+                    }
+                }
+            }
+            return decoded;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return decoded().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return decoded().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return decoded == null ? 0 : decoded.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (decoded != null) {
+                decoded.close();
+            } else {
+                encoded.close();
+            }
+        }
+    }
+}
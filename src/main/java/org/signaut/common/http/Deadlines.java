@@ -0,0 +1,97 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aborts blocking exchanges that outlive their request's deadline. Socket timeouts only bound a single read; this
+ * bounds the whole exchange, including writing the body and reading a slowly trickling response.
+ */
+final class Deadlines {
+    private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "couchdb-http-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    static {
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    private Deadlines() {
+    }
+
+    /**
+     * @return the scheduled abort, or <code>null</code> if the request has no deadline
+     */
+    static ScheduledFuture<?> abortAt(HttpRequest request, Runnable abort) {
+        if (request.getTimeout() <= 0) {
+            return null;
+        }
+        return scheduler.schedule(abort, Math.max(0, request.getRemainingTime()), TimeUnit.MILLISECONDS);
+    }
+
+    static ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return <code>true</code> unless the abort has already run
+     */
+    static boolean cancel(ScheduledFuture<?> abort) {
+        return abort == null || abort.cancel(false) || abort.isCancelled();
+    }
+
+    static void checkExpired(HttpRequest request) {
+        if (request.isExpired()) {
+            throw new HttpTimeoutException(String.format("Deadline of %d ms exceeded before %s was sent",
+                                                         request.getTimeout(), request));
+        }
+    }
+
+    /**
+     * @return a timeout if the failure happened after the deadline, most likely because the exchange was aborted
+     */
+    static RuntimeException timeoutIfExpired(HttpRequest request, RuntimeException failure) {
+        if (failure instanceof HttpTimeoutException || ! request.isExpired()) {
+            return failure;
+        }
+        return timeout(request, failure);
+    }
+
+    static HttpTimeoutException timeout(HttpRequest request, Throwable cause) {
+        return new HttpTimeoutException(String.format("timeout %s'ing to %s", request.getMethod(), request.getUrl()),
+                                        cause);
+    }
+}
@@ -0,0 +1,477 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+
+/**
+ * Cuts tail latency of idempotent reads by sending a second, identical request when the first one has not been
+ * answered within a percentile of recently observed response times. Whichever response arrives first is handed to
+ * the handler; the other request is aborted and its outcome thrown away.
+ * <p>
+ * Only GET and HEAD requests of the configured operations are hedged, and only once enough response times have been
+ * seen for the operation. The first request of a blocking call is sent from the caller's thread, the second one from
+ * a bounded pool of the filter's own threads. A call is not hedged while all of them are busy.
+ */
+public class HedgingFilter extends HttpFilter {
+    private final Set<String> operations = new CopyOnWriteArraySet<String>();
+    private final ConcurrentMap<String, LatencyWindow> latencies = new ConcurrentHashMap<String, LatencyWindow>();
+    private final AtomicLong hedgedRequests = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService scheduler;
+    private double percentile = 95;
+    private int minimumSamples = 20;
+    private int windowSize = 200;
+    private long minimumDelay = 5;
+
+    /**
+     * @param operations operations to hedge. Requests without an operation are never hedged.
+     */
+    public HedgingFilter(String... operations) {
+        this.operations.addAll(Arrays.asList(operations));
+        final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "couchdb-http-hedging-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        executor = new ThreadPoolExecutor(0, 16, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                                          threadFactory);
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    public Set<String> getOperations() {
+        return operations;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * @param percentile response time percentile after which a second request is sent
+     */
+    public HedgingFilter setPercentile(double percentile) {
+        this.percentile = percentile;
+        return this;
+    }
+
+    public int getMinimumSamples() {
+        return minimumSamples;
+    }
+
+    /**
+     * @param minimumSamples response times to collect for an operation before its requests are hedged
+     */
+    public HedgingFilter setMinimumSamples(int minimumSamples) {
+        this.minimumSamples = minimumSamples;
+        return this;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * @param windowSize number of recent response times the percentile is taken over
+     */
+    public HedgingFilter setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+        latencies.clear();
+        return this;
+    }
+
+    public int getMaximumThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @param maximumThreads blocking calls hedged at the same time. Further calls wait for their first request only.
+     */
+    public HedgingFilter setMaximumThreads(int maximumThreads) {
+        executor.setMaximumPoolSize(maximumThreads);
+        return this;
+    }
+
+    public long getMinimumDelay() {
+        return minimumDelay;
+    }
+
+    /**
+     * @param minimumDelay milliseconds to wait at least before hedging, however fast the server usually is
+     */
+    public HedgingFilter setMinimumDelay(long minimumDelay) {
+        this.minimumDelay = minimumDelay;
+        return this;
+    }
+
+    /**
+     * @return number of second requests sent
+     */
+    public long getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    /**
+     * @return number of second requests that were answered before the first one
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return milliseconds before a request of the operation is hedged, or -1 if it is not hedged yet
+     */
+    public long getHedgeDelay(String operation) {
+        final LatencyWindow window = latencies.get(operation);
+        if (window == null) {
+            return -1;
+        }
+        final long delay = window.percentile(percentile, minimumSamples);
+        return delay < 0 ? -1 : Math.max(delay, minimumDelay);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Override
+    public <T> T filter(final HttpRequest request, final HttpResponseHandler<T> handler, final HttpTransport next) {
+        if ( ! isHedged(request)) {
+            return next.send(request, handler);
+        }
+        final long delay = getHedgeDelay(request.getOperation());
+        if (delay < 0) {
+            return next.send(request, new TimedHandler<T>(request.getOperation(), handler));
+        }
+        final Race<T> race = new Race<T>(request, handler, null);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                race.launch(next);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        if (race.run(next)) {
+            return race.future.join();
+        }
+        if (request.getTimeout() <= 0) {
+            return race.future.join();
+        }
+        try {
+            return race.future.get(Math.max(0, request.getRemainingTime()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw Deadlines.timeout(request, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for response", e);
+        } catch (ExecutionException e) {
+            //Completed, so join() rethrows the failure without waiting
+            return race.future.join();
+        }
+    }
+
+    @Override
+    public <T> Future<T> filterAsync(HttpRequest request, HttpResponseHandler<T> handler, HttpCallback<T> callback,
+                                     final AsyncHttpTransport next) {
+        if ( ! isHedged(request)) {
+            return next.sendAsync(request, handler, callback);
+        }
+        final long delay = getHedgeDelay(request.getOperation());
+        if (delay < 0) {
+            return next.sendAsync(request, new TimedHandler<T>(request.getOperation(), handler), callback);
+        }
+        final Race<T> race = new Race<T>(request, handler, callback);
+        race.launchAsync(next, false);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                race.launchAsync(next, true);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return race.future;
+    }
+
+    private boolean isHedged(HttpRequest request) {
+        return request.getContent() == null && request.getOperation() != null
+               && operations.contains(request.getOperation()) && request.isIdempotent();
+    }
+
+    private void record(String operation, long millis) {
+        LatencyWindow window = latencies.get(operation);
+        if (window == null) {
+            final LatencyWindow created = new LatencyWindow(windowSize);
+            window = latencies.putIfAbsent(operation, created);
+            if (window == null) {
+                window = created;
+            }
+        }
+        window.add(millis);
+    }
+
+    @Override
+    public String toString() {
+        return "HedgingFilter [operations=" + operations + ", percentile=" + percentile + ", hedgedRequests="
+               + hedgedRequests + ", hedgeWins=" + hedgeWins + "]";
+    }
+
+    /**
+     * Records the time until the response arrives
+     */
+    private class TimedHandler<T> implements HttpResponseHandler<T> {
+        private final String operation;
+        private final HttpResponseHandler<T> handler;
+        private final long started = System.nanoTime();
+
+        TimedHandler(String operation, HttpResponseHandler<T> handler) {
+            this.operation = operation;
+            this.handler = handler;
+        }
+
+        @Override
+        public T handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            record(operation, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            return handler.handleInput(responseCode, input, connection);
+        }
+    }
+
+    /**
+     * The requests sent for one call. The first response to arrive claims the handler.
+     */
+    private class Race<T> {
+        private final HttpRequest request;
+        private final HttpResponseHandler<T> handler;
+        private final HttpFuture<T> future;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final List<Attempt> attempts = new CopyOnWriteArrayList<Attempt>();
+        private volatile Throwable failure;
+
+        Race(HttpRequest request, HttpResponseHandler<T> handler, HttpCallback<T> callback) {
+            this.request = request;
+            this.handler = handler;
+            this.future = new HttpFuture<T>(callback);
+        }
+
+        /**
+         * Sends the first request from the calling thread
+         * 
+         * @return <code>true</code> if the call is done
+         */
+        boolean run(HttpTransport next) {
+            final Attempt attempt = start(false);
+            try {
+                final T result = next.send(attempt.request, attempt);
+                if (attempt.won) {
+                    future.completed(result);
+                }
+            } catch (Throwable t) {
+                failed(attempt, t);
+            }
+            return future.isDone();
+        }
+
+        /**
+         * Sends the second request from the filter's pool, unless it is busy
+         */
+        void launch(final HttpTransport next) {
+            final Attempt attempt = start(true);
+            if (attempt == null) {
+                return;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            final T result = next.send(attempt.request, attempt);
+                            if (attempt.won) {
+                                future.completed(result);
+                            }
+                        } catch (Throwable t) {
+                            failed(attempt, t);
+                        }
+                    }
+                });
+                hedgedRequests.incrementAndGet();
+            } catch (RejectedExecutionException e) {
+                withdraw();
+            }
+        }
+
+        void launchAsync(AsyncHttpTransport next, boolean hedge) {
+            final Attempt attempt = start(hedge);
+            if (attempt == null) {
+                return;
+            }
+            if (hedge) {
+                hedgedRequests.incrementAndGet();
+            }
+            next.sendAsync(attempt.request, attempt, new HttpCallback<T>() {
+                @Override
+                public void completed(T result) {
+                    if (attempt.won) {
+                        future.completed(result);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable failure) {
+                    Race.this.failed(attempt, failure);
+                }
+            });
+        }
+
+        private Attempt start(boolean hedge) {
+            if (hedge && (claimed.get() || future.isDone())) {
+                return null;
+            }
+            outstanding.incrementAndGet();
+            final Attempt attempt = new Attempt(request.fork(), hedge);
+            attempts.add(attempt);
+            //The race may have been won while this one was being set up
+            if (claimed.get()) {
+                attempt.request.abort();
+            }
+            return attempt;
+        }
+
+        private void failed(Attempt attempt, Throwable failure) {
+            if (attempt.won) {
+                future.failed(failure);
+                return;
+            }
+            if (this.failure == null) {
+                this.failure = failure;
+            }
+            //A losing request's failure only matters when nothing else can answer
+            withdraw();
+        }
+
+        private void withdraw() {
+            if (outstanding.decrementAndGet() == 0 && ! claimed.get()) {
+                future.failed(failure);
+            }
+        }
+
+        private void claimedBy(Attempt winner) {
+            for (Attempt attempt: attempts) {
+                if (attempt != winner) {
+                    attempt.request.abort();
+                }
+            }
+        }
+
+        private class Attempt implements HttpResponseHandler<T> {
+            private final HttpRequest request;
+            private final boolean hedge;
+            private final long started = System.nanoTime();
+            private volatile boolean won = false;
+
+            Attempt(HttpRequest request, boolean hedge) {
+                this.request = request;
+                this.hedge = hedge;
+            }
+
+            @Override
+            public T handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+                record(request.getOperation(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                if ( ! claimed.compareAndSet(false, true)) {
+                    return null;
+                }
+                won = true;
+                claimedBy(this);
+                if (hedge) {
+                    hedgeWins.incrementAndGet();
+                }
+                return handler.handleInput(responseCode, input, connection);
+            }
+        }
+    }
+
+    /**
+     * The most recent response times of an operation
+     */
+    private static final class LatencyWindow {
+        private final long[] samples;
+        private int next = 0;
+        private int count = 0;
+
+        LatencyWindow(int size) {
+            samples = new long[Math.max(1, size)];
+        }
+
+        synchronized void add(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        long percentile(double percentile, int minimumSamples) {
+            final long[] sorted;
+            synchronized (this) {
+                if (count < Math.max(1, minimumSamples)) {
+                    return -1;
+                }
+                sorted = Arrays.copyOf(samples, count);
+            }
+            Arrays.sort(sorted);
+            final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keep-alive connection pool used by {@link SimpleHttpClientImpl}.
+ * <p>
+ * Connections are kept per route (scheme, host and port). The number of connections leased for a route is bounded
+ * by <code>maxPerRoute</code>; callers wait up to <code>leaseTimeout</code> for a free slot. Idle connections are
+ * evicted once they have been unused for longer than <code>idleTimeout</code> and are checked for staleness before
+ * being reused if they have been idle for longer than <code>validateAfterInactivity</code>.
+ */
+public class HttpConnectionPool {
+
+    /**
+     * Snapshot of pool occupancy
+     */
+    public static class Stats {
+        private final int leased;
+        private final int idle;
+        private final int pending;
+        private final int max;
+
+        Stats(int leased, int idle, int pending, int max) {
+            this.leased = leased;
+            this.idle = idle;
+            this.pending = pending;
+            this.max = max;
+        }
+
+        public int getLeased() {
+            return leased;
+        }
+
+        public int getIdle() {
+            return idle;
+        }
+
+        public int getPending() {
+            return pending;
+        }
+
+        public int getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats [leased=" + leased + ", idle=" + idle + ", pending=" + pending + ", max=" + max + "]";
+        }
+    }
+
+    private final class RoutePool {
+        private final String route;
+        private final Semaphore permits = new Semaphore(maxPerRoute, true);
+        private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        RoutePool(String route) {
+            this.route = route;
+        }
+
+        synchronized PooledConnection pollIdle() {
+            return idle.pollFirst();
+        }
+
+        synchronized void pushIdle(PooledConnection connection) {
+            idle.addFirst(connection);
+        }
+
+        synchronized int idleCount() {
+            return idle.size();
+        }
+
+        /**
+         * Remove idle connections which have expired. The least recently used ones are at the tail.
+         */
+        void evictExpired(long now) {
+            final List<PooledConnection> expired = new ArrayList<PooledConnection>();
+            synchronized (this) {
+                while ( ! idle.isEmpty() && now - idle.peekLast().getLastUsed() > idleTimeout) {
+                    expired.add(idle.pollLast());
+                }
+            }
+            for (PooledConnection connection: expired) {
+                connection.close();
+                evicted.incrementAndGet();
+            }
+        }
+
+        synchronized List<PooledConnection> drain() {
+            final List<PooledConnection> drained = new ArrayList<PooledConnection>(idle);
+            idle.clear();
+            return drained;
+        }
+
+        Stats stats() {
+            final int idleCount = idleCount();
+            return new Stats(maxPerRoute - permits.availablePermits(), idleCount, pending.get(), maxPerRoute);
+        }
+    }
+
+    private static final HttpConnectionPool DEFAULT = new HttpConnectionPool();
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final ConcurrentMap<String, RoutePool> routes = new ConcurrentHashMap<String, RoutePool>();
+    private final int maxPerRoute;
+    private long idleTimeout = 30*1000;
+    private long validateAfterInactivity = 2*1000;
+    private long leaseTimeout = 30*1000;
+    private int connectTimeout = 0;
+    private volatile boolean shutdown = false;
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+
+    public HttpConnectionPool() {
+        this(20);
+    }
+
+    public HttpConnectionPool(int maxPerRoute) {
+        if (maxPerRoute < 1) {
+            throw new IllegalArgumentException("maxPerRoute must be positive: " + maxPerRoute);
+        }
+        this.maxPerRoute = maxPerRoute;
+    }
+
+    /**
+     * @return the pool shared by clients that are not given one of their own. Such clients are seldom shut down, so
+     *         sharing keeps them from each holding on to connections. Shutting it down only closes its idle
+     *         connections.
+     */
+    public static HttpConnectionPool getDefault() {
+        return DEFAULT;
+    }
+
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @param idleTimeout milliseconds an unused connection is kept open
+     */
+    public HttpConnectionPool setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    public long getValidateAfterInactivity() {
+        return validateAfterInactivity;
+    }
+
+    /**
+     * @param validateAfterInactivity milliseconds a connection may be idle before it is checked for staleness on
+     *            reuse
+     */
+    public HttpConnectionPool setValidateAfterInactivity(long validateAfterInactivity) {
+        this.validateAfterInactivity = validateAfterInactivity;
+        return this;
+    }
+
+    public long getLeaseTimeout() {
+        return leaseTimeout;
+    }
+
+    /**
+     * @param leaseTimeout milliseconds to wait for a free connection when the route is at <code>maxPerRoute</code>
+     */
+    public HttpConnectionPool setLeaseTimeout(long leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+        return this;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @param connectTimeout milliseconds to wait for a new connection to be established. 0 means no timeout
+     */
+    public HttpConnectionPool setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    PooledConnection lease(URL url) throws IOException {
+        return lease(url, leaseTimeout, connectTimeout);
+    }
+
+    /**
+     * @param maxWait milliseconds to wait for a free connection, capped by the lease timeout
+     * @param connectTimeout milliseconds to wait when a new connection has to be opened. 0 uses the pool's setting.
+     */
+    PooledConnection lease(URL url, long maxWait, int connectTimeout) throws IOException {
+        if (shutdown) {
+            throw new IllegalStateException("Connection pool has been shut down");
+        }
+        final String route = route(url);
+        final RoutePool routePool = routePool(route);
+        final long now = System.currentTimeMillis();
+        evictExpired(now);
+        routePool.pending.incrementAndGet();
+        try {
+            if ( ! routePool.permits.tryAcquire(Math.min(maxWait, leaseTimeout), TimeUnit.MILLISECONDS)) {
+                throw new IOException(String.format("Timeout waiting for a connection to %s (%s)", route,
+                                                    routePool.stats()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + route, e);
+        } finally {
+            routePool.pending.decrementAndGet();
+        }
+        try {
+            PooledConnection connection;
+            while ((connection = routePool.pollIdle()) != null) {
+                if (now - connection.getLastUsed() > validateAfterInactivity && connection.isStale()) {
+                    stale.incrementAndGet();
+                    connection.close();
+                } else {
+                    reused.incrementAndGet();
+                    connection.touch();
+                    return connection;
+                }
+            }
+            connection = connect(route, url, connectTimeout > 0 ? connectTimeout : this.connectTimeout);
+            created.incrementAndGet();
+            connection.touch();
+            return connection;
+        } catch (IOException e) {
+            routePool.permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            routePool.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hand a connection back to the pool.
+     * 
+     * @param reusable <code>false</code> if the connection must be closed, e.g. because the response was not fully
+     *            read or the server asked for the connection to be closed
+     */
+    void release(PooledConnection connection, boolean reusable) {
+        final RoutePool routePool = routePool(connection.getRoute());
+        try {
+            if (reusable && ! shutdown) {
+                connection.touch();
+                routePool.pushIdle(connection);
+            } else {
+                connection.close();
+            }
+        } finally {
+            routePool.permits.release();
+        }
+    }
+
+    /**
+     * Close connections which have been idle for longer than the idle timeout
+     */
+    public void evictExpired() {
+        evictExpired(System.currentTimeMillis());
+    }
+
+    private void evictExpired(long now) {
+        for (RoutePool routePool: routes.values()) {
+            routePool.evictExpired(now);
+        }
+    }
+
+    /**
+     * Close all idle connections and refuse new leases. Leased connections are closed when they are released.
+     */
+    public void shutdown() {
+        if (this != DEFAULT) {
+            shutdown = true;
+        }
+        for (RoutePool routePool: routes.values()) {
+            for (PooledConnection connection: routePool.drain()) {
+                connection.close();
+            }
+        }
+    }
+
+    public Stats getTotalStats() {
+        int leased = 0, idle = 0, pending = 0, max = 0;
+        for (RoutePool routePool: routes.values()) {
+            final Stats stats = routePool.stats();
+            leased += stats.getLeased();
+            idle += stats.getIdle();
+            pending += stats.getPending();
+            max += stats.getMax();
+        }
+        return new Stats(leased, idle, pending, max);
+    }
+
+    public Map<String, Stats> getRouteStats() {
+        final Map<String, Stats> stats = new TreeMap<String, Stats>();
+        for (Entry<String, RoutePool> entry: routes.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().stats());
+        }
+        return stats;
+    }
+
+    /**
+     * @return number of connections opened by this pool
+     */
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * @return number of times an idle connection was handed out again
+     */
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    /**
+     * @return number of idle connections closed because of the idle timeout
+     */
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    /**
+     * @return number of idle connections found to be closed by the server
+     */
+    public long getStaleCount() {
+        return stale.get();
+    }
+
+    private RoutePool routePool(String route) {
+        RoutePool routePool = routes.get(route);
+        if (routePool == null) {
+            final RoutePool newPool = new RoutePool(route);
+            routePool = routes.putIfAbsent(route, newPool);
+            if (routePool == null) {
+                routePool = newPool;
+            }
+        }
+        return routePool;
+    }
+
+    private PooledConnection connect(String route, URL url, int connectTimeout) throws IOException {
+        final String host = url.getHost();
+        final int port = port(url);
+        log.debug("Opening connection to {}", route);
+        final Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            if ("https".equalsIgnoreCase(url.getProtocol())) {
+                final SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                        .createSocket(socket, host, port, true);
+                final SSLParameters parameters = sslSocket.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(parameters);
+                sslSocket.startHandshake();
+                return new PooledConnection(route, sslSocket);
+            }
+            return new PooledConnection(route, socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    static int port(URL url) {
+        return url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+    }
+
+    static String route(URL url) {
+        return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port(url);
+    }
+
+    @Override
+    public String toString() {
+        return "HttpConnectionPool [maxPerRoute=" + maxPerRoute + ", " + getTotalStats() + "]";
+    }
+}
@@ -0,0 +1,181 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A request body. Bodies of unknown length are sent with chunked transfer encoding, so they never have to be held in
+ * memory as a whole.
+ */
+public abstract class HttpContent {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes a body straight into the connection, e.g. a JSON serializer
+     */
+    public interface Writer {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * @return length in bytes or -1 if not known up front
+     */
+    public abstract long getLength();
+
+    /**
+     * Write the body. Implementations must not close the stream.
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * @return <code>true</code> if {@link #writeTo(OutputStream)} can be called more than once
+     */
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    /**
+     * @return the body if it is already held in memory, otherwise <code>null</code>
+     */
+    byte[] getBytes() {
+        return null;
+    }
+
+    /**
+     * @return the body as bytes, buffering it if needed
+     */
+    byte[] toByteArray() throws IOException {
+        final byte bytes[] = getBytes();
+        if (bytes != null) {
+            return bytes;
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(getLength() > 0 ? (int) getLength() : 1024);
+        writeTo(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the string encoded as UTF-8 or <code>null</code> if <code>content</code> is <code>null</code>
+     */
+    public static HttpContent of(String content) {
+        return content == null ? null : of(content.getBytes(UTF8));
+    }
+
+    public static HttpContent of(final byte[] content) {
+        return new HttpContent() {
+            @Override
+            public long getLength() {
+                return content.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(content);
+            }
+
+            @Override
+            byte[] getBytes() {
+                return content;
+            }
+        };
+    }
+
+    /**
+     * The stream is read once, and closed when the body has been written.
+     * 
+     * @param length number of bytes in the stream or -1 if unknown
+     */
+    public static HttpContent of(final InputStream content, final long length) {
+        return new HttpContent() {
+            @Override
+            public long getLength() {
+                return length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                try {
+                    final byte buffer[] = new byte[8192];
+                    int read;
+                    while ((read = content.read(buffer)) >= 0) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    content.close();
+                }
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The file is streamed from disk with a <code>Content-Length</code>, and read again if the request is resent.
+     */
+    public static HttpContent of(final Path file) throws IOException {
+        final long length = Files.size(file);
+        return new HttpContent() {
+            @Override
+            public long getLength() {
+                return length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                Files.copy(file, out);
+            }
+        };
+    }
+
+    /**
+     * Body of unknown length produced by the writer. The writer may be called again if the request is resent.
+     */
+    public static HttpContent of(final Writer writer) {
+        return new HttpContent() {
+            @Override
+            public long getLength() {
+                return -1;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                writer.writeTo(out);
+            }
+        };
+    }
+}
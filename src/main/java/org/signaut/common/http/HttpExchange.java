@@ -0,0 +1,533 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * One HTTP/1.1 request/response exchange over a {@link PooledConnection}.
+ * <p>
+ * The response body is framed by <code>Content-Length</code>, chunked transfer encoding or end of stream. Closing the
+ * body reads whatever the handler left behind so the connection can be handed back to the pool, as long as that is
+ * a short fixed length body or already received. A streaming body, such as a continuous <code>_changes</code> feed,
+ * may never end, so rather than wait for it the connection is not reused.
+ */
+final class HttpExchange {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int MAX_LINE_LENGTH = 64*1024;
+    //Most bytes read and thrown away to keep a connection
+    private static final int MAX_DRAIN = 64*1024;
+
+    private final PooledConnection connection;
+    private final String method;
+    private final URL url;
+    private boolean responseStarted = false;
+    private boolean keepAlive = false;
+    private ResponseBody body;
+
+    HttpExchange(PooledConnection connection, String method, URL url) {
+        this.connection = connection;
+        this.method = method;
+        this.url = url;
+    }
+
+    HttpResponseConnection execute(HttpContent content, Map<String, String> headers) throws IOException {
+        writeRequest(content, headers);
+        return readResponse();
+    }
+
+    /**
+     * @return <code>true</code> once the status line of the response has been received. Until then a failure on a
+     *         reused connection means the server closed it while it was idle and the request can safely be resent.
+     */
+    boolean isResponseStarted() {
+        return responseStarted;
+    }
+
+    /**
+     * Consume the rest of the response body.
+     * 
+     * @return <code>true</code> if the connection may be reused
+     */
+    boolean finish() {
+        if (body == null) {
+            return false;
+        }
+        try {
+            body.close();
+        } catch (IOException e) {
+            return false;
+        }
+        return keepAlive && body.isComplete();
+    }
+
+    private void writeRequest(HttpContent content, Map<String, String> headers) throws IOException {
+        final StringBuilder head = new StringBuilder(256);
+        final String file = url.getFile();
+        head.append(method).append(' ').append(file == null || file.isEmpty() ? "/" : file).append(" HTTP/1.1\r\n");
+        boolean hostSet = false;
+        if (headers != null) {
+            for (Entry<String, String> entry: headers.entrySet()) {
+                if ("Content-Length".equalsIgnoreCase(entry.getKey())
+                        || "Transfer-Encoding".equalsIgnoreCase(entry.getKey())) {
+                    continue;
+                }
+                hostSet |= "Host".equalsIgnoreCase(entry.getKey());
+                head.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+            }
+        }
+        if ( ! hostSet) {
+            head.append("Host: ").append(url.getHost());
+            if (url.getPort() >= 0 && url.getPort() != url.getDefaultPort()) {
+                head.append(':').append(url.getPort());
+            }
+            head.append("\r\n");
+        }
+        if (content != null) {
+            if (content.getLength() >= 0) {
+                head.append("Content-Length: ").append(content.getLength()).append("\r\n");
+            } else {
+                head.append("Transfer-Encoding: chunked\r\n");
+            }
+        }
+        head.append("\r\n");
+        final OutputStream out = connection.getOutput();
+        out.write(head.toString().getBytes(ISO_8859_1));
+        if (content != null) {
+            if (content.getLength() >= 0) {
+                final FixedLengthOutputStream body = new FixedLengthOutputStream(out);
+                content.writeTo(body);
+                if (body.written != content.getLength()) {
+                    throw new IOException(String.format("Request body was %d bytes, expected %d", body.written,
+                                                        content.getLength()));
+                }
+            } else {
+                final ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+                final OutputStream body = new BufferedOutputStream(chunked, 8192);
+                content.writeTo(body);
+                body.flush();
+                chunked.finish();
+            }
+        }
+        out.flush();
+    }
+
+    private HttpResponseConnection readResponse() throws IOException {
+        final InputStream in = connection.getInput();
+        String statusLine;
+        int status;
+        String version;
+        String reason;
+        do {
+            statusLine = readLine(in);
+            if (statusLine == null) {
+                throw new IOException(String.format("No response from %s", url));
+            }
+            responseStarted = true;
+            final String tokens[] = statusLine.split(" ", 3);
+            if (tokens.length < 2 || ! tokens[0].startsWith("HTTP/")) {
+                throw new IOException(String.format("Bad status line from %s: %s", url, statusLine));
+            }
+            version = tokens[0];
+            try {
+                status = Integer.parseInt(tokens[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format("Bad status line from %s: %s", url, statusLine));
+            }
+            reason = tokens.length > 2 ? tokens[2] : "";
+            if (status >= 100 && status < 200) {
+                //Skip interim responses and their headers
+                while (readHeader(in) != null) {
+                    //Nothing to do
+                }
+            }
+        } while (status >= 100 && status < 200);
+
+        String transferEncoding = null;
+        String connectionHeader = null;
+        long contentLength = -1;
+        final HttpResponseConnection response;
+        final ResponseBodyHolder holder = new ResponseBodyHolder();
+        response = new HttpResponseConnection(url, method, status, reason, holder);
+        String header[];
+        while ((header = readHeader(in)) != null) {
+            response.addHeader(header[0], header[1]);
+            if ("Transfer-Encoding".equalsIgnoreCase(header[0])) {
+                transferEncoding = header[1];
+            } else if ("Content-Length".equalsIgnoreCase(header[0])) {
+                try {
+                    contentLength = Long.parseLong(header[1].trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException(String.format("Bad Content-Length from %s: %s", url, header[1]));
+                }
+            } else if ("Connection".equalsIgnoreCase(header[0])) {
+                connectionHeader = header[1];
+            }
+        }
+
+        if ("HTTP/1.0".equals(version)) {
+            keepAlive = connectionHeader != null && connectionHeader.toLowerCase().contains("keep-alive");
+        } else {
+            keepAlive = connectionHeader == null || ! connectionHeader.toLowerCase().contains("close");
+        }
+
+        if ("HEAD".equals(method) || status == 204 || status == 304) {
+            body = new FixedLengthBody(in, 0);
+        } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            body = new ChunkedBody(in);
+        } else if (contentLength >= 0) {
+            body = new FixedLengthBody(in, contentLength);
+        } else {
+            body = new UntilCloseBody(in);
+            keepAlive = false;
+        }
+        holder.body = body;
+        return response;
+    }
+
+    private static String[] readHeader(InputStream in) throws IOException {
+        final String line = readLine(in);
+        if (line == null) {
+            throw new IOException("Connection closed while reading headers");
+        }
+        if (line.isEmpty()) {
+            return null;
+        }
+        final int colon = line.indexOf(':');
+        if (colon <= 0) {
+            throw new IOException("Bad header: " + line);
+        }
+        return new String[] { line.substring(0, colon).trim(), line.substring(colon + 1).trim() };
+    }
+
+    /**
+     * Read a CRLF (or LF) terminated line.
+     * 
+     * @return the line without terminator or <code>null</code> if the stream ended before any byte was read
+     */
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                final byte bytes[] = line.toByteArray();
+                final int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, ISO_8859_1);
+            }
+            line.write(b);
+            if (line.size() > MAX_LINE_LENGTH) {
+                throw new IOException("Line too long");
+            }
+        }
+        if (line.size() == 0) {
+            return null;
+        }
+        throw new IOException("Connection closed in the middle of a line");
+    }
+
+    /**
+     * Counts what is written and keeps the connection open if the writer closes the stream
+     */
+    private static final class FixedLengthOutputStream extends FilterOutputStream {
+        private long written = 0;
+
+        FixedLengthOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Writes each buffer as one chunk. Closing it does not close the connection.
+     */
+    private static final class ChunkedOutputStream extends FilterOutputStream {
+        private boolean finished = false;
+
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                throw new IOException("Request body already finished");
+            }
+            if (len == 0) {
+                return;
+            }
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(ISO_8859_1));
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        void finish() throws IOException {
+            if ( ! finished) {
+                finished = true;
+                out.write('0');
+                out.write('\r');
+                out.write('\n');
+                out.write('\r');
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * The body stream is needed when the response object is created, but the framing is only known after the headers
+     * have been read.
+     */
+    private static final class ResponseBodyHolder extends InputStream {
+        private ResponseBody body;
+
+        @Override
+        public int read() throws IOException {
+            return body.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return body.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return body.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+
+    private static abstract class ResponseBody extends InputStream {
+        protected final InputStream in;
+        protected boolean complete = false;
+        protected boolean closed = false;
+
+        ResponseBody(InputStream in) {
+            this.in = in;
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte b[] = new byte[1];
+            final int read = read(b, 0, 1);
+            return read < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if ( ! closed) {
+                closed = true;
+                drain();
+            }
+        }
+
+        /**
+         * Discard what has been received already. Waiting for more might mean waiting forever.
+         */
+        protected void drain() throws IOException {
+            final byte buffer[] = new byte[4096];
+            long drained = 0;
+            while ( ! complete && drained < MAX_DRAIN && in.available() > 0) {
+                final int read = read(buffer, 0, buffer.length);
+                if (read < 0) {
+                    break;
+                }
+                drained += read;
+            }
+        }
+    }
+
+    private static final class FixedLengthBody extends ResponseBody {
+        private long remaining;
+
+        FixedLengthBody(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+            this.complete = length == 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                complete = true;
+                return -1;
+            }
+            final int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read < 0) {
+                throw new IOException("Premature end of response body");
+            }
+            remaining -= read;
+            complete = remaining == 0;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        /**
+         * The end of a short body is near, so it is worth waiting for
+         */
+        @Override
+        protected void drain() throws IOException {
+            if (remaining > MAX_DRAIN) {
+                return;
+            }
+            final byte buffer[] = new byte[4096];
+            while (read(buffer, 0, buffer.length) >= 0) {
+                //Discard
+            }
+        }
+    }
+
+    private static final class ChunkedBody extends ResponseBody {
+        private long chunkRemaining = 0;
+
+        ChunkedBody(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (complete) {
+                return -1;
+            }
+            if (chunkRemaining == 0) {
+                chunkRemaining = nextChunkSize();
+                if (chunkRemaining == 0) {
+                    //Last chunk: skip trailers
+                    while (readHeader(in) != null) {
+                        //Nothing to do
+                    }
+                    complete = true;
+                    return -1;
+                }
+            }
+            final int read = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (read < 0) {
+                throw new IOException("Premature end of chunked response body");
+            }
+            chunkRemaining -= read;
+            if (chunkRemaining == 0) {
+                final String line = readLine(in);
+                if (line == null || ! line.isEmpty()) {
+                    throw new IOException("Missing CRLF after chunk");
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), chunkRemaining);
+        }
+
+        private long nextChunkSize() throws IOException {
+            final String line = readLine(in);
+            if (line == null) {
+                throw new IOException("Premature end of chunked response body");
+            }
+            final int extension = line.indexOf(';');
+            try {
+                return Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size: " + line);
+            }
+        }
+    }
+
+    private static final class UntilCloseBody extends ResponseBody {
+        UntilCloseBody(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = in.read(b, off, len);
+            if (read < 0) {
+                complete = true;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            //The connection is not reusable anyway, so don't wait for the server to close it
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link Future} completed by whoever holds it as a {@link HttpCallback}. Completion is forwarded to an optional
+ * callback on the completing thread.
+ */
+public class HttpFuture<T> implements Future<T>, HttpCallback<T> {
+    private static final Logger log = LoggerFactory.getLogger(HttpFuture.class);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicBoolean completing = new AtomicBoolean();
+    private final HttpCallback<T> callback;
+    private volatile T result;
+    private volatile Throwable failure;
+    private volatile boolean cancelled = false;
+
+    public HttpFuture() {
+        this(null);
+    }
+
+    /**
+     * @param callback notified when this future completes. May be <code>null</code>
+     */
+    public HttpFuture(HttpCallback<T> callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public void completed(T result) {
+        if (completing.compareAndSet(false, true)) {
+            this.result = result;
+            done.countDown();
+            if (callback != null) {
+                try {
+                    callback.completed(result);
+                } catch (RuntimeException e) {
+                    log.warn("Callback failed", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void failed(Throwable failure) {
+        if (completing.compareAndSet(false, true)) {
+            this.failure = failure;
+            done.countDown();
+            if (callback != null) {
+                try {
+                    callback.failed(failure);
+                } catch (RuntimeException e) {
+                    log.warn("Callback failed", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (completing.get()) {
+            return false;
+        }
+        cancelled = true;
+        failed(new CancellationException());
+        return isCancelled();
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled && failure instanceof CancellationException;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if ( ! done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if (failure != null) {
+            if (isCancelled()) {
+                throw (CancellationException) failure;
+            }
+            throw new ExecutionException(failure);
+        }
+        return result;
+    }
+
+    /**
+     * Wait for the result, turning failures into runtime exceptions for synchronous callers
+     */
+    public T join() {
+        try {
+            return get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for response", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -0,0 +1,484 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Request metrics kept per endpoint, i.e. method and URL template. Path segments starting with an underscore are
+ * kept as they are, the others are replaced by a placeholder, so <code>GET /apps/_changes?since=4</code> and
+ * <code>GET /apps/site/site.war</code> are recorded as <code>GET /{db}/_changes</code> and
+ * <code>GET /{db}/{doc}/{attachment}</code>.
+ * <p>
+ * Requests slower than the slow request threshold are logged, at most once per log interval. The requests not logged
+ * in the meantime are summed up in the next log line.
+ */
+public class HttpMetrics implements HttpMetricsMBean {
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+    /** Endpoints seen per operation, so a request's endpoint is found without building its template */
+    private final ConcurrentMap<String, CopyOnWriteArrayList<Endpoint>> operationEndpoints =
+            new ConcurrentHashMap<String, CopyOnWriteArrayList<Endpoint>>();
+    private volatile long slowRequestThreshold = 0;
+    private volatile long slowRequestLogInterval = 1000;
+    private final AtomicLong slowRequests = new AtomicLong();
+    private final AtomicLong nextSlowLog = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong slowNotLogged = new AtomicLong();
+
+    public static final class Endpoint {
+        private final String method;
+        private final String template;
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLongArray statusCodes = new AtomicLongArray(600);
+        private final AtomicLong errors = new AtomicLong();
+
+        Endpoint(String method, String template) {
+            this.method = method;
+            this.template = template;
+            this.name = method + " " + template;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getBytesIn() {
+            return bytesIn.get();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.get();
+        }
+
+        /**
+         * @param statusClass 1 to 5 for 1xx to 5xx
+         */
+        public long getStatusCount(int statusClass) {
+            if (statusClass < 1 || statusClass > 5) {
+                return 0;
+            }
+            long count = 0;
+            for (int i = statusClass * 100; i < statusClass * 100 + 100; i++) {
+                count += statusCodes.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * @param statusCode response code, e.g. 409 for a conflict
+         */
+        public long getStatusCodeCount(int statusCode) {
+            return statusCode >= 100 && statusCode < 600 ? statusCodes.get(statusCode) : 0;
+        }
+
+        /**
+         * @return responses per status code, leaving out the codes not seen
+         */
+        public SortedMap<Integer, Long> getStatusCodeCounts() {
+            final SortedMap<Integer, Long> counts = new TreeMap<Integer, Long>();
+            addStatusCodeCounts(counts);
+            return counts;
+        }
+
+        void addStatusCodeCounts(Map<Integer, Long> counts) {
+            for (int i = 100; i < statusCodes.length(); i++) {
+                final long count = statusCodes.get(i);
+                if (count > 0) {
+                    final Long counted = counts.get(i);
+                    counts.put(i, counted == null ? count : counted + count);
+                }
+            }
+        }
+
+        /**
+         * @return requests failing without a response, or with the handler throwing
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        void reset() {
+            latency.reset();
+            bytesIn.set(0);
+            bytesOut.set(0);
+            for (int i = 0; i < statusCodes.length(); i++) {
+                statusCodes.set(i, 0);
+            }
+            errors.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return name + ": count=" + latency.getCount() + " mean=" + latency.getMean() + "us p50="
+                   + latency.getPercentile(50) + "us p95=" + latency.getPercentile(95) + "us p99="
+                   + latency.getPercentile(99) + "us max=" + latency.getMax() + "us in=" + bytesIn + " out="
+                   + bytesOut + " status=" + getStatusCodeCounts() + " errors=" + errors;
+        }
+    }
+
+    /**
+     * @param statusCode the response code or 0 if there was no response
+     * @param failure what went wrong or <code>null</code>
+     */
+    public void record(HttpRequest request, int statusCode, long nanos, long bytesIn, long bytesOut,
+                       Throwable failure) {
+        final Endpoint endpoint = endpoint(request);
+        endpoint.latency.record(nanos, TimeUnit.NANOSECONDS);
+        endpoint.bytesIn.addAndGet(bytesIn);
+        endpoint.bytesOut.addAndGet(bytesOut);
+        if (statusCode >= 100 && statusCode < 600) {
+            endpoint.statusCodes.incrementAndGet(statusCode);
+        }
+        if (failure != null) {
+            endpoint.errors.incrementAndGet();
+        }
+        final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (slowRequestThreshold > 0 && millis >= slowRequestThreshold) {
+            slowRequests.incrementAndGet();
+            logSlowRequest(request, statusCode, millis, failure);
+        }
+    }
+
+    private void logSlowRequest(HttpRequest request, int statusCode, long millis, Throwable failure) {
+        final long now = System.nanoTime();
+        final long next = nextSlowLog.get();
+        if (now - next < 0 && next != Long.MIN_VALUE
+            || !nextSlowLog.compareAndSet(next, now + TimeUnit.MILLISECONDS.toNanos(slowRequestLogInterval))) {
+            slowNotLogged.incrementAndGet();
+            return;
+        }
+        log.warn("Slow request: {} {} took {} ms (status {}, operation {}{}){}",
+                 request.getMethod(), stripQuery(request.getUrl()), millis, statusCode, request.getOperation(),
+                 failure == null ? "" : ", " + failure, notLogged());
+    }
+
+    private String notLogged() {
+        final long skipped = slowNotLogged.getAndSet(0);
+        return skipped == 0 ? "" : " - " + skipped + " more slow requests since the last one logged";
+    }
+
+    private static String stripQuery(URL url) {
+        return url.getProtocol() + "://" + url.getAuthority() + url.getPath();
+    }
+
+    /**
+     * @return the endpoint of a request, created on first use
+     */
+    public Endpoint endpoint(HttpRequest request) {
+        final String operation = request.getOperation() == null ? "" : request.getOperation();
+        final String path = request.getUrl().getPath();
+        CopyOnWriteArrayList<Endpoint> candidates = operationEndpoints.get(operation);
+        if (candidates != null) {
+            //Few templates per operation, and checking one does not build it
+            for (int i = 0; i < candidates.size(); i++) {
+                final Endpoint candidate = candidates.get(i);
+                if (candidate.method.equals(request.getMethod()) && hasTemplate(path, candidate.template)) {
+                    return candidate;
+                }
+            }
+        } else {
+            final CopyOnWriteArrayList<Endpoint> created = new CopyOnWriteArrayList<Endpoint>();
+            candidates = operationEndpoints.putIfAbsent(operation, created);
+            if (candidates == null) {
+                candidates = created;
+            }
+        }
+        final String template = template(path);
+        final String name = request.getMethod() + " " + template;
+        Endpoint endpoint = endpoints.get(name);
+        if (endpoint == null) {
+            final Endpoint created = new Endpoint(request.getMethod(), template);
+            endpoint = endpoints.putIfAbsent(name, created);
+            if (endpoint == null) {
+                endpoint = created;
+            }
+        }
+        candidates.addIfAbsent(endpoint);
+        return endpoint;
+    }
+
+    public Map<String, Endpoint> getEndpointMetrics() {
+        return endpoints;
+    }
+
+    static String template(String path) {
+        final StringBuilder template = new StringBuilder();
+        template(path, template, null);
+        return template.length() == 0 ? "/" : template.toString();
+    }
+
+    /**
+     * @return whether {@link #template(String)} of the path is <code>template</code>, found without building it
+     */
+    static boolean hasTemplate(String path, String template) {
+        final int length = template(path, null, template);
+        return length == template.length() || length == 0 && "/".equals(template);
+    }
+
+    /**
+     * Builds the template of the path into <code>out</code>, or compares it with <code>expected</code> as it goes if
+     * <code>out</code> is <code>null</code>
+     * 
+     * @return length of the template, -1 if it is not the one expected
+     */
+    private static int template(String path, StringBuilder out, String expected) {
+        //A lone underscore segment is a server resource like /_session, the first of several is a database
+        final boolean lone = isLoneSegment(path);
+        int length = 0;
+        int position = 0;
+        int previousStart = -1;
+        int previousEnd = -1;
+        for (int start = 0; start < path.length() && length >= 0;) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > start) {
+                length = append(out, expected, length, "/", 0, 1);
+                if (path.charAt(start) == '_' && (position > 0 || lone)) {
+                    length = append(out, expected, length, path, start, end);
+                } else if (position == 0) {
+                    length = append(out, expected, length, "{db}");
+                } else if (position == 1 || isSegment(path, previousStart, previousEnd, "_local")) {
+                    length = append(out, expected, length, "{doc}");
+                } else if (isSegment(path, previousStart, previousEnd, "_design")) {
+                    length = append(out, expected, length, "{ddoc}");
+                } else if (path.charAt(previousStart) == '_') {
+                    length = append(out, expected, length, "{name}");
+                } else {
+                    //Attachment names may contain slashes
+                    return append(out, expected, length, "{attachment}");
+                }
+                previousStart = start;
+                previousEnd = end;
+                position++;
+            }
+            start = end + 1;
+        }
+        return length;
+    }
+
+    /**
+     * @return whether the path, trailing slashes aside, has a single slash, i.e. splits into a single segment after
+     *         the leading empty one
+     */
+    private static boolean isLoneSegment(String path) {
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        final int slash = path.indexOf('/');
+        return slash >= 0 && slash < end && path.lastIndexOf('/', end - 1) == slash;
+    }
+
+    private static boolean isSegment(String path, int start, int end, String segment) {
+        return end - start == segment.length() && path.startsWith(segment, start);
+    }
+
+    private static int append(StringBuilder out, String expected, int length, String part) {
+        return append(out, expected, length, part, 0, part.length());
+    }
+
+    private static int append(StringBuilder out, String expected, int length, String source, int start, int end) {
+        if (length < 0) {
+            return length;
+        }
+        if (out != null) {
+            out.append(source, start, end);
+        } else if ( ! expected.regionMatches(length, source, start, end - start)) {
+            return -1;
+        }
+        return length + end - start;
+    }
+
+    @Override
+    public long getRequests() {
+        long requests = 0;
+        for (Endpoint endpoint: endpoints.values()) {
+            requests += endpoint.latency.getCount();
+        }
+        return requests;
+    }
+
+    @Override
+    public long getErrors() {
+        long errors = 0;
+        for (Endpoint endpoint: endpoints.values()) {
+            errors += endpoint.getErrors();
+        }
+        return errors;
+    }
+
+    @Override
+    public long getBytesIn() {
+        long bytes = 0;
+        for (Endpoint endpoint: endpoints.values()) {
+            bytes += endpoint.getBytesIn();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getBytesOut() {
+        long bytes = 0;
+        for (Endpoint endpoint: endpoints.values()) {
+            bytes += endpoint.getBytesOut();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getSlowRequests() {
+        return slowRequests.get();
+    }
+
+    @Override
+    public long getSlowRequestThreshold() {
+        return slowRequestThreshold;
+    }
+
+    /**
+     * @param slowRequestThreshold milliseconds. Slower requests are logged. 0 disables it.
+     */
+    @Override
+    public void setSlowRequestThreshold(long slowRequestThreshold) {
+        this.slowRequestThreshold = slowRequestThreshold;
+    }
+
+    public HttpMetrics slowRequestThreshold(long slowRequestThreshold) {
+        setSlowRequestThreshold(slowRequestThreshold);
+        return this;
+    }
+
+    public long getSlowRequestLogInterval() {
+        return slowRequestLogInterval;
+    }
+
+    /**
+     * @param slowRequestLogInterval minimum number of milliseconds between two slow request log lines
+     */
+    public HttpMetrics setSlowRequestLogInterval(long slowRequestLogInterval) {
+        this.slowRequestLogInterval = slowRequestLogInterval;
+        return this;
+    }
+
+    @Override
+    public String[] getEndpoints() {
+        final List<String> lines = new ArrayList<String>();
+        for (Endpoint endpoint: endpoints.values()) {
+            lines.add(endpoint.toString());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public long percentile(String endpoint, double percentile) {
+        final Endpoint metrics = endpoints.get(endpoint);
+        return metrics == null ? 0 : metrics.latency.getPercentile(percentile);
+    }
+
+    @Override
+    public SortedMap<Integer, Long> getStatusCodeCounts() {
+        final SortedMap<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (Endpoint endpoint: endpoints.values()) {
+            endpoint.addStatusCodeCounts(counts);
+        }
+        return counts;
+    }
+
+    @Override
+    public long statusCodeCount(String endpoint, int statusCode) {
+        final Endpoint metrics = endpoints.get(endpoint);
+        return metrics == null ? 0 : metrics.getStatusCodeCount(statusCode);
+    }
+
+    @Override
+    public void reset() {
+        for (Endpoint endpoint: endpoints.values()) {
+            endpoint.reset();
+        }
+        slowRequests.set(0);
+    }
+
+    /**
+     * Register with a JMX server, e.g. {@link java.lang.management.ManagementFactory#getPlatformMBeanServer()}
+     */
+    public ObjectName register(MBeanServer server, String name) {
+        try {
+            final ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Could not register " + name, e);
+        }
+    }
+
+    public static void unregister(MBeanServer server, ObjectName name) {
+        try {
+            if (name != null && server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Could not unregister " + name, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HttpMetrics [requests=" + getRequests() + ", errors=" + getErrors() + ", slowRequests="
+               + getSlowRequests() + ", statusCodes=" + getStatusCodeCounts() + "]";
+    }
+}
@@ -0,0 +1,72 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.util.SortedMap;
+
+/**
+ * JMX view of {@link HttpMetrics}
+ */
+public interface HttpMetricsMBean {
+    long getRequests();
+
+    long getErrors();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getSlowRequests();
+
+    long getSlowRequestThreshold();
+
+    void setSlowRequestThreshold(long slowRequestThreshold);
+
+    /**
+     * @return one line per endpoint with latency percentiles, bytes and status counts
+     */
+    String[] getEndpoints();
+
+    /**
+     * @return the latency percentile in microseconds of an endpoint as listed by {@link #getEndpoints()}, e.g.
+     *         <code>GET /{db}/_changes</code>
+     */
+    long percentile(String endpoint, double percentile);
+
+    /**
+     * @return responses per status code over all endpoints
+     */
+    SortedMap<Integer, Long> getStatusCodeCounts();
+
+    /**
+     * @return the number of responses with the status code for an endpoint as listed by {@link #getEndpoints()}
+     */
+    long statusCodeCount(String endpoint, int statusCode);
+
+    void reset();
+}
@@ -0,0 +1,338 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A request as handed to a {@link HttpTransport}
+ */
+public class HttpRequest {
+    private final String method;
+    private URL url;
+    private HttpContent content;
+    private Map<String, String> headers = Collections.emptyMap();
+    private boolean headersCopied = false;
+    private String operation;
+    private long timeout = 0;
+    private int connectTimeout = 0;
+    private int readTimeout = 0;
+    private Boolean idempotent;
+    private final long created;
+    //Shared with copies, so aborting reaches retries too
+    private Abort abort = new Abort();
+
+    public HttpRequest(String method, URL url) {
+        this(method, url, System.nanoTime());
+    }
+
+    private HttpRequest(String method, URL url, long created) {
+        this.method = method;
+        this.url = url;
+        this.created = created;
+    }
+
+    /**
+     * @return a request for the same URL sharing this request's deadline. Headers are copied on first write as usual.
+     */
+    public HttpRequest copy() {
+        final HttpRequest copy = new HttpRequest(method, url, created);
+        copy.content = content;
+        copy.headers = headers;
+        copy.operation = operation;
+        copy.timeout = timeout;
+        copy.connectTimeout = connectTimeout;
+        copy.readTimeout = readTimeout;
+        copy.idempotent = idempotent;
+        copy.abort = abort;
+        return copy;
+    }
+
+    /**
+     * @return a copy that can be aborted on its own, e.g. the request that lost a race. Aborting this request still
+     *         aborts the fork.
+     */
+    HttpRequest fork() {
+        final HttpRequest fork = copy();
+        fork.abort = new Abort();
+        if ( ! abort.add(fork.abort)) {
+            fork.abort.run();
+        }
+        return fork;
+    }
+
+    /**
+     * Cut the exchange short from another thread, e.g. to stop reading a response that never ends. The connection is
+     * closed rather than reused, and the sending thread fails. Copies of this request are aborted as well.
+     */
+    public void abort() {
+        abort.abort();
+    }
+
+    public boolean isAborted() {
+        return abort.aborted;
+    }
+
+    /**
+     * Called by transports with how to abort the exchange in progress
+     * 
+     * @return <code>false</code> if the request has been aborted already, in which case nothing is registered
+     */
+    boolean onAbort(Runnable action) {
+        return abort.add(action);
+    }
+
+    void removeOnAbort(Runnable action) {
+        abort.remove(action);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * @param url where to send the request instead, e.g. another node of the same cluster
+     */
+    public HttpRequest setUrl(URL url) {
+        this.url = url;
+        return this;
+    }
+
+    public HttpContent getContent() {
+        return content;
+    }
+
+    public HttpRequest setContent(HttpContent content) {
+        this.content = content;
+        return this;
+    }
+
+    /**
+     * @param content body encoded as UTF-8
+     */
+    public HttpRequest setContent(String content) {
+        return setContent(HttpContent.of(content));
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @param headers request headers. The map is not modified; {@link #setHeader(String, String)} works on a copy.
+     */
+    public HttpRequest setHeaders(Map<String, String> headers) {
+        this.headers = headers == null ? Collections.<String, String> emptyMap() : headers;
+        this.headersCopied = false;
+        return this;
+    }
+
+    /**
+     * @return value of the named header (case insensitive) or <code>null</code>
+     */
+    public String getHeader(String name) {
+        for (Entry<String, String> entry: headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Set or, if <code>value</code> is <code>null</code>, remove a header (case insensitive)
+     */
+    public HttpRequest setHeader(String name, String value) {
+        if ( ! headersCopied) {
+            headers = new LinkedHashMap<String, String>(headers);
+            headersCopied = true;
+        }
+        for (String key: headers.keySet()) {
+            if (key.equalsIgnoreCase(name)) {
+                headers.remove(key);
+                break;
+            }
+        }
+        if (value != null) {
+            headers.put(name, value);
+        }
+        return this;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @param operation the kind of call, e.g. one of the <code>CouchDbOperations</code>. Filters use it to pick
+     *            timeouts and other per-operation policies.
+     */
+    public HttpRequest setOperation(String operation) {
+        this.operation = operation;
+        return this;
+    }
+
+    /**
+     * @return <code>true</code> if the request may safely be sent more than once. Unless set explicitly, only GET and
+     *         HEAD requests are; a repeated PUT to CouchDB fails with a conflict rather than doing nothing.
+     */
+    public boolean isIdempotent() {
+        if (idempotent != null) {
+            return idempotent;
+        }
+        return "GET".equals(method) || "HEAD".equals(method);
+    }
+
+    public HttpRequest setIdempotent(boolean idempotent) {
+        this.idempotent = idempotent;
+        return this;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout milliseconds from the creation of this request until its response must have been handled.
+     *            0 means no deadline.
+     */
+    public HttpRequest setTimeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @param connectTimeout milliseconds to wait for a new connection. 0 means no limit besides the deadline.
+     */
+    public HttpRequest setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * @param readTimeout milliseconds a single read may block. 0 means no limit besides the deadline.
+     */
+    public HttpRequest setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * @return milliseconds left until the deadline, or {@link Long#MAX_VALUE} if there is none
+     */
+    public long getRemainingTime() {
+        if (timeout <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - created);
+    }
+
+    public boolean isExpired() {
+        return getRemainingTime() <= 0;
+    }
+
+    /**
+     * @return the connect timeout cut short by the deadline, in the <code>java.net</code> convention (0 is infinite)
+     */
+    int effectiveConnectTimeout() {
+        return bounded(connectTimeout);
+    }
+
+    /**
+     * @return the read timeout cut short by the deadline, in the <code>java.net</code> convention (0 is infinite)
+     */
+    int effectiveReadTimeout() {
+        return bounded(readTimeout);
+    }
+
+    private int bounded(int millis) {
+        final long remaining = getRemainingTime();
+        if (remaining == Long.MAX_VALUE) {
+            return millis;
+        }
+        final int left = (int) Math.max(1, Math.min(Integer.MAX_VALUE, remaining));
+        return millis > 0 ? Math.min(millis, left) : left;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + url;
+    }
+
+    private static final class Abort implements Runnable {
+        private final List<Runnable> actions = new ArrayList<Runnable>(1);
+        private volatile boolean aborted = false;
+
+        synchronized boolean add(Runnable action) {
+            if (aborted) {
+                return false;
+            }
+            actions.add(action);
+            return true;
+        }
+
+        synchronized void remove(Runnable action) {
+            actions.remove(action);
+        }
+
+        @Override
+        public void run() {
+            abort();
+        }
+
+        void abort() {
+            final List<Runnable> running;
+            synchronized (this) {
+                aborted = true;
+                running = new ArrayList<Runnable>(actions);
+            }
+            for (Runnable action: running) {
+                action.run();
+            }
+        }
+    }
+}
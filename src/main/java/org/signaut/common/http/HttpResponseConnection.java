@@ -0,0 +1,141 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A completed HTTP response presented as a {@link HttpURLConnection}, so existing
+ * {@link SimpleHttpClient.HttpResponseHandler}s can read status and headers no matter which transport carried
+ * the exchange.
+ */
+final class HttpResponseConnection extends HttpURLConnection {
+    private final List<String[]> headerList = new ArrayList<String[]>();
+    private final InputStream body;
+
+    HttpResponseConnection(URL url, String method, int responseCode, String responseMessage, InputStream body) {
+        super(url);
+        this.method = method;
+        this.responseCode = responseCode;
+        this.responseMessage = responseMessage;
+        this.body = body;
+        this.connected = true;
+    }
+
+    void addHeader(String name, String value) {
+        headerList.add(new String[] { name, value });
+    }
+
+    @Override
+    public void connect() throws IOException {
+        //Already connected
+    }
+
+    @Override
+    public void disconnect() {
+        //The transport owns the underlying connection
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() {
+        return responseMessage;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return body;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return responseCode >= 400 ? body : null;
+    }
+
+    /**
+     * @return the last value of the named header (case insensitive) like {@link HttpURLConnection} does
+     */
+    @Override
+    public String getHeaderField(String name) {
+        String value = null;
+        if (name != null) {
+            for (String[] header: headerList) {
+                if (name.equalsIgnoreCase(header[0])) {
+                    value = header[1];
+                }
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        return n >= 0 && n < headerList.size() ? headerList.get(n)[0] : null;
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        return n >= 0 && n < headerList.size() ? headerList.get(n)[1] : null;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        final Map<String, List<String>> fields = new LinkedHashMap<String, List<String>>();
+        for (String[] header: headerList) {
+            List<String> values = fields.get(header[0]);
+            if (values == null) {
+                values = new ArrayList<String>();
+                fields.put(header[0], values);
+            }
+            values.add(header[1]);
+        }
+        return Collections.unmodifiableMap(fields);
+    }
+
+    @Override
+    public String toString() {
+        return "HttpResponseConnection [" + method + " " + url + ": " + responseCode + "]";
+    }
+}
@@ -0,0 +1,61 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+/**
+ * Creates {@link HttpTransport}s by name, so the transport can be chosen from configuration
+ */
+public final class HttpTransports {
+    /** {@link PooledHttpTransport}: blocking keep-alive connection pool. The default. */
+    public static final String POOLED = "pooled";
+    /** {@link UrlConnectionTransport}: the JDK's {@link java.net.HttpURLConnection} */
+    public static final String URL_CONNECTION = "urlconnection";
+    /** {@link JettyHttpTransport}: Jetty's non-blocking HttpClient */
+    public static final String JETTY = "jetty";
+
+    private HttpTransports() {
+    }
+
+    /**
+     * @param name one of {@link #POOLED}, {@link #URL_CONNECTION} or {@link #JETTY}. <code>null</code> means
+     *            {@link #POOLED}
+     */
+    public static HttpTransport create(String name) {
+        if (name == null || POOLED.equalsIgnoreCase(name.trim())) {
+            return new PooledHttpTransport(new HttpConnectionPool());
+        }
+        if (URL_CONNECTION.equalsIgnoreCase(name.trim())) {
+            return new UrlConnectionTransport();
+        }
+        if (JETTY.equalsIgnoreCase(name.trim())) {
+            return new JettyHttpTransport();
+        }
+        throw new IllegalArgumentException(String.format("Unknown http transport: %s (expected %s, %s or %s)", name,
+                                                         POOLED, URL_CONNECTION, JETTY));
+    }
+}
@@ -0,0 +1,303 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.client.util.OutputStreamContentProvider;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.util.HttpCookieStore;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+
+/**
+ * Transport built on Jetty's {@link HttpClient} and its non-blocking connection pool. A few selector threads
+ * multiplex all connections, so thousands of requests can be in flight without holding a thread each.
+ * <p>
+ * Blocking requests stream the response body to the handler on the calling thread. Asynchronous requests buffer the
+ * body (up to <code>maxResponseLength</code> bytes) and run the handler on the client's executor when the exchange
+ * completes, so those handlers should not block.
+ */
+public class JettyHttpTransport implements AsyncHttpTransport {
+    private final HttpClient httpClient;
+    private int maxResponseLength = 16*1024*1024;
+
+    public JettyHttpTransport() {
+        this(1);
+    }
+
+    /**
+     * @param selectors number of selector threads
+     */
+    public JettyHttpTransport(int selectors) {
+        final SslContextFactory sslContextFactory = new SslContextFactory(false);
+        sslContextFactory.setEndpointIdentificationAlgorithm("HTTPS");
+        httpClient = new HttpClient(new HttpClientTransportOverHTTP(selectors), sslContextFactory);
+        final QueuedThreadPool executor = new QueuedThreadPool();
+        executor.setName("couchdb-http-client");
+        executor.setDaemon(true);
+        httpClient.setExecutor(executor);
+        httpClient.setScheduler(new ScheduledExecutorScheduler("couchdb-http-scheduler", true));
+        //Cookies are managed by the callers (e.g. AuthSession) and must not leak between requests
+        httpClient.setCookieStore(new HttpCookieStore.Empty());
+        httpClient.setFollowRedirects(false);
+        //Leave the body as CouchDB sent it, like the other transports do
+        httpClient.getContentDecoderFactories().clear();
+        httpClient.setMaxConnectionsPerDestination(64);
+        httpClient.setMaxRequestsQueuedPerDestination(4096);
+    }
+
+    /**
+     * The underlying client. Use it for tuning before the transport is started.
+     */
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public int getMaxResponseLength() {
+        return maxResponseLength;
+    }
+
+    /**
+     * @param maxResponseLength largest response body to buffer. Larger responses fail.
+     */
+    public JettyHttpTransport setMaxResponseLength(int maxResponseLength) {
+        this.maxResponseLength = maxResponseLength;
+        return this;
+    }
+
+    public synchronized void start() {
+        if ( ! httpClient.isStarted()) {
+            try {
+                httpClient.start();
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to start http client", e);
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        try {
+            httpClient.stop();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to stop http client", e);
+        }
+    }
+
+    public boolean isStarted() {
+        return httpClient.isStarted();
+    }
+
+    @Override
+    public void shutdown() {
+        stop();
+    }
+
+    @Override
+    public <T> T send(HttpRequest httpRequest, HttpResponseHandler<T> handler) {
+        final String method = httpRequest.getMethod();
+        final URL url = httpRequest.getUrl();
+        final Request request = newRequest(httpRequest);
+        final Runnable abort = new Runnable() {
+            @Override
+            public void run() {
+                request.abort(new IOException("Aborted"));
+            }
+        };
+        if ( ! httpRequest.onAbort(abort)) {
+            throw new RuntimeException(String.format("%s to %s aborted", method, url));
+        }
+        try {
+            return send(httpRequest, request, handler);
+        } finally {
+            httpRequest.removeOnAbort(abort);
+        }
+    }
+
+    private <T> T send(HttpRequest httpRequest, Request request, HttpResponseHandler<T> handler) {
+        final String method = httpRequest.getMethod();
+        final URL url = httpRequest.getUrl();
+        final HttpContent content = httpRequest.getContent();
+        final InputStreamResponseListener listener = new InputStreamResponseListener();
+        if (content != null && content.getBytes() == null) {
+            //Stream the body from the calling thread while Jetty sends it
+            final OutputStreamContentProvider provider = new OutputStreamContentProvider();
+            request.content(provider);
+            request.send(listener);
+            final OutputStream out = provider.getOutputStream();
+            try {
+                content.writeTo(out);
+                out.close();
+            } catch (IOException e) {
+                request.abort(e);
+                throw new RuntimeException(String.format("error %s'ing to %s", method, url), e);
+            }
+        } else {
+            if (content != null) {
+                request.content(new BytesContentProvider(content.getBytes()));
+            }
+            request.send(listener);
+        }
+        final Response response;
+        try {
+            response = listener.get(httpRequest.getRemainingTime(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            request.abort(e);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(String.format("interrupted while %s'ing to %s", method, url), e);
+        } catch (TimeoutException e) {
+            request.abort(e);
+            throw Deadlines.timeout(httpRequest, e);
+        } catch (ExecutionException e) {
+            throw failure(httpRequest, e.getCause());
+        }
+        final InputStream input = listener.getInputStream();
+        try {
+            return handler.handleInput(response.getStatus(), input, response(response, method, url, input));
+        } catch (RuntimeException e) {
+            throw Deadlines.timeoutIfExpired(httpRequest, e);
+        } finally {
+            try {
+                input.close();
+            } catch (IOException e) {
+                //Nothing left to read
+            }
+        }
+    }
+
+    @Override
+    public <T> Future<T> sendAsync(final HttpRequest httpRequest, final HttpResponseHandler<T> handler,
+                                   HttpCallback<T> callback) {
+        final String method = httpRequest.getMethod();
+        final URL url = httpRequest.getUrl();
+        final HttpFuture<T> future = new HttpFuture<T>(callback);
+        final Request request;
+        try {
+            request = newRequest(httpRequest);
+        } catch (HttpTimeoutException e) {
+            future.failed(e);
+            return future;
+        }
+        if (httpRequest.getContent() != null) {
+            //Buffered, since there is no calling thread to stream it from
+            try {
+                request.content(new BytesContentProvider(httpRequest.getContent().toByteArray()));
+            } catch (IOException e) {
+                future.failed(new RuntimeException(String.format("error %s'ing to %s", method, url), e));
+                return future;
+            }
+        }
+        final Runnable abort = new Runnable() {
+            @Override
+            public void run() {
+                request.abort(new IOException("Aborted"));
+            }
+        };
+        if ( ! httpRequest.onAbort(abort)) {
+            future.failed(new RuntimeException(String.format("%s to %s aborted", method, url)));
+            return future;
+        }
+        request.send(new BufferingResponseListener(maxResponseLength) {
+            @Override
+            public void onComplete(Result result) {
+                httpRequest.removeOnAbort(abort);
+                if (result.isFailed()) {
+                    future.failed(failure(httpRequest, result.getFailure()));
+                    return;
+                }
+                try {
+                    final HttpResponseConnection response = response(result.getResponse(), method, url,
+                                                                      new ByteArrayInputStream(getContent()));
+                    future.completed(handler.handleInput(response.getResponseCode(), response.getInputStream(),
+                                                         response));
+                } catch (Throwable t) {
+                    future.failed(t);
+                }
+            }
+        });
+        return future;
+    }
+
+    private Request newRequest(HttpRequest httpRequest) {
+        start();
+        Deadlines.checkExpired(httpRequest);
+        final Request request = httpClient.newRequest(httpRequest.getUrl().toString()).method(httpRequest.getMethod());
+        if (httpRequest.getTimeout() > 0) {
+            request.timeout(Math.max(1, httpRequest.getRemainingTime()), TimeUnit.MILLISECONDS);
+        }
+        if (httpRequest.getReadTimeout() > 0) {
+            request.idleTimeout(httpRequest.getReadTimeout(), TimeUnit.MILLISECONDS);
+        }
+        for (Entry<String, String> entry: httpRequest.getHeaders().entrySet()) {
+            request.header(entry.getKey(), entry.getValue());
+        }
+        return request;
+    }
+
+    private RuntimeException failure(HttpRequest request, Throwable cause) {
+        if (cause instanceof TimeoutException || request.isExpired()) {
+            return Deadlines.timeout(request, cause);
+        }
+        return new RuntimeException(String.format("error %s'ing to %s", request.getMethod(), request.getUrl()),
+                                    cause);
+    }
+
+    private HttpResponseConnection response(Response response, String method, URL url, InputStream body) {
+        final HttpResponseConnection connection = new HttpResponseConnection(url, method, response.getStatus(),
+                                                                             response.getReason(), body);
+        for (HttpField field: response.getHeaders()) {
+            connection.addHeader(field.getName(), field.getValue());
+        }
+        return connection;
+    }
+
+    @Override
+    public String toString() {
+        return "JettyHttpTransport [" + httpClient + "]";
+    }
+}
@@ -0,0 +1,356 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads requests over the nodes of a cluster. Requests addressed to any of the nodes are sent to the node with the
+ * lowest exponentially weighted moving average (EWMA) response time, weighted by the number of requests it already
+ * has in flight.
+ * <p>
+ * A node that fails {@link #setFailureThreshold(int)} requests in a row (no response, a 5xx or an open circuit) is
+ * taken out of rotation for {@link #setDownTime(long)} milliseconds, after which it gets traffic again. Requests that
+ * were rejected by a {@link CircuitBreakerFilter} further down the chain never reached the node and are sent to
+ * another one at once.
+ * <p>
+ * Requests of the {@link #setStickyOperations(String...) sticky operations}, e.g. a changes feed, stay on the node
+ * that served the previous one until it fails.
+ */
+public class LoadBalancingFilter extends HttpFilter {
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final List<Node> nodes;
+    private final Set<String> stickyOperations = new CopyOnWriteArraySet<String>();
+    private final ConcurrentMap<String, Node> stickyNodes = new ConcurrentHashMap<String, Node>();
+    private double decay = 0.3;
+    private int failureThreshold = 3;
+    private long downTime = 10000;
+
+    /**
+     * @param nodeUrls base URLs of the nodes, e.g. <code>http://couch1:5984</code>. Only scheme, host and port are
+     *            used.
+     */
+    public LoadBalancingFilter(List<String> nodeUrls) {
+        if (nodeUrls == null || nodeUrls.isEmpty()) {
+            throw new IllegalArgumentException("At least one node is required");
+        }
+        final List<Node> nodes = new ArrayList<Node>();
+        for (String nodeUrl: nodeUrls) {
+            try {
+                nodes.add(new Node(new URL(nodeUrl.trim())));
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("Bad node URL: " + nodeUrl, e);
+            }
+        }
+        this.nodes = Collections.unmodifiableList(nodes);
+    }
+
+    public double getDecay() {
+        return decay;
+    }
+
+    /**
+     * @param decay weight of the latest response time in the moving average, between 0 and 1
+     */
+    public LoadBalancingFilter setDecay(double decay) {
+        this.decay = decay;
+        return this;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * @param failureThreshold consecutive failures after which a node is taken out of rotation
+     */
+    public LoadBalancingFilter setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+        return this;
+    }
+
+    public long getDownTime() {
+        return downTime;
+    }
+
+    /**
+     * @param downTime milliseconds an unhealthy node is kept out of rotation
+     */
+    public LoadBalancingFilter setDownTime(long downTime) {
+        this.downTime = downTime;
+        return this;
+    }
+
+    public Set<String> getStickyOperations() {
+        return stickyOperations;
+    }
+
+    public LoadBalancingFilter setStickyOperations(String... operations) {
+        stickyOperations.clear();
+        Collections.addAll(stickyOperations, operations);
+        return this;
+    }
+
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    @Override
+    public <T> T filter(HttpRequest request, HttpResponseHandler<T> handler, HttpTransport next) {
+        if (find(request.getUrl()) == null) {
+            return next.send(request, handler);
+        }
+        final List<Node> tried = new ArrayList<Node>(nodes.size());
+        while (true) {
+            final Node node = choose(request, tried);
+            final NodeHandler<T> tracked = new NodeHandler<T>(node, handler);
+            request.setUrl(node.rewrite(request.getUrl()));
+            node.inFlight.incrementAndGet();
+            try {
+                final T result = next.send(request, tracked);
+                completed(request, node, tracked.isSuccess());
+                return result;
+            } catch (CircuitOpenException e) {
+                completed(request, node, false);
+                tried.add(node);
+                if (tried.size() >= nodes.size()) {
+                    throw e;
+                }
+            } catch (RuntimeException e) {
+                completed(request, node, tracked.isSuccess());
+                throw e;
+            } finally {
+                node.inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public <T> Future<T> filterAsync(final HttpRequest request, HttpResponseHandler<T> handler,
+                                     HttpCallback<T> callback, AsyncHttpTransport next) {
+        if (find(request.getUrl()) == null) {
+            return next.sendAsync(request, handler, callback);
+        }
+        final Node node = choose(request, Collections.<Node> emptyList());
+        final NodeHandler<T> tracked = new NodeHandler<T>(node, handler);
+        final HttpFuture<T> future = new HttpFuture<T>(callback);
+        request.setUrl(node.rewrite(request.getUrl()));
+        node.inFlight.incrementAndGet();
+        next.sendAsync(request, tracked, new HttpCallback<T>() {
+            @Override
+            public void completed(T result) {
+                node.inFlight.decrementAndGet();
+                LoadBalancingFilter.this.completed(request, node, tracked.isSuccess());
+                future.completed(result);
+            }
+
+            @Override
+            public void failed(Throwable failure) {
+                node.inFlight.decrementAndGet();
+                LoadBalancingFilter.this.completed(request, node, tracked.isSuccess());
+                future.failed(failure);
+            }
+        });
+        return future;
+    }
+
+    private Node find(URL url) {
+        final String route = HttpConnectionPool.route(url);
+        for (Node node: nodes) {
+            if (node.route.equals(route)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private Node choose(HttpRequest request, List<Node> excluded) {
+        final String operation = request.getOperation();
+        final boolean sticky = operation != null && stickyOperations.contains(operation);
+        final long now = System.currentTimeMillis();
+        if (sticky) {
+            final Node stuck = stickyNodes.get(operation);
+            if (stuck != null && stuck.isUp(now) && ! excluded.contains(stuck)) {
+                return stuck;
+            }
+        }
+        Node best = null;
+        double bestScore = Double.MAX_VALUE;
+        Node leastDown = null;
+        for (Node node: nodes) {
+            if (excluded.contains(node)) {
+                continue;
+            }
+            if ( ! node.isUp(now)) {
+                if (leastDown == null || node.downUntil < leastDown.downUntil) {
+                    leastDown = node;
+                }
+                continue;
+            }
+            final double score = node.score();
+            if (score < bestScore) {
+                best = node;
+                bestScore = score;
+            }
+        }
+        //Every node is down. Try the one that has been down the longest rather than giving up.
+        final Node chosen = best != null ? best : leastDown;
+        if (sticky) {
+            final Node previous = stickyNodes.put(operation, chosen);
+            if (previous != null && previous != chosen) {
+                log.info("Moving {} from {} to {}", operation, previous, chosen);
+            }
+        }
+        return chosen;
+    }
+
+    private void completed(HttpRequest request, Node node, boolean success) {
+        if (success) {
+            node.consecutiveFailures.set(0);
+            return;
+        }
+        if (node.consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            node.downUntil = System.currentTimeMillis() + downTime;
+            node.consecutiveFailures.set(0);
+            log.warn("Taking {} out of rotation for {} ms", node, downTime);
+        }
+        if (request.getOperation() != null) {
+            //Fail over sticky traffic right away
+            stickyNodes.remove(request.getOperation(), node);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LoadBalancingFilter " + nodes;
+    }
+
+    /**
+     * A node and what is known about it
+     */
+    public static final class Node {
+        private final URL base;
+        private final String route;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile double latency = 0;
+        private volatile long downUntil = 0;
+
+        Node(URL base) {
+            this.base = base;
+            this.route = HttpConnectionPool.route(base);
+        }
+
+        public String getRoute() {
+            return route;
+        }
+
+        /**
+         * @return moving average of the response time in milliseconds
+         */
+        public double getLatency() {
+            return latency;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public boolean isUp() {
+            return isUp(System.currentTimeMillis());
+        }
+
+        boolean isUp(long now) {
+            return downUntil <= now;
+        }
+
+        double score() {
+            return (latency + 1) * (inFlight.get() + 1);
+        }
+
+        void record(long nanos, double decay) {
+            final double millis = nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+            //Racing updates may lose a sample, which an average can live with
+            latency = latency == 0 ? millis : latency + decay * (millis - latency);
+        }
+
+        URL rewrite(URL url) {
+            try {
+                return new URL(base.getProtocol(), base.getHost(), base.getPort(), url.getFile());
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("Bad URL: " + url, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return route + " [latency=" + Math.round(latency) + "ms, inFlight=" + inFlight + ", up=" + isUp() + "]";
+        }
+    }
+
+    private final class NodeHandler<T> implements HttpResponseHandler<T> {
+        private final Node node;
+        private final HttpResponseHandler<T> handler;
+        private final long started = System.nanoTime();
+        private volatile int responseCode = -1;
+
+        NodeHandler(Node node, HttpResponseHandler<T> handler) {
+            this.node = node;
+            this.handler = handler;
+        }
+
+        boolean isSuccess() {
+            return responseCode > 0 && responseCode < 500;
+        }
+
+        @Override
+        public T handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            this.responseCode = responseCode;
+            node.record(System.nanoTime() - started, decay);
+            return handler.handleInput(responseCode, input, connection);
+        }
+    }
+}
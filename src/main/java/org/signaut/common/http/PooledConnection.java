@@ -0,0 +1,131 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * A socket owned by {@link HttpConnectionPool}. Leased to one exchange at a time.
+ */
+final class PooledConnection {
+    private final String route;
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+    private long lastUsed;
+    private int useCount = 0;
+
+    PooledConnection(String route, Socket socket) throws IOException {
+        this.route = route;
+        this.socket = socket;
+        this.input = new BufferedInputStream(socket.getInputStream(), 8192);
+        this.output = new BufferedOutputStream(socket.getOutputStream(), 8192);
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    String getRoute() {
+        return route;
+    }
+
+    InputStream getInput() {
+        return input;
+    }
+
+    OutputStream getOutput() {
+        return output;
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+        useCount++;
+    }
+
+    /**
+     * @return <code>true</code> if this connection has carried at least one exchange before the current one
+     */
+    boolean isReused() {
+        return useCount > 1;
+    }
+
+    /**
+     * Check if the server has closed its end of the connection while it was idle.
+     * A read of a single byte with a very short timeout tells us: end of stream means the connection is gone,
+     * a timeout means it is still alive, anything else means it cannot be trusted.
+     */
+    boolean isStale() {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return true;
+        }
+        try {
+            if (input.available() > 0) {
+                //Unsolicited data from the server - we cannot trust this connection
+                return true;
+            }
+            final int soTimeout = socket.getSoTimeout();
+            try {
+                socket.setSoTimeout(1);
+                //Either end of stream or unsolicited data. Neither leaves the connection usable
+                input.read();
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } finally {
+                socket.setSoTimeout(soTimeout);
+            }
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //Nothing to do about it
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PooledConnection [route=" + route + ", local=" + socket.getLocalPort() + "]";
+    }
+}
@@ -0,0 +1,153 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.ScheduledFuture;
+
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Blocking transport speaking HTTP/1.1 over connections kept in a {@link HttpConnectionPool}
+ */
+public class PooledHttpTransport implements HttpTransport {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final HttpConnectionPool connectionPool;
+
+    public PooledHttpTransport() {
+        this(new HttpConnectionPool());
+    }
+
+    /**
+     * @param connectionPool pool to lease connections from. It may be shared between transports.
+     */
+    public PooledHttpTransport(HttpConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    public HttpConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    @Override
+    public <T> T send(final HttpRequest request, HttpResponseHandler<T> handler) {
+        final String method = request.getMethod();
+        final URL url = request.getUrl();
+        final HttpContent body = request.getContent();
+        boolean retried = false;
+        while (true) {
+            Deadlines.checkExpired(request);
+            final PooledConnection connection;
+            try {
+                connection = connectionPool.lease(url, request.getRemainingTime(), request.effectiveConnectTimeout());
+            } catch (IOException e) {
+                throw failure(request, e);
+            }
+            final HttpExchange exchange = new HttpExchange(connection, method, url);
+            final Runnable abort = new Runnable() {
+                @Override
+                public void run() {
+                    log.debug("Aborting {}", request);
+                    connection.close();
+                }
+            };
+            if ( ! request.onAbort(abort)) {
+                connectionPool.release(connection, true);
+                throw aborted(request, null);
+            }
+            final ScheduledFuture<?> deadline = Deadlines.abortAt(request, new Runnable() {
+                @Override
+                public void run() {
+                    log.debug("Deadline reached, aborting {}", request);
+                    connection.close();
+                }
+            });
+            boolean reusable = false;
+            try {
+                final HttpResponseConnection response;
+                try {
+                    connection.getSocket().setSoTimeout(request.effectiveReadTimeout());
+                    response = exchange.execute(body, request.getHeaders());
+                } catch (IOException e) {
+                    if (connection.isReused() && ! exchange.isResponseStarted() && ! retried
+                            && ! (e instanceof SocketTimeoutException) && ! request.isExpired()
+                            && ! request.isAborted() && (body == null || body.isRepeatable())) {
+                        //The server closed the connection while it was idle. The request never got through.
+                        log.debug("Retrying {} {} on a new connection: {}", method, url, e.getMessage());
+                        retried = true;
+                        continue;
+                    }
+                    throw failure(request, e);
+                }
+                final T result;
+                try {
+                    result = handler.handleInput(response.getResponseCode(), response.getInputStream(), response);
+                } catch (RuntimeException e) {
+                    throw Deadlines.timeoutIfExpired(request, e);
+                }
+                reusable = ! request.isAborted() && exchange.finish();
+                return result;
+            } finally {
+                request.removeOnAbort(abort);
+                if ( ! Deadlines.cancel(deadline) || request.isAborted()) {
+                    reusable = false;
+                }
+                connectionPool.release(connection, reusable);
+            }
+        }
+    }
+
+    private RuntimeException aborted(HttpRequest request, IOException cause) {
+        return new RuntimeException(String.format("%s to %s aborted", request.getMethod(), request.getUrl()), cause);
+    }
+
+    private RuntimeException failure(HttpRequest request, IOException e) {
+        if (request.isAborted()) {
+            return aborted(request, e);
+        }
+        if (e instanceof SocketTimeoutException || request.isExpired()) {
+            return Deadlines.timeout(request, e);
+        }
+        return new RuntimeException(String.format("error %s'ing to %s", request.getMethod(), request.getUrl()), e);
+    }
+
+    @Override
+    public void shutdown() {
+        connectionPool.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "PooledHttpTransport [" + connectionPool + "]";
+    }
+}
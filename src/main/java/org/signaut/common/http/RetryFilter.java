@@ -0,0 +1,268 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries {@link HttpRequest#isIdempotent() idempotent} requests that got no response, or a 502, 503 or 504, with
+ * exponential backoff and full jitter: the n'th retry waits a random time between 0 and
+ * <code>min(maxDelay, baseDelay * 2^n)</code>, so clients that failed together do not come back together.
+ * <p>
+ * Requests are not retried once their handler has started on a response, when the deadline would pass during the
+ * backoff, or when a circuit breaker rejected them. Put this filter before a {@link CircuitBreakerFilter} so every
+ * attempt is seen by the breaker.
+ */
+public class RetryFilter extends HttpFilter {
+    /** Only schedules resends, so one thread serves every filter and none has to be shut down */
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "couchdb-http-retries");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final Set<Integer> retriedStatuses = new HashSet<Integer>(Arrays.asList(502, 503, 504));
+    private int maxRetries = 3;
+    private long baseDelay = 50;
+    private long maxDelay = 2000;
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public RetryFilter setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    /**
+     * @param baseDelay upper bound in milliseconds of the first backoff
+     */
+    public RetryFilter setBaseDelay(long baseDelay) {
+        this.baseDelay = baseDelay;
+        return this;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * @param maxDelay upper bound in milliseconds of any backoff
+     */
+    public RetryFilter setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+        return this;
+    }
+
+    /**
+     * @return number of retries sent
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return number of requests that failed after all retries
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    @Override
+    public <T> T filter(HttpRequest request, HttpResponseHandler<T> handler, HttpTransport next) {
+        if ( ! isRetryable(request)) {
+            return next.send(request, handler);
+        }
+        for (int attempt = 0;; attempt++) {
+            final StatusCheck<T> checked = new StatusCheck<T>(handler, attempt < maxRetries);
+            final RuntimeException failure;
+            try {
+                return next.send(request.copy(), checked);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            final long delay = backoff(request, checked, failure, attempt);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw failure;
+            }
+        }
+    }
+
+    @Override
+    public <T> Future<T> filterAsync(HttpRequest request, HttpResponseHandler<T> handler, HttpCallback<T> callback,
+                                     AsyncHttpTransport next) {
+        if ( ! isRetryable(request)) {
+            return next.sendAsync(request, handler, callback);
+        }
+        final HttpFuture<T> future = new HttpFuture<T>(callback);
+        new AsyncAttempts<T>(request, handler, next, future).send(0);
+        return future;
+    }
+
+    private boolean isRetryable(HttpRequest request) {
+        return maxRetries > 0 && request.isIdempotent()
+               && (request.getContent() == null || request.getContent().isRepeatable());
+    }
+
+    /**
+     * @return milliseconds to wait before the next attempt
+     * @throws RuntimeException the failure, if it should not be retried
+     */
+    private long backoff(HttpRequest request, StatusCheck<?> checked, RuntimeException failure, int attempt) {
+        if (failure instanceof CircuitOpenException || request.isAborted()
+            || (checked.handling && ! (failure instanceof RetryableStatus))) {
+            throw failure;
+        }
+        if (attempt >= maxRetries) {
+            exhausted.incrementAndGet();
+            throw failure;
+        }
+        final long ceiling = Math.min(maxDelay, baseDelay << Math.min(attempt, 30));
+        final long delay = ThreadLocalRandom.current().nextLong(Math.max(1, ceiling) + 1);
+        if (request.getRemainingTime() <= delay) {
+            exhausted.incrementAndGet();
+            throw failure;
+        }
+        retries.incrementAndGet();
+        log.debug("Retrying {} in {} ms after {}", request, delay, failure.toString());
+        return delay;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryFilter [maxRetries=" + maxRetries + ", retries=" + retries + ", exhausted=" + exhausted + "]";
+    }
+
+    /**
+     * Thrown instead of handing a retryable status to the handler
+     */
+    private static final class RetryableStatus extends RuntimeException {
+        private static final long serialVersionUID = 6027185950470366153L;
+
+        RetryableStatus(int responseCode, HttpURLConnection connection) {
+            super(String.format("%d from %s", responseCode, connection.getURL()));
+        }
+    }
+
+    private final class StatusCheck<T> implements HttpResponseHandler<T> {
+        private final HttpResponseHandler<T> handler;
+        private final boolean retriesLeft;
+        private volatile boolean handling = false;
+
+        StatusCheck(HttpResponseHandler<T> handler, boolean retriesLeft) {
+            this.handler = handler;
+            this.retriesLeft = retriesLeft;
+        }
+
+        @Override
+        public T handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            handling = true;
+            if (retriesLeft && retriedStatuses.contains(responseCode)) {
+                throw new RetryableStatus(responseCode, connection);
+            }
+            return handler.handleInput(responseCode, input, connection);
+        }
+    }
+
+    private final class AsyncAttempts<T> {
+        private final HttpRequest request;
+        private final HttpResponseHandler<T> handler;
+        private final AsyncHttpTransport next;
+        private final HttpFuture<T> future;
+
+        AsyncAttempts(HttpRequest request, HttpResponseHandler<T> handler, AsyncHttpTransport next,
+                      HttpFuture<T> future) {
+            this.request = request;
+            this.handler = handler;
+            this.next = next;
+            this.future = future;
+        }
+
+        void send(final int attempt) {
+            final StatusCheck<T> checked = new StatusCheck<T>(handler, attempt < maxRetries);
+            next.sendAsync(request.copy(), checked, new HttpCallback<T>() {
+                @Override
+                public void completed(T result) {
+                    future.completed(result);
+                }
+
+                @Override
+                public void failed(Throwable failure) {
+                    if ( ! (failure instanceof RuntimeException)) {
+                        future.failed(failure);
+                        return;
+                    }
+                    final long delay;
+                    try {
+                        delay = backoff(request, checked, (RuntimeException) failure, attempt);
+                    } catch (RuntimeException e) {
+                        future.failed(e);
+                        return;
+                    }
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            send(attempt + 1);
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                }
+            });
+        }
+    }
+}
@@ -31,12 +31,23 @@ import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 public interface SimpleHttpClient {
     public interface HttpResponseHandler<T> {
         T handleInput(int responseCode, InputStream input, HttpURLConnection connection);
     }
 
+    /**
+     * Notified when an asynchronous request completes. Called on a transport thread, so implementations must not
+     * block.
+     */
+    public interface HttpCallback<T> {
+        void completed(T result);
+
+        void failed(Throwable failure);
+    }
+
     <T> T post(String url, HttpResponseHandler<T> handler, String content, Map<String, String> headers);
 
     <T> T put(String url, HttpResponseHandler<T> handler, String content, Map<String, String> headers);
@@ -53,4 +64,47 @@ public interface SimpleHttpClient {
 
     <T> T delete(URL url, HttpResponseHandler<T> handler, Map<String, String> headers);
 
+    /*
+     * Streaming variants. Bodies of unknown length are sent chunked.
+     */
+
+    <T> T post(String url, HttpResponseHandler<T> handler, HttpContent content, Map<String, String> headers);
+
+    <T> T put(String url, HttpResponseHandler<T> handler, HttpContent content, Map<String, String> headers);
+
+    <T> T post(URL url, HttpResponseHandler<T> handler, HttpContent content, Map<String, String> headers);
+
+    <T> T put(URL url, HttpResponseHandler<T> handler, HttpContent content, Map<String, String> headers);
+
+    /*
+     * Asynchronous variants. The handler runs once the whole response has been received and its result completes
+     * the returned future. The callback may be null.
+     */
+
+    <T> Future<T> postAsync(String url, HttpResponseHandler<T> handler, String content, Map<String, String> headers,
+                            HttpCallback<T> callback);
+
+    <T> Future<T> putAsync(String url, HttpResponseHandler<T> handler, String content, Map<String, String> headers,
+                           HttpCallback<T> callback);
+
+    <T> Future<T> postAsync(String url, HttpResponseHandler<T> handler, HttpContent content,
+                            Map<String, String> headers, HttpCallback<T> callback);
+
+    <T> Future<T> putAsync(String url, HttpResponseHandler<T> handler, HttpContent content,
+                           Map<String, String> headers, HttpCallback<T> callback);
+
+    <T> Future<T> getAsync(String url, HttpResponseHandler<T> handler, Map<String, String> headers,
+                           HttpCallback<T> callback);
+
+    <T> Future<T> deleteAsync(String url, HttpResponseHandler<T> handler, Map<String, String> headers,
+                              HttpCallback<T> callback);
+
+    /*
+     * Fully specified requests, e.g. with an operation or a deadline
+     */
+
+    <T> T send(HttpRequest request, HttpResponseHandler<T> handler);
+
+    <T> Future<T> sendAsync(HttpRequest request, HttpResponseHandler<T> handler, HttpCallback<T> callback);
+
 }
@@ -27,136 +27,424 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 package org.signaut.common.http;
 
-import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 
 public class SimpleHttpClientImpl implements SimpleHttpClient {
 
-    private final Logger log = LoggerFactory.getLogger(getClass());
-    
+    private final HttpTransport transport;
+    private AsyncHttpTransport asyncTransport;
+    private final List<HttpFilter> filters = new CopyOnWriteArrayList<HttpFilter>();
+    private volatile HttpMetrics metrics = new HttpMetrics();
+
+    /**
+     * Client using {@link HttpURLConnection}. Connection reuse is left to the JVM.
+     */
+    public SimpleHttpClientImpl() {
+        this(new UrlConnectionTransport());
+    }
+
+    /**
+     * Client keeping its connections in the given pool. The pool may be shared between clients.
+     */
+    public SimpleHttpClientImpl(HttpConnectionPool connectionPool) {
+        this(new PooledHttpTransport(connectionPool));
+    }
+
+    /**
+     * @param transport carries the requests. If it is an {@link AsyncHttpTransport} it is used for the asynchronous
+     *            methods as well.
+     */
+    public SimpleHttpClientImpl(HttpTransport transport) {
+        this(transport, transport instanceof AsyncHttpTransport ? (AsyncHttpTransport) transport : null);
+    }
+
+    /**
+     * @param transport carries the blocking requests
+     * @param asyncTransport carries the asynchronous requests. If <code>null</code>, a {@link JettyHttpTransport} is
+     *            created when the first asynchronous request is sent.
+     */
+    public SimpleHttpClientImpl(HttpTransport transport, AsyncHttpTransport asyncTransport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("transport is required");
+        }
+        this.transport = transport;
+        this.asyncTransport = asyncTransport;
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Add a filter. Filters see requests in the order they were added.
+     */
+    public SimpleHttpClientImpl addFilter(HttpFilter filter) {
+        filters.add(filter);
+        return this;
+    }
+
+    public List<HttpFilter> getFilters() {
+        return filters;
+    }
+
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Metrics are recorded below the filters, so every attempt sent by e.g. a {@link RetryFilter} is recorded on its
+     * own, with the bytes as they go over the wire.
+     * 
+     * @param metrics may be shared between clients. <code>null</code> turns recording off.
+     */
+    public SimpleHttpClientImpl setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Shut down the transports used by this client
+     */
+    public synchronized void shutdown() {
+        transport.shutdown();
+        if (asyncTransport != null && asyncTransport != transport) {
+            asyncTransport.shutdown();
+        }
+    }
+
     @Override
     public <T> T post(String url, HttpResponseHandler<T> handler, String content, Map<String, String> headers) {
-        try {
-            return post(new URL(url), handler, content, headers);
-        } catch (MalformedURLException e) {
-            throw new IllegalArgumentException("Bad URL: " + url, e);
-        }
+        return post(url, handler, HttpContent.of(content), headers);
     }
 
     @Override
     public <T> T put(String url, HttpResponseHandler<T> handler, String content, Map<String, String> headers) {
-        try {
-            return put(new URL(url), handler, content, headers);
-        } catch (MalformedURLException e) {
-            throw new IllegalArgumentException("Bad URL: " + url, e);
-        }
+        return put(url, handler, HttpContent.of(content), headers);
+    }
+
+    @Override
+    public <T> T post(String url, HttpResponseHandler<T> handler, HttpContent content, Map<String, String> headers) {
+        return post(url(url), handler, content, headers);
+    }
+
+    @Override
+    public <T> T put(String url, HttpResponseHandler<T> handler, HttpContent content, Map<String, String> headers) {
+        return put(url(url), handler, content, headers);
     }
 
     @Override
     public <T> T get(String url, HttpResponseHandler<T> handler, Map<String, String> headers) {
-        try {
-            return get(new URL(url), handler, headers);
-        } catch (MalformedURLException e) {
-            throw new IllegalArgumentException("Bad URL: " + url, e);
-        }
+        return get(url(url), handler, headers);
     }
 
     @Override
     public <T> T delete(String url, HttpResponseHandler<T> handler, Map<String, String> headers) {
-        try {
-            return delete(new URL(url), handler, headers);
-        } catch (MalformedURLException e) {
-            throw new IllegalArgumentException("Bad URL: " + url, e);
-        }
+        return delete(url(url), handler, headers);
     }
+
     @Override
     public <T> T post(URL url, HttpResponseHandler<T> handler, String content, Map<String, String> headers) {
-        return send("POST", url, handler, content, headers);
+        return send("POST", url, handler, HttpContent.of(content), headers);
     }
     
     @Override
     public <T> T put(URL url, HttpResponseHandler<T> handler, String content, Map<String, String> headers) {
+        return send("PUT", url, handler, HttpContent.of(content), headers);
+    }
+
+    @Override
+    public <T> T post(URL url, HttpResponseHandler<T> handler, HttpContent content, Map<String, String> headers) {
+        return send("POST", url, handler, content, headers);
+    }
+
+    @Override
+    public <T> T put(URL url, HttpResponseHandler<T> handler, HttpContent content, Map<String, String> headers) {
         return send("PUT", url, handler, content, headers);
     }
 
     @Override
     public <T> T get(URL url, HttpResponseHandler<T> handler, Map<String, String> headers) {
-        return send("GET", url, handler, null, headers);
+        return send("GET", url, handler, (HttpContent) null, headers);
     }
 
     @Override
     public <T> T delete(URL url, HttpResponseHandler<T> handler, Map<String, String> headers) {
-        return send("DELETE", url, handler, null, headers);
+        return send("DELETE", url, handler, (HttpContent) null, headers);
+    }
+
+    @Override
+    public <T> Future<T> postAsync(String url, HttpResponseHandler<T> handler, String content,
+                                   Map<String, String> headers, HttpCallback<T> callback) {
+        return sendAsync("POST", url, handler, HttpContent.of(content), headers, callback);
+    }
+
+    @Override
+    public <T> Future<T> putAsync(String url, HttpResponseHandler<T> handler, String content,
+                                  Map<String, String> headers, HttpCallback<T> callback) {
+        return sendAsync("PUT", url, handler, HttpContent.of(content), headers, callback);
+    }
+
+    @Override
+    public <T> Future<T> postAsync(String url, HttpResponseHandler<T> handler, HttpContent content,
+                                   Map<String, String> headers, HttpCallback<T> callback) {
+        return sendAsync("POST", url, handler, content, headers, callback);
+    }
+
+    @Override
+    public <T> Future<T> putAsync(String url, HttpResponseHandler<T> handler, HttpContent content,
+                                  Map<String, String> headers, HttpCallback<T> callback) {
+        return sendAsync("PUT", url, handler, content, headers, callback);
+    }
+
+    @Override
+    public <T> Future<T> getAsync(String url, HttpResponseHandler<T> handler, Map<String, String> headers,
+                                  HttpCallback<T> callback) {
+        return sendAsync("GET", url, handler, null, headers, callback);
+    }
+
+    @Override
+    public <T> Future<T> deleteAsync(String url, HttpResponseHandler<T> handler, Map<String, String> headers,
+                                     HttpCallback<T> callback) {
+        return sendAsync("DELETE", url, handler, null, headers, callback);
+    }
+
+    public <T> Future<T> sendAsync(String method, String url, HttpResponseHandler<T> handler, HttpContent content,
+                                   Map<String, String> headers, HttpCallback<T> callback) {
+        return sendAsync(new HttpRequest(method, url(url)).setContent(content).setHeaders(headers), handler, callback);
+    }
+
+    @Override
+    public <T> Future<T> sendAsync(HttpRequest request, HttpResponseHandler<T> handler, HttpCallback<T> callback) {
+        return new AsyncFilterChain(filters(), 0, asyncTransport(), metrics).sendAsync(request, handler, callback);
+    }
+
+    private synchronized AsyncHttpTransport asyncTransport() {
+        if (asyncTransport == null) {
+            asyncTransport = new JettyHttpTransport();
+        }
+        return asyncTransport;
     }
 
     public <T> T send(String method, URL url, HttpResponseHandler<T> handler, String content, Map<String, String> headers) {
-        HttpURLConnection connection = null;
-        OutputStream out = null;
-        OutputStreamWriter writer = null;
-        InputStream in = null;
-        T result = null;
-        try {
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod(method);
-            for (Entry<String, String> entry: headers.entrySet()) {
-                connection.setRequestProperty(entry.getKey(), entry.getValue());
+        return send(method, url, handler, HttpContent.of(content), headers);
+    }
+
+    public <T> T send(String method, URL url, HttpResponseHandler<T> handler, HttpContent content,
+                      Map<String, String> headers) {
+        return send(new HttpRequest(method, url).setContent(content).setHeaders(headers), handler);
+    }
+
+    @Override
+    public <T> T send(HttpRequest request, HttpResponseHandler<T> handler) {
+        return new FilterChain(filters(), 0, transport, metrics).send(request, handler);
+    }
+
+    /**
+     * The rest of the filters followed by the transport, as seen by a filter
+     */
+    private static final class FilterChain implements HttpTransport {
+        private final HttpFilter[] filters;
+        private final int index;
+        private final HttpTransport transport;
+        private final HttpMetrics metrics;
+
+        FilterChain(HttpFilter[] filters, int index, HttpTransport transport, HttpMetrics metrics) {
+            this.filters = filters;
+            this.index = index;
+            this.transport = transport;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public <T> T send(HttpRequest request, HttpResponseHandler<T> handler) {
+            if (index < filters.length) {
+                return filters[index].filter(request, handler, new FilterChain(filters, index + 1, transport, metrics));
             }
-            if (content != null) {
-                connection.setDoOutput(true);
-                out = connection.getOutputStream();
-                writer = new OutputStreamWriter(out);
-                writer.write(content);
-                writer.close();
+            if (metrics == null) {
+                return transport.send(request, handler);
             }
-            in = connection.getInputStream();
-            result = handler.handleInput(responseCode(connection), in, connection);
-        } catch (IOException e) {
-            int responseCode = responseCode(connection);
-            if (responseCode < 0) {
-                //Bail out if we're not getting anything useful out of the reponse
-                throw new RuntimeException(String.format("error %s'ing to %s", method, url), e);
+            final Metered<T> metered = new Metered<T>(metrics, request, handler, null);
+            try {
+                final T result = transport.send(metered.request, metered);
+                metered.record(null);
+                return result;
+            } catch (RuntimeException e) {
+                metered.record(e);
+                throw e;
+            } catch (Error e) {
+                metered.record(e);
+                throw e;
             }
-            in = connection.getErrorStream();
-            result = handler.handleInput(responseCode, in, connection);
-        } finally {
-            close(writer, out, in);
         }
-        return result;
+
+        @Override
+        public void shutdown() {
+            transport.shutdown();
+        }
     }
 
-    
-    private int responseCode(HttpURLConnection connection) {
-        if (connection != null){
+    private static final class AsyncFilterChain implements AsyncHttpTransport {
+        private final HttpFilter[] filters;
+        private final int index;
+        private final AsyncHttpTransport transport;
+        private final HttpMetrics metrics;
+
+        AsyncFilterChain(HttpFilter[] filters, int index, AsyncHttpTransport transport, HttpMetrics metrics) {
+            this.filters = filters;
+            this.index = index;
+            this.transport = transport;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public <T> T send(HttpRequest request, HttpResponseHandler<T> handler) {
+            return new FilterChain(filters, index, transport, metrics).send(request, handler);
+        }
+
+        @Override
+        public <T> Future<T> sendAsync(HttpRequest request, HttpResponseHandler<T> handler, HttpCallback<T> callback) {
+            if (index < filters.length) {
+                return filters[index].filterAsync(request, handler, callback,
+                                                      new AsyncFilterChain(filters, index + 1, transport, metrics));
+            }
+            if (metrics == null) {
+                return transport.sendAsync(request, handler, callback);
+            }
+            //Callers are released after the request is recorded, not when the transport's future completes
+            final HttpFuture<T> future = new HttpFuture<T>(callback);
+            final Metered<T> metered = new Metered<T>(metrics, request, handler, future);
             try {
-                return connection.getResponseCode();
-            } catch (IOException e) {
-                //Fall though
+                transport.sendAsync(metered.request, metered, metered);
+                return future;
+            } catch (RuntimeException e) {
+                metered.record(e);
+                throw e;
             }
         }
-        return -1;
+
+        @Override
+        public void shutdown() {
+            transport.shutdown();
+        }
     }
-    
-    private void close(Closeable... streams) {
-        for (Closeable stream : streams) {
+
+    /**
+     * Measures one request as sent by the transport: time until the handler is done, status and bytes both ways
+     */
+    private static final class Metered<T> implements HttpResponseHandler<T>, HttpCallback<T> {
+        private final HttpMetrics metrics;
+        private final HttpRequest request;
+        private final HttpResponseHandler<T> handler;
+        private final HttpCallback<T> callback;
+        private final CountingContent content;
+        private final long started = System.nanoTime();
+        private volatile int statusCode;
+        private volatile CountingInputStream input;
+
+        Metered(HttpMetrics metrics, HttpRequest request, HttpResponseHandler<T> handler, HttpCallback<T> callback) {
+            this.metrics = metrics;
+            this.handler = handler;
+            this.callback = callback;
+            if (request.getContent() == null) {
+                this.content = null;
+                this.request = request;
+            } else {
+                this.content = new CountingContent(request.getContent());
+                this.request = request.copy().setContent(content);
+            }
+        }
+
+        @Override
+        public T handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            statusCode = responseCode;
+            if (input == null) {
+                return handler.handleInput(responseCode, null, connection);
+            }
+            final CountingInputStream counted = new CountingInputStream(input);
+            this.input = counted;
+            return handler.handleInput(responseCode, counted, connection);
+        }
+
+        @Override
+        public void completed(T result) {
+            record(null);
+            if (callback != null) {
+                callback.completed(result);
+            }
+        }
+
+        @Override
+        public void failed(Throwable failure) {
+            record(failure);
+            if (callback != null) {
+                callback.failed(failure);
+            }
+        }
+
+        void record(Throwable failure) {
+            final CountingInputStream in = input;
+            metrics.record(request, statusCode, System.nanoTime() - started, in == null ? 0 : in.getCount(),
+                           content == null ? 0 : content.count, failure);
+        }
+    }
+
+    private static final class CountingContent extends HttpContent {
+        private final HttpContent content;
+        private volatile long count;
+
+        CountingContent(HttpContent content) {
+            this.content = content;
+        }
+
+        @Override
+        public long getLength() {
+            return content.getLength();
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return content.isRepeatable();
+        }
+
+        @Override
+        byte[] getBytes() {
+            final byte bytes[] = content.getBytes();
+            if (bytes != null) {
+                count = bytes.length;
+            }
+            return bytes;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            final CountingOutputStream counted = new CountingOutputStream(out);
             try {
-                if (stream != null) {
-                    stream.close();
-                }
-            } catch (IOException e) {
-                log.warn("Failed to close streams.", e);
+                content.writeTo(counted);
+            } finally {
+                count = counted.getCount();
             }
         }
     }
 
+    private HttpFilter[] filters() {
+        return filters.toArray(new HttpFilter[filters.size()]);
+    }
+
+    private URL url(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Bad URL: " + url, e);
+        }
+    }
+
 }
@@ -0,0 +1,193 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
+
+/**
+ * Lets concurrent callers asking for the same key share one call. The first caller makes the call; callers arriving
+ * while it is in flight wait for it and get the same result, or the same failure. Results are shared, so callers
+ * must not modify them.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, Flight<V>> inFlight = new ConcurrentHashMap<K, Flight<V>>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong absorbed = new AtomicLong();
+
+    public interface Call<V> {
+        V call();
+    }
+
+    public interface AsyncCall<V> {
+        /**
+         * Start the call, completing the callback when done
+         */
+        void call(HttpCallback<V> callback);
+    }
+
+    private static final class Flight<V> implements HttpCallback<V> {
+        private final HttpFuture<V> result = new HttpFuture<V>();
+        private List<HttpFuture<V>> followers = new ArrayList<HttpFuture<V>>();
+
+        void follow(HttpFuture<V> follower) {
+            synchronized (this) {
+                if (followers != null) {
+                    followers.add(follower);
+                    return;
+                }
+            }
+            forward(follower);
+        }
+
+        private void forward(HttpFuture<V> follower) {
+            try {
+                follower.completed(result.get());
+            } catch (Exception e) {
+                follower.failed(e.getCause() != null ? e.getCause() : e);
+            }
+        }
+
+        @Override
+        public void completed(V value) {
+            result.completed(value);
+            notifyFollowers();
+        }
+
+        @Override
+        public void failed(Throwable failure) {
+            result.failed(failure);
+            notifyFollowers();
+        }
+
+        private void notifyFollowers() {
+            final List<HttpFuture<V>> waiting;
+            synchronized (this) {
+                waiting = followers;
+                followers = null;
+            }
+            if (waiting != null) {
+                for (HttpFuture<V> follower: waiting) {
+                    forward(follower);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the result of the call in flight for the key, or of a new call made on this thread
+     */
+    public V execute(K key, Call<V> call) {
+        final Flight<V> flight = new Flight<V>();
+        final Flight<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            absorbed.incrementAndGet();
+            return existing.result.join();
+        }
+        calls.incrementAndGet();
+        try {
+            final V value = call.call();
+            flight.completed(value);
+            return value;
+        } catch (RuntimeException e) {
+            flight.failed(e);
+            throw e;
+        } catch (Error e) {
+            flight.failed(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #execute(Object, Call)}
+     * 
+     * @param callback may be <code>null</code>
+     */
+    public Future<V> executeAsync(final K key, AsyncCall<V> call, HttpCallback<V> callback) {
+        final HttpFuture<V> future = new HttpFuture<V>(callback);
+        final Flight<V> flight = new Flight<V>();
+        final Flight<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            absorbed.incrementAndGet();
+            existing.follow(future);
+            return future;
+        }
+        calls.incrementAndGet();
+        flight.follow(future);
+        try {
+            call.call(new HttpCallback<V>() {
+                @Override
+                public void completed(V result) {
+                    inFlight.remove(key, flight);
+                    flight.completed(result);
+                }
+
+                @Override
+                public void failed(Throwable failure) {
+                    inFlight.remove(key, flight);
+                    flight.failed(failure);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, flight);
+            flight.failed(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return calls made
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return callers that got the result of another caller's call instead of making their own
+     */
+    public long getAbsorbed() {
+        return absorbed.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight [calls=" + calls + ", absorbed=" + absorbed + ", inFlight=" + getInFlight() + "]";
+    }
+}
@@ -0,0 +1,160 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+
+/**
+ * Fills in the timeouts a request does not set itself, from defaults per {@link HttpRequest#getOperation()
+ * operation}. Requests without an operation, or with one that has no defaults of its own, get the general defaults.
+ */
+public class TimeoutFilter extends HttpFilter {
+
+    /**
+     * Timeouts in milliseconds. 0 means none.
+     */
+    public static class Timeouts {
+        private long timeout;
+        private int connectTimeout;
+        private int readTimeout;
+
+        public Timeouts() {
+        }
+
+        public Timeouts(long timeout, int connectTimeout, int readTimeout) {
+            this.timeout = timeout;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        /**
+         * @param timeout deadline for the whole call, from sending the request until the response has been handled
+         */
+        public Timeouts setTimeout(long timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        public int getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public Timeouts setConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public int getReadTimeout() {
+            return readTimeout;
+        }
+
+        /**
+         * @param readTimeout longest wait for the next bytes of the response
+         */
+        public Timeouts setReadTimeout(int readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "Timeouts [timeout=" + timeout + ", connectTimeout=" + connectTimeout + ", readTimeout="
+                   + readTimeout + "]";
+        }
+    }
+
+    private final ConcurrentMap<String, Timeouts> operations = new ConcurrentHashMap<String, Timeouts>();
+    private volatile Timeouts defaults = new Timeouts();
+
+    public Timeouts getDefaults() {
+        return defaults;
+    }
+
+    public TimeoutFilter setDefaults(Timeouts defaults) {
+        this.defaults = defaults;
+        return this;
+    }
+
+    /**
+     * @return the timeouts for the operation, or <code>null</code> if it uses the general defaults
+     */
+    public Timeouts getTimeouts(String operation) {
+        return operations.get(operation);
+    }
+
+    public TimeoutFilter setTimeouts(String operation, Timeouts timeouts) {
+        if (timeouts == null) {
+            operations.remove(operation);
+        } else {
+            operations.put(operation, timeouts);
+        }
+        return this;
+    }
+
+    @Override
+    public <T> T filter(HttpRequest request, HttpResponseHandler<T> handler, HttpTransport next) {
+        return next.send(apply(request), handler);
+    }
+
+    @Override
+    public <T> Future<T> filterAsync(HttpRequest request, HttpResponseHandler<T> handler, HttpCallback<T> callback,
+                                     AsyncHttpTransport next) {
+        return next.sendAsync(apply(request), handler, callback);
+    }
+
+    private HttpRequest apply(HttpRequest request) {
+        Timeouts timeouts = request.getOperation() == null ? null : operations.get(request.getOperation());
+        if (timeouts == null) {
+            timeouts = defaults;
+        }
+        if (request.getTimeout() == 0) {
+            request.setTimeout(timeouts.getTimeout());
+        }
+        if (request.getConnectTimeout() == 0) {
+            request.setConnectTimeout(timeouts.getConnectTimeout());
+        }
+        if (request.getReadTimeout() == 0) {
+            request.setReadTimeout(timeouts.getReadTimeout());
+        }
+        return request;
+    }
+
+    @Override
+    public String toString() {
+        return "TimeoutFilter [defaults=" + defaults + ", operations=" + operations + "]";
+    }
+}
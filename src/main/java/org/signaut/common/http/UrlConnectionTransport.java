@@ -0,0 +1,148 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.common.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.Map.Entry;
+import java.util.concurrent.ScheduledFuture;
+
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transport using {@link HttpURLConnection}. Connection reuse is left to the JVM.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @Override
+    public <T> T send(final HttpRequest request, HttpResponseHandler<T> handler) {
+        final String method = request.getMethod();
+        final HttpContent content = request.getContent();
+        HttpURLConnection connection = null;
+        OutputStream out = null;
+        InputStream in = null;
+        T result = null;
+        ScheduledFuture<?> deadline = null;
+        Runnable abort = null;
+        try {
+            Deadlines.checkExpired(request);
+            connection = (HttpURLConnection) request.getUrl().openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(request.effectiveConnectTimeout());
+            connection.setReadTimeout(request.effectiveReadTimeout());
+            final HttpURLConnection aborted = connection;
+            abort = new Runnable() {
+                @Override
+                public void run() {
+                    aborted.disconnect();
+                }
+            };
+            if ( ! request.onAbort(abort)) {
+                throw new RuntimeException(String.format("%s to %s aborted", method, request.getUrl()));
+            }
+            deadline = Deadlines.abortAt(request, abort);
+            for (Entry<String, String> entry: request.getHeaders().entrySet()) {
+                connection.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+            if (content != null) {
+                connection.setDoOutput(true);
+                if (content.getLength() >= 0) {
+                    connection.setFixedLengthStreamingMode(content.getLength());
+                } else {
+                    connection.setChunkedStreamingMode(8192);
+                }
+                out = connection.getOutputStream();
+                content.writeTo(out);
+                out.close();
+            }
+            in = connection.getInputStream();
+            result = handler.handleInput(responseCode(connection), in, connection);
+        } catch (RuntimeException e) {
+            throw Deadlines.timeoutIfExpired(request, e);
+        } catch (IOException e) {
+            if (e instanceof SocketTimeoutException || request.isExpired()) {
+                throw Deadlines.timeout(request, e);
+            }
+            int responseCode = request.isAborted() ? -1 : responseCode(connection);
+            if (responseCode < 0) {
+                //Bail out if we're not getting anything useful out of the reponse
+                throw new RuntimeException(String.format("error %s'ing to %s", method, request.getUrl()), e);
+            }
+            in = connection.getErrorStream();
+            result = handler.handleInput(responseCode, in, connection);
+        } finally {
+            if (abort != null) {
+                request.removeOnAbort(abort);
+            }
+            Deadlines.cancel(deadline);
+            close(out, in);
+        }
+        return result;
+    }
+
+    @Override
+    public void shutdown() {
+        //Nothing to release
+    }
+
+    private int responseCode(HttpURLConnection connection) {
+        if (connection != null){
+            try {
+                return connection.getResponseCode();
+            } catch (IOException e) {
+                //Fall though
+            }
+        }
+        return -1;
+    }
+    
+    private void close(Closeable... streams) {
+        for (Closeable stream : streams) {
+            try {
+                if (stream != null) {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                log.warn("Failed to close streams.", e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UrlConnectionTransport";
+    }
+}
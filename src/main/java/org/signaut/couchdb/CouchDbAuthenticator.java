@@ -27,12 +27,23 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 package org.signaut.couchdb;
 
+import java.util.concurrent.Future;
+
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
 
 public interface CouchDbAuthenticator {
 
     String authenticate(String username, String password);
 
     UserContext validate(String sessionId);
+
+    /**
+     * Validate a session without blocking the calling thread. The result is <code>null</code> if the session is
+     * not valid.
+     * 
+     * @param callback notified on a transport thread. May be <code>null</code>
+     */
+    Future<UserContext> validateAsync(String sessionId, HttpCallback<UserContext> callback);
     
     String decodeAuthToken(String cookie);
     
@@ -31,52 +31,113 @@ import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
+import org.signaut.common.couchdb.CouchDbClientImpl;
+import org.signaut.common.couchdb.CouchDbOperations;
+import org.signaut.common.couchdb.JsonCodec;
+import org.signaut.common.http.HttpConnectionPool;
+import org.signaut.common.http.HttpFuture;
+import org.signaut.common.http.HttpRequest;
+import org.signaut.common.http.HttpTransports;
+import org.signaut.common.http.PooledHttpTransport;
 import org.signaut.common.http.SimpleHttpClient;
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
 import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
-import org.signaut.common.http.SimpleHttpClientImpl;
+import org.signaut.common.http.SingleFlight;
+import org.signaut.common.http.TimeoutFilter;
 import org.signaut.couchdb.CouchDbAuthenticator;
 import org.signaut.couchdb.UserContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 public class CouchDbAuthenticatorImpl implements CouchDbAuthenticator {
 
     private final URL authUrl;
     private final String sessionTokenId = "AuthSession";
     private final Logger log = LoggerFactory.getLogger(getClass());
     private final Pattern authSessionCookiePattern = Pattern.compile(".*" + sessionTokenId + "=");
-    private final SimpleHttpClient httpClient = new SimpleHttpClientImpl();
+    private final SimpleHttpClient httpClient;
     private final AuthHandler authHandler = new AuthHandler();
     private final ConcurrentHashMap<String, UserContext> sessionCache = new ConcurrentHashMap<String, UserContext>();
     private final UserSessionHandler userSessionHandler = new UserSessionHandler();
+    private final SingleFlight<String, UserContext> sessionFlights = new SingleFlight<String, UserContext>();
     private final Map<String, String> authHeaders = new HashMap<String, String>();
-    private final ObjectMapper objectMapper = new ObjectMapper(new JsonFactory()
-            .enable(JsonParser.Feature.ALLOW_COMMENTS).enable(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES));
+    private final JsonCodec codec = JsonCodec.getDefault();
     private final ScheduledExecutorService scheduler;
     private final ScheduledFuture<?> cacheClearTask;
     private final int cacheClearDelay = 120;
     private final long cacheSlack = 5*1000;
 
+    /**
+     * @param properties <code>host</code> is the CouchDB server, or <code>nodes</code> a comma separated list of
+     *            the nodes of a cluster. <code>httpTransport</code> optionally selects one of the
+     *            {@link HttpTransports} and <code>sessionTimeout</code> overrides the deadline in milliseconds for
+     *            <code>_session</code> lookups.
+     */
     public CouchDbAuthenticatorImpl(Properties properties) {
-        this(properties.getProperty("host", "http://localhost:5984")+"/_session");
+        this(nodes(properties).get(0)+"/_session",
+             CouchDbClientImpl.defaultHttpClient(HttpTransports.create(properties.getProperty("httpTransport")),
+                                                 timeouts(properties.getProperty("sessionTimeout")),
+                                                 nodes(properties)));
     }
     
     public CouchDbAuthenticatorImpl(String authenticationUrl) {
+        this(authenticationUrl,
+             CouchDbClientImpl.defaultHttpClient(new PooledHttpTransport(HttpConnectionPool.getDefault()),
+                                                 CouchDbOperations.defaultTimeouts()));
+    }
+
+    /**
+     * @param nodeUrls base URLs of the nodes of a cluster, e.g. <code>http://couch1:5984</code>
+     */
+    public CouchDbAuthenticatorImpl(List<String> nodeUrls) {
+        this(nodeUrls.get(0)+"/_session",
+             CouchDbClientImpl.defaultHttpClient(new PooledHttpTransport(HttpConnectionPool.getDefault()),
+                                                 CouchDbOperations.defaultTimeouts(), nodeUrls));
+    }
+
+    private static List<String> nodes(Properties properties) {
+        final String nodes = properties.getProperty("nodes");
+        if (nodes == null || nodes.trim().isEmpty()) {
+            return Collections.singletonList(properties.getProperty("host", "http://localhost:5984"));
+        }
+        final List<String> nodeUrls = new ArrayList<String>();
+        for (String node: nodes.split(",")) {
+            if ( ! node.trim().isEmpty()) {
+                nodeUrls.add(node.trim());
+            }
+        }
+        return nodeUrls;
+    }
+
+    private static TimeoutFilter timeouts(String sessionTimeout) {
+        final TimeoutFilter timeouts = CouchDbOperations.defaultTimeouts();
+        if (sessionTimeout != null) {
+            timeouts.getTimeouts(CouchDbOperations.SESSION).setTimeout(Long.parseLong(sessionTimeout.trim()));
+        }
+        return timeouts;
+    }
+
+    /**
+     * @param httpClient client to send requests through. Pass the same client to several components to let them
+     *            share connections.
+     */
+    public CouchDbAuthenticatorImpl(String authenticationUrl, SimpleHttpClient httpClient) {
+        this.httpClient = httpClient;
         try {
             this.authUrl = new URL(authenticationUrl);
             authHeaders.put("Content-Type", "application/x-www-form-urlencoded; charset=UTF=8");
@@ -130,7 +191,7 @@ public class CouchDbAuthenticatorImpl implements CouchDbAuthenticator {
         public UserSession handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
             if (responseCode < 400) {
                 try {
-                    final UserSession session = objectMapper.readValue(input, UserSession.class);
+                    final UserSession session = codec.read(input, UserSession.class);
                     final String token = decodeAuthToken(connection.getHeaderField("Set-Cookie"));
                     if (token != null && session != null && session.getUserContext() != null) {
                       session.getUserContext().setAuthToken(token);
@@ -147,11 +208,62 @@ public class CouchDbAuthenticatorImpl implements CouchDbAuthenticator {
     @Override
     public String authenticate(String username, String password) {
         final String content = "name="+username+"&password="+password;
-        return httpClient.post(authUrl, authHandler, content, authHeaders);
+        return httpClient.send(new HttpRequest("POST", authUrl).setContent(content).setHeaders(authHeaders)
+                .setOperation(CouchDbOperations.SESSION), authHandler);
+    }
+
+    /**
+     * Concurrent validations of a session that is not cached share one <code>_session</code> lookup
+     */
+    @Override
+    public UserContext validate(final String sessionId) {
+        final UserContext cached = cachedSession(sessionId);
+        if (cached != null) {
+            return cached;
+        }
+        return sessionFlights.execute(sessionId, new SingleFlight.Call<UserContext>() {
+            @Override
+            public UserContext call() {
+                final UserSession session = httpClient.send(sessionRequest(sessionId), userSessionHandler);
+                return cacheSession(sessionId, session);
+            }
+        });
     }
 
     @Override
-    public UserContext validate(String sessionId) {
+    public Future<UserContext> validateAsync(final String sessionId, HttpCallback<UserContext> callback) {
+        final UserContext cached = cachedSession(sessionId);
+        if (cached != null) {
+            final HttpFuture<UserContext> future = new HttpFuture<UserContext>(callback);
+            future.completed(cached);
+            return future;
+        }
+        return sessionFlights.executeAsync(sessionId, new SingleFlight.AsyncCall<UserContext>() {
+            @Override
+            public void call(final HttpCallback<UserContext> done) {
+                httpClient.sendAsync(sessionRequest(sessionId), userSessionHandler, new HttpCallback<UserSession>() {
+                    @Override
+                    public void completed(UserSession session) {
+                        done.completed(cacheSession(sessionId, session));
+                    }
+
+                    @Override
+                    public void failed(Throwable failure) {
+                        done.failed(failure);
+                    }
+                });
+            }
+        }, callback);
+    }
+
+    /**
+     * @return validations that shared the <code>_session</code> lookup of another validation
+     */
+    public long getAbsorbedValidations() {
+        return sessionFlights.getAbsorbed();
+    }
+
+    private UserContext cachedSession(String sessionId) {
         final UserContext cached = sessionCache.get(sessionId) ;
         if (cached != null) {
             if (cached.getCreationTimestamp() > System.currentTimeMillis() - cacheSlack) {
@@ -159,10 +271,17 @@ public class CouchDbAuthenticatorImpl implements CouchDbAuthenticator {
             }
             sessionCache.remove(sessionId);
         }
+        return null;
+    }
+
+    private HttpRequest sessionRequest(String sessionId) {
         final Map<String, String> headers = new HashMap<String, String>();
         headers.put("Cookie", sessionTokenId+'='+sessionId);
         headers.put("X-CouchDB-WWW-Authenticate", "Cookie");
-        final UserSession session = httpClient.get(authUrl, userSessionHandler, headers);
+        return new HttpRequest("GET", authUrl).setHeaders(headers).setOperation(CouchDbOperations.SESSION);
+    }
+
+    private UserContext cacheSession(String sessionId, UserSession session) {
         if (session != null && session.isOk()) {
             sessionCache.put(sessionId,
                              session.getUserContext());
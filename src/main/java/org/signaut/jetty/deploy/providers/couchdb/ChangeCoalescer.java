@@ -0,0 +1,130 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.jetty.deploy.providers.couchdb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.signaut.common.couchdb.ChangeSet;
+
+/**
+ * Holds back changes until their document has been quiet for a while, and keeps only the latest change of each
+ * document. A burst of updates is then deployed once.
+ * <p>
+ * Changes come out in the order of the last change to each document. As their quiet period ends in that order too,
+ * no document is left behind with a change older than one already handed on, and checkpointing what was handed on
+ * stays safe. Used by a single thread.
+ */
+final class ChangeCoalescer {
+    private final long quietPeriod;
+    private final Map<String, Held> held = new LinkedHashMap<String, Held>();
+    private volatile long skipped = 0;
+
+    /**
+     * @param quietPeriod in milliseconds. 0 hands every change on right away.
+     */
+    ChangeCoalescer(long quietPeriod) {
+        this.quietPeriod = TimeUnit.MILLISECONDS.toNanos(quietPeriod);
+    }
+
+    /**
+     * @param now from {@link System#nanoTime()}
+     */
+    void add(ChangeSet change, long now) {
+        final String key = String.valueOf(change.getId());
+        //Removed first to move it to the end
+        if (held.remove(key) != null) {
+            skipped++;
+        }
+        held.put(key, new Held(change, now + quietPeriod));
+    }
+
+    /**
+     * @return the changes whose quiet period is over, in order
+     */
+    List<ChangeSet> due(long now) {
+        final List<ChangeSet> due = new ArrayList<ChangeSet>();
+        for (Iterator<Held> i = held.values().iterator(); i.hasNext();) {
+            final Held next = i.next();
+            if (next.due - now > 0) {
+                break;
+            }
+            due.add(next.change);
+            i.remove();
+        }
+        return due;
+    }
+
+    /**
+     * @return all changes held back, in order
+     */
+    List<ChangeSet> drain() {
+        final List<ChangeSet> all = new ArrayList<ChangeSet>(held.size());
+        for (Held next: held.values()) {
+            all.add(next.change);
+        }
+        held.clear();
+        return all;
+    }
+
+    /**
+     * @return milliseconds until the next change is due, at least 1, or -1 if none is held back
+     */
+    long nextDue(long now) {
+        if (held.isEmpty()) {
+            return -1;
+        }
+        final long due = held.values().iterator().next().due;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(due - now + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    }
+
+    int getHeld() {
+        return held.size();
+    }
+
+    /**
+     * @return changes replaced by a later change to the same document before they were handed on
+     */
+    long getSkipped() {
+        return skipped;
+    }
+
+    private static final class Held {
+        private final ChangeSet change;
+        private final long due;
+
+        Held(ChangeSet change, long due) {
+            this.change = change;
+            this.due = due;
+        }
+    }
+}
@@ -27,17 +27,23 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 package org.signaut.jetty.deploy.providers.couchdb;
 
-import java.io.BufferedReader;
-import java.io.EOFException;
 import java.io.File;
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
 
 import org.eclipse.jetty.deploy.App;
 import org.eclipse.jetty.deploy.AppProvider;
@@ -56,18 +62,30 @@ import org.eclipse.jetty.server.session.SessionHandler;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.eclipse.jetty.webapp.WebAppContext;
 import org.signaut.common.couchdb.ChangeSet;
+import org.signaut.common.couchdb.ChangesFeed;
+import org.signaut.common.couchdb.ChangesQuery;
 import org.signaut.common.couchdb.CouchDbClient;
 import org.signaut.common.couchdb.CouchDbClientImpl;
+import org.signaut.common.couchdb.CouchDbOperations;
 import org.signaut.common.couchdb.Document;
+import org.signaut.common.couchdb.Document.Attachment;
+import org.signaut.common.couchdb.DocumentCache;
 import org.signaut.common.couchdb.DocumentStatus;
-import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+import org.signaut.common.couchdb.JsonCodec;
+import org.signaut.common.http.CircuitBreakerFilter;
+import org.signaut.common.http.CompressionFilter;
+import org.signaut.common.http.HedgingFilter;
+import org.signaut.common.http.HttpMetrics;
+import org.signaut.common.http.HttpTransports;
+import org.signaut.common.http.RetryFilter;
+import org.signaut.common.http.SimpleHttpClientImpl;
+import org.signaut.common.http.TimeoutFilter;
+import org.signaut.common.http.TimeoutFilter.Timeouts;
+import org.signaut.jetty.deploy.providers.couchdb.DeploymentPipeline.Stage;
 import org.signaut.util.thread.ReplaceableThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 public class CouchDbAppProvider extends AbstractLifeCycle implements AppProvider {
 
     public interface SessionManagerProvider {
@@ -87,7 +105,15 @@ public class CouchDbAppProvider extends AbstractLifeCycle implements AppProvider
     private LoginService loginService;
     private SessionManagerProvider sessionManagerProvider;
     private CouchDbClient couchDbClient;
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private SimpleHttpClientImpl httpClient;
+    private DocumentCache documentCache;
+    private WarCache warCache;
+    private String metricsObjectName = "org.signaut.couchdb:type=HttpMetrics";
+    private ObjectName registeredMetrics;
+    private static final long MAX_RETRY_DELAY = 60000;
+    /** Milliseconds the checkpoint file may lag behind the deployments */
+    private static final long CHECKPOINT_DELAY = 1000;
+
     private final Logger log = LoggerFactory.getLogger(getClass());
     private boolean restartingConnectorsRequired = false;
     private long changeSetGracePeriod = 5000;
@@ -99,9 +125,19 @@ public class CouchDbAppProvider extends AbstractLifeCycle implements AppProvider
      * apps would be redeployed, and we don't want that.
      * This is a string in order to support BigCouch
      */
-    private Object lastSequence = null;
+    private volatile Object lastSequence = null;
     
     private Thread changeListenerThread;
+    private ChangesFeed changesFeed;
+    private DeploymentPipeline deploymentPipeline;
+    private ChangeCoalescer changeCoalescer;
+    private final Object deploymentLock = new Object();
+    private final Object checkpointLock = new Object();
+    private final AtomicBoolean checkpointChanged = new AtomicBoolean();
+    private final AtomicInteger redeployCounter = new AtomicInteger();
+    private final Map<String, String> deployedRevisions = new ConcurrentHashMap<String, String>();
+    private final Map<String, String> deployedWars = new ConcurrentHashMap<String, String>();
+    private int changeBufferSize = 100;
     private String serverClasses[] = { "com.google.inject.", "org.slf4j.", "ch.qos.logback", "org.apache.log4j.", "org.signaut." };
     private String systemClasses[] = null;
 
@@ -120,12 +156,83 @@ public class CouchDbAppProvider extends AbstractLifeCycle implements AppProvider
 
     public CouchDbAppProvider setCouchDeployerProperties(CouchDbDeployerProperties couchDeployerProperties) {
         this.couchDeployerProperties = couchDeployerProperties;
-        couchDbClient = new CouchDbClientImpl(couchDeployerProperties.getDatabaseUrl(), couchDeployerProperties.getUsername(),
-                                              couchDeployerProperties.getPassword());
+        httpClient = createHttpClient(couchDeployerProperties);
+        final CouchDbClientImpl client = new CouchDbClientImpl(couchDeployerProperties.getDatabaseUrl(),
+                                                               couchDeployerProperties.getUsername(),
+                                                               couchDeployerProperties.getPassword(), httpClient);
+        if (couchDeployerProperties.getDocumentCacheSize() > 0) {
+            documentCache = new DocumentCache(couchDeployerProperties.getDocumentCacheSize());
+            client.setDocumentCache(documentCache);
+        } else {
+            documentCache = null;
+        }
+        client.getAttachmentDownloader().setParallelism(couchDeployerProperties.getDownloadParallelism());
+        couchDbClient = client;
+        if (couchDeployerProperties.getWarCacheSize() > 0) {
+            warCache = new WarCache(client, new File(couchDeployerProperties.getTemporaryDirectory(), "war-cache"),
+                                    couchDeployerProperties.getWarCacheSize());
+        } else {
+            warCache = null;
+        }
         return this;
 
     }
 
+    private SimpleHttpClientImpl createHttpClient(CouchDbDeployerProperties properties) {
+        final TimeoutFilter timeouts = CouchDbOperations.defaultTimeouts();
+        final int connectTimeout = properties.getConnectTimeout();
+        timeouts.getDefaults().setConnectTimeout(connectTimeout);
+        timeouts.setTimeouts(CouchDbOperations.DOCUMENT,
+                             new Timeouts(properties.getDocumentTimeout(), connectTimeout,
+                                          (int) Math.min(Integer.MAX_VALUE, properties.getDocumentTimeout())));
+        timeouts.setTimeouts(CouchDbOperations.ATTACHMENT,
+                             new Timeouts(0, connectTimeout, properties.getAttachmentReadTimeout()));
+        timeouts.setTimeouts(CouchDbOperations.ATTACHMENT_RANGE,
+                             new Timeouts(0, connectTimeout, properties.getAttachmentReadTimeout()));
+        //The feed sets its own read timeout from the heartbeat
+        timeouts.setTimeouts(CouchDbOperations.CHANGES, new Timeouts(0, connectTimeout, 0));
+        final SimpleHttpClientImpl httpClient = new SimpleHttpClientImpl(HttpTransports.create(properties.getHttpTransport()))
+                .setMetrics(new HttpMetrics().slowRequestThreshold(properties.getSlowRequestThreshold()))
+                .addFilter(timeouts)
+                .addFilter(CouchDbOperations.defaultBulkheads()
+                               .setBulkhead(CouchDbOperations.DOCUMENT, properties.getDocumentConcurrency(), 100, 0)
+                               .setBulkhead(CouchDbOperations.ATTACHMENT, properties.getAttachmentConcurrency(), 100, 0))
+                .addFilter(new RetryFilter().setMaxRetries(properties.getMaxRetries()));
+        if (properties.getHedgingPercentile() > 0) {
+            httpClient.addFilter(new HedgingFilter(CouchDbOperations.DOCUMENT)
+                                     .setPercentile(properties.getHedgingPercentile()));
+        }
+        if (properties.getNodes().size() > 1) {
+            httpClient.addFilter(CouchDbClientImpl.loadBalancer(properties.getNodes()));
+        }
+        httpClient.addFilter(new CircuitBreakerFilter()
+                               .setFailureRateThreshold(properties.getCircuitBreakerFailureRate())
+                               .setOpenTime(properties.getCircuitBreakerOpenTime()));
+        return httpClient.addFilter(new CompressionFilter()
+                                        .setCompressingRequests(properties.isCompressRequests())
+                                        .setMinimumSize(properties.getCompressionThreshold()));
+    }
+
+    /**
+     * @return latency, bytes and status counts of the requests sent to CouchDB
+     */
+    public HttpMetrics getHttpMetrics() {
+        return httpClient == null ? null : httpClient.getMetrics();
+    }
+
+    public String getMetricsObjectName() {
+        return metricsObjectName;
+    }
+
+    /**
+     * @param metricsObjectName JMX name the HTTP metrics are registered under when started. <code>null</code> skips
+     *            registration.
+     */
+    public CouchDbAppProvider setMetricsObjectName(String metricsObjectName) {
+        this.metricsObjectName = metricsObjectName;
+        return this;
+    }
+
     public Authenticator.Factory getAuthenticatorFactory() {
         return authenticatorFactory;
     }
@@ -162,6 +269,55 @@ public class CouchDbAppProvider extends AbstractLifeCycle implements AppProvider
         return this;
     }
 
+    public int getChangeBufferSize() {
+        return changeBufferSize;
+    }
+
+    /**
+     * @param changeBufferSize changes read ahead of deployment at most, both in the feed and in the deployment
+     *            pipeline. The feed stops reading while deployment lags this far behind.
+     */
+    public CouchDbAppProvider setChangeBufferSize(int changeBufferSize) {
+        this.changeBufferSize = changeBufferSize;
+        return this;
+    }
+
+    /**
+     * @return the changes feed while started
+     */
+    public ChangesFeed getChangesFeed() {
+        return changesFeed;
+    }
+
+    /**
+     * @return queue depth and per stage latency of the deployments while started
+     */
+    public DeploymentPipeline getDeploymentPipeline() {
+        return deploymentPipeline;
+    }
+
+    /**
+     * @return redeploys left out because a later change to the same webapp came within the quiet period
+     */
+    public long getSkippedRedeploys() {
+        final ChangeCoalescer coalescer = changeCoalescer;
+        return coalescer == null ? 0 : coalescer.getSkipped();
+    }
+
+    /**
+     * @return the wars kept by attachment digest, <code>null</code> if turned off
+     */
+    public WarCache getWarCache() {
+        return warCache;
+    }
+
+    /**
+     * @return revision by document id of the webapps deployed, or, after a restart, about to be deployed again
+     */
+    public Map<String, String> getDeployedRevisions() {
+        return Collections.unmodifiableMap(deployedRevisions);
+    }
+
     public String[] getServerClasses() {
         return serverClasses;
     }
@@ -192,13 +348,99 @@ public class CouchDbAppProvider extends AbstractLifeCycle implements AppProvider
             throw new IllegalArgumentException("Already running");
         }
         
+        if (metricsObjectName != null && getHttpMetrics() != null) {
+            registeredMetrics = getHttpMetrics().register(ManagementFactory.getPlatformMBeanServer(), metricsObjectName);
+        }
+        JsonCodec.getDefault().prepare(ChangeSet.class, DocumentStatus.class, Document.class, WebAppDocument.class);
         verifyDesignDocument();
         
-        changeListenerThread = new ChangeListener();
+        final File checkpointFile = checkpointFile();
+        final DeploymentCheckpoint checkpoint = checkpointFile == null ? null : DeploymentCheckpoint.read(checkpointFile);
+        final Collection<String> deployed;
+        if (checkpoint != null) {
+            log.info("Resuming from {}", checkpoint);
+            lastSequence = checkpoint.getSequence();
+            deployed = checkpoint.getDeployed().keySet();
+            //Kept until redeployed, so stopping early does not lose them from the next checkpoint
+            deployedRevisions.putAll(checkpoint.getDeployed());
+        } else {
+            deployed = Collections.emptySet();
+        }
+        log.info(String.format("CouchDB sequence: %s", lastSequence));
+        changesFeed = couchDbClient.changes(new ChangesQuery()
+                                                .setSince(lastSequence)
+                                                .setFilter(couchDeployerProperties.getFilter())
+                                                .setIncludeDocs(couchDeployerProperties.isIncludeDocs())
+                                                //Heartbeat is in seconds
+                                                .setHeartbeat(couchDeployerProperties.getHeartbeat() * 1000)
+                                                .setRetryDelay(changeSetGracePeriod),
+                                            changeBufferSize);
+        final ChangesFeed feed = changesFeed;
+        deploymentPipeline = new DeploymentPipeline(couchDeployerProperties.getDeploymentConcurrency(),
+                                                    changeBufferSize, new DeploymentPipeline.Listener() {
+                                                        @Override
+                                                        public void completed(Object sequence) {
+                                                            lastSequence = sequence;
+                                                            feed.checkpoint(sequence);
+                                                            //Written by the change listener, off the pipeline's lock
+                                                            checkpointChanged.set(true);
+                                                        }
+                                                    });
+        changeCoalescer = new ChangeCoalescer(couchDeployerProperties.getChangeQuietPeriod());
+        changeListenerThread = new ChangeListener(changesFeed, deploymentPipeline, changeCoalescer, deployed,
+                                                  lastSequence);
         changeListenerThread.setName("CouchDB-change-listener");
         changeListenerThread.start();
     }
     
+    @Override
+    protected void doStop() {
+        if (changesFeed != null) {
+            changesFeed.close();
+            changesFeed = null;
+        }
+        if (changeListenerThread != null) {
+            changeListenerThread.interrupt();
+            changeListenerThread = null;
+        }
+        if (deploymentPipeline != null) {
+            deploymentPipeline.close();
+            deploymentPipeline = null;
+        }
+        //No deployment completes after the pipeline is closed
+        saveCheckpoint();
+        changeCoalescer = null;
+        HttpMetrics.unregister(ManagementFactory.getPlatformMBeanServer(), registeredMetrics);
+        registeredMetrics = null;
+    }
+
+    private File checkpointFile() {
+        return couchDeployerProperties.getCheckpointFile() == null ? null
+                : new File(couchDeployerProperties.getCheckpointFile());
+    }
+
+    /**
+     * Writes the checkpoint if a deployment has completed since it was last written
+     */
+    private void saveCheckpointIfChanged() {
+        if (checkpointChanged.getAndSet(false)) {
+            saveCheckpoint();
+        }
+    }
+
+    private void saveCheckpoint() {
+        final File file = checkpointFile();
+        if (file != null) {
+            synchronized (checkpointLock) {
+                try {
+                    new DeploymentCheckpoint(lastSequence, deployedRevisions).write(file);
+                } catch (IllegalStateException e) {
+                    log.error("Checkpoint not saved", e);
+                }
+            }
+        }
+    }
+
     private void verifyDesignDocument() {
         log.info("Validating design document " + couchDeployerProperties.getDesignDocument());
         final String designDocumentId = "_design/"+couchDeployerProperties.getDesignDocument();
@@ -228,104 +470,270 @@ public class CouchDbAppProvider extends AbstractLifeCycle implements AppProvider
         log.info("Design document ok");
     }
 
+    /**
+     * Hands the changes taken from the feed to the deployment pipeline once their webapp has been quiet for the
+     * configured period. The webapps of the last checkpoint go first, deployed at their current revision. A change
+     * that fails is retried after the
+     * grace period until it goes through or the provider is stopped. Only later changes to the same webapp wait for
+     * it.
+     */
     private final class ChangeListener extends Thread {
-        private int redeployCounter = 0;
+        private final ChangesFeed feed;
+        private final DeploymentPipeline pipeline;
+        private final ChangeCoalescer coalescer;
+        private final Collection<String> deployed;
+        private final Object sequence;
+
+        ChangeListener(ChangesFeed feed, DeploymentPipeline pipeline, ChangeCoalescer coalescer,
+                       Collection<String> deployed, Object sequence) {
+            this.feed = feed;
+            this.pipeline = pipeline;
+            this.coalescer = coalescer;
+            this.deployed = deployed;
+            this.sequence = sequence;
+        }
 
-        final HttpResponseHandler<Void> changeSetHandler = new HttpResponseHandler<Void>(){
-            @Override
-            public Void handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
-                try {
-                    final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-                    String change;
-                    while ((change = reader.readLine())!=null) {
-                        final ChangeSet changeSet = decode(change, ChangeSet.class);
-                        if (changeSet == null || changeSet.getSequence() == null) {
-                            if (changeSet != null && changeSet.getSequence() == null) {
-                                throw new IllegalStateException(String.format("bad change: %s", change));
-                            }
-                            continue;
-                        }
-                        if (changeSet.getId() == null) {
-                            log.warn("Could not find document id in " + change);
-                            continue;
-                        }
-                        if ( ! changeSet.isDeleted()) {
-                            final WebAppDocument webapp = couchDbClient.getDocument(changeSet.getId(), WebAppDocument.class);
-                            if (webapp != null) {
-                                //undeploy existing app at this app's context path
-                                final App oldApp = deploymentManager.getAppByOriginId(changeSet.getId());
-                                if (oldApp != null) {
-                                    log.debug("Undeploying {} at {}", oldApp.getOriginId(), oldApp.getContextPath());
-                                    undeploy(oldApp);
-                                }
-                            }
-                            deploymentManager.addApp(new App(deploymentManager, CouchDbAppProvider.this, changeSet.getId()));
-                            ContextHandlerCollection chc = deploymentManager.getContexts();
-                            if (chc.getHandlers() != null) {
-                                for (Handler c: chc.getHandlers()) {
-                                    log.debug(String.format("Context: %s (isRunning: %s)",c,c.isRunning() ));
+        @Override
+        public void run() {
+            try {
+                for (String id: deployed) {
+                    final ChangeSet current = new ChangeSet();
+                    current.setId(id);
+                    current.setSequence(sequence);
+                    submit(Collections.singletonList(current));
+                }
+                List<ChangeSet> changeSets;
+                while ((changeSets = feed.take(changeBufferSize, waitTime(), TimeUnit.MILLISECONDS)) != null) {
+                    for (ChangeSet changeSet: changeSets) {
+                        coalescer.add(changeSet, System.nanoTime());
+                    }
+                    submit(coalescer.due(System.nanoTime()));
+                    saveCheckpointIfChanged();
+                }
+                //A normal feed has been read in full
+                submit(coalescer.drain());
+                while ( ! pipeline.isIdle()) {
+                    Thread.sleep(CHECKPOINT_DELAY);
+                    saveCheckpointIfChanged();
+                }
+                saveCheckpointIfChanged();
+            } catch (InterruptedException e) {
+                //Stopped
+            } catch (RejectedExecutionException e) {
+                //Stopped
+            }
+        }
+
+        /**
+         * @return milliseconds to wait for changes before the next held back change is due
+         */
+        private long waitTime() {
+            final long due = coalescer.nextDue(System.nanoTime());
+            final long wait = due < 0 ? TimeUnit.SECONDS.toMillis(couchDeployerProperties.getHeartbeat()) : due;
+            return checkpointChanged.get() ? Math.min(wait, CHECKPOINT_DELAY) : wait;
+        }
+
+        private void submit(List<ChangeSet> changeSets) throws InterruptedException {
+            for (final ChangeSet changeSet: changeSets) {
+                pipeline.submit(String.valueOf(changeSet.getId()), changeSet.getSequence(), new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            int attempts = 1;
+                            while ( ! handle(changeSet)) {
+                                //While stopping, the change is left for the next start instead
+                                if (isRunning() && attempts >= couchDeployerProperties.getDeploymentAttempts()) {
+                                    log.error("Giving up on {} at revision {} after {} attempts", changeSet.getId(),
+                                              changeSet.getRevision(), attempts);
+                                    return;
                                 }
+                                Thread.sleep(retryDelay(attempts++));
                             }
-                            //log.debug(deploymentManager.getServer().dump());
-                        }
-                        lastSequence = changeSet.getSequence();
-                        if (couchDeployerProperties.getCompactInterval() > 0) {
-                            redeployCounter++;
-                            if (redeployCounter >= couchDeployerProperties.getCompactInterval()) {
-                                //Compact database to avoid wasting too much space
-                                log.info("Compacting database");
-                                couchDbClient.compactDatabase();
-                                redeployCounter = 0;
-                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
                         }
                     }
-                } catch (IOException e) {
-                    //Ignore
+                });
+            }
+        }
+
+        /**
+         * @return the grace period, doubled for each attempt after the first, up to {@link #MAX_RETRY_DELAY}
+         */
+        private long retryDelay(int attempts) {
+            return Math.min(MAX_RETRY_DELAY, changeSetGracePeriod << Math.min(attempts - 1, 20));
+        }
+
+        /**
+         * Runs on a pipeline worker
+         * 
+         * @return <code>false</code> if the change should be retried
+         */
+        private boolean handle(ChangeSet changeSet) {
+            if ( ! isRunning()) {
+                //Left incomplete, so the checkpoint does not move past it. Closing the pipeline ends the retries.
+                return false;
+            }
+            if (changeSet.getId() == null) {
+                log.warn("Could not find document id in " + changeSet);
+                return true;
+            }
+            try {
+                if (documentCache != null) {
+                    documentCache.invalidate(changeSet.getId(), changeSet.getRevision());
                 }
-                return null;
-            }};
-        
-        @Override
-        public void run() {
-            while (isRunning()) {
-                try {
-                    final long beforeRequest = System.currentTimeMillis();
-                    try {
-                        log.info(String.format("CouchDB sequence: %s", lastSequence));
-                        couchDbClient.get("/_changes?feed=continuous" +
-                                //Heartbeat is in milliseconds
-                                "&heartbeat=" + couchDeployerProperties.getHeartbeat()*1000 +
-                                "&filter=" + couchDeployerProperties.getFilter() +
-                                (lastSequence==null?"":"&since=" + encodeSequence(lastSequence)),
-                                changeSetHandler);
-                    } catch (Throwable t) {
-                        log.error("While listening for changes", t);
+                if ( ! changeSet.isDeleted()) {
+                    long start = System.nanoTime();
+                    //Changes read with include_docs carry their document
+                    WebAppDocument webapp = feed.getDocument(changeSet, WebAppDocument.class);
+                    if (webapp == null) {
+                        webapp = couchDbClient.getDocument(changeSet.getId(), WebAppDocument.class);
                     }
-                    final long sinceLastRequest = System.currentTimeMillis() - beforeRequest;
-                    //Back off if CouchDB is not available at the moment.
-                    if (sinceLastRequest < changeSetGracePeriod) {
-                        Thread.sleep(changeSetGracePeriod);
+                    pipeline.record(Stage.FETCH, start);
+                    if (webapp != null) {
+                        start = System.nanoTime();
+                        final String war = download(webapp);
+                        pipeline.record(Stage.DOWNLOAD, start);
+                        start = System.nanoTime();
+                        boolean deployed = false;
+                        try {
+                            deployed = deploy(new CouchDbApp(webapp, war));
+                        } finally {
+                            if ( ! deployed) {
+                                release(war);
+                            }
+                        }
+                        pipeline.record(Stage.DEPLOY, start);
+                    } else {
+                        log.debug("{} is gone", changeSet.getId());
+                        deployedRevisions.remove(changeSet.getId());
                     }
-                } catch (Throwable t) {
-                    log.error("While listening for changes", t);
                 }
+                if (couchDeployerProperties.getCompactInterval() > 0
+                    && redeployCounter.incrementAndGet() >= couchDeployerProperties.getCompactInterval()) {
+                    //Compact database to avoid wasting too much space
+                    redeployCounter.set(0);
+                    log.info("Compacting database");
+                    couchDbClient.compactDatabase();
+                }
+                return true;
+            } catch (Throwable t) {
+                log.error("While handling " + changeSet, t);
+                return false;
             }
         }
     }
-    private String encodeSequence(Object seq) {
-        if (seq == null) {
+
+    /**
+     * Takes the war from the war cache, or downloads it into a directory of the document revision. Either way the
+     * running revision keeps its war until it is undeployed.
+     * 
+     * @return path of the war, <code>null</code> if there is none
+     */
+    private String download(WebAppDocument webapp) {
+        if (webapp.getWar() == null) {
             return null;
         }
-        if (seq instanceof String || seq instanceof Number) {
-            return seq.toString();
+        final Attachment attachment = webapp.getAttachments() == null ? null
+                : webapp.getAttachments().get(webapp.getWar());
+        if (warCache != null && attachment != null) {
+            return warCache.get(webapp.getId(), webapp.getWar(), attachment);
         }
-        try {
-            return objectMapper.writeValueAsString(seq);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("while encoding sequence " + seq, e);
+        return couchDbClient.downloadAttachment(webapp.getId(), webapp.getWar(),
+                                                new File(appDirectory(webapp.getId()),
+                                                         String.valueOf(webapp.getRevision())));
+    }
+
+    private void release(String war) {
+        if (warCache != null) {
+            warCache.release(war);
         }
     }
-    
+
+    private File appDirectory(String originId) {
+        return new File(couchDeployerProperties.getTemporaryDirectory() + "/" + originId);
+    }
+
+    /**
+     * Replaces the app deployed from the same document. Jetty's deployment manager is not meant for concurrent use,
+     * so only this step is done one app at a time.
+     * 
+     * @return <code>true</code> if the app was added, and now holds on to its war
+     */
+    private boolean deploy(CouchDbApp app) {
+        synchronized (deploymentLock) {
+            //undeploy existing app at this app's context path
+            final App oldApp = deploymentManager.getAppByOriginId(app.getOriginId());
+            if (oldApp != null) {
+                log.debug("Undeploying {} at {}", oldApp.getOriginId(), oldApp.getContextPath());
+                undeploy(oldApp);
+            }
+            //The replaced app is gone, and so is its hold on its war
+            release(deployedWars.remove(app.getOriginId()));
+            if (app.webapp.getWar() == null) {
+                log.error(String.format("No war file for %s", app.webapp));
+                deployedRevisions.remove(app.getOriginId());
+                return false;
+            }
+            if (app.war == null) {
+                log.error(String.format("War file not found: %s", app.webapp));
+                deployedRevisions.remove(app.getOriginId());
+                return false;
+            }
+            deploymentManager.addApp(app);
+            deployedRevisions.put(app.getOriginId(), String.valueOf(app.webapp.getRevision()));
+            deployedWars.put(app.getOriginId(), app.war);
+            ContextHandlerCollection chc = deploymentManager.getContexts();
+            if (chc.getHandlers() != null) {
+                for (Handler c: chc.getHandlers()) {
+                    log.debug(String.format("Context: %s (isRunning: %s)",c,c.isRunning() ));
+                }
+            }
+        }
+        removeOtherRevisions(appDirectory(app.getOriginId()), new File(app.war).getAbsoluteFile().getParentFile());
+        return true;
+    }
+
+    /**
+     * @param keep the directory of the war deployed, which may be in the war cache instead
+     */
+    private void removeOtherRevisions(File directory, File keep) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                if ( ! file.getAbsoluteFile().equals(keep)) {
+                    delete(file);
+                }
+            }
+        }
+    }
+
+    private void delete(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File child: files) {
+                delete(child);
+            }
+        }
+        if ( ! file.delete()) {
+            log.warn("Could not delete " + file);
+        }
+    }
+
+    /**
+     * An app with its document and war at hand, so creating the context needs no round trips
+     */
+    private final class CouchDbApp extends App {
+        private final WebAppDocument webapp;
+        private final String war;
+
+        CouchDbApp(WebAppDocument webapp, String war) {
+            super(deploymentManager, CouchDbAppProvider.this, webapp.getId());
+            this.webapp = webapp;
+            this.war = war;
+        }
+    }
+
     private void undeploy(App app) {
     	for (Connector c: deploymentManager.getServer().getConnectors()) {
     		if (c instanceof AbstractConnector) {
@@ -352,31 +760,19 @@ public class CouchDbAppProvider extends AbstractLifeCycle implements AppProvider
 
     @Override
     public ContextHandler createContextHandler(App app) throws Exception {
-        final WebAppDocument webapp = couchDbClient.getDocument(app.getOriginId(), WebAppDocument.class);
-        if (webapp.getWar() == null) {
-            undeploy(app);
-            throw new IllegalArgumentException(String.format("No war file for %s", webapp)); 
-        }
-
-        final File directory = new File(couchDeployerProperties.getTemporaryDirectory()+"/"+app.getOriginId());
-        //Point war to full path of downloaded file
-        final String path = couchDbClient.downloadAttachment(app.getOriginId(), webapp.getWar(), directory);
-        if (path == null) {
-            undeploy(app);
-            throw new IllegalArgumentException(String.format("War file not found: %s", webapp)); 
-        }
-        webapp.setWar(path);
-        return createContext(webapp);
+        final CouchDbApp couchDbApp = (CouchDbApp) app;
+        //The document may be shared through the document cache, so the path is passed along rather than set on it
+        return createContext(couchDbApp.webapp, couchDbApp.war);
     }
 
-    private ContextHandler createContext(WebAppDocument desc) {
+    private ContextHandler createContext(WebAppDocument desc, String war) {
         log.info("Creating new context for {}", desc);
         final WebAppContext context = new WebAppContext(desc.getName(), desc.getContextPath());
         context.setVirtualHosts(desc.getVirtualHosts());
         context.setServerClasses(concat(context.getServerClasses(), serverClasses));
         context.setSystemClasses(concat(context.getSystemClasses(), systemClasses));
 
-        context.setWar(desc.getWar());
+        context.setWar(war);
         final ErrorHandler errorHandler = new JsonErrorHandler();
         errorHandler.setShowStacks(desc.isShowingFullStacktrace());
         context.setErrorHandler(errorHandler);
@@ -387,20 +783,6 @@ public class CouchDbAppProvider extends AbstractLifeCycle implements AppProvider
         return context;
     }
 
-    private <T> T decode(String str, Class<T> type) {
-        try {
-            if (str == null || str.isEmpty()) {
-                return null;
-            }
-            return objectMapper.readValue(str, type);
-        } catch (EOFException e) {
-            return null;
-        } catch (Exception e) {
-            throw new IllegalArgumentException(String.format("While parsing %s as %s", str, type), e);
-        }
-    }
-    
-    
     public void setServerClasses(String[] serverClasses) {
         this.serverClasses = serverClasses;
     }
@@ -27,6 +27,12 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 package org.signaut.jetty.deploy.providers.couchdb;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.signaut.common.http.CompressionFilter;
+import org.signaut.common.http.HttpTransports;
 
 public class CouchDbDeployerProperties {
     private String databaseUrl;
@@ -37,6 +43,28 @@ public class CouchDbDeployerProperties {
     private int heartbeat = 5;
     private int compactInterval = 4;
     private String temporaryDirectory = System.getProperty("java.io.tmpdir");
+    private String httpTransport = HttpTransports.POOLED;
+    private boolean compressRequests = false;
+    private int compressionThreshold = CompressionFilter.DEFAULT_MINIMUM_SIZE;
+    private int connectTimeout = 5000;
+    private long documentTimeout = 30000;
+    private int attachmentReadTimeout = 30000;
+    private double hedgingPercentile = 0;
+    private int maxRetries = 3;
+    private int circuitBreakerFailureRate = 50;
+    private long circuitBreakerOpenTime = 5000;
+    private List<String> nodes = Collections.emptyList();
+    private long slowRequestThreshold = 0;
+    private int documentConcurrency = 8;
+    private int attachmentConcurrency = 4;
+    private int documentCacheSize = 0;
+    private int downloadParallelism = 1;
+    private int deploymentConcurrency = 4;
+    private long changeQuietPeriod = 0;
+    private String checkpointFile;
+    private long warCacheSize = 1024L * 1024 * 1024;
+    private boolean includeDocs = false;
+    private int deploymentAttempts = 5;
 
     public CouchDbDeployerProperties() {
     }
@@ -120,4 +148,277 @@ public class CouchDbDeployerProperties {
     public void setCompactInterval(int compactInterval) {
         this.compactInterval = compactInterval;
     }
+
+    public String getHttpTransport() {
+        return httpTransport;
+    }
+
+    /**
+     * @param httpTransport transport used to talk to CouchDB. See {@link HttpTransports}
+     */
+    public CouchDbDeployerProperties setHttpTransport(String httpTransport) {
+        this.httpTransport = httpTransport;
+        return this;
+    }
+
+    public boolean isCompressRequests() {
+        return compressRequests;
+    }
+
+    /**
+     * @param compressRequests gzip request bodies sent to CouchDB. Responses are always negotiated.
+     */
+    public CouchDbDeployerProperties setCompressRequests(boolean compressRequests) {
+        this.compressRequests = compressRequests;
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @param compressionThreshold request bodies smaller than this many bytes are sent uncompressed
+     */
+    public CouchDbDeployerProperties setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @param connectTimeout milliseconds to wait for a connection to CouchDB
+     */
+    public CouchDbDeployerProperties setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    public long getDocumentTimeout() {
+        return documentTimeout;
+    }
+
+    /**
+     * @param documentTimeout deadline in milliseconds for reading a document
+     */
+    public CouchDbDeployerProperties setDocumentTimeout(long documentTimeout) {
+        this.documentTimeout = documentTimeout;
+        return this;
+    }
+
+    public int getAttachmentReadTimeout() {
+        return attachmentReadTimeout;
+    }
+
+    /**
+     * @param attachmentReadTimeout milliseconds a war download may stall before it is given up
+     */
+    public CouchDbDeployerProperties setAttachmentReadTimeout(int attachmentReadTimeout) {
+        this.attachmentReadTimeout = attachmentReadTimeout;
+        return this;
+    }
+
+    public double getHedgingPercentile() {
+        return hedgingPercentile;
+    }
+
+    /**
+     * @param hedgingPercentile resend document reads that have not been answered within this percentile of recent
+     *            response times, e.g. 95. 0 turns hedging off.
+     */
+    public CouchDbDeployerProperties setHedgingPercentile(double hedgingPercentile) {
+        this.hedgingPercentile = hedgingPercentile;
+        return this;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param maxRetries retries of failed idempotent calls, with jittered exponential backoff. 0 turns retries off.
+     */
+    public CouchDbDeployerProperties setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    public int getCircuitBreakerFailureRate() {
+        return circuitBreakerFailureRate;
+    }
+
+    /**
+     * @param circuitBreakerFailureRate percentage of failed calls at which calls to CouchDB are stopped
+     */
+    public CouchDbDeployerProperties setCircuitBreakerFailureRate(int circuitBreakerFailureRate) {
+        this.circuitBreakerFailureRate = circuitBreakerFailureRate;
+        return this;
+    }
+
+    public long getCircuitBreakerOpenTime() {
+        return circuitBreakerOpenTime;
+    }
+
+    /**
+     * @param circuitBreakerOpenTime milliseconds calls fail fast before CouchDB is probed again
+     */
+    public CouchDbDeployerProperties setCircuitBreakerOpenTime(long circuitBreakerOpenTime) {
+        this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+        return this;
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @param nodes base URLs of all nodes of the CouchDB cluster, e.g. <code>http://couch1:5984</code>. Requests to
+     *            the node in the database url are spread over all of them.
+     */
+    public CouchDbDeployerProperties setNodes(String... nodes) {
+        this.nodes = nodes == null ? Collections.<String> emptyList() : Arrays.asList(nodes);
+        return this;
+    }
+
+    public long getSlowRequestThreshold() {
+        return slowRequestThreshold;
+    }
+
+    /**
+     * @param slowRequestThreshold milliseconds. CouchDB requests taking longer are logged. 0 turns it off.
+     */
+    public CouchDbDeployerProperties setSlowRequestThreshold(long slowRequestThreshold) {
+        this.slowRequestThreshold = slowRequestThreshold;
+        return this;
+    }
+
+    public int getDocumentConcurrency() {
+        return documentConcurrency;
+    }
+
+    /**
+     * @param documentConcurrency document reads sent to CouchDB at the same time. Others wait in line.
+     */
+    public CouchDbDeployerProperties setDocumentConcurrency(int documentConcurrency) {
+        this.documentConcurrency = documentConcurrency;
+        return this;
+    }
+
+    public int getAttachmentConcurrency() {
+        return attachmentConcurrency;
+    }
+
+    /**
+     * @param attachmentConcurrency war downloads running at the same time. Others wait in line.
+     */
+    public CouchDbDeployerProperties setAttachmentConcurrency(int attachmentConcurrency) {
+        this.attachmentConcurrency = attachmentConcurrency;
+        return this;
+    }
+
+    public int getDocumentCacheSize() {
+        return documentCacheSize;
+    }
+
+    /**
+     * @param documentCacheSize webapp documents kept and revalidated with <code>If-None-Match</code>. 0 turns the
+     *            cache off.
+     */
+    public CouchDbDeployerProperties setDocumentCacheSize(int documentCacheSize) {
+        this.documentCacheSize = documentCacheSize;
+        return this;
+    }
+
+    public int getDownloadParallelism() {
+        return downloadParallelism;
+    }
+
+    /**
+     * @param downloadParallelism byte ranges a large war is downloaded in at the same time. 1 downloads it as a
+     *            single stream.
+     */
+    public CouchDbDeployerProperties setDownloadParallelism(int downloadParallelism) {
+        this.downloadParallelism = downloadParallelism;
+        return this;
+    }
+
+    public int getDeploymentConcurrency() {
+        return deploymentConcurrency;
+    }
+
+    /**
+     * @param deploymentConcurrency webapps fetched, downloaded and deployed at the same time. Changes to the same
+     *            webapp are always handled one after the other.
+     */
+    public CouchDbDeployerProperties setDeploymentConcurrency(int deploymentConcurrency) {
+        this.deploymentConcurrency = deploymentConcurrency;
+        return this;
+    }
+
+    public long getChangeQuietPeriod() {
+        return changeQuietPeriod;
+    }
+
+    /**
+     * @param changeQuietPeriod milliseconds a webapp document must go without changes before it is deployed. Only
+     *            its latest change is then deployed. 0 deploys every change.
+     */
+    public CouchDbDeployerProperties setChangeQuietPeriod(long changeQuietPeriod) {
+        this.changeQuietPeriod = changeQuietPeriod;
+        return this;
+    }
+
+    public String getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * @param checkpointFile where the feed sequence and the deployed revisions are saved. On start the saved apps are
+     *            deployed once and the feed resumes from the sequence. <code>null</code> replays the feed from the
+     *            beginning.
+     */
+    public CouchDbDeployerProperties setCheckpointFile(String checkpointFile) {
+        this.checkpointFile = checkpointFile;
+        return this;
+    }
+
+    public long getWarCacheSize() {
+        return warCacheSize;
+    }
+
+    /**
+     * @param warCacheSize bytes of wars kept in <code>temporaryDirectory/war-cache</code> by attachment digest, apart
+     *            from wars in use. 0 downloads every war again.
+     */
+    public CouchDbDeployerProperties setWarCacheSize(long warCacheSize) {
+        this.warCacheSize = warCacheSize;
+        return this;
+    }
+
+    public boolean isIncludeDocs() {
+        return includeDocs;
+    }
+
+    /**
+     * @param includeDocs have the changes feed carry the webapp documents, so they are not fetched one by one
+     */
+    public CouchDbDeployerProperties setIncludeDocs(boolean includeDocs) {
+        this.includeDocs = includeDocs;
+        return this;
+    }
+
+    public int getDeploymentAttempts() {
+        return deploymentAttempts;
+    }
+
+    /**
+     * @param deploymentAttempts tries to deploy a change, with a doubling delay in between, before it is given up
+     */
+    public CouchDbDeployerProperties setDeploymentAttempts(int deploymentAttempts) {
+        this.deploymentAttempts = deploymentAttempts;
+        return this;
+    }
 }
@@ -0,0 +1,118 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.jetty.deploy.providers.couchdb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.signaut.common.couchdb.JsonCodec;
+
+/**
+ * The changes feed sequence every change up to has been deployed, together with the revision of each webapp deployed.
+ * Saved to a local file by writing a new file and renaming it over the old one, so a crash leaves either the old or
+ * the new checkpoint behind, never a mix.
+ */
+public class DeploymentCheckpoint {
+    private Object sequence;
+    private Map<String, String> deployed = new HashMap<String, String>();
+
+    public DeploymentCheckpoint() {
+    }
+
+    public DeploymentCheckpoint(Object sequence, Map<String, String> deployed) {
+        this.sequence = sequence;
+        this.deployed = new HashMap<String, String>(deployed);
+    }
+
+    public Object getSequence() {
+        return sequence;
+    }
+
+    public DeploymentCheckpoint setSequence(Object sequence) {
+        this.sequence = sequence;
+        return this;
+    }
+
+    /**
+     * @return revision by document id
+     */
+    public Map<String, String> getDeployed() {
+        return deployed;
+    }
+
+    public DeploymentCheckpoint setDeployed(Map<String, String> deployed) {
+        this.deployed = deployed;
+        return this;
+    }
+
+    /**
+     * @return the checkpoint saved in the file, <code>null</code> if there is none
+     */
+    public static DeploymentCheckpoint read(File file) {
+        if ( ! file.isFile()) {
+            return null;
+        }
+        try {
+            return JsonCodec.getDefault().read(Files.readAllBytes(file.toPath()), DeploymentCheckpoint.class);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read checkpoint " + file, e);
+        }
+    }
+
+    public void write(File file) {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && ! directory.isDirectory() && ! directory.mkdirs()) {
+            throw new IllegalStateException("Could not create " + directory);
+        }
+        final File temporary = new File(directory, file.getName() + ".tmp");
+        try {
+            final FileOutputStream output = new FileOutputStream(temporary);
+            try {
+                output.write(JsonCodec.getDefault().writeAsBytes(this));
+                //On disk before it replaces the old one
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write checkpoint " + file, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DeploymentCheckpoint [sequence=" + sequence + ", deployed=" + deployed.size() + "]";
+    }
+}
@@ -0,0 +1,256 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.jetty.deploy.providers.couchdb;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.signaut.common.http.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs deployments on a bounded pool of workers. Tasks for the same document run one at a time in the order they were
+ * submitted, while tasks for different documents run side by side. At most <code>capacity</code> tasks are pending,
+ * counting the tasks done after one that is still running, as their sequence cannot be reported yet;
+ * {@link #submit(String, Object, Runnable)} blocks beyond that, which holds the changes feed back.
+ * <p>
+ * Each task carries the sequence of its change. The {@link Listener} is told the latest sequence up to which every
+ * task has completed, so a restart from it never skips a change.
+ */
+public class DeploymentPipeline {
+    public enum Stage {
+        /** Waiting in line until a worker and the document's earlier changes are done */
+        QUEUE,
+        /** Getting the webapp document */
+        FETCH,
+        /** Downloading the war */
+        DOWNLOAD,
+        /** Undeploying the old app and starting the new one */
+        DEPLOY
+    }
+
+    public interface Listener {
+        /**
+         * Called in submission order, with no task pending before the sequence. Called while holding the pipeline's
+         * lock, so it must not block.
+         */
+        void completed(Object sequence);
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final ExecutorService workers;
+    private final Semaphore capacity;
+    private final Listener listener;
+    private final Map<String, Deque<Task>> chains = new HashMap<String, Deque<Task>>();
+    private final Deque<Task> submitted = new ArrayDeque<Task>();
+    private final Map<Stage, LatencyHistogram> latency = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    public DeploymentPipeline(int workers, int capacity, Listener listener) {
+        if (workers < 1 || capacity < 1) {
+            throw new IllegalArgumentException("At least one worker and one pending task are required");
+        }
+        final AtomicInteger threads = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                                              new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                                                  @Override
+                                                  public Thread newThread(Runnable runnable) {
+                                                      final Thread thread = new Thread(runnable, "CouchDB-deployer-"
+                                                                                                 + threads.incrementAndGet());
+                                                      thread.setDaemon(true);
+                                                      return thread;
+                                                  }
+                                              });
+        this.capacity = new Semaphore(capacity);
+        this.listener = listener;
+        for (Stage stage: Stage.values()) {
+            latency.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Runs the task after the earlier tasks for the same key. Blocks while the pipeline is full.
+     * 
+     * @throws RejectedExecutionException when closed
+     */
+    public void submit(String key, Object sequence, Runnable runnable) throws InterruptedException {
+        capacity.acquire();
+        final Task task = new Task(key, sequence, runnable);
+        synchronized (this) {
+            if (closed) {
+                capacity.release();
+                throw new RejectedExecutionException("Deployment pipeline is closed");
+            }
+            submitted.addLast(task);
+            queued.incrementAndGet();
+            Deque<Task> chain = chains.get(key);
+            if (chain != null) {
+                chain.addLast(task);
+                return;
+            }
+            chain = new ArrayDeque<Task>();
+            chains.put(key, chain);
+        }
+        workers.execute(task);
+    }
+
+    /**
+     * Records the time spent in a stage since <code>start</code>
+     * 
+     * @param start from {@link System#nanoTime()}
+     */
+    public void record(Stage stage, long start) {
+        latency.get(stage).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    public LatencyHistogram getLatency(Stage stage) {
+        return latency.get(stage);
+    }
+
+    /**
+     * @return tasks waiting for a worker or for an earlier task for the same document
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return tasks running right now
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * Stops taking tasks and interrupts the running ones. Interrupted and waiting tasks are not reported as
+     * completed.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            chains.clear();
+            submitted.clear();
+            queued.set(0);
+        }
+        workers.shutdownNow();
+    }
+
+    /**
+     * @return <code>true</code> if every task submitted has completed
+     */
+    public synchronized boolean isIdle() {
+        return submitted.isEmpty();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void completed(Task task) {
+        final Task next;
+        int left = 0;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            task.done = true;
+            Object sequence = null;
+            while ( ! submitted.isEmpty() && submitted.peekFirst().done) {
+                sequence = submitted.pollFirst().sequence;
+                left++;
+            }
+            if (left > 0 && listener != null) {
+                listener.completed(sequence);
+            }
+            final Deque<Task> chain = chains.get(task.key);
+            next = chain.pollFirst();
+            if (next == null) {
+                chains.remove(task.key);
+            }
+        }
+        //Only tasks no longer held in submitted make room
+        capacity.release(left);
+        if (next != null) {
+            try {
+                workers.execute(next);
+            } catch (RejectedExecutionException e) {
+                //Closed in the meantime
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DeploymentPipeline [queued=" + getQueued() + ", active=" + getActive() + ", latency=" + latency + "]";
+    }
+
+    private final class Task implements Runnable {
+        private final String key;
+        private final Object sequence;
+        private final Runnable runnable;
+        private final long submitted = System.nanoTime();
+        private boolean done = false;
+
+        Task(String key, Object sequence, Runnable runnable) {
+            this.key = key;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            record(Stage.QUEUE, submitted);
+            active.incrementAndGet();
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                log.error("Deployment of " + key + " failed", e);
+            } finally {
+                active.decrementAndGet();
+            }
+            if ( ! closed && ! Thread.currentThread().isInterrupted()) {
+                completed(this);
+            }
+        }
+    }
+}
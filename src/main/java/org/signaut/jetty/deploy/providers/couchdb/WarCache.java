@@ -0,0 +1,327 @@
+/*
+Copyright (c) 2010, Jesper André Lyngesen Pedersen
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+ - Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.signaut.jetty.deploy.providers.couchdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.signaut.common.couchdb.CouchDbClient;
+import org.signaut.common.couchdb.Document.Attachment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wars stored under the digest of their attachment, so a war is only downloaded when its content changed, and apps
+ * deploying the same war share one copy. Attachments without a digest are keyed by document, name and
+ * <code>revpos</code>.
+ * <p>
+ * Each war handed out by {@link #get(String, String, Attachment)} is in use until {@link #release(String) released}.
+ * Wars not in use are evicted, least recently used first, while the cache holds more than its quota. Wars found in
+ * the directory on start are taken in, so they survive restarts.
+ */
+public class WarCache {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final CouchDbClient client;
+    private final File directory;
+    private final long quota;
+    //Least recently used first
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param quota bytes of wars kept at most, apart from wars in use
+     */
+    public WarCache(CouchDbClient client, File directory, long quota) {
+        this.client = client;
+        this.directory = directory;
+        this.quota = quota;
+        if ( ! directory.isDirectory() && ! directory.mkdirs()) {
+            throw new IllegalStateException("Could not create " + directory);
+        }
+        load();
+    }
+
+    /**
+     * Download the war unless a war with the same digest is cached. The war is in use until released.
+     * 
+     * @return path of the war, <code>null</code> if the attachment was not found
+     */
+    public String get(String documentId, String name, Attachment attachment) {
+        final String key = key(documentId, name, attachment);
+        final Entry entry;
+        final boolean download;
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            if (existing != null && existing.ready.getCount() == 0 && ! existing.file.isFile()) {
+                //Removed behind our back
+                remove(existing);
+                existing = null;
+            }
+            download = existing == null;
+            if (download) {
+                misses++;
+                entry = new Entry(key, new File(directory, key + ".war"));
+                entries.put(key, entry);
+            } else {
+                hits++;
+                entry = existing;
+                //Moved to the end as the most recently used
+                entries.remove(key);
+                entries.put(key, entry);
+            }
+            entry.references++;
+        }
+        if (download) {
+            fetch(entry, documentId, name);
+        } else {
+            try {
+                entry.ready.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                release(entry);
+                throw new IllegalStateException("Interrupted while waiting for " + documentId + "/" + name);
+            }
+            if (entry.failed) {
+                release(entry);
+                throw new IllegalStateException("Download of " + documentId + "/" + name + " failed");
+            }
+        }
+        if (entry.missing) {
+            release(entry);
+            return null;
+        }
+        entry.file.setLastModified(System.currentTimeMillis());
+        return entry.file.getAbsolutePath();
+    }
+
+    /**
+     * Done with a war handed out by {@link #get(String, String, Attachment)}. Other paths are ignored.
+     */
+    public void release(String path) {
+        if (path == null) {
+            return;
+        }
+        final String fileName = new File(path).getName();
+        if ( ! fileName.endsWith(".war")) {
+            return;
+        }
+        final Entry entry;
+        synchronized (this) {
+            entry = entries.get(fileName.substring(0, fileName.length() - ".war".length()));
+        }
+        if (entry != null && entry.file.getAbsolutePath().equals(new File(path).getAbsolutePath())) {
+            release(entry);
+        }
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getQuota() {
+        return quota;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return wars cached, including those being downloaded
+     */
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    private void fetch(Entry entry, String documentId, String name) {
+        final File incoming = new File(new File(directory, ".incoming"), entry.key);
+        try {
+            final String path = client.downloadAttachment(documentId, name, incoming);
+            if (path == null) {
+                entry.missing = true;
+                synchronized (this) {
+                    remove(entry);
+                }
+            } else {
+                Files.move(new File(path).toPath(), entry.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+                synchronized (this) {
+                    entry.length = entry.file.length();
+                    size += entry.length;
+                    evict();
+                }
+            }
+            delete(incoming);
+        } catch (IOException e) {
+            failed(entry);
+            throw new IllegalStateException("Could not store " + documentId + "/" + name + " in " + directory, e);
+        } catch (RuntimeException e) {
+            failed(entry);
+            throw e;
+        } finally {
+            entry.ready.countDown();
+        }
+    }
+
+    private void failed(Entry entry) {
+        entry.failed = true;
+        synchronized (this) {
+            entry.references--;
+            remove(entry);
+        }
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.references--;
+        evict();
+    }
+
+    private void evict() {
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext() && size > quota;) {
+            final Entry entry = i.next();
+            if (entry.references == 0 && entry.ready.getCount() == 0) {
+                log.info("Evicting {} ({} bytes)", entry.file, entry.length);
+                i.remove();
+                size -= entry.length;
+                evictions++;
+                if ( ! entry.file.delete()) {
+                    log.warn("Could not delete " + entry.file);
+                }
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entries.get(entry.key) == entry) {
+            entries.remove(entry.key);
+            size -= entry.length;
+        }
+    }
+
+    private void load() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        //Oldest first, so they are evicted first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File left, File right) {
+                return Long.compare(left.lastModified(), right.lastModified());
+            }
+        });
+        int loaded = 0;
+        synchronized (this) {
+            for (File file: files) {
+                final String name = file.getName();
+                if (file.isFile() && name.endsWith(".war")) {
+                    final Entry entry = new Entry(name.substring(0, name.length() - ".war".length()), file);
+                    entry.length = file.length();
+                    entry.ready.countDown();
+                    entries.put(entry.key, entry);
+                    size += entry.length;
+                    loaded++;
+                }
+            }
+            evict();
+        }
+        delete(new File(directory, ".incoming"));
+        log.info(String.format("Found %d cached wars, %d bytes in %s", loaded, getSize(), directory));
+    }
+
+    private void delete(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File child: files) {
+                delete(child);
+            }
+        }
+        if (file.exists() && ! file.delete()) {
+            log.warn("Could not delete " + file);
+        }
+    }
+
+    static String key(String documentId, String name, Attachment attachment) {
+        final String identity = attachment.getDigest() != null ? attachment.getDigest()
+                : documentId + "/" + name + "@" + attachment.getRevpos();
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-1").digest(identity.getBytes(UTF8));
+            final StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b: hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WarCache [directory=" + directory + ", entries=" + entries.size() + ", size=" + size + ", quota="
+               + quota + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final File file;
+        private final CountDownLatch ready = new CountDownLatch(1);
+        private int references = 0;
+        private long length = 0;
+        private volatile boolean missing = false;
+        private volatile boolean failed = false;
+
+        Entry(String key, File file) {
+            this.key = key;
+            this.file = file;
+        }
+    }
+}
@@ -29,6 +29,7 @@ package org.signaut.jetty.server.security.authentication;
 
 import java.io.IOException;
 import java.security.Principal;
+import java.util.concurrent.TimeUnit;
 
 import javax.security.auth.Subject;
 import javax.servlet.ServletRequest;
@@ -46,6 +47,8 @@ import org.eclipse.jetty.server.Authentication.User;
 import org.eclipse.jetty.server.UserIdentity;
 import org.eclipse.jetty.util.B64Code;
 import org.eclipse.jetty.util.StringUtil;
+import org.signaut.common.http.BulkheadFullException;
+import org.signaut.common.http.CircuitOpenException;
 import org.signaut.couchdb.CouchDbAuthenticator;
 import org.signaut.couchdb.UserContext;
 import org.signaut.jetty.server.security.SerializablePrincipal;
@@ -96,11 +99,29 @@ public class CouchDbSSOAuthenticator extends LoginAuthenticator {
             }
             httpResponse.sendError(HttpServletResponse.SC_FORBIDDEN);
             return Authentication.SEND_CONTINUE;
+        } catch (CircuitOpenException e) {
+            //CouchDB is down - tell the client to come back later rather than hold the thread
+            return serviceUnavailable(httpResponse, e.getRetryAfter());
+        } catch (BulkheadFullException e) {
+            //Too many logins waiting for CouchDB already
+            return serviceUnavailable(httpResponse, 1000);
         } catch (IOException e) {
             throw new ServerAuthException(e);
         }
     }
 
+    private Authentication serviceUnavailable(HttpServletResponse httpResponse, long retryAfter)
+            throws ServerAuthException {
+        try {
+            httpResponse.setHeader(HttpHeader.RETRY_AFTER.asString(),
+                                   Long.toString(Math.max(1, TimeUnit.MILLISECONDS.toSeconds(retryAfter))));
+            httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        } catch (IOException ioe) {
+            throw new ServerAuthException(ioe);
+        }
+        return Authentication.SEND_FAILURE;
+    }
+
     private UserIdentity getIdentity(UserContext userContext) {
         final Principal principal = new SerializablePrincipal(userContext.getName());
         final Subject subject = new Subject();
@@ -0,0 +1,101 @@
+package org.signaut.common.couchdb;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+
+import org.signaut.couchdb.impl.UserSession;
+import org.signaut.jetty.deploy.providers.couchdb.WebAppDocument;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares parsing the documents on the hot paths the way the components used to, each with a mapper of its own and
+ * changes decoded line by line into Strings, with the shared {@link JsonCodec}. Not a unit test - run the main
+ * method.
+ * <p>
+ * Arguments: [iterations]
+ */
+public class JsonCodecBenchmark {
+    private interface Parse {
+        Object parse(byte[] json) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        final byte[] change = ("{\"seq\":1234,\"id\":\"org.signaut.site\",\"changes\":[{\"rev\":\"12-8f0e9ac2b1f4\"}]}\n")
+                .getBytes("UTF-8");
+        final byte[] status = "{\"ok\":true,\"id\":\"org.signaut.site\",\"rev\":\"13-0ab7c1d2e3f4\"}".getBytes("UTF-8");
+        final byte[] session = ("{\"ok\":true,\"userCtx\":{\"name\":\"jesper\",\"roles\":[\"admin\",\"deployer\"]},"
+                                + "\"info\":{\"authentication_db\":\"_users\",\"authenticated\":\"cookie\"}}")
+                .getBytes("UTF-8");
+        final byte[] webapp = ("{\"_id\":\"org.signaut.site\",\"_rev\":\"12-8f0e9ac2b1f4\",\"name\":\"site\","
+                               + "\"contextPath\":\"/\",\"virtualHosts\":[\"signaut.org\",\"www.signaut.org\"],"
+                               + "\"war\":\"site.war\",\"showingFullStacktrace\":false}").getBytes("UTF-8");
+        final byte[] user = ("{\"_id\":\"org.couchdb.user:jesper\",\"_rev\":\"3-77a1\",\"type\":\"user\","
+                             + "\"name\":\"jesper\",\"password_sha\":\"1b2c3d4e5f60718293a4b5c6d7e8f90a1b2c3d4e\","
+                             + "\"salt\":\"6f1e2d3c4b5a69788796a5b4c3d2e1f0\",\"roles\":[\"admin\"]}").getBytes("UTF-8");
+
+        final ObjectMapper deployerMapper = new ObjectMapper();
+        final ObjectMapper clientMapper = new ObjectMapper();
+        final ObjectMapper authenticatorMapper = new ObjectMapper();
+        final JsonCodec codec = new JsonCodec().prepare(ChangeSet.class, DocumentStatus.class, UserSession.class,
+                                                        WebAppDocument.class, CouchDbUser.class);
+
+        System.out.printf("%d iterations per type%n", iterations);
+        System.out.printf("%-16s %14s %14s %8s%n", "type", "before (ops/s)", "after (ops/s)", "speedup");
+        compare("ChangeSet", change, iterations, new Parse() {
+            @Override
+            public Object parse(byte[] json) throws Exception {
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(json)));
+                return deployerMapper.readValue(reader.readLine(), ChangeSet.class);
+            }
+        }, new Parse() {
+            @Override
+            public Object parse(byte[] json) throws Exception {
+                final ChangesFeed.LineReader lines = new ChangesFeed.LineReader(new ByteArrayInputStream(json));
+                lines.next();
+                return lines.read(codec, ChangeSet.class);
+            }
+        });
+        compareStreams("DocumentStatus", status, DocumentStatus.class, iterations, clientMapper, codec);
+        compareStreams("UserSession", session, UserSession.class, iterations, authenticatorMapper, codec);
+        compareStreams("WebAppDocument", webapp, WebAppDocument.class, iterations, clientMapper, codec);
+        compareStreams("CouchDbUser", user, CouchDbUser.class, iterations, clientMapper, codec);
+    }
+
+    private static void compareStreams(String name, byte[] json, final Class<?> type, int iterations,
+                                       final ObjectMapper mapper, final JsonCodec codec) throws Exception {
+        compare(name, json, iterations, new Parse() {
+            @Override
+            public Object parse(byte[] json) throws Exception {
+                return mapper.readValue(new ByteArrayInputStream(json), type);
+            }
+        }, new Parse() {
+            @Override
+            public Object parse(byte[] json) throws Exception {
+                return codec.read(new ByteArrayInputStream(json), type);
+            }
+        });
+    }
+
+    private static void compare(String name, byte[] json, int iterations, Parse before, Parse after)
+            throws Exception {
+        //Warm up
+        run(json, iterations / 4, before);
+        run(json, iterations / 4, after);
+        final double beforeRate = run(json, iterations, before);
+        final double afterRate = run(json, iterations, after);
+        System.out.printf("%-16s %14.0f %14.0f %7.2fx%n", name, beforeRate, afterRate, afterRate / beforeRate);
+    }
+
+    private static double run(byte[] json, int iterations, Parse parse) throws Exception {
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (parse.parse(json) == null) {
+                throw new IllegalStateException("Nothing parsed");
+            }
+        }
+        return iterations * 1e9 / (System.nanoTime() - start);
+    }
+}
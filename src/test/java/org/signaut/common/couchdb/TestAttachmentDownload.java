@@ -0,0 +1,217 @@
+package org.signaut.common.couchdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.signaut.common.http.JettyHttpTransport;
+import org.signaut.common.http.PooledHttpTransport;
+import org.signaut.common.http.SimpleHttpClientImpl;
+
+public class TestAttachmentDownload {
+    private static final String ETAG = "\"v1\"";
+    private final byte[] war = new byte[3 * 1024 * 1024 + 17];
+    private final List<String> ranges = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger cutFull = new AtomicInteger();
+    private final AtomicInteger cutRanges = new AtomicInteger();
+    private final int cutAt = 1024 * 1024;
+    private Server server;
+    private CouchDbClientImpl client;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(42).nextBytes(war);
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException, ServletException {
+                baseRequest.setHandled(true);
+                if (target.endsWith("/app.war")) {
+                    response.setContentType("application/java-archive");
+                    response.setContentLength(war.length);
+                    response.getOutputStream().write(war);
+                } else if (target.endsWith("/ranged.war")) {
+                    serveRange(baseRequest, request, response);
+                } else if (target.endsWith("/chunked.war")) {
+                    response.getOutputStream().write(war, 0, 1000);
+                    response.flushBuffer();
+                    response.getOutputStream().write(war, 1000, war.length - 1000);
+                } else {
+                    response.setStatus(404);
+                    response.getWriter().write("{\"error\":\"not_found\",\"reason\":\"missing\"}");
+                }
+            }
+        });
+        server.start();
+        client = new CouchDbClientImpl("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort()
+                                       + "/db/", null, null);
+        directory = Files.createTempDirectory("attachments").toFile();
+    }
+
+    /**
+     * Honors <code>Range</code> and <code>If-Range</code>, and cuts the connection if told to
+     */
+    private void serveRange(Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        final String range = request.getHeader("Range");
+        final String ifRange = request.getHeader("If-Range");
+        ranges.add(range == null ? "" : range);
+        response.setHeader("ETag", ETAG);
+        response.setHeader("Accept-Ranges", "bytes");
+        int start = 0;
+        int end = war.length - 1;
+        final boolean partial = range != null && (ifRange == null || ETAG.equals(ifRange));
+        if (partial) {
+            final String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            if ( ! bounds[1].isEmpty()) {
+                end = Integer.parseInt(bounds[1]);
+            }
+            response.setStatus(206);
+            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + war.length);
+        }
+        final int length = end - start + 1;
+        response.setContentLength(length);
+        final AtomicInteger cuts = partial ? cutRanges : cutFull;
+        final int sent = cuts.getAndDecrement() > 0 ? Math.min(cutAt, length / 2) : length;
+        response.getOutputStream().write(war, start, sent);
+        if (sent < length) {
+            response.flushBuffer();
+            baseRequest.getHttpChannel().getEndPoint().close();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        for (File file: directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testDownload() throws IOException {
+        final File target = new File(directory, "app.war");
+        Files.write(target.toPath(), "old".getBytes("UTF-8"));
+        assertEquals(target.getAbsolutePath(), client.downloadAttachment("doc", "app.war", directory));
+        assertArrayEquals(war, Files.readAllBytes(target.toPath()));
+
+        final File chunked = new File(directory, "chunked.war");
+        assertEquals(chunked.getAbsolutePath(), client.downloadAttachment("doc", "chunked.war", directory));
+        assertArrayEquals(war, Files.readAllBytes(chunked.toPath()));
+
+        assertNull(client.downloadAttachment("doc", "missing.war", directory));
+        assertEquals("No temporary files should be left behind", 2, directory.list().length);
+    }
+
+    @Test
+    public void shouldResumeABrokenOffDownload() throws IOException {
+        final AtomicReference<AttachmentDownloader.Download> last = new AtomicReference<AttachmentDownloader.Download>();
+        client.getAttachmentDownloader().setListener(new AttachmentDownloader.Listener() {
+            @Override
+            public void progress(AttachmentDownloader.Download download) {
+                last.set(download);
+            }
+        });
+        cutFull.set(1);
+        final File target = new File(directory, "ranged.war");
+        assertEquals(target.getAbsolutePath(), client.downloadAttachment("doc", "ranged.war", directory));
+        assertArrayEquals(war, Files.readAllBytes(target.toPath()));
+        assertEquals("bytes=" + cutAt + "-", ranges.get(1));
+        assertEquals(2, last.get().getAttempts());
+        assertEquals(cutAt, last.get().getResumedFrom());
+        assertEquals(war.length, last.get().getLength());
+        assertTrue(last.get().isComplete());
+        assertTrue(last.get().getThroughput() > 0);
+        assertEquals(1, directory.list().length);
+    }
+
+    @Test
+    public void shouldResumeInALaterCall() throws IOException {
+        client.getAttachmentDownloader().setMaxAttempts(1);
+        cutFull.set(1);
+        assertNull(client.downloadAttachment("doc", "ranged.war", directory));
+        assertEquals(cutAt, new File(directory, ".ranged.war.part").length());
+        final File target = new File(directory, "ranged.war");
+        assertEquals(target.getAbsolutePath(), client.downloadAttachment("doc", "ranged.war", directory));
+        assertArrayEquals(war, Files.readAllBytes(target.toPath()));
+        assertEquals("bytes=" + cutAt + "-", ranges.get(1));
+    }
+
+    @Test
+    public void shouldStartOverWhenTheAttachmentChanged() throws IOException {
+        Files.write(new File(directory, ".ranged.war.part").toPath(), "stale".getBytes("UTF-8"));
+        Files.write(new File(directory, ".ranged.war.etag").toPath(), "\"v0\"".getBytes("UTF-8"));
+        final File target = new File(directory, "ranged.war");
+        assertEquals(target.getAbsolutePath(), client.downloadAttachment("doc", "ranged.war", directory));
+        assertArrayEquals(war, Files.readAllBytes(target.toPath()));
+        assertEquals("bytes=5-", ranges.get(0));
+        assertEquals(1, directory.list().length);
+    }
+
+    @Test
+    public void shouldDownloadRangesInParallel() throws IOException {
+        final AtomicReference<AttachmentDownloader.Download> last = new AtomicReference<AttachmentDownloader.Download>();
+        client.getAttachmentDownloader().setParallelism(4).setParallelThreshold(1024 * 1024)
+                .setListener(new AttachmentDownloader.Listener() {
+                    @Override
+                    public void progress(AttachmentDownloader.Download download) {
+                        last.set(download);
+                    }
+                });
+        //One range breaks off and continues where it stopped
+        cutRanges.set(1);
+        final File target = new File(directory, "ranged.war");
+        assertEquals(target.getAbsolutePath(), client.downloadAttachment("doc", "ranged.war", directory));
+        assertArrayEquals(war, Files.readAllBytes(target.toPath()));
+        assertEquals(5, ranges.size());
+        assertEquals("", ranges.get(0));
+        assertEquals(4, last.get().getRanges());
+        assertEquals(war.length, last.get().getTransferred());
+        assertEquals(1, directory.list().length);
+    }
+
+    @Test
+    public void shouldStreamRangesLargerThanAResponseBuffer() throws IOException {
+        //Asynchronous responses are buffered up to this, far less than a range
+        final SimpleHttpClientImpl httpClient = new SimpleHttpClientImpl(new PooledHttpTransport(),
+                                                                         new JettyHttpTransport()
+                                                                                 .setMaxResponseLength(64 * 1024));
+        final CouchDbClientImpl client = new CouchDbClientImpl("http://localhost:"
+                + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/db/", null, null, httpClient);
+        try {
+            client.getAttachmentDownloader().setParallelism(2).setParallelThreshold(1024 * 1024).setMaxAttempts(1);
+            final File target = new File(directory, "ranged.war");
+            assertEquals(target.getAbsolutePath(), client.downloadAttachment("doc", "ranged.war", directory));
+            assertArrayEquals(war, Files.readAllBytes(target.toPath()));
+            assertEquals(2, ranges.size());
+            assertEquals("bytes=" + (war.length + 1) / 2 + "-" + (war.length - 1), ranges.get(1));
+        } finally {
+            httpClient.shutdown();
+        }
+    }
+}
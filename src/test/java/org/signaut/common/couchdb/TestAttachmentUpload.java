@@ -0,0 +1,133 @@
+package org.signaut.common.couchdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class TestAttachmentUpload {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final byte[] war = new byte[2 * 1024 * 1024 + 3];
+    private Server server;
+    private CouchDbClientImpl client;
+    private Path file;
+    private volatile String method;
+    private volatile String uri;
+    private volatile String contentType;
+    private volatile String transferEncoding;
+    private volatile int contentLength;
+    private volatile byte[] body;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(7).nextBytes(war);
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException, ServletException {
+                baseRequest.setHandled(true);
+                method = request.getMethod();
+                uri = request.getRequestURI() + (request.getQueryString() == null ? "" : "?" + request.getQueryString());
+                contentType = request.getContentType();
+                transferEncoding = request.getHeader("Transfer-Encoding");
+                contentLength = request.getContentLength();
+                final ByteArrayOutputStream received = new ByteArrayOutputStream();
+                final InputStream in = request.getInputStream();
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    received.write(buffer, 0, read);
+                }
+                body = received.toByteArray();
+                response.setStatus(201);
+                response.getWriter().write("{\"ok\":true,\"id\":\"doc\",\"rev\":\"2-x\"}");
+            }
+        });
+        server.start();
+        client = new CouchDbClientImpl("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort()
+                                       + "/db/", null, null);
+        file = Files.createTempFile("upload", ".war");
+        Files.write(file, war);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        Files.delete(file);
+    }
+
+    @Test
+    public void shouldStreamAnAttachmentChunked() {
+        final DocumentStatus status = client.putAttachment("doc", "1-x", "app.war", "application/java-archive",
+                                                           new ByteArrayInputStream(war));
+        assertTrue(status.isOk());
+        assertEquals("2-x", status.getRevision());
+        assertEquals("PUT", method);
+        assertEquals("/db/doc/app.war?rev=1-x", uri);
+        assertEquals("application/java-archive", contentType);
+        assertEquals("chunked", transferEncoding);
+        assertArrayEquals(war, body);
+    }
+
+    @Test
+    public void shouldStreamAFileWithItsLength() {
+        assertTrue(client.putAttachment("doc", null, "app.war", "application/java-archive", file).isOk());
+        assertEquals("/db/doc/app.war", uri);
+        assertNull(transferEncoding);
+        assertEquals(war.length, contentLength);
+        assertArrayEquals(war, body);
+    }
+
+    @Test
+    public void shouldPutADocumentWithItsAttachmentsInOneRequest() throws IOException {
+        final byte[] readme = "read me".getBytes("UTF-8");
+        final DocumentStatus status = client.putDocument("doc", Collections.singletonMap("name", "site"),
+                Arrays.asList(AttachmentContent.of("app.war", "application/java-archive", file),
+                              AttachmentContent.of("README", "text/plain", new ByteArrayInputStream(readme),
+                                                   readme.length)));
+        assertTrue(status.isOk());
+        assertEquals("/db/doc", uri);
+        assertTrue(contentType, contentType.startsWith("multipart/related;boundary="));
+        assertEquals(body.length, contentLength);
+        final String boundary = contentType.substring(contentType.indexOf('"') + 1, contentType.lastIndexOf('"'));
+        final String text = new String(body, "ISO-8859-1");
+        final String[] parts = text.split("\r\n--" + boundary);
+        assertEquals(4, parts.length);
+        assertTrue(parts[0].startsWith("--" + boundary + "\r\nContent-Type: application/json\r\n\r\n"));
+        final JsonNode document = objectMapper.readTree(parts[0].substring(parts[0].indexOf("\r\n\r\n") + 4));
+        assertEquals("site", document.get("name").asText());
+        assertTrue(document.get("_attachments").get("app.war").get("follows").asBoolean());
+        assertEquals(war.length, document.get("_attachments").get("app.war").get("length").asLong());
+        assertEquals("text/plain", document.get("_attachments").get("README").get("content_type").asText());
+        final String warPart = parts[1].substring(parts[1].indexOf("\r\n\r\n") + 4);
+        assertArrayEquals(war, warPart.getBytes("ISO-8859-1"));
+        assertEquals("read me", parts[2].substring(parts[2].indexOf("\r\n\r\n") + 4));
+        assertEquals("--", parts[3]);
+    }
+}
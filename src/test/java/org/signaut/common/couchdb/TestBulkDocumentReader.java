@@ -0,0 +1,135 @@
+package org.signaut.common.couchdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestBulkDocumentReader {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AtomicInteger allDocsRequests = new AtomicInteger();
+    private final AtomicInteger keysRequested = new AtomicInteger();
+    private Server server;
+    private CouchDbClientImpl client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException, ServletException {
+                baseRequest.setHandled(true);
+                if ( ! target.equals("/db/_all_docs") || ! "true".equals(request.getParameter("include_docs"))) {
+                    response.setStatus(404);
+                    return;
+                }
+                allDocsRequests.incrementAndGet();
+                final ObjectNode result = objectMapper.createObjectNode();
+                final ArrayNode rows = result.putArray("rows");
+                for (JsonNode key: objectMapper.readTree(request.getInputStream()).get("keys")) {
+                    keysRequested.incrementAndGet();
+                    final String id = key.asText();
+                    final ObjectNode row = rows.addObject();
+                    row.put("key", id);
+                    if (id.startsWith("missing")) {
+                        row.put("error", "not_found");
+                    } else if (id.startsWith("deleted")) {
+                        row.put("id", id);
+                        row.putObject("value").put("rev", "2-x").put("deleted", true);
+                        row.putNull("doc");
+                    } else {
+                        row.put("id", id);
+                        row.putObject("value").put("rev", "1-x");
+                        row.putObject("doc").put("_id", id).put("_rev", "1-x").put("name", "name of " + id);
+                    }
+                }
+                objectMapper.writeValue(response.getOutputStream(), result);
+            }
+        });
+        server.start();
+        client = new CouchDbClientImpl("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort()
+                                       + "/db/", null, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.setReadBatching(0, 0);
+        server.stop();
+    }
+
+    @Test
+    public void testGetDocuments() {
+        final List<Document> documents = client.getDocuments(Arrays.asList("a", "missing", "deleted", "b"),
+                                                             Document.class);
+        assertEquals(4, documents.size());
+        assertEquals("a", documents.get(0).getId());
+        assertNull(documents.get(1));
+        assertNull(documents.get(2));
+        assertEquals("b", documents.get(3).getId());
+        assertEquals(1, allDocsRequests.get());
+    }
+
+    @Test
+    public void testConcurrentReadsAreBatched() throws Exception {
+        client.setReadBatching(10, 1000);
+        final ExecutorService executor = Executors.newFixedThreadPool(30);
+        try {
+            final List<Future<Map<?, ?>>> reads = new ArrayList<Future<Map<?, ?>>>();
+            for (int i = 0; i < 30; i++) {
+                //Every id is read twice
+                final String id = (i % 15 == 3 ? "missing" : "doc") + (i % 15);
+                reads.add(executor.submit(new Callable<Map<?, ?>>() {
+                    @Override
+                    public Map<?, ?> call() {
+                        return client.getDocument(id, Map.class);
+                    }
+                }));
+            }
+            for (int i = 0; i < 30; i++) {
+                final Map<?, ?> document = reads.get(i).get();
+                if (i % 15 == 3) {
+                    assertNull(document);
+                } else {
+                    assertEquals("name of doc" + (i % 15), document.get("name"));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        final BulkDocumentReader reader = client.getBulkReader();
+        assertEquals(30, reader.getReads());
+        assertEquals(keysRequested.get(), reader.getKeys());
+        assertEquals(allDocsRequests.get(), reader.getBatches());
+        assertTrue("Requests: " + allDocsRequests, allDocsRequests.get() <= 3);
+        assertTrue(reader.getLargestBatch() <= 10);
+        assertEquals(30, reader.getWaitTime().getCount());
+    }
+}
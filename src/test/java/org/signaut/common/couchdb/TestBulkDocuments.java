@@ -0,0 +1,183 @@
+package org.signaut.common.couchdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestBulkDocuments {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AtomicInteger bulkRequests = new AtomicInteger();
+    private final AtomicInteger generatedIds = new AtomicInteger();
+    private final List<String> puts = new CopyOnWriteArrayList<String>();
+    private Server server;
+    private CouchDbClientImpl client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException, ServletException {
+                baseRequest.setHandled(true);
+                if ("PUT".equals(request.getMethod()) && target.startsWith("/db/")) {
+                    //A document written on its own
+                    puts.add(request.getQueryString() == null ? target : target + "?" + request.getQueryString());
+                    final ObjectNode status = objectMapper.createObjectNode();
+                    status.put("ok", true);
+                    status.put("id", target.substring("/db/".length()));
+                    status.put("rev", "1-" + objectMapper.readTree(request.getInputStream()).getNodeType());
+                    response.setStatus(201);
+                    objectMapper.writeValue(response.getOutputStream(), status);
+                    return;
+                }
+                if ( ! target.equals("/db/_bulk_docs") || ! "POST".equals(request.getMethod())) {
+                    response.setStatus(404);
+                    return;
+                }
+                bulkRequests.incrementAndGet();
+                //Answers like CouchDB 1.x, leaving out "ok"
+                final ArrayNode statuses = objectMapper.createArrayNode();
+                for (JsonNode doc: objectMapper.readTree(request.getInputStream()).get("docs")) {
+                    final ObjectNode status = statuses.addObject();
+                    final String id = doc.has("_id") ? doc.get("_id").asText() : "gen" + generatedIds.incrementAndGet();
+                    status.put("id", id);
+                    if (id.startsWith("conflict")) {
+                        status.put("error", "conflict");
+                        status.put("reason", "Document update conflict.");
+                    } else {
+                        status.put("rev", "1-" + doc.get("value").asText());
+                    }
+                }
+                response.setStatus(201);
+                objectMapper.writeValue(response.getOutputStream(), statuses);
+            }
+        });
+        server.start();
+        client = new CouchDbClientImpl("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort()
+                                       + "/db/", null, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.setBatching(0, 0);
+        server.stop();
+    }
+
+    @Test
+    public void testBulkDocuments() {
+        final List<DocumentStatus> statuses = client.bulkDocuments(Arrays.asList(doc("a", "1"), doc("conflict", "2"),
+                                                                                 doc(null, "3")));
+        assertEquals(1, bulkRequests.get());
+        assertEquals(3, statuses.size());
+        assertTrue(statuses.get(0).isOk());
+        assertEquals("a", statuses.get(0).getId());
+        assertEquals("1-1", statuses.get(0).getRevision());
+        assertFalse(statuses.get(1).isOk());
+        assertEquals("conflict", statuses.get(1).getError());
+        assertTrue(statuses.get(2).isOk());
+        assertEquals("gen1", statuses.get(2).getId());
+    }
+
+    @Test
+    public void testConcurrentWritesAreBatched() throws Exception {
+        client.setBatching(10, 1000);
+        final ExecutorService executor = Executors.newFixedThreadPool(25);
+        try {
+            final List<Future<DocumentStatus>> writes = new ArrayList<Future<DocumentStatus>>();
+            for (int i = 0; i < 25; i++) {
+                final String id = (i == 7 ? "conflict" : "doc") + i;
+                final String value = Integer.toString(i);
+                writes.add(executor.submit(new Callable<DocumentStatus>() {
+                    @Override
+                    public DocumentStatus call() {
+                        return client.putDocument(id, Collections.singletonMap("value", value));
+                    }
+                }));
+            }
+            for (int i = 0; i < 25; i++) {
+                final DocumentStatus status = writes.get(i).get();
+                if (i == 7) {
+                    assertEquals("conflict", status.getError());
+                } else {
+                    assertEquals("doc" + i, status.getId());
+                    assertEquals("1-" + i, status.getRevision());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        //Two full batches and the rest sent after the delay
+        assertEquals(3, bulkRequests.get());
+        assertEquals(3, client.getBulkWriter().getBatches());
+        assertEquals(25, client.getBulkWriter().getDocuments());
+    }
+
+    @Test
+    public void shouldSendIdsWithAQueryOnTheirOwn() throws Exception {
+        client.setBatching(10, 10);
+        DocumentStatus status = client.putDocument("doc?batch=ok", Collections.singletonMap("value", "1"));
+        assertTrue(status.isOk());
+        assertEquals("1-OBJECT", status.getRevision());
+        status = client.putDocumentAsync("doc?rev=1-a", Collections.singletonMap("value", "2"), null).get();
+        assertTrue(status.isOk());
+        assertEquals(Arrays.asList("/db/doc?batch=ok", "/db/doc?rev=1-a"), puts);
+        assertEquals(0, bulkRequests.get());
+    }
+
+    @Test
+    public void shouldSendDocumentsThatAreNotObjectsOnTheirOwn() throws Exception {
+        client.setBatching(10, 10);
+        DocumentStatus status = client.putDocument("list", Arrays.asList("a", "b"));
+        assertEquals("1-ARRAY", status.getRevision());
+        status = client.putDocumentAsync("text", "a", null).get();
+        assertEquals("1-STRING", status.getRevision());
+        assertEquals(Arrays.asList("/db/list", "/db/text"), puts);
+        assertEquals(0, bulkRequests.get());
+
+        //Objects are still batched
+        status = client.putDocument("doc", Collections.singletonMap("value", "3"));
+        assertEquals("1-3", status.getRevision());
+        assertEquals(1, bulkRequests.get());
+    }
+
+    private Map<String, String> doc(String id, String value) {
+        final Map<String, String> doc = new HashMap<String, String>();
+        if (id != null) {
+            doc.put("_id", id);
+        }
+        doc.put("value", value);
+        return doc;
+    }
+}
@@ -0,0 +1,202 @@
+package org.signaut.common.couchdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+public class TestChangesFeed {
+    private final List<String> requests = new CopyOnWriteArrayList<String>();
+    private volatile int changesPerRequest = 5;
+    private volatile boolean endless = false;
+    private Server server;
+    private CouchDbClientImpl client;
+    private ChangesFeed feed;
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Named {
+        public String name;
+    }
+
+    private static String change(int seq) {
+        return String.format("{\"seq\":%d,\"id\":\"doc%d\",\"changes\":[{\"rev\":\"%d-x\"}],"
+                             + "\"doc\":{\"_id\":\"doc%d\",\"name\":\"name %d\"}}", seq, seq, seq, seq, seq);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException, ServletException {
+                baseRequest.setHandled(true);
+                requests.add(request.getQueryString());
+                final int since = request.getParameter("since") == null ? 0
+                        : Integer.parseInt(request.getParameter("since"));
+                final PrintWriter out = response.getWriter();
+                final String feed = request.getParameter("feed");
+                if (endless) {
+                    //Heartbeats until the client goes away
+                    final long end = System.currentTimeMillis() + 30000;
+                    while ( ! out.checkError() && System.currentTimeMillis() < end) {
+                        out.println();
+                        out.flush();
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    return;
+                }
+                if ( ! "continuous".equals(feed)) {
+                    out.print("{\"results\":[");
+                    for (int seq = since + 1; seq <= since + changesPerRequest; seq++) {
+                        out.print((seq > since + 1 ? "," : "") + change(seq));
+                    }
+                    out.print("],\"last_seq\":" + (since + changesPerRequest) + "}");
+                    return;
+                }
+                if (requests.size() == 1) {
+                    //Cut off without a last_seq
+                    for (int seq = 1; seq <= changesPerRequest; seq++) {
+                        out.println(change(seq));
+                    }
+                    out.println();
+                } else if (requests.size() == 2) {
+                    for (int seq = since + 1; seq <= since + 3; seq++) {
+                        out.println(change(seq));
+                        out.println();
+                        out.flush();
+                    }
+                    out.println("{\"last_seq\":" + (since + 3) + "}");
+                } else {
+                    //Stall
+                    out.flush();
+                    try {
+                        Thread.sleep(2000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+        server.start();
+        client = new CouchDbClientImpl("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort()
+                                       + "/db/", null, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (feed != null) {
+            feed.close();
+        }
+        server.stop();
+    }
+
+    private List<ChangeSet> takeAll(int count) throws InterruptedException {
+        final List<ChangeSet> changes = new ArrayList<ChangeSet>();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (changes.size() < count && System.currentTimeMillis() < deadline) {
+            final List<ChangeSet> batch = feed.take(3, 100, TimeUnit.MILLISECONDS);
+            if (batch == null) {
+                break;
+            }
+            assertTrue(batch.size() <= 3);
+            changes.addAll(batch);
+        }
+        return changes;
+    }
+
+    @Test
+    public void shouldResumeAfterTheLastChangeAndReplaceStalledConnections() throws Exception {
+        feed = client.changes(new ChangesQuery().setFilter("webapps/all").setHeartbeat(100).setRetryDelay(50), 10);
+        final List<ChangeSet> changes = takeAll(8);
+        assertEquals(8, changes.size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i + 1, ((Number) changes.get(i).getSequence()).intValue());
+            assertEquals("doc" + (i + 1), changes.get(i).getId());
+            assertEquals((i + 1) + "-x", changes.get(i).getRevision());
+        }
+        assertTrue(requests.get(0), requests.get(0).contains("filter=webapps%2Fall"));
+        assertTrue(requests.get(1), requests.get(1).endsWith("since=5"));
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (feed.getStalls() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, feed.getStalls());
+        assertTrue(feed.getHeartbeats() >= 4);
+        assertTrue(requests.get(2), requests.get(2).endsWith("since=8"));
+        feed.checkpoint(changes.get(7).getSequence());
+        assertEquals(8, ((Number) feed.getCheckpoint()).intValue());
+    }
+
+    @Test
+    public void shouldStopReadingWhileTheBufferIsFull() throws Exception {
+        changesPerRequest = 50;
+        feed = client.changes(new ChangesQuery().setFeed(ChangesQuery.Feed.NORMAL), 4);
+        Thread.sleep(300);
+        assertEquals(4, feed.getBuffered());
+        assertEquals(4, feed.getChanges());
+        assertEquals(50, takeAll(50).size());
+        assertNull(feed.take(10, 100, TimeUnit.MILLISECONDS));
+        assertEquals(1, feed.getRequests());
+        assertEquals(50, ((Number) feed.getSequence()).intValue());
+    }
+
+    @Test
+    public void shouldLongPollWithDocuments() throws Exception {
+        changesPerRequest = 2;
+        feed = client.changes(new ChangesQuery().setFeed(ChangesQuery.Feed.LONGPOLL).setSince(10)
+                .setIncludeDocs(true), 100);
+        final List<ChangeSet> changes = takeAll(6);
+        assertEquals(6, changes.size());
+        assertEquals("name 11", feed.getDocument(changes.get(0), Named.class).name);
+        assertEquals("name 16", feed.getDocument(changes.get(5), Named.class).name);
+        assertTrue(requests.get(0), requests.get(0).contains("feed=longpoll") 
+                   && requests.get(0).contains("include_docs=true") && requests.get(0).endsWith("since=10"));
+        assertTrue(requests.get(1), requests.get(1).endsWith("since=12"));
+    }
+
+    @Test
+    public void shouldEndTheReaderWhenClosedWhileStreaming() throws Exception {
+        endless = true;
+        //More feeds than the CHANGES bulkhead allows at once, so each must give its slot back
+        for (int i = 0; i < 4; i++) {
+            feed = client.changes(new ChangesQuery().setHeartbeat(1000), 10);
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (feed.getHeartbeats() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue("No heartbeats on feed " + i, feed.getHeartbeats() >= 3);
+            feed.close();
+            final long closing = System.currentTimeMillis() + 2000;
+            while ( ! feed.isDone() && System.currentTimeMillis() < closing) {
+                Thread.sleep(10);
+            }
+            assertTrue("Reader still running after close", feed.isDone());
+            assertEquals(0, feed.getErrors());
+        }
+    }
+}
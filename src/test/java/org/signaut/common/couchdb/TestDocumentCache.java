@@ -0,0 +1,127 @@
+package org.signaut.common.couchdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class TestDocumentCache {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, String> revisions = new ConcurrentHashMap<String, String>();
+    private final AtomicInteger bodiesSent = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private Server server;
+    private CouchDbClientImpl client;
+    private DocumentCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException, ServletException {
+                baseRequest.setHandled(true);
+                final String id = target.substring("/db/".length());
+                final String revision = revisions.get(id);
+                if (revision == null) {
+                    response.setStatus(404);
+                    response.getWriter().write("{\"error\":\"not_found\",\"reason\":\"missing\"}");
+                    return;
+                }
+                final String etag = '"' + revision + '"';
+                response.setHeader("ETag", etag);
+                if (etag.equals(request.getHeader("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    response.setStatus(304);
+                    return;
+                }
+                bodiesSent.incrementAndGet();
+                objectMapper.writeValue(response.getOutputStream(),
+                                        new Document().setId(id).setRevision(revision).set("name", id));
+            }
+        });
+        server.start();
+        cache = new DocumentCache(2);
+        client = new CouchDbClientImpl("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort()
+                                       + "/db/", null, null).setDocumentCache(cache);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testUnchangedDocumentsAreRevalidated() {
+        revisions.put("a", "1-a");
+        final Document first = client.getDocument("a", Document.class);
+        assertEquals("1-a", first.getRevision());
+        assertSame(first, client.getDocument("a", Document.class));
+        assertSame(first, client.getDocument("a", Document.class));
+        assertEquals(1, bodiesSent.get());
+        assertEquals(2, notModified.get());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        //A new revision is fetched in full
+        revisions.put("a", "2-a");
+        final Document second = client.getDocument("a", Document.class);
+        assertNotSame(first, second);
+        assertEquals("2-a", second.getRevision());
+
+        //Read as another type it is fetched again
+        assertEquals("a", client.getDocument("a", Map.class).get("name"));
+        assertEquals(3, bodiesSent.get());
+
+        //Gone
+        revisions.remove("a");
+        assertNull(client.getDocument("a", Map.class));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInvalidationAndEviction() {
+        revisions.put("a", "1-a");
+        revisions.put("b", "1-b");
+        revisions.put("c", "1-c");
+        client.getDocument("a", Document.class);
+        client.getDocument("b", Document.class);
+
+        //Changes feed reporting the revision already cached
+        cache.invalidate("a", "1-a");
+        assertEquals(2, cache.size());
+        cache.invalidate("a", "2-a");
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getInvalidations());
+
+        client.getDocument("a", Document.class);
+        client.getDocument("c", Document.class);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        //b was least recently used
+        assertEquals(4, bodiesSent.get());
+        client.getDocument("c", Document.class);
+        client.getDocument("b", Document.class);
+        assertEquals(5, bodiesSent.get());
+    }
+}
@@ -0,0 +1,192 @@
+package org.signaut.common.couchdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.signaut.common.couchdb.CouchDbClient.ViewRowHandler;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class TestViewQuery {
+    private static final int ROWS = 2500;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AtomicInteger requests = new AtomicInteger();
+    private Server server;
+    private CouchDbClientImpl client;
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Named {
+        public String name;
+    }
+
+    /**
+     * The view emits the key <code>k&lt;i/10&gt;</code> for document <code>doc&lt;i&gt;</code>, so ten rows share
+     * each key and paging has to go by document id
+     */
+    private static String id(int i) {
+        return String.format("doc%04d", i);
+    }
+
+    private static String key(int i) {
+        return String.format("k%03d", i / 10);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException, ServletException {
+                baseRequest.setHandled(true);
+                if ( ! target.equals("/db/_design/test/_view/all")) {
+                    response.setStatus(404);
+                    response.getWriter().write("{\"error\":\"not_found\",\"reason\":\"missing_named_view\"}");
+                    return;
+                }
+                requests.incrementAndGet();
+                final List<Integer> selected = new ArrayList<Integer>();
+                if ("POST".equals(request.getMethod())) {
+                    for (JsonNode key: objectMapper.readTree(request.getInputStream()).get("keys")) {
+                        selected.add(Integer.parseInt(key.asText().substring(3)));
+                    }
+                } else {
+                    final String startKey = request.getParameter("startkey") == null ? null
+                            : objectMapper.readTree(request.getParameter("startkey")).asText();
+                    final String startDocId = request.getParameter("startkey_docid");
+                    for (int i = 0; i < ROWS; i++) {
+                        final int compared = startKey == null ? 1 : key(i).compareTo(startKey);
+                        if (compared > 0 || compared == 0 && (startDocId == null || id(i).compareTo(startDocId) >= 0)) {
+                            selected.add(i);
+                        }
+                    }
+                }
+                final int skip = request.getParameter("skip") == null ? 0
+                        : Integer.parseInt(request.getParameter("skip"));
+                final int limit = request.getParameter("limit") == null ? Integer.MAX_VALUE
+                        : Integer.parseInt(request.getParameter("limit"));
+                final boolean includeDocs = "true".equals(request.getParameter("include_docs"));
+                response.setContentType("application/json");
+                final JsonGenerator json = objectMapper.getFactory().createGenerator(response.getOutputStream());
+                json.writeStartObject();
+                json.writeNumberField("total_rows", ROWS);
+                json.writeNumberField("offset", 0);
+                json.writeArrayFieldStart("rows");
+                for (int n = skip; n < selected.size() && n - skip < limit; n++) {
+                    final int i = selected.get(n);
+                    json.writeStartObject();
+                    json.writeStringField("id", id(i));
+                    json.writeStringField("key", key(i));
+                    json.writeNumberField("value", i);
+                    if (includeDocs) {
+                        json.writeObjectFieldStart("doc");
+                        json.writeStringField("_id", id(i));
+                        json.writeStringField("_rev", "1-x");
+                        json.writeStringField("name", "name of " + id(i));
+                        json.writeEndObject();
+                    }
+                    json.writeEndObject();
+                }
+                json.writeEndArray();
+                json.writeEndObject();
+                json.close();
+            }
+        });
+        server.start();
+        client = new CouchDbClientImpl("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort()
+                                       + "/db/", null, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void shouldPageThroughAllRowsByDocumentId() {
+        final ViewIterator<Named> rows = client.queryView(ViewQuery.view("test", "all").setPageSize(100), Named.class);
+        int i = 0;
+        while (rows.hasNext()) {
+            final ViewRow<Named> row = rows.next();
+            assertEquals(id(i), row.getId());
+            assertEquals(key(i), row.getKey().asText());
+            assertEquals(i, row.getValue().asInt());
+            assertNull(row.getDocument());
+            i++;
+        }
+        assertEquals(ROWS, i);
+        assertEquals(ROWS, rows.getTotalRows());
+        assertEquals(25, rows.getPages());
+        assertEquals(25, requests.get());
+    }
+
+    @Test
+    public void shouldStopAtTheLimitAndIncludeDocuments() {
+        final ViewIterator<Named> rows = client.queryView(ViewQuery.view("test", "all").setPageSize(100).setSkip(5)
+                .setLimit(250).setIncludeDocs(true), Named.class);
+        int i = 5;
+        while (rows.hasNext()) {
+            assertEquals("name of " + id(i), rows.next().getDocument().name);
+            i++;
+        }
+        assertEquals(255, i);
+        assertEquals(3, rows.getPages());
+    }
+
+    @Test
+    public void shouldPostKeysAPageAtATime() {
+        final List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 250; i++) {
+            keys.add(id(i * 3));
+        }
+        final ViewIterator<Named> rows = client.queryView(ViewQuery.view("test", "all").setKeys(keys).setPageSize(100),
+                                                          null);
+        int i = 0;
+        while (rows.hasNext()) {
+            assertEquals(id(i * 3), rows.next().getId());
+            i++;
+        }
+        assertEquals(250, i);
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void shouldStreamUntilTheHandlerStops() {
+        final List<String> ids = new ArrayList<String>();
+        final long handled = client.streamView(ViewQuery.view("test", "all"), null, new ViewRowHandler<Object>() {
+            @Override
+            public boolean handleRow(ViewRow<Object> row) {
+                ids.add(row.getId());
+                return ids.size() < 10;
+            }
+        });
+        assertEquals(10, handled);
+        assertEquals(id(9), ids.get(9));
+        assertFalse(client.queryView(ViewQuery.view("test", "all").setLimit(0), null).hasNext());
+    }
+
+    @Test(expected = CouchDbClient.DocumentException.class)
+    public void shouldFailOnAMissingView() {
+        client.queryView(ViewQuery.view("test", "missing"), null).hasNext();
+    }
+}
@@ -0,0 +1,108 @@
+package org.signaut.common.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.IO;
+import org.junit.rules.ExternalResource;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+
+/**
+ * A Jetty server on a free port for the HTTP client tests. As a <code>@Rule</code> it runs around every test, or it
+ * is started and stopped by hand when a test needs one of its own.
+ */
+public class HttpTestServer extends ExternalResource {
+    /**
+     * Reads the response body, or <code>null</code> if there is none
+     */
+    public static final HttpResponseHandler<String> STRING_HANDLER = new HttpResponseHandler<String>() {
+        @Override
+        public String handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            return read(input);
+        }
+    };
+
+    /**
+     * Returns the status code and leaves the body to the transport
+     */
+    public static final HttpResponseHandler<Integer> STATUS_HANDLER = new HttpResponseHandler<Integer>() {
+        @Override
+        public Integer handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            return responseCode;
+        }
+    };
+
+    /**
+     * Answers the requests. The request is marked as handled before it is called.
+     */
+    public interface Responder {
+        void respond(String target, HttpServletRequest request, HttpServletResponse response) throws IOException;
+    }
+
+    private final Responder responder;
+    private Server server;
+
+    public HttpTestServer(Responder responder) {
+        this.responder = responder;
+    }
+
+    public static String read(InputStream input) {
+        try {
+            return input == null ? null : IO.toString(input, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public HttpTestServer start() throws Exception {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException, ServletException {
+                baseRequest.setHandled(true);
+                responder.respond(target, request, response);
+            }
+        });
+        server.start();
+        return this;
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    public ServerConnector getConnector() {
+        return (ServerConnector) server.getConnectors()[0];
+    }
+
+    /**
+     * @return <code>http://localhost:port</code>, without a trailing slash
+     */
+    public String getUrl() {
+        return "http://localhost:" + getConnector().getLocalPort();
+    }
+
+    @Override
+    protected void before() throws Throwable {
+        start();
+    }
+
+    @Override
+    protected void after() {
+        try {
+            stop();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not stop the server", e);
+        }
+    }
+}
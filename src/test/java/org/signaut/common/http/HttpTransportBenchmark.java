@@ -0,0 +1,118 @@
+package org.signaut.common.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+
+/**
+ * Compares the blocking throughput and latency of the {@link HttpTransport}s against a local Jetty server serving a
+ * CouchDB-sized JSON document. Not a unit test - run the main method.
+ * <p>
+ * Arguments: [threads] [requests per thread]
+ */
+public class HttpTransportBenchmark {
+    private static long lastElapsed;
+
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final int requests = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        final StringBuilder document = new StringBuilder("{\"_id\":\"doc\",\"_rev\":\"1-abc\"");
+        for (int i = 0; i < 40; i++) {
+            document.append(",\"field").append(i).append("\":\"value ").append(i).append("\"");
+        }
+        final byte body[] = document.append("}").toString().getBytes("UTF-8");
+
+        final Server server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException, ServletException {
+                baseRequest.setHandled(true);
+                response.setContentType("application/json");
+                response.setContentLength(body.length);
+                response.getOutputStream().write(body);
+            }
+        });
+        server.start();
+        final String url = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/db/doc";
+        try {
+            System.out.printf("%d threads x %d requests, %d byte document%n", threads, requests, body.length);
+            for (String name: new String[] { HttpTransports.URL_CONNECTION, HttpTransports.POOLED, HttpTransports.JETTY }) {
+                final HttpTransport transport = HttpTransports.create(name);
+                final SimpleHttpClient client = new SimpleHttpClientImpl(transport);
+                //Warm up
+                run(client, url, threads, requests / 4);
+                final long latencies[] = run(client, url, threads, requests);
+                transport.shutdown();
+                report(name, latencies);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static long[] run(final SimpleHttpClient client, final String url, int threads, final int requests)
+            throws InterruptedException {
+        final long latencies[] = new long[threads * requests];
+        final AtomicInteger index = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+        final Map<String, String> headers = new HashMap<String, String>();
+        final HttpResponseHandler<Integer> handler = new HttpResponseHandler<Integer>() {
+            @Override
+            public Integer handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+                final byte buffer[] = new byte[4096];
+                try {
+                    while (input.read(buffer) >= 0) {
+                        //Consume
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return responseCode;
+            }
+        };
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < requests; i++) {
+                        final long before = System.nanoTime();
+                        client.get(url, handler, headers);
+                        latencies[index.getAndIncrement()] = System.nanoTime() - before;
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        lastElapsed = System.nanoTime() - start;
+        return latencies;
+    }
+
+    private static void report(String name, long[] latencies) {
+        Arrays.sort(latencies);
+        System.out.printf("%-14s %9.0f req/s  p50 %7.1f us  p99 %8.1f us  p99.9 %8.1f us%n", name,
+                          latencies.length / (lastElapsed / 1e9), percentile(latencies, 0.50) / 1e3,
+                          percentile(latencies, 0.99) / 1e3, percentile(latencies, 0.999) / 1e3);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+}
@@ -0,0 +1,139 @@
+package org.signaut.common.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.signaut.common.http.HttpTestServer.STATUS_HANDLER;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestBulkheadFilter {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private SimpleHttpClientImpl client;
+
+    @Rule
+    public final HttpTestServer server = new HttpTestServer(new HttpTestServer.Responder() {
+        @Override
+        public void respond(String target, HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+            if (target.startsWith("/download")) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            response.setStatus(200);
+        }
+    });
+
+    @After
+    public void shutdown() {
+        release.countDown();
+        if (client != null) {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testTrafficClassesAreIsolated() throws Exception {
+        final BulkheadFilter bulkheads = new BulkheadFilter().setBulkhead("attachment", 1, 1, 5000)
+                .setBulkhead("session", 2, 10, 1000);
+        client = new SimpleHttpClientImpl(new PooledHttpTransport()).addFilter(bulkheads);
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final Future<Integer> running = executor.submit(download(client));
+            final BulkheadFilter.Bulkhead attachments = bulkheads.getBulkhead("attachment");
+            while (attachments.getActive() == 0) {
+                Thread.sleep(5);
+            }
+            final Future<Integer> waiting = executor.submit(download(client));
+            while (attachments.getQueueLength() == 0) {
+                Thread.sleep(5);
+            }
+            //No room left for attachments
+            try {
+                client.send(request("/download"), STATUS_HANDLER);
+                fail("Bulkhead should be full");
+            } catch (BulkheadFullException e) {
+                assertEquals("attachment", e.getOperation());
+            }
+            final Future<Integer> asyncRejected = client.sendAsync(request("/download"), STATUS_HANDLER, null);
+            try {
+                asyncRejected.get();
+                fail("Bulkhead should be full");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof BulkheadFullException);
+            }
+            assertEquals(2, attachments.getRejected());
+
+            //Logins are not held up by the downloads
+            final long start = System.nanoTime();
+            assertEquals(200, client.send(new HttpRequest("GET", new URL(server.getUrl() + "/_session"))
+                                                  .setOperation("session"), STATUS_HANDLER).intValue());
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+            release.countDown();
+            assertEquals(200, running.get(5, TimeUnit.SECONDS).intValue());
+            assertEquals(200, waiting.get(5, TimeUnit.SECONDS).intValue());
+            assertEquals(2, attachments.getAdmitted());
+            assertEquals(1, attachments.getQueued());
+            assertEquals(1, attachments.getQueueWait().getCount());
+            assertEquals(0, attachments.getActive());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testQueuedRequestsTimeOut() throws Exception {
+        final BulkheadFilter bulkheads = new BulkheadFilter().setBulkhead("attachment", 1, 5, 100);
+        client = new SimpleHttpClientImpl(new PooledHttpTransport()).addFilter(bulkheads);
+        final Future<Integer> running = client.sendAsync(request("/download"), STATUS_HANDLER, null);
+        final Future<Integer> queued = client.sendAsync(request("/download"), STATUS_HANDLER, null);
+        try {
+            client.send(request("/download"), STATUS_HANDLER);
+            fail("Should have waited too long");
+        } catch (BulkheadFullException e) {
+            //Expected
+        }
+        try {
+            queued.get(5, TimeUnit.SECONDS);
+            fail("Should have waited too long");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BulkheadFullException);
+        }
+        assertEquals(2, bulkheads.getBulkhead("attachment").getTimedOut());
+        release.countDown();
+        assertEquals(200, running.get(5, TimeUnit.SECONDS).intValue());
+        assertEquals(0, bulkheads.getBulkhead("attachment").getActive());
+    }
+
+    private Callable<Integer> download(final SimpleHttpClient client) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return client.send(request("/download"), STATUS_HANDLER);
+            }
+        };
+    }
+
+    private HttpRequest request(String path) throws IOException {
+        return new HttpRequest("GET", new URL(server.getUrl() + path)).setOperation("attachment");
+    }
+}
@@ -0,0 +1,143 @@
+package org.signaut.common.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.signaut.common.http.HttpTestServer.STATUS_HANDLER;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.signaut.common.http.CircuitBreakerFilter.State;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+
+public class TestCircuitBreakerFilter {
+    private volatile int status = 500;
+    private final CountDownLatch endStream = new CountDownLatch(1);
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private SimpleHttpClientImpl client;
+
+    @Rule
+    public final HttpTestServer server = new HttpTestServer(new HttpTestServer.Responder() {
+        @Override
+        public void respond(String target, HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+            response.setStatus(status);
+            if ("/stream".equals(target) && status < 500) {
+                //A body that only ends when the test says so
+                response.flushBuffer();
+                try {
+                    endStream.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    });
+
+    @After
+    public void shutdown() {
+        endStream.countDown();
+        if (client != null) {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testBreakerOpensAndRecovers() throws Exception {
+        final CircuitBreakerFilter breaker = new CircuitBreakerFilter().setMinimumRequests(4).setOpenTime(200);
+        final String baseUrl = server.getUrl();
+        client = new SimpleHttpClientImpl(new PooledHttpTransport()).addFilter(breaker);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(500, client.get(baseUrl, STATUS_HANDLER, headers).intValue());
+        }
+        assertEquals(State.OPEN, breaker.getState(baseUrl));
+        try {
+            client.get(baseUrl, STATUS_HANDLER, headers);
+            fail("Breaker should be open");
+        } catch (CircuitOpenException e) {
+            assertEquals(1, breaker.getRejected());
+        }
+        try {
+            client.getAsync(baseUrl, STATUS_HANDLER, headers, null).get();
+            fail("Breaker should be open");
+        } catch (Exception e) {
+            assertEquals(CircuitOpenException.class, e.getCause().getClass());
+        }
+
+        //A failed probe opens the breaker again
+        Thread.sleep(250);
+        assertEquals(500, client.get(baseUrl, STATUS_HANDLER, headers).intValue());
+        assertEquals(State.OPEN, breaker.getState(baseUrl));
+
+        //A successful probe closes it
+        status = 200;
+        Thread.sleep(250);
+        assertEquals(200, client.get(baseUrl, STATUS_HANDLER, headers).intValue());
+        assertEquals(State.CLOSED, breaker.getState(baseUrl));
+        assertEquals(2, breaker.getOpened());
+    }
+
+    @Test
+    public void testProbeWithEndlessBodyClosesBreaker() throws Exception {
+        final CircuitBreakerFilter breaker = new CircuitBreakerFilter().setMinimumRequests(4).setOpenTime(200);
+        final String baseUrl = server.getUrl();
+        client = new SimpleHttpClientImpl(new PooledHttpTransport()).addFilter(breaker);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(500, client.get(baseUrl, STATUS_HANDLER, headers).intValue());
+        }
+        assertEquals(State.OPEN, breaker.getState(baseUrl));
+
+        status = 200;
+        Thread.sleep(250);
+        final CountDownLatch streaming = new CountDownLatch(1);
+        final HttpResponseHandler<Integer> streamHandler = new HttpResponseHandler<Integer>() {
+            @Override
+            public Integer handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+                streaming.countDown();
+                try {
+                    while (input.read() >= 0) {
+                        //Keep reading until the body ends
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return responseCode;
+            }
+        };
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final Future<Integer> probe = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return client.get(baseUrl + "/stream", streamHandler, headers);
+            }
+        });
+        assertTrue(streaming.await(2, TimeUnit.SECONDS));
+
+        //The probe is still reading its body, but its status already closed the breaker
+        assertEquals(State.CLOSED, breaker.getState(baseUrl));
+        assertEquals(200, client.get(baseUrl, STATUS_HANDLER, headers).intValue());
+        assertFalse(probe.isDone());
+
+        endStream.countDown();
+        assertEquals(200, probe.get(2, TimeUnit.SECONDS).intValue());
+        assertEquals(State.CLOSED, breaker.getState(baseUrl));
+        executor.shutdown();
+    }
+}
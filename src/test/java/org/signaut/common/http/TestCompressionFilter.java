@@ -0,0 +1,108 @@
+package org.signaut.common.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+
+public class TestCompressionFilter {
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private SimpleHttpClientImpl client;
+    private final HttpResponseHandler<String> stringHandler = new HttpResponseHandler<String>() {
+        @Override
+        public String handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            assertNull(connection.getHeaderField("Content-Encoding"));
+            return HttpTestServer.read(input);
+        }
+    };
+
+    private static String repeat(String s, int times) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    @Rule
+    public final HttpTestServer server = new HttpTestServer(new HttpTestServer.Responder() {
+        @Override
+        public void respond(String target, HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+            InputStream in = request.getInputStream();
+            if ("gzip".equals(request.getHeader("Content-Encoding"))) {
+                in = new GZIPInputStream(in);
+            }
+            String body = HttpTestServer.read(in);
+            if (body.isEmpty()) {
+                body = repeat("{\"a\":1}", 500);
+            }
+            final String accept = request.getHeader("Accept-Encoding");
+            OutputStream out = response.getOutputStream();
+            if (target.startsWith("/deflate") && accept.contains("deflate")) {
+                response.setHeader("Content-Encoding", "deflate");
+                out = new DeflaterOutputStream(out);
+            } else if (accept.contains("gzip")) {
+                response.setHeader("Content-Encoding", "gzip");
+                out = new GZIPOutputStream(out);
+            }
+            out.write(body.getBytes("UTF-8"));
+            out.close();
+        }
+    });
+
+    @After
+    public void shutdown() {
+        if (client != null) {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompressedResponses() {
+        final CompressionFilter compression = new CompressionFilter();
+        client = new SimpleHttpClientImpl(new HttpConnectionPool()).addFilter(compression);
+        final String expected = repeat("{\"a\":1}", 500);
+        assertEquals(expected, client.get(server.getUrl() + "/gzip", stringHandler, headers));
+        assertEquals(expected, client.get(server.getUrl() + "/deflate", stringHandler, headers));
+        assertEquals(2, compression.getCompressedResponses());
+        assertEquals(2 * expected.length(), compression.getResponseBytesDecoded());
+        assertTrue(compression.getBytesSaved() > expected.length());
+    }
+
+    @Test
+    public void testCompressedRequests() {
+        final CompressionFilter compression = new CompressionFilter().setCompressingRequests(true).setMinimumSize(100);
+        client = new SimpleHttpClientImpl(new HttpConnectionPool()).addFilter(compression);
+        final String large = repeat("{\"b\":2}", 100);
+        headers.put("Content-Type", "application/json; charset=UTF-8");
+        assertEquals(large, client.put(server.getUrl() + "/echo", stringHandler, large, headers));
+        assertEquals("small", client.put(server.getUrl() + "/echo", stringHandler, "small", headers));
+        assertEquals(1, compression.getCompressedRequests());
+        //Attachments are left alone
+        headers.put("Content-Type", "application/java-archive");
+        assertEquals(large, client.put(server.getUrl() + "/echo", stringHandler, large, headers));
+        headers.remove("Content-Type");
+        assertEquals(large, client.put(server.getUrl() + "/echo", stringHandler, large, headers));
+        assertEquals(1, compression.getCompressedRequests());
+        assertEquals(large.length(), compression.getRequestBytes());
+        assertTrue(compression.getRequestBytesSent() < large.length());
+    }
+}
@@ -0,0 +1,108 @@
+package org.signaut.common.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.signaut.common.http.HttpTestServer.STRING_HANDLER;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+
+public class TestHedgingFilter {
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger races = new AtomicInteger();
+    private final CountDownLatch releaseLoser = new CountDownLatch(1);
+    private final HedgingFilter hedging = new HedgingFilter("document").setMinimumSamples(5).setPercentile(50)
+            .setMinimumDelay(20);
+    private final SimpleHttpClientImpl client = new SimpleHttpClientImpl(new PooledHttpTransport()).addFilter(hedging);
+
+    @Rule
+    public final HttpTestServer server = new HttpTestServer(new HttpTestServer.Responder() {
+        @Override
+        public void respond(String target, HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+            try {
+                if (target.startsWith("/race")) {
+                    //The first request of the race is held until the test is done with it
+                    if (races.incrementAndGet() == 1) {
+                        releaseLoser.await(5, TimeUnit.SECONDS);
+                        response.getWriter().write("late");
+                        return;
+                    }
+                } else if (requests.incrementAndGet() % 10 == 0) {
+                    //Every tenth request is slow
+                    Thread.sleep(1000);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            response.getWriter().write("ok");
+        }
+    });
+
+    @After
+    public void shutdown() {
+        releaseLoser.countDown();
+        hedging.shutdown();
+        client.shutdown();
+    }
+
+    @Test
+    public void testSlowRequestsAreHedged() throws Exception {
+        final URL url = new URL(server.getUrl() + "/doc");
+        long slowest = 0;
+        for (int i = 0; i < 30; i++) {
+            final long started = System.currentTimeMillis();
+            assertEquals("ok", client.send(new HttpRequest("GET", url).setOperation("document"), STRING_HANDLER));
+            if (i >= 10) {
+                slowest = Math.max(slowest, System.currentTimeMillis() - started);
+            }
+        }
+        assertTrue("Slowest hedged request took " + slowest + " ms", slowest < 500);
+        assertTrue(hedging.getHedgeWins() >= 2);
+        assertEquals("ok", client.sendAsync(new HttpRequest("GET", url).setOperation("document"), STRING_HANDLER, null)
+                .get());
+    }
+
+    @Test
+    public void shouldDiscardTheLosingRequest() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            client.send(new HttpRequest("GET", new URL(server.getUrl() + "/doc")).setOperation("document"),
+                        STRING_HANDLER);
+        }
+        final AtomicInteger handled = new AtomicInteger();
+        final HttpResponseHandler<String> countingHandler = new HttpResponseHandler<String>() {
+            @Override
+            public String handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+                handled.incrementAndGet();
+                return STRING_HANDLER.handleInput(responseCode, input, connection);
+            }
+        };
+        final long started = System.currentTimeMillis();
+        //The first request is aborted once the hedge has answered, and that failure is not the call's
+        assertEquals("ok", client.send(new HttpRequest("GET", new URL(server.getUrl() + "/race"))
+                .setOperation("document"), countingHandler));
+        final long elapsed = System.currentTimeMillis() - started;
+        assertTrue("Waited " + elapsed + " ms for the losing request", elapsed < 1000);
+        assertEquals(1, hedging.getHedgedRequests());
+        assertEquals(1, hedging.getHedgeWins());
+
+        //Nothing of the loser reaches the handler, even when its response comes after all
+        releaseLoser.countDown();
+        Thread.sleep(100);
+        assertEquals(2, races.get());
+        assertEquals(1, handled.get());
+    }
+}
@@ -0,0 +1,147 @@
+package org.signaut.common.http;
+
+import static org.junit.Assert.assertEquals;
+
+import static org.signaut.common.http.HttpTestServer.STATUS_HANDLER;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+
+public class TestHttpConnectionPool {
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private SimpleHttpClientImpl client;
+    private final HttpResponseHandler<String> stringHandler = new HttpResponseHandler<String>() {
+        @Override
+        public String handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            return responseCode + ":" + HttpTestServer.read(input);
+        }
+    };
+
+    @Rule
+    public final HttpTestServer server = new HttpTestServer(new HttpTestServer.Responder() {
+        @Override
+        public void respond(String target, HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+            if (target.startsWith("/missing")) {
+                response.setStatus(404);
+                response.getWriter().write("{\"error\":\"not_found\"}");
+            } else if (target.startsWith("/chunked")) {
+                response.getWriter().write("hello ");
+                response.flushBuffer();
+                response.getWriter().write("world");
+            } else if (target.startsWith("/echo")) {
+                response.setCharacterEncoding("UTF-8");
+                response.getWriter().write(HttpTestServer.read(request.getInputStream()));
+            } else {
+                response.setContentLength(2);
+                response.getWriter().write("ok");
+            }
+        }
+    });
+
+    @After
+    public void shutdown() {
+        if (client != null) {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testConnectionReuse() {
+        final HttpConnectionPool pool = new HttpConnectionPool(2);
+        final String url = server.getUrl();
+        client = new SimpleHttpClientImpl(pool);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("200:ok", client.get(url + "/doc", stringHandler, headers));
+        }
+        assertEquals("200:hello world", client.get(url + "/chunked", stringHandler, headers));
+        assertEquals("404:{\"error\":\"not_found\"}", client.get(url + "/missing", stringHandler, headers));
+        assertEquals("200:{\"a\":\"æ\"}", client.put(url + "/echo", stringHandler, "{\"a\":\"æ\"}", headers));
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(7, pool.getReusedCount());
+        assertEquals(0, pool.getTotalStats().getLeased());
+        assertEquals(1, pool.getTotalStats().getIdle());
+        pool.shutdown();
+        assertEquals(0, pool.getTotalStats().getIdle());
+    }
+
+    @Test
+    public void shouldKeepTheDefaultPoolOpenWhenShutDown() {
+        final SimpleHttpClientImpl first = new SimpleHttpClientImpl(HttpConnectionPool.getDefault());
+        assertEquals("200:ok", first.get(server.getUrl() + "/doc", stringHandler, headers));
+        first.shutdown();
+        assertEquals(0, HttpConnectionPool.getDefault().getTotalStats().getIdle());
+        client = new SimpleHttpClientImpl(HttpConnectionPool.getDefault());
+        assertEquals("200:ok", client.get(server.getUrl() + "/doc", stringHandler, headers));
+    }
+
+    @Test
+    public void testStreamingBodies() throws IOException {
+        final StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            large.append("ø").append(i);
+        }
+        final byte bytes[] = large.toString().getBytes("UTF-8");
+        final HttpContent writerContent = HttpContent.of(new HttpContent.Writer() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(bytes, 0, 10);
+                out.write(bytes, 10, bytes.length - 10);
+                out.close();
+            }
+        });
+        final HttpConnectionPool pool = new HttpConnectionPool(1);
+        final String url = server.getUrl();
+        for (HttpTransport transport: new HttpTransport[] { new PooledHttpTransport(pool), new UrlConnectionTransport() }) {
+            final SimpleHttpClientImpl streaming = new SimpleHttpClientImpl(transport);
+            try {
+                assertEquals("200:" + large, streaming.put(url + "/echo", stringHandler, writerContent, headers));
+                assertEquals("200:" + large, streaming.post(url + "/echo", stringHandler,
+                                                            HttpContent.of(new ByteArrayInputStream(bytes),
+                                                                           bytes.length), headers));
+                assertEquals("200:" + large, streaming.put(url + "/echo", stringHandler, HttpContent.of(bytes),
+                                                           headers));
+                assertEquals("200:ok", streaming.get(url + "/doc", stringHandler, headers));
+            } finally {
+                streaming.shutdown();
+            }
+        }
+        //The chunked body must not have cost the connection
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    @Test
+    public void testUnreadBodyIsDrained() {
+        final HttpConnectionPool pool = new HttpConnectionPool(1);
+        client = new SimpleHttpClientImpl(pool);
+        assertEquals(Integer.valueOf(200), client.get(server.getUrl() + "/chunked", STATUS_HANDLER, headers));
+        assertEquals("200:ok", client.get(server.getUrl() + "/doc", stringHandler, headers));
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    @Test
+    public void testStaleConnectionIsReplaced() throws Exception {
+        server.getConnector().setIdleTimeout(100);
+        final HttpConnectionPool pool = new HttpConnectionPool(1).setValidateAfterInactivity(0);
+        client = new SimpleHttpClientImpl(pool);
+        assertEquals("200:ok", client.get(server.getUrl() + "/doc", stringHandler, headers));
+        //Let the server close the idle connection
+        Thread.sleep(500);
+        assertEquals("200:ok", client.get(server.getUrl() + "/doc", stringHandler, headers));
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(1, pool.getStaleCount());
+    }
+}
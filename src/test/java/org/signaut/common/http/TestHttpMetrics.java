@@ -0,0 +1,173 @@
+package org.signaut.common.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import static org.signaut.common.http.HttpTestServer.STRING_HANDLER;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestHttpMetrics {
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private SimpleHttpClientImpl client;
+
+    @Rule
+    public final HttpTestServer server = new HttpTestServer(new HttpTestServer.Responder() {
+        @Override
+        public void respond(String target, HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+            if (target.endsWith("missing")) {
+                response.setStatus(404);
+                return;
+            }
+            //Echo the body, or ten bytes when there is none
+            final String body = HttpTestServer.read(request.getInputStream());
+            response.getWriter().print(body.isEmpty() ? "0123456789" : body);
+        }
+    });
+
+    @After
+    public void shutdown() {
+        if (client != null) {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testTemplates() {
+        assertEquals("/", HttpMetrics.template("/"));
+        assertEquals("/_session", HttpMetrics.template("/_session"));
+        assertEquals("/{db}", HttpMetrics.template("/apps/"));
+        assertEquals("/{db}/_changes", HttpMetrics.template("/apps/_changes"));
+        assertEquals("/{db}/{doc}", HttpMetrics.template("/_users/org.couchdb.user:joe"));
+        assertEquals("/{db}/{doc}/{attachment}", HttpMetrics.template("/apps/site/wars/site.war"));
+        assertEquals("/{db}/_local/{doc}", HttpMetrics.template("/apps/_local/checkpoint"));
+        assertEquals("/{db}/_design/{ddoc}/_view/{name}", HttpMetrics.template("/apps/_design/webapps/_view/all"));
+        for (String path: new String[] { "", "/", "/_session", "/apps/", "/apps/_changes",
+                                         "/_users/org.couchdb.user:joe", "/apps/site/wars/site.war",
+                                         "/apps/_local/checkpoint", "/apps/_design/webapps/_view/all" }) {
+            assertTrue(path, HttpMetrics.hasTemplate(path, HttpMetrics.template(path)));
+        }
+        assertFalse(HttpMetrics.hasTemplate("/apps/site", "/{db}"));
+        assertFalse(HttpMetrics.hasTemplate("/apps", "/{db}/{doc}"));
+        assertFalse(HttpMetrics.hasTemplate("/apps/_local/checkpoint", "/{db}/{doc}"));
+        assertFalse(HttpMetrics.hasTemplate("/apps/_changes", "/{db}/_change"));
+    }
+
+    @Test
+    public void shouldTellTheEndpointsOfAnOperationApart() throws Exception {
+        final String baseUrl = server.getUrl();
+        final HttpMetrics metrics = new HttpMetrics();
+        final HttpMetrics.Endpoint document = metrics.endpoint(new HttpRequest("GET", new URL(baseUrl + "/apps/site"))
+                .setOperation("document"));
+        final HttpMetrics.Endpoint local = metrics.endpoint(new HttpRequest("GET", new URL(baseUrl
+                + "/apps/_local/checkpoint")).setOperation("document"));
+        assertEquals("GET /{db}/{doc}", document.getName());
+        assertEquals("GET /{db}/_local/{doc}", local.getName());
+        assertSame(document, metrics.endpoint(new HttpRequest("GET", new URL(baseUrl + "/apps/other"))
+                .setOperation("document")));
+        assertSame(local, metrics.endpoint(new HttpRequest("GET", new URL(baseUrl + "/apps/_local/other"))
+                .setOperation("document")));
+        assertSame(document, metrics.endpoint(new HttpRequest("GET", new URL(baseUrl + "/apps/site"))));
+        assertEquals("PUT /{db}/{doc}", metrics.endpoint(new HttpRequest("PUT", new URL(baseUrl + "/apps/site"))
+                .setOperation("document")).getName());
+        assertEquals(3, metrics.getEndpointMetrics().size());
+    }
+
+    @Test
+    public void testHistogram() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500, histogram.getMean());
+        //Buckets are at most 12.5% wide
+        assertTrue(histogram.getPercentile(50) >= 500000 && histogram.getPercentile(50) <= 562500);
+        assertTrue(histogram.getPercentile(99) >= 990000 && histogram.getPercentile(99) <= 1000000);
+        assertEquals(1000000, histogram.getPercentile(100));
+        for (long value = 0; value < 100000; value += 7) {
+            final int index = LatencyHistogram.index(value);
+            assertTrue(value <= LatencyHistogram.upperBound(index));
+            assertTrue(index == 0 || value > LatencyHistogram.upperBound(index - 1));
+        }
+    }
+
+    @Test
+    public void testRequestsAreRecordedPerEndpoint() throws Exception {
+        final String baseUrl = server.getUrl();
+        client = new SimpleHttpClientImpl(new PooledHttpTransport());
+        final HttpMetrics metrics = client.getMetrics().slowRequestThreshold(1);
+        client.get(baseUrl + "/apps/site", STRING_HANDLER, headers);
+        client.get(baseUrl + "/apps/other?revs=true", STRING_HANDLER, headers);
+        client.get(baseUrl + "/apps/missing", STRING_HANDLER, headers);
+        assertEquals("hello", client.put(baseUrl + "/apps/site", STRING_HANDLER, "hello", headers));
+        assertEquals("0123456789", client.getAsync(baseUrl + "/_session", STRING_HANDLER, headers, null).get());
+
+        final HttpMetrics.Endpoint get = metrics.getEndpointMetrics().get("GET /{db}/{doc}");
+        assertEquals(3, get.getLatency().getCount());
+        assertEquals(2, get.getStatusCount(2));
+        assertEquals(1, get.getStatusCount(4));
+        assertEquals(2, get.getStatusCodeCount(200));
+        assertEquals(1, get.getStatusCodeCount(404));
+        assertEquals(0, get.getStatusCodeCount(400));
+        assertEquals(1, metrics.statusCodeCount("GET /{db}/{doc}", 404));
+        assertTrue(get.toString(), get.toString().contains("status={200=2, 404=1}"));
+        assertEquals(20, get.getBytesIn());
+        assertEquals(0, get.getBytesOut());
+        final HttpMetrics.Endpoint put = metrics.getEndpointMetrics().get("PUT /{db}/{doc}");
+        assertEquals(5, put.getBytesIn());
+        assertEquals(5, put.getBytesOut());
+        assertEquals(1, metrics.getEndpointMetrics().get("GET /_session").getStatusCount(2));
+        assertEquals(5, metrics.getRequests());
+        assertEquals(Long.valueOf(4), metrics.getStatusCodeCounts().get(200));
+        assertTrue(metrics.toString(), metrics.toString().contains("statusCodes={200=4, 404=1}"));
+        assertEquals(0, metrics.getErrors());
+
+        //No one listening
+        server.stop();
+        try {
+            client.get(baseUrl + "/apps/site", STRING_HANDLER, headers);
+        } catch (RuntimeException e) {
+            //Expected
+        }
+        assertEquals(1, metrics.getErrors());
+        assertEquals(4, get.getLatency().getCount());
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        final HttpMetrics metrics = new HttpMetrics();
+        final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = metrics.register(mbeanServer, "org.signaut.test:type=HttpMetrics");
+        try {
+            client = new SimpleHttpClientImpl(new PooledHttpTransport()).setMetrics(metrics);
+            client.get(server.getUrl() + "/apps/site", STRING_HANDLER, headers);
+            assertEquals(1L, mbeanServer.getAttribute(name, "Requests"));
+            assertEquals(10L, mbeanServer.getAttribute(name, "BytesIn"));
+            assertEquals(1, ((String[]) mbeanServer.getAttribute(name, "Endpoints")).length);
+            assertTrue((Long) mbeanServer.invoke(name, "percentile", new Object[] { "GET /{db}/{doc}", 99.0 },
+                                                 new String[] { String.class.getName(), double.class.getName() }) > 0);
+        } finally {
+            HttpMetrics.unregister(mbeanServer, name);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.signaut.common.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
+import org.signaut.common.http.SimpleHttpClient.HttpResponseHandler;
+
+public class TestJettyHttpTransport {
+    private final JettyHttpTransport transport = new JettyHttpTransport();
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private final HttpResponseHandler<String> stringHandler = new HttpResponseHandler<String>() {
+        @Override
+        public String handleInput(int responseCode, InputStream input, HttpURLConnection connection) {
+            return responseCode + ":" + connection.getHeaderField("X-Path") + ":" + HttpTestServer.read(input);
+        }
+    };
+
+    @Rule
+    public final HttpTestServer server = new HttpTestServer(new HttpTestServer.Responder() {
+        @Override
+        public void respond(String target, HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+            response.setHeader("X-Path", target);
+            response.setHeader("Set-Cookie", "AuthSession=abc; Path=/");
+            response.getWriter().write(request.getMethod());
+        }
+    });
+
+    @After
+    public void stopTransport() throws Exception {
+        //Shared by the clients of every test
+        transport.stop();
+    }
+
+    @Test
+    public void testManyRequestsInFlight() throws InterruptedException, ExecutionException {
+        final SimpleHttpClient client = new SimpleHttpClientImpl(transport);
+        final String url = server.getUrl();
+        final int requests = 200;
+        final CountDownLatch callbacks = new CountDownLatch(requests);
+        final AtomicInteger failures = new AtomicInteger();
+        final List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < requests; i++) {
+            futures.add(client.getAsync(url + "/doc" + i, stringHandler, headers, new HttpCallback<String>() {
+                @Override
+                public void completed(String result) {
+                    callbacks.countDown();
+                }
+
+                @Override
+                public void failed(Throwable failure) {
+                    failures.incrementAndGet();
+                    callbacks.countDown();
+                }
+            }));
+        }
+        for (int i = 0; i < requests; i++) {
+            assertEquals("200:/doc" + i + ":GET", futures.get(i).get());
+        }
+        assertTrue(callbacks.await(5, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        assertEquals("200:/doc:PUT", client.putAsync(url + "/doc", stringHandler, "{}", headers, null).get());
+    }
+
+    @Test
+    public void testBlockingRequests() {
+        final SimpleHttpClient client = new SimpleHttpClientImpl(transport);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("200:/doc:GET", client.get(server.getUrl() + "/doc", stringHandler, headers));
+        }
+        assertEquals("200:/doc:POST", client.post(server.getUrl() + "/doc", stringHandler, "{}", headers));
+    }
+
+    @Test
+    public void testFailureCompletesFuture() throws InterruptedException {
+        final SimpleHttpClient client = new SimpleHttpClientImpl(transport);
+        final Future<String> future = client.getAsync("http://localhost:1/doc", stringHandler, headers, null);
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            assertTrue(future.isDone());
+            return;
+        }
+        throw new AssertionError("Request to a closed port should fail");
+    }
+}
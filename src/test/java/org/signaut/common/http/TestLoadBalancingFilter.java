@@ -0,0 +1,86 @@
+package org.signaut.common.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import static org.signaut.common.http.HttpTestServer.STRING_HANDLER;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestLoadBalancingFilter {
+    @Rule
+    public final HttpTestServer fast = node("fast", 0);
+    @Rule
+    public final HttpTestServer slow = node("slow", 50);
+
+    private static HttpTestServer node(final String name, final long delay) {
+        return new HttpTestServer(new HttpTestServer.Responder() {
+            @Override
+            public void respond(String target, HttpServletRequest request, HttpServletResponse response)
+                    throws IOException {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                response.getWriter().write(name + target);
+            }
+        });
+    }
+
+    @Test
+    public void testBalancingAndFailover() throws Exception {
+        final String fastUrl = fast.getUrl();
+        final String slowUrl = slow.getUrl();
+        final LoadBalancingFilter balancer = new LoadBalancingFilter(Arrays.asList(slowUrl, fastUrl))
+                .setStickyOperations("changes");
+        final SimpleHttpClientImpl client = new SimpleHttpClientImpl(new PooledHttpTransport()).addFilter(balancer);
+        try {
+            int fastCount = 0;
+            for (int i = 0; i < 20; i++) {
+                if (client.get(slowUrl + "/db/doc", STRING_HANDLER, null).equals("fast/db/doc")) {
+                    fastCount++;
+                }
+            }
+            assertTrue("Only " + fastCount + " requests went to the fast node", fastCount >= 17);
+
+            //Requests to other servers are left alone
+            final HttpTestServer other = node("other", 0).start();
+            try {
+                assertEquals("other/x", client.get(other.getUrl() + "/x", STRING_HANDLER, null));
+            } finally {
+                other.stop();
+            }
+
+            //The changes feed sticks to its node, even when it is the slower one
+            final String first = client.send(changes(fastUrl), STRING_HANDLER);
+            assertEquals(first, client.send(changes(fastUrl), STRING_HANDLER));
+
+            //Fail over when the fast node dies
+            fast.stop();
+            for (int i = 0; i < balancer.getFailureThreshold(); i++) {
+                try {
+                    client.get(slowUrl + "/db/doc", STRING_HANDLER, null);
+                } catch (RuntimeException e) {
+                    //The node being taken down
+                }
+            }
+            assertEquals("slow/db/doc", client.get(slowUrl + "/db/doc", STRING_HANDLER, null));
+            assertEquals("slow/_changes", client.send(changes(slowUrl), STRING_HANDLER));
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    private static HttpRequest changes(String url) throws IOException {
+        return new HttpRequest("GET", new URL(url + "/_changes")).setOperation("changes");
+    }
+}
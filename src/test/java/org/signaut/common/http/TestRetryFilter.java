@@ -0,0 +1,55 @@
+package org.signaut.common.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.signaut.common.http.HttpTestServer.STATUS_HANDLER;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestRetryFilter {
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Map<String, String> headers = new HashMap<String, String>();
+
+    @Rule
+    public final HttpTestServer server = new HttpTestServer(new HttpTestServer.Responder() {
+        @Override
+        public void respond(String target, HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+            //Every request but every third one fails
+            response.setStatus(requests.incrementAndGet() % 3 == 0 ? 200 : 503);
+        }
+    });
+
+    @Test
+    public void testIdempotentRequestsAreRetried() throws Exception {
+        final String url = server.getUrl();
+        final RetryFilter retry = new RetryFilter().setBaseDelay(10);
+        final SimpleHttpClientImpl client = new SimpleHttpClientImpl(new PooledHttpTransport()).addFilter(retry);
+        try {
+            assertEquals(200, client.get(url, STATUS_HANDLER, headers).intValue());
+            assertEquals(2, retry.getRetries());
+            assertEquals(200, client.getAsync(url, STATUS_HANDLER, headers, null).get().intValue());
+            assertEquals(4, retry.getRetries());
+
+            //Not idempotent
+            assertEquals(503, client.put(url, STATUS_HANDLER, "{}", headers).intValue());
+            assertEquals(4, retry.getRetries());
+
+            //Out of retries, the last response is handed over
+            retry.setMaxRetries(1);
+            requests.set(0);
+            assertEquals(503, client.get(url, STATUS_HANDLER, headers).intValue());
+            assertEquals(5, retry.getRetries());
+        } finally {
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.signaut.common.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.signaut.common.http.SimpleHttpClient.HttpCallback;
+
+public class TestSingleFlight {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final SingleFlight<String, Object> flights = new SingleFlight<String, Object>();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentCallsAreShared() throws Exception {
+        final Object result = new Object();
+        final List<Future<Object>> callers = new ArrayList<Future<Object>>();
+        for (int i = 0; i < 10; i++) {
+            callers.add(executor.submit(caller("doc", result)));
+        }
+        while (flights.getCalls() + flights.getAbsorbed() < 10) {
+            Thread.sleep(5);
+        }
+        //Another key is not held up
+        assertEquals("other", flights.execute("other", new SingleFlight.Call<Object>() {
+            @Override
+            public Object call() {
+                return "other";
+            }
+        }));
+        release.countDown();
+        for (Future<Object> caller: callers) {
+            assertSame(result, caller.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        assertEquals(9, flights.getAbsorbed());
+        assertEquals(0, flights.getInFlight());
+
+        //Once done, the next call goes through
+        executor.submit(caller("doc", result)).get(5, TimeUnit.SECONDS);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testFailuresAreShared() throws Exception {
+        final List<Future<Object>> callers = new ArrayList<Future<Object>>();
+        for (int i = 0; i < 3; i++) {
+            callers.add(executor.submit(caller("doc", null)));
+        }
+        while (flights.getCalls() + flights.getAbsorbed() < 3) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        for (Future<Object> caller: callers) {
+            try {
+                caller.get(5, TimeUnit.SECONDS);
+                fail("Should fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testAsyncCallsAreShared() throws Exception {
+        final List<HttpCallback<Object>> started = new ArrayList<HttpCallback<Object>>();
+        final SingleFlight.AsyncCall<Object> call = new SingleFlight.AsyncCall<Object>() {
+            @Override
+            public void call(HttpCallback<Object> callback) {
+                calls.incrementAndGet();
+                started.add(callback);
+            }
+        };
+        final Future<Object> first = flights.executeAsync("doc", call, null);
+        final HttpFuture<Object> notified = new HttpFuture<Object>();
+        final Future<Object> second = flights.executeAsync("doc", call, notified);
+        assertEquals(1, calls.get());
+        assertEquals(1, started.size());
+        started.get(0).completed("result");
+        assertEquals("result", first.get(5, TimeUnit.SECONDS));
+        assertEquals("result", second.get(5, TimeUnit.SECONDS));
+        assertEquals("result", notified.get(5, TimeUnit.SECONDS));
+        assertEquals(1, flights.getAbsorbed());
+        assertEquals(0, flights.getInFlight());
+    }
+
+    private Callable<Object> caller(final String key, final Object result) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return flights.execute(key, new SingleFlight.Call<Object>() {
+                    @Override
+                    public Object call() {
+                        calls.incrementAndGet();
+                        try {
+                            release.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        if (result == null) {
+                            throw new IllegalStateException("CouchDB is down");
+                        }
+                        return result;
+                    }
+                });
+            }
+        };
+    }
+}
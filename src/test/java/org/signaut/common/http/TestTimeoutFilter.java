@@ -0,0 +1,76 @@
+package org.signaut.common.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.signaut.common.http.HttpTestServer.STRING_HANDLER;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.signaut.common.http.TimeoutFilter.Timeouts;
+
+public class TestTimeoutFilter {
+    @Rule
+    public final HttpTestServer server = new HttpTestServer(new HttpTestServer.Responder() {
+        @Override
+        public void respond(String target, HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+            try {
+                if (target.startsWith("/slow")) {
+                    Thread.sleep(2000);
+                } else if (target.startsWith("/trickle")) {
+                    final OutputStream out = response.getOutputStream();
+                    for (int i = 0; i < 20; i++) {
+                        out.write('x');
+                        response.flushBuffer();
+                        Thread.sleep(100);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            response.getWriter().write("ok");
+        }
+    });
+
+    private void assertTimesOut(SimpleHttpClient client, String path, String operation, long within) throws Exception {
+        final long started = System.currentTimeMillis();
+        try {
+            client.send(new HttpRequest("GET", new URL(server.getUrl() + path)).setOperation(operation),
+                        STRING_HANDLER);
+            fail("Expected " + path + " to time out");
+        } catch (RuntimeException e) {
+            assertTrue(e.toString(), e instanceof HttpTimeoutException);
+        }
+        final long elapsed = System.currentTimeMillis() - started;
+        assertTrue("Took " + elapsed + " ms", elapsed < within);
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        final TimeoutFilter timeouts = new TimeoutFilter().setDefaults(new Timeouts(0, 1000, 0))
+                .setTimeouts("read", new Timeouts(0, 1000, 300))
+                .setTimeouts("deadline", new Timeouts(500, 1000, 0));
+        for (HttpTransport transport: new HttpTransport[] { new PooledHttpTransport(), new UrlConnectionTransport(),
+                                                            new JettyHttpTransport() }) {
+            final SimpleHttpClientImpl client = new SimpleHttpClientImpl(transport).addFilter(timeouts);
+            try {
+                assertTimesOut(client, "/slow", "read", 1500);
+                assertTimesOut(client, "/slow", "deadline", 1500);
+                //Every read returns within the read timeout, but the whole response takes too long
+                assertTimesOut(client, "/trickle", "deadline", 1500);
+                assertEquals("ok", client.send(new HttpRequest("GET", new URL(server.getUrl() + "/fast"))
+                        .setOperation("deadline"), STRING_HANDLER));
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.signaut.jetty.deploy.providers.couchdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.signaut.common.couchdb.ChangeSet;
+
+public class TestChangeCoalescer {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testBurstIsDeployedOnce() {
+        final ChangeCoalescer coalescer = new ChangeCoalescer(100);
+        coalescer.add(change(1, "site"), 0);
+        coalescer.add(change(2, "site"), 30 * MS);
+        coalescer.add(change(3, "site"), 60 * MS);
+        //Quiet period starts over with every change
+        assertTrue(coalescer.due(120 * MS).isEmpty());
+        assertEquals(40, coalescer.nextDue(120 * MS));
+        assertEquals(sequences(3), sequences(coalescer.due(160 * MS)));
+        assertEquals(2, coalescer.getSkipped());
+        assertEquals(-1, coalescer.nextDue(160 * MS));
+    }
+
+    @Test
+    public void testOrderFollowsLastChange() {
+        final ChangeCoalescer coalescer = new ChangeCoalescer(100);
+        coalescer.add(change(1, "a"), 0);
+        coalescer.add(change(2, "b"), 10 * MS);
+        coalescer.add(change(3, "a"), 20 * MS);
+        coalescer.add(change(4, "c"), 30 * MS);
+        assertEquals(sequences(2), sequences(coalescer.due(110 * MS)));
+        assertEquals(sequences(3, 4), sequences(coalescer.due(200 * MS)));
+        assertEquals(1, coalescer.getSkipped());
+    }
+
+    @Test
+    public void testNoQuietPeriod() {
+        final ChangeCoalescer coalescer = new ChangeCoalescer(0);
+        coalescer.add(change(1, "a"), 0);
+        coalescer.add(change(2, "b"), 0);
+        assertEquals(sequences(1, 2), sequences(coalescer.due(0)));
+    }
+
+    @Test
+    public void testDrain() {
+        final ChangeCoalescer coalescer = new ChangeCoalescer(1000);
+        coalescer.add(change(1, "a"), 0);
+        coalescer.add(change(2, "b"), 0);
+        assertEquals(sequences(1, 2), sequences(coalescer.drain()));
+        assertEquals(0, coalescer.getHeld());
+    }
+
+    private static ChangeSet change(int sequence, String id) {
+        final ChangeSet change = new ChangeSet();
+        change.setSequence(sequence);
+        change.setId(id);
+        return change;
+    }
+
+    private static List<Object> sequences(Object... sequences) {
+        final List<Object> list = new ArrayList<Object>();
+        for (Object sequence: sequences) {
+            list.add(sequence);
+        }
+        return list;
+    }
+
+    private static List<Object> sequences(List<ChangeSet> changes) {
+        final List<Object> list = new ArrayList<Object>();
+        for (ChangeSet change: changes) {
+            list.add(change.getSequence());
+        }
+        return list;
+    }
+}
@@ -1,11 +1,172 @@
 package org.signaut.jetty.deploy.providers.couchdb;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.deploy.DeploymentManager;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.eclipse.jetty.util.IO;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
 public class TestCouchDeployment {
+    private final Map<String, String> documents = new HashMap<String, String>();
+    private final List<String> documentReads = new CopyOnWriteArrayList<String>();
+    private volatile String changes = "";
+    private Server server;
+    private File directory;
+    private CouchDbAppProvider provider;
+    private DeploymentManager deploymentManager;
+    private CouchDbDeployerProperties properties;
+
+    private static String webapp(String id) {
+        return String.format("{\"_id\":\"%s\",\"_rev\":\"1-x\",\"contextPath\":\"/%s\",\"war\":\"app.war\"}", id, id);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException, ServletException {
+                baseRequest.setHandled(true);
+                final PrintWriter out = response.getWriter();
+                if (target.equals("/db/")) {
+                    out.print("{\"db_name\":\"db\"}");
+                } else if (target.equals("/db/_design/webapps")) {
+                    out.print("{\"_id\":\"_design/webapps\",\"_rev\":\"1-x\"}");
+                } else if (target.equals("/db/_changes")) {
+                    if ("0".equals(request.getParameter("since")) || request.getParameter("since") == null) {
+                        out.print(changes);
+                        out.flush();
+                    }
+                    //Heartbeats until the client goes away
+                    final long end = System.currentTimeMillis() + 30000;
+                    while ( ! out.checkError() && System.currentTimeMillis() < end) {
+                        out.println();
+                        out.flush();
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                } else if (target.endsWith("/_compact")) {
+                    out.print("{\"ok\":true}");
+                } else if (target.endsWith("/app.war")) {
+                    response.setContentLength(3);
+                    out.print("war");
+                } else {
+                    final String id = target.substring("/db/".length());
+                    documentReads.add(id);
+                    final String document = documents.get(id);
+                    if ("broken".equals(id)) {
+                        out.print("{\"_id\":");
+                    } else if (document == null) {
+                        response.setStatus(404);
+                        out.print("{\"error\":\"not_found\",\"reason\":\"deleted\"}");
+                    } else {
+                        out.print(document);
+                    }
+                }
+            }
+        });
+        server.start();
+        directory = Files.createTempDirectory("deployments").toFile();
+        properties =
+                new CouchDbDeployerProperties("http://localhost:" + ((ServerConnector) server.getConnectors()[0])
+                        .getLocalPort() + "/db/", null, null, "webapps", null, 1)
+                        .setTemporaryDirectory(directory.getAbsolutePath())
+                        .setWarCacheSize(0)
+                        .setIncludeDocs(true);
+        deploymentManager = new DeploymentManager();
+        deploymentManager.setContexts(new ContextHandlerCollection());
+        provider = new CouchDbAppProvider(properties, null, null).setMetricsObjectName(null)
+                .setChangeSetGracePeriod(100);
+        provider.setDeploymentManager(deploymentManager);
+    }
 
+    @After
+    public void tearDown() throws Exception {
+        provider.stop();
+        server.stop();
+        IO.delete(directory);
+    }
 
     @Test
     public void testGetApp() throws InterruptedException {
     }
+
+    @Test
+    public void shouldDeployFromTheDocumentsInTheFeed() throws Exception {
+        documents.put("missing", webapp("missing"));
+        documents.put("stale", webapp("stale"));
+        changes = "{\"seq\":1,\"id\":\"inline\",\"changes\":[{\"rev\":\"1-x\"}],\"doc\":" + webapp("inline") + "}\n"
+                  //Filtered out of include_docs
+                  + "{\"seq\":2,\"id\":\"missing\",\"changes\":[{\"rev\":\"1-x\"}]}\n"
+                  //Only the tombstone came along, yet the current revision is there
+                  + "{\"seq\":3,\"id\":\"stale\",\"changes\":[{\"rev\":\"2-x\"}],"
+                  + "\"doc\":{\"_id\":\"stale\",\"_rev\":\"2-x\",\"_deleted\":true}}\n"
+                  //Deleted for good
+                  + "{\"seq\":4,\"id\":\"gone\",\"changes\":[{\"rev\":\"2-x\"}],"
+                  + "\"doc\":{\"_id\":\"gone\",\"_rev\":\"2-x\",\"_deleted\":true}}\n";
+        provider.start();
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ((deploymentManager.getApps().size() < 3 || ! documentReads.contains("gone"))
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        for (String id: new String[] { "inline", "missing", "stale" }) {
+            assertNotNull(id + " should be deployed", deploymentManager.getAppByOriginId(id));
+        }
+        assertNull(deploymentManager.getAppByOriginId("gone"));
+        assertFalse("A document in the feed is not read again", documentReads.contains("inline"));
+        assertTrue(documentReads.contains("missing"));
+        assertTrue(documentReads.contains("stale"));
+        assertEquals(3, documentReads.size());
+    }
+
+    @Test
+    public void shouldGiveUpOnAChangeThatKeepsFailing() throws Exception {
+        final File checkpoint = new File(directory, "checkpoint.json");
+        properties.setDeploymentAttempts(3).setCheckpointFile(checkpoint.getAbsolutePath());
+        documents.put("later", webapp("later"));
+        changes = "{\"seq\":1,\"id\":\"broken\",\"changes\":[{\"rev\":\"1-x\"}]}\n"
+                  + "{\"seq\":2,\"id\":\"later\",\"changes\":[{\"rev\":\"1-x\"}]}\n";
+        provider.start();
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ( ! checkpoint.isFile() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertNotNull(deploymentManager.getAppByOriginId("later"));
+        assertNull(deploymentManager.getAppByOriginId("broken"));
+        assertEquals(3, Collections.frequency(documentReads, "broken"));
+        //The change given up on does not hold the feed back
+        assertEquals(2, ((Number) DeploymentCheckpoint.read(checkpoint).getSequence()).intValue());
+    }
 }
@@ -0,0 +1,59 @@
+package org.signaut.jetty.deploy.providers.couchdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TestDeploymentCheckpoint {
+    private final File directory;
+
+    public TestDeploymentCheckpoint() throws IOException {
+        directory = Files.createTempDirectory("checkpoint").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        for (File file: directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testWriteAndRead() {
+        final File file = new File(directory, "deployer.checkpoint");
+        assertNull(DeploymentCheckpoint.read(file));
+
+        final Map<String, String> deployed = new HashMap<String, String>();
+        deployed.put("org.signaut.site", "3-abc");
+        new DeploymentCheckpoint(42, deployed).write(file);
+        deployed.put("org.signaut.admin", "1-def");
+        new DeploymentCheckpoint("43-g1AAAA", deployed).write(file);
+
+        final DeploymentCheckpoint read = DeploymentCheckpoint.read(file);
+        assertEquals("43-g1AAAA", read.getSequence());
+        assertEquals(deployed, read.getDeployed());
+        assertFalse(new File(directory, "deployer.checkpoint.tmp").exists());
+    }
+
+    @Test
+    public void testCreatesDirectory() {
+        final File file = new File(new File(directory, "sub"), "deployer.checkpoint");
+        try {
+            new DeploymentCheckpoint(1, new HashMap<String, String>()).write(file);
+            assertEquals(1, DeploymentCheckpoint.read(file).getSequence());
+        } finally {
+            file.delete();
+            file.getParentFile().delete();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.signaut.jetty.deploy.providers.couchdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.signaut.jetty.deploy.providers.couchdb.DeploymentPipeline.Stage;
+
+public class TestDeploymentPipeline {
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Object> checkpoints = Collections.synchronizedList(new ArrayList<Object>());
+    private final DeploymentPipeline pipeline = new DeploymentPipeline(4, 10, new DeploymentPipeline.Listener() {
+        @Override
+        public void completed(Object sequence) {
+            checkpoints.add(sequence);
+        }
+    });
+
+    @After
+    public void close() {
+        pipeline.close();
+    }
+
+    @Test
+    public void testSameDocumentIsOrderedOthersRunAlongside() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        pipeline.submit("a", 1, task("a1", release, done));
+        pipeline.submit("a", 2, task("a2", null, done));
+        pipeline.submit("b", 3, task("b1", null, done));
+
+        //b is not held up by the slow a
+        waitFor("b1");
+        assertTrue(pipeline.getActive() >= 1);
+        //a2 waits for a1
+        assertEquals(1, pipeline.getQueued());
+        assertFalse(ran.contains("a2"));
+        //Nothing is completed until the first change is
+        assertTrue(checkpoints.isEmpty());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        waitForCheckpoint(3);
+        assertTrue(ran.indexOf("a1") < ran.indexOf("a2"));
+        assertEquals(3, checkpoints.get(checkpoints.size() - 1));
+        assertEquals(3, pipeline.getLatency(Stage.QUEUE).getCount());
+        assertEquals(0, pipeline.getQueued());
+    }
+
+    @Test
+    public void testCheckpointsFollowSubmissionOrder() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        pipeline.submit("a", 1, task("a1", null, done));
+        pipeline.submit("b", 2, task("b1", release, done));
+        pipeline.submit("c", 3, task("c1", null, done));
+        waitFor("c1");
+        waitForCheckpoint(1);
+        Thread.sleep(50);
+        //c is done, but b is not
+        assertEquals(Collections.<Object> singletonList(1), checkpoints);
+        release.countDown();
+        waitForCheckpoint(3);
+    }
+
+    @Test
+    public void testSubmitBlocksWhenFull() throws Exception {
+        final DeploymentPipeline small = new DeploymentPipeline(1, 1, null);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            small.submit("a", 1, task("a1", release, null));
+            final Thread submitter = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        small.submit("b", 2, task("b1", null, null));
+                    } catch (InterruptedException e) {
+                        //Done
+                    }
+                }
+            };
+            submitter.start();
+            submitter.join(200);
+            assertTrue("Submitting went through while full", submitter.isAlive());
+            release.countDown();
+            submitter.join(5000);
+            assertFalse(submitter.isAlive());
+            waitFor("b1");
+        } finally {
+            small.close();
+        }
+    }
+
+    @Test
+    public void testTasksDoneBehindARunningOneStillTakeCapacity() throws Exception {
+        final DeploymentPipeline small = new DeploymentPipeline(2, 2, null);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            small.submit("a", 1, task("a1", release, null));
+            small.submit("b", 2, task("b1", null, null));
+            waitFor("b1");
+            final Thread submitter = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        small.submit("c", 3, task("c1", null, null));
+                    } catch (InterruptedException e) {
+                        //Done
+                    }
+                }
+            };
+            submitter.start();
+            submitter.join(200);
+            //b is done, but its sequence waits for a
+            assertTrue("Submitting went through while a was stuck", submitter.isAlive());
+            release.countDown();
+            submitter.join(5000);
+            assertFalse(submitter.isAlive());
+            waitFor("c1");
+        } finally {
+            small.close();
+        }
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testClosed() throws Exception {
+        pipeline.close();
+        pipeline.submit("a", 1, task("a1", null, null));
+    }
+
+    private Runnable task(final String name, final CountDownLatch release, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.add(name);
+                try {
+                    if (release != null) {
+                        release.await(5, TimeUnit.SECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+    private void waitFor(String name) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 5000;
+        while ( ! ran.contains(name) && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertTrue(name + " did not run", ran.contains(name));
+    }
+
+    private void waitForCheckpoint(Object sequence) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 5000;
+        while ( ! checkpoints.contains(sequence) && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertTrue("No checkpoint at " + sequence, checkpoints.contains(sequence));
+    }
+}
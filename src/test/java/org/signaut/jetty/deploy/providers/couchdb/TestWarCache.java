@@ -0,0 +1,157 @@
+package org.signaut.jetty.deploy.providers.couchdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.signaut.common.couchdb.CouchDbClient;
+import org.signaut.common.couchdb.Document.Attachment;
+import org.signaut.common.couchdb.JsonCodec;
+
+public class TestWarCache {
+    private final File directory;
+    private final AtomicInteger downloads = new AtomicInteger();
+    private final CouchDbClient client = (CouchDbClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { CouchDbClient.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ( ! method.getName().equals("downloadAttachment")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                final String documentId = (String) args[0];
+                if (documentId.equals("missing")) {
+                    return null;
+                }
+                downloads.incrementAndGet();
+                final File target = (File) args[2];
+                target.mkdirs();
+                final File war = new File(target, (String) args[1]);
+                //100 bytes per war
+                Files.write(war.toPath(), new byte[100]);
+                return war.getPath();
+            }
+        });
+
+    public TestWarCache() throws IOException {
+        directory = Files.createTempDirectory("war-cache").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        delete(directory);
+    }
+
+    @Test
+    public void testSameDigestIsDownloadedOnce() {
+        final WarCache cache = new WarCache(client, directory, 1000);
+        final String site = cache.get("site", "site.war", attachment("md5-aaa", 2));
+        final String copy = cache.get("copy", "copy.war", attachment("md5-aaa", 5));
+        assertEquals(site, copy);
+        assertEquals(1, downloads.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(100, cache.getSize());
+
+        final String changed = cache.get("site", "site.war", attachment("md5-bbb", 3));
+        assertNotEquals(site, changed);
+        assertEquals(2, downloads.get());
+        assertTrue(new File(changed).isFile());
+        assertEquals(0, new File(directory, ".incoming").list().length);
+    }
+
+    @Test
+    public void testWithoutDigestRevposIsUsed() {
+        final WarCache cache = new WarCache(client, directory, 1000);
+        final String first = cache.get("site", "site.war", attachment(null, 2));
+        assertEquals(first, cache.get("site", "site.war", attachment(null, 2)));
+        assertNotEquals(first, cache.get("site", "site.war", attachment(null, 3)));
+        assertEquals(2, downloads.get());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        final WarCache cache = new WarCache(client, directory, 250);
+        final String a = cache.get("a", "a.war", attachment("md5-a", 1));
+        final String b = cache.get("b", "b.war", attachment("md5-b", 1));
+        cache.release(a);
+        cache.release(b);
+        //a is used again, so b is now the least recently used
+        cache.release(cache.get("a", "a.war", attachment("md5-a", 1)));
+        final String c = cache.get("c", "c.war", attachment("md5-c", 1));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(200, cache.getSize());
+        assertTrue(new File(a).isFile());
+        assertFalse(new File(b).isFile());
+        assertTrue(new File(c).isFile());
+
+        //Wars in use are kept over quota
+        cache.get("a", "a.war", attachment("md5-a", 1));
+        final String d = cache.get("d", "d.war", attachment("md5-d", 1));
+        final String e = cache.get("e", "e.war", attachment("md5-e", 1));
+        assertEquals(400, cache.getSize());
+        cache.release(c);
+        assertFalse(new File(c).isFile());
+        assertTrue(new File(d).isFile() && new File(e).isFile());
+
+        //An evicted war is downloaded again
+        cache.get("b", "b.war", attachment("md5-b", 1));
+        assertEquals(6, downloads.get());
+    }
+
+    @Test
+    public void testMissing() {
+        final WarCache cache = new WarCache(client, directory, 1000);
+        assertNull(cache.get("missing", "site.war", attachment("md5-aaa", 1)));
+        assertEquals(0, cache.getEntries());
+    }
+
+    @Test
+    public void testSurvivesRestart() {
+        final String path = new WarCache(client, directory, 1000).get("site", "site.war", attachment("md5-aaa", 1));
+        final WarCache restarted = new WarCache(client, directory, 1000);
+        assertEquals(100, restarted.getSize());
+        assertEquals(path, restarted.get("site", "site.war", attachment("md5-aaa", 1)));
+        assertEquals(1, downloads.get());
+    }
+
+    @Test
+    public void testAttachmentStubIsParsed() throws IOException {
+        final WebAppDocument webapp = JsonCodec.getDefault().read(
+            ("{\"_id\":\"site\",\"_rev\":\"3-abc\",\"war\":\"site.war\",\"_attachments\":{\"site.war\":"
+             + "{\"content_type\":\"application/java-archive\",\"revpos\":2,\"digest\":\"md5-Ynn0gQ==\","
+             + "\"length\":100,\"stub\":true}}}").getBytes("UTF-8"), WebAppDocument.class);
+        final Attachment attachment = webapp.getAttachments().get("site.war");
+        assertEquals("md5-Ynn0gQ==", attachment.getDigest());
+        assertEquals(2, attachment.getRevpos());
+        assertEquals(100, attachment.getLength());
+    }
+
+    private static Attachment attachment(String digest, int revpos) {
+        final Attachment attachment = new Attachment();
+        attachment.setDigest(digest);
+        attachment.setRevpos(revpos);
+        return attachment;
+    }
+
+    private static void delete(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File child: files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}